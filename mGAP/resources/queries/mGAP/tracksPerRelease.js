@@ -0,0 +1,7 @@
+var LABKEY = require("labkey");
+
+var triggerHelper = new org.labkey.mgap.query.TriggerHelper(LABKEY.Security.currentUser.id, LABKEY.Security.currentContainer.id);
+
+function complete(event, errors){
+    triggerHelper.clearGenomeBrowserTrackCache();
+}
@@ -0,0 +1,671 @@
+package org.labkey.mgap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Describes a zip archive in which every member is STORED (not deflated).  The release VCFs, indexes and genome files are either
+ * already compressed or are served to users that will decompress them anyway, so deflating them again only costs server CPU.
+ * Because nothing is compressed on the fly, the size and offset of every byte of the archive (including the central directory)
+ * is known before anything is written, which allows HTTP Range requests and resumed downloads to be served from any offset.
+ *
+ * The CRC32 of each file is needed up front, which requires one read of the file.  For large files this read can take longer than an HTTP timeout,
+ * so computeCrcs() should be called when the files are published (i.e. when a release is imported).  This writes each CRC to a sidecar file
+ * (e.g. release.vcf.gz.crc32) holding the size, modification time and CRC, which survives server restarts.  The CRCs are also cached in memory.
+ * If neither the cache nor the sidecar matches the current file, the CRC is computed inline and persisted.
+ */
+public class StoredZipBundle
+{
+    private static final Logger _log = LogManager.getLogger(StoredZipBundle.class);
+
+    public static final String CRC_EXTENSION = ".crc32";
+
+    private static final Map<String, CachedCrc> _crcCache = new ConcurrentHashMap<>();
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<Segment> _segments = new ArrayList<>();
+    private final long _length;
+    private final String _etag;
+
+    public StoredZipBundle(Collection<File> files) throws IOException
+    {
+        long offset = 0;
+        ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+        StringBuilder etagSource = new StringBuilder();
+        for (File f : files)
+        {
+            Entry entry = new Entry(f, offset);
+            etagSource.append(f.getPath()).append('|').append(entry._size).append('|').append(f.lastModified()).append('|').append(entry._crc).append(';');
+
+            byte[] localHeader = entry.getLocalHeader();
+            _segments.add(new Segment(offset, localHeader, null));
+            offset += localHeader.length;
+
+            _segments.add(new Segment(offset, null, f));
+            offset += entry._size;
+
+            centralDirectory.write(entry.getCentralDirectoryHeader());
+        }
+
+        long centralDirectoryOffset = offset;
+        long centralDirectorySize = centralDirectory.size();
+        writeEndOfCentralDirectory(centralDirectory, files.size(), centralDirectoryOffset, centralDirectorySize);
+
+        byte[] trailer = centralDirectory.toByteArray();
+        _segments.add(new Segment(offset, trailer, null));
+        _length = offset + trailer.length;
+
+        CRC32 etagCrc = new CRC32();
+        etagCrc.update(etagSource.toString().getBytes(StandardCharsets.UTF_8));
+        _etag = "\"" + Long.toHexString(etagCrc.getValue()) + "-" + Long.toHexString(_length) + "\"";
+    }
+
+    public long getLength()
+    {
+        return _length;
+    }
+
+    /**
+     * A strong validator for this archive, which will change if any member file changes.  This should be used for If-Range.
+     */
+    public String getETag()
+    {
+        return _etag;
+    }
+
+    public void write(OutputStream out) throws IOException
+    {
+        write(out, 0, _length - 1);
+    }
+
+    /**
+     * Writes the bytes of the archive from start to end, inclusive.
+     */
+    public void write(OutputStream out, long start, long end) throws IOException
+    {
+        if (start < 0 || end >= _length || start > end)
+        {
+            throw new IllegalArgumentException("Invalid range: " + start + "-" + end + ", length: " + _length);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (Segment segment : _segments)
+        {
+            long segmentEnd = segment._offset + segment.getLength() - 1;
+            if (segmentEnd < start || segment.getLength() == 0)
+            {
+                continue;
+            }
+            if (segment._offset > end)
+            {
+                break;
+            }
+
+            long from = Math.max(start, segment._offset) - segment._offset;
+            long to = Math.min(end, segmentEnd) - segment._offset;
+            if (segment._bytes != null)
+            {
+                out.write(segment._bytes, (int)from, (int)(to - from + 1));
+            }
+            else
+            {
+                try (RandomAccessFile raf = new RandomAccessFile(segment._file, "r"))
+                {
+                    raf.seek(from);
+                    long remaining = to - from + 1;
+                    while (remaining > 0)
+                    {
+                        int read = raf.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                        if (read == -1)
+                        {
+                            throw new IOException("File was truncated while being written: " + segment._file.getPath());
+                        }
+
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a single-range HTTP Range header (i.e. bytes=start-end, bytes=start- or bytes=-suffixLength).
+     * Returns null if the full content should be served, which includes multi-range requests and a stale If-Range.
+     */
+    public ByteRange parseRange(String rangeHeader, String ifRangeHeader)
+    {
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=") || rangeHeader.contains(","))
+        {
+            return null;
+        }
+
+        if (ifRangeHeader != null && !ifRangeHeader.equals(_etag))
+        {
+            return null;
+        }
+
+        String spec = rangeHeader.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1)
+        {
+            return null;
+        }
+
+        try
+        {
+            String startString = spec.substring(0, dash).trim();
+            String endString = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (startString.isEmpty())
+            {
+                long suffix = Long.parseLong(endString);
+                if (suffix <= 0)
+                {
+                    return ByteRange.UNSATISFIABLE;
+                }
+
+                start = Math.max(0, _length - suffix);
+                end = _length - 1;
+            }
+            else
+            {
+                start = Long.parseLong(startString);
+                end = endString.isEmpty() ? _length - 1 : Math.min(Long.parseLong(endString), _length - 1);
+            }
+
+            if (start >= _length || start > end)
+            {
+                return ByteRange.UNSATISFIABLE;
+            }
+
+            return new ByteRange(start, end);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    public static class ByteRange
+    {
+        public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+        private final long _start;
+        private final long _end;
+
+        private ByteRange(long start, long end)
+        {
+            _start = start;
+            _end = end;
+        }
+
+        public boolean isSatisfiable()
+        {
+            return this != UNSATISFIABLE;
+        }
+
+        public long getStart()
+        {
+            return _start;
+        }
+
+        public long getEnd()
+        {
+            return _end;
+        }
+
+        public long getLength()
+        {
+            return _end - _start + 1;
+        }
+    }
+
+    private static class Segment
+    {
+        private final long _offset;
+        private final byte[] _bytes;
+        private final File _file;
+        private final long _length;
+
+        private Segment(long offset, byte[] bytes, File file)
+        {
+            _offset = offset;
+            _bytes = bytes;
+            _file = file;
+            _length = bytes != null ? bytes.length : file.length();
+        }
+
+        private long getLength()
+        {
+            return _length;
+        }
+    }
+
+    private static class CachedCrc
+    {
+        private final long _size;
+        private final long _lastModified;
+        private final long _crc;
+
+        private CachedCrc(long size, long lastModified, long crc)
+        {
+            _size = size;
+            _lastModified = lastModified;
+            _crc = crc;
+        }
+
+        private boolean matches(File f)
+        {
+            return _size == f.length() && _lastModified == f.lastModified();
+        }
+
+        private String toLine()
+        {
+            return _size + "\t" + _lastModified + "\t" + _crc;
+        }
+
+        @Nullable
+        private static CachedCrc fromLine(String line)
+        {
+            String[] tokens = StringUtils.trimToEmpty(line).split("\t");
+            if (tokens.length != 3)
+            {
+                return null;
+            }
+
+            try
+            {
+                return new CachedCrc(Long.parseLong(tokens[0]), Long.parseLong(tokens[1]), Long.parseLong(tokens[2]));
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    public static File getCrcFile(File f)
+    {
+        return new File(f.getPath() + CRC_EXTENSION);
+    }
+
+    /**
+     * Computes and persists the CRC of any file without a current sidecar.  This reads each such file in full, so it is intended for the pipeline or
+     * ETL that publishes the files rather than a request thread.
+     */
+    public static void computeCrcs(Collection<File> files) throws IOException
+    {
+        for (File f : files)
+        {
+            long start = System.currentTimeMillis();
+            boolean persisted = readPersistedCrc(f) != null;
+            getCrc(f);
+            if (!persisted)
+            {
+                _log.debug("computed CRC for " + f.getPath() + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+    }
+
+    @Nullable
+    private static CachedCrc readPersistedCrc(File f)
+    {
+        File crcFile = getCrcFile(f);
+        if (!crcFile.exists())
+        {
+            return null;
+        }
+
+        try
+        {
+            CachedCrc persisted = CachedCrc.fromLine(FileUtils.readFileToString(crcFile, StandardCharsets.UTF_8));
+
+            return persisted != null && persisted.matches(f) ? persisted : null;
+        }
+        catch (IOException e)
+        {
+            _log.warn("Unable to read CRC file: " + crcFile.getPath(), e);
+            return null;
+        }
+    }
+
+    private static long getCrc(File f) throws IOException
+    {
+        CachedCrc cached = _crcCache.get(f.getPath());
+        if (cached != null && cached.matches(f))
+        {
+            return cached._crc;
+        }
+
+        cached = readPersistedCrc(f);
+        if (cached != null)
+        {
+            _crcCache.put(f.getPath(), cached);
+            return cached._crc;
+        }
+
+        long size = f.length();
+        long lastModified = f.lastModified();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(f))
+        {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                crc.update(buffer, 0, read);
+            }
+        }
+
+        cached = new CachedCrc(size, lastModified, crc.getValue());
+        _crcCache.put(f.getPath(), cached);
+
+        //NOTE: the directory may not be writable (i.e. a shared genome), in which case the CRC is only cached in memory
+        try
+        {
+            FileUtils.writeStringToFile(getCrcFile(f), cached.toLine(), StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            _log.warn("Unable to write CRC file: " + getCrcFile(f).getPath(), e);
+        }
+
+        return cached._crc;
+    }
+
+    private static class Entry
+    {
+        private final byte[] _name;
+        private final long _size;
+        private final long _crc;
+        private final long _headerOffset;
+        private final int _dosTime;
+        private final int _dosDate;
+
+        private Entry(File f, long headerOffset) throws IOException
+        {
+            _name = f.getName().getBytes(StandardCharsets.UTF_8);
+            _size = f.length();
+            _crc = getCrc(f);
+            _headerOffset = headerOffset;
+
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(f.lastModified());
+            int year = Math.max(1980, cal.get(Calendar.YEAR));
+            _dosTime = (cal.get(Calendar.HOUR_OF_DAY) << 11) | (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+            _dosDate = ((year - 1980) << 9) | ((cal.get(Calendar.MONTH) + 1) << 5) | cal.get(Calendar.DAY_OF_MONTH);
+        }
+
+        private boolean isZip64Size()
+        {
+            return _size >= ZIP64_MAGIC;
+        }
+
+        private boolean isZip64Offset()
+        {
+            return _headerOffset >= ZIP64_MAGIC;
+        }
+
+        private int getVersionNeeded()
+        {
+            return isZip64Size() || isZip64Offset() ? 45 : 10;
+        }
+
+        private byte[] getLocalHeader()
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeInt(out, 0x04034b50L);
+            writeShort(out, getVersionNeeded());
+            writeShort(out, 0x0800); //names are UTF-8
+            writeShort(out, ZipEntry.STORED);
+            writeShort(out, _dosTime);
+            writeShort(out, _dosDate);
+            writeInt(out, _crc);
+            writeInt(out, isZip64Size() ? ZIP64_MAGIC : _size);
+            writeInt(out, isZip64Size() ? ZIP64_MAGIC : _size);
+            writeShort(out, _name.length);
+            writeShort(out, isZip64Size() ? 20 : 0);
+            out.writeBytes(_name);
+            if (isZip64Size())
+            {
+                writeShort(out, 0x0001);
+                writeShort(out, 16);
+                writeLong(out, _size);
+                writeLong(out, _size);
+            }
+
+            return out.toByteArray();
+        }
+
+        private byte[] getCentralDirectoryHeader()
+        {
+            int extraLength = (isZip64Size() ? 16 : 0) + (isZip64Offset() ? 8 : 0);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeInt(out, 0x02014b50L);
+            writeShort(out, (3 << 8) | 45); //made by unix, version 4.5
+            writeShort(out, getVersionNeeded());
+            writeShort(out, 0x0800);
+            writeShort(out, ZipEntry.STORED);
+            writeShort(out, _dosTime);
+            writeShort(out, _dosDate);
+            writeInt(out, _crc);
+            writeInt(out, isZip64Size() ? ZIP64_MAGIC : _size);
+            writeInt(out, isZip64Size() ? ZIP64_MAGIC : _size);
+            writeShort(out, _name.length);
+            writeShort(out, extraLength == 0 ? 0 : extraLength + 4);
+            writeShort(out, 0); //comment
+            writeShort(out, 0); //disk number
+            writeShort(out, 0); //internal attributes
+            writeInt(out, 0x81A40000L); //external attributes: regular file, 0644
+            writeInt(out, isZip64Offset() ? ZIP64_MAGIC : _headerOffset);
+            out.writeBytes(_name);
+            if (extraLength > 0)
+            {
+                writeShort(out, 0x0001);
+                writeShort(out, extraLength);
+                if (isZip64Size())
+                {
+                    writeLong(out, _size);
+                    writeLong(out, _size);
+                }
+                if (isZip64Offset())
+                {
+                    writeLong(out, _headerOffset);
+                }
+            }
+
+            return out.toByteArray();
+        }
+    }
+
+    private static void writeEndOfCentralDirectory(ByteArrayOutputStream out, int totalEntries, long centralDirectoryOffset, long centralDirectorySize)
+    {
+        boolean zip64 = totalEntries >= ZIP64_MAGIC_SHORT || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC;
+        if (zip64)
+        {
+            long zip64EndOffset = centralDirectoryOffset + centralDirectorySize;
+            writeInt(out, 0x06064b50L);
+            writeLong(out, 44);
+            writeShort(out, (3 << 8) | 45);
+            writeShort(out, 45);
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeLong(out, totalEntries);
+            writeLong(out, totalEntries);
+            writeLong(out, centralDirectorySize);
+            writeLong(out, centralDirectoryOffset);
+
+            //locator
+            writeInt(out, 0x07064b50L);
+            writeInt(out, 0);
+            writeLong(out, zip64EndOffset);
+            writeInt(out, 1);
+        }
+
+        writeInt(out, 0x06054b50L);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, Math.min(totalEntries, ZIP64_MAGIC_SHORT));
+        writeShort(out, Math.min(totalEntries, ZIP64_MAGIC_SHORT));
+        writeInt(out, Math.min(centralDirectorySize, ZIP64_MAGIC));
+        writeInt(out, Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        writeShort(out, 0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int v)
+    {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long v)
+    {
+        writeShort(out, (int)(v & 0xFFFF));
+        writeShort(out, (int)((v >>> 16) & 0xFFFF));
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long v)
+    {
+        writeInt(out, v & 0xFFFFFFFFL);
+        writeInt(out, (v >>> 32) & 0xFFFFFFFFL);
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(TestCase.class);
+
+        @Test
+        public void testArchiveAndRanges() throws Exception
+        {
+            File dir = Files.createTempDirectory("storedZipTest").toFile();
+            try
+            {
+                Random random = new Random(1234);
+                List<File> files = new ArrayList<>();
+                for (int i = 0; i < 3; i++)
+                {
+                    File f = new File(dir, "file" + i + (i == 0 ? ".vcf.gz" : ".txt"));
+                    byte[] data = new byte[(i + 1) * 16 * 1024 * 1024];
+                    random.nextBytes(data);
+                    Files.write(f.toPath(), data);
+                    files.add(f);
+                }
+
+                //as when the release is imported
+                computeCrcs(files);
+                for (File f : files)
+                {
+                    assertTrue("CRC file not created: " + f.getName(), getCrcFile(f).exists());
+                }
+
+                //as after a restart, the CRCs should be read from the sidecar files rather than the members
+                _crcCache.clear();
+                StoredZipBundle bundle = new StoredZipBundle(files);
+                for (File f : files)
+                {
+                    assertTrue("CRC should be cached once the bundle is created: " + f.getName(), _crcCache.get(f.getPath()).matches(f));
+                }
+
+                File zip = new File(dir, "bundle.zip");
+                long start = System.currentTimeMillis();
+                try (OutputStream out = Files.newOutputStream(zip.toPath()))
+                {
+                    bundle.write(out);
+                }
+                long duration = Math.max(1, System.currentTimeMillis() - start);
+                _log.info("wrote " + bundle.getLength() + " bytes in " + duration + "ms (" + ((bundle.getLength() / 1024.0 / 1024.0) / (duration / 1000.0)) + " MB/s)");
+                assertEquals("Incorrect archive length", bundle.getLength(), zip.length());
+
+                //java's ZipFile verifies the central directory against the local headers, and the CRC as entries are read
+                try (ZipFile zf = new ZipFile(zip))
+                {
+                    Enumeration<? extends ZipEntry> entries = zf.entries();
+                    int idx = 0;
+                    while (entries.hasMoreElements())
+                    {
+                        ZipEntry ze = entries.nextElement();
+                        File expected = files.get(idx);
+                        assertEquals(expected.getName(), ze.getName());
+                        assertEquals(ZipEntry.STORED, ze.getMethod());
+                        try (InputStream is = zf.getInputStream(ze))
+                        {
+                            assertArrayEquals("Entry contents do not match: " + ze.getName(), Files.readAllBytes(expected.toPath()), is.readAllBytes());
+                        }
+                        idx++;
+                    }
+                    assertEquals("Incorrect entry count", files.size(), idx);
+                }
+
+                //a resumed download, concatenated onto a partial download, should reproduce the archive:
+                byte[] full = Files.readAllBytes(zip.toPath());
+                for (long split : Arrays.asList(1L, 30L, 16L * 1024 * 1024 + 17, bundle.getLength() - 10))
+                {
+                    ByteRange range = bundle.parseRange("bytes=" + split + "-", bundle.getETag());
+                    assertNotNull(range);
+                    assertTrue(range.isSatisfiable());
+
+                    ByteArrayOutputStream partial = new ByteArrayOutputStream();
+                    bundle.write(partial, range.getStart(), range.getEnd());
+                    assertArrayEquals("Range does not match archive: " + split, Arrays.copyOfRange(full, (int)split, full.length), partial.toByteArray());
+                }
+
+                ByteRange suffix = bundle.parseRange("bytes=-100", null);
+                assertEquals(bundle.getLength() - 100, suffix.getStart());
+                assertEquals(bundle.getLength() - 1, suffix.getEnd());
+
+                assertNull("Stale If-Range should return the full archive", bundle.parseRange("bytes=100-", "\"other\""));
+                assertNull("Multiple ranges should return the full archive", bundle.parseRange("bytes=0-1,5-6", null));
+                assertFalse(bundle.parseRange("bytes=" + bundle.getLength() + "-", null).isSatisfiable());
+
+                //a sidecar is only trusted if it matches the file's size and modification time
+                File f = files.get(1);
+                long actualCrc = getCrc(f);
+                _crcCache.clear();
+                FileUtils.writeStringToFile(getCrcFile(f), new CachedCrc(f.length(), f.lastModified(), 1234L).toLine(), StandardCharsets.UTF_8);
+                assertEquals("CRC should be read from the sidecar", 1234L, getCrc(f));
+
+                _crcCache.clear();
+                FileUtils.writeStringToFile(getCrcFile(f), new CachedCrc(f.length(), f.lastModified() - 2000, 1234L).toLine(), StandardCharsets.UTF_8);
+                assertEquals("A stale sidecar should be ignored", actualCrc, getCrc(f));
+                assertEquals("A stale sidecar should be rewritten", new CachedCrc(f.length(), f.lastModified(), actualCrc).toLine(), FileUtils.readFileToString(getCrcFile(f), StandardCharsets.UTF_8));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
@@ -1,11 +1,9 @@
 package org.labkey.mgap.columnTransforms;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.Results;
 import org.labkey.api.data.Selector;
-import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.StopIteratingException;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
@@ -38,12 +36,14 @@ abstract public class AbstractVariantTransform extends ColumnTransform
 {
     private transient TableInfo _outputFilesTableInfo = null;
     private transient Map<String, Integer> _genomeIdMap = null;
+    private transient Map<Integer, Integer> _outputFileIdMap = null;
 
     @Override
     public void reset()
     {
         _outputFilesTableInfo = null;
         _genomeIdMap = null;
+        _outputFileIdMap = null;
     }
 
     protected Map<String, Integer> getGenomeIdMap()
@@ -72,6 +72,24 @@ public void exec(Results rs) throws SQLException, StopIteratingException
         return genomeMap;
     }
 
+    /**
+     * Map of dataId to outputfile rowId, which is loaded once per ETL rather than queried for each row
+     */
+    private Map<Integer, Integer> getOutputFileIdMap()
+    {
+        if (_outputFileIdMap == null)
+        {
+            final Map<Integer, Integer> outputFileIdMap = new HashMap<>();
+            new TableSelector(getOutputFilesTableInfo(), PageFlowUtil.set("rowid", "dataid")).forEachResults(rs -> {
+                outputFileIdMap.putIfAbsent(rs.getInt(FieldKey.fromString("dataid")), rs.getInt(FieldKey.fromString("rowid")));
+            });
+
+            _outputFileIdMap = outputFileIdMap;
+        }
+
+        return _outputFileIdMap;
+    }
+
     protected TableInfo getOutputFilesTableInfo()
     {
         if (_outputFilesTableInfo == null)
@@ -132,48 +150,20 @@ protected Integer getOrCreateOutputFile(Object dataFileUrl, Object folderName, S
 
                 getStatusLogger().info("preparing to copy file: " + f.getPath());
 
-                //Copy file locally, plus index if exists:
+                //Materialize the file locally, plus index if exists.  Where possible this is a link rather than a copy
                 File localCopy = new File(subdir, name == null || f.getName().startsWith("mGap.v")? f.getName() : FileUtil.makeLegalName(name).replaceAll(" ", "_") + ".vcf.gz");
-                boolean doCopy = true;
-                if (localCopy.exists())
-                {
-                    getStatusLogger().info("file exists: " + localCopy.getPath());
-                    if (localCopy.lastModified() >= f.lastModified())
-                    {
-                        doCopy = false;
-                    }
-                    else
-                    {
-                        getStatusLogger().info("source file has been modified, deleting copy and re-syncing");
-                        localCopy.delete();
-                    }
-                }
-
-                if (doCopy)
-                {
-                    getStatusLogger().info("copying file locally: " + localCopy.getPath());
-                    if (localCopy.exists())
-                    {
-                        localCopy.delete();
-                    }
-
-                    FileUtils.copyFile(f, localCopy);
-                }
+                FileMaterializer materializer = new FileMaterializer();
+                FileMaterializer.Method method = materializer.materialize(f, localCopy);
+                getStatusLogger().info(method == FileMaterializer.Method.EXISTING ? "file exists and is unchanged: " + localCopy.getPath() : "file materialized locally using " + method.name().toLowerCase() + ": " + localCopy.getPath());
 
                 File index = new File(f.getPath() + ".tbi");
                 if (index.exists())
                 {
                     File indexLocal = new File(localCopy.getPath() + ".tbi");
-                    if (doCopy && indexLocal.exists())
+                    FileMaterializer.Method indexMethod = materializer.materialize(index, indexLocal);
+                    if (indexMethod != FileMaterializer.Method.EXISTING)
                     {
-                        getStatusLogger().info("deleting local copy of index since file was re-copied");
-                        indexLocal.delete();
-                    }
-
-                    if (!indexLocal.exists())
-                    {
-                        getStatusLogger().info("copying index locally: " + indexLocal.getPath());
-                        FileUtils.copyFile(index, indexLocal);
+                        getStatusLogger().info("index materialized locally using " + indexMethod.name().toLowerCase() + ": " + indexLocal.getPath());
                     }
                 }
 
@@ -188,11 +178,11 @@ protected Integer getOrCreateOutputFile(Object dataFileUrl, Object folderName, S
                 }
 
                 //then the outputfile
-                TableSelector ts = new TableSelector(getOutputFilesTableInfo(), PageFlowUtil.set("rowid"), new SimpleFilter(FieldKey.fromString("dataId"), d.getRowId()), null);
-                if (ts.exists())
+                Integer existingRowId = getOutputFileIdMap().get(d.getRowId());
+                if (existingRowId != null)
                 {
                     getStatusLogger().info("existing record found for outputfile: " + d.getDataFileUrl());
-                    return ts.getObject(Integer.class);
+                    return existingRowId;
                 }
                 else
                 {
@@ -211,7 +201,10 @@ protected Integer getOrCreateOutputFile(Object dataFileUrl, Object folderName, S
                     List<Map<String, Object>> rows = getOutputFilesTableInfo().getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), Arrays.asList(row), new BatchValidationException(), null, new HashMap<>());
                     getStatusLogger().info("created outputfile: " + rows.get(0).get("rowid"));
 
-                    return (Integer)rows.get(0).get("rowid");
+                    Integer rowId = (Integer)rows.get(0).get("rowid");
+                    getOutputFileIdMap().put(d.getRowId(), rowId);
+
+                    return rowId;
                 }
             }
         }
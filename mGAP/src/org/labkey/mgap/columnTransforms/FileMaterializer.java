@@ -0,0 +1,220 @@
+package org.labkey.mgap.columnTransforms;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates a local copy of a release file during ETL.  Release VCFs are large, so where the source and destination share a filesystem the
+ * destination is created as a reflink (a copy-on-write clone, where supported) or a hard link, and a full copy is only used as the fallback.
+ * An existing destination is left alone if it is the same file as the source, or has the same size and checksum.
+ *
+ * NOTE: a hard link shares its inode with the source, so if the source is later rewritten in place the local copy silently changes with it.
+ * Release files are not modified once written, which is why a hard link is acceptable, but a reflink is tried first since it does not have this problem.
+ * Files that may be rewritten in place should use FileMaterializer(false).
+ */
+public class FileMaterializer
+{
+    public enum Method
+    {
+        EXISTING,
+        HARDLINK,
+        REFLINK,
+        COPY
+    }
+
+    private final boolean _allowLinks;
+
+    public FileMaterializer()
+    {
+        this(true);
+    }
+
+    public FileMaterializer(boolean allowLinks)
+    {
+        _allowLinks = allowLinks;
+    }
+
+    public Method materialize(File source, File dest) throws IOException
+    {
+        if (dest.exists())
+        {
+            if (isSameContent(source, dest))
+            {
+                return Method.EXISTING;
+            }
+
+            dest.delete();
+        }
+
+        if (_allowLinks)
+        {
+            if (tryReflink(source, dest))
+            {
+                return Method.REFLINK;
+            }
+
+            try
+            {
+                Files.createLink(dest.toPath(), source.toPath());
+                return Method.HARDLINK;
+            }
+            catch (FileSystemException | UnsupportedOperationException e)
+            {
+                //expected if these are on different filesystems, or links are not supported
+            }
+        }
+
+        FileUtils.copyFile(source, dest);
+
+        return Method.COPY;
+    }
+
+    private boolean tryReflink(File source, File dest)
+    {
+        if (!SystemUtils.IS_OS_LINUX)
+        {
+            return false;
+        }
+
+        try
+        {
+            Process p = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps", source.getPath(), dest.getPath()).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (p.waitFor(5, TimeUnit.MINUTES) && p.exitValue() == 0 && dest.exists())
+            {
+                return true;
+            }
+
+            p.destroyForcibly();
+        }
+        catch (IOException e)
+        {
+            //cp may not exist or support --reflink
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (dest.exists())
+        {
+            dest.delete();
+        }
+
+        return false;
+    }
+
+    public static boolean isSameContent(File f1, File f2) throws IOException
+    {
+        //a hard link to the source (the same inode), which needs no checksum
+        if (Files.isSameFile(f1.toPath(), f2.toPath()))
+        {
+            return true;
+        }
+
+        if (f1.length() != f2.length())
+        {
+            return false;
+        }
+
+        return Arrays.equals(getChecksum(f1), getChecksum(f2));
+    }
+
+    private static byte[] getChecksum(File f) throws IOException
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream is = new FileInputStream(f))
+            {
+                int read;
+                while ((read = is.read(buffer)) != -1)
+                {
+                    md.update(buffer, 0, read);
+                }
+            }
+
+            return md.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMaterialize() throws Exception
+        {
+            File dir = Files.createTempDirectory("fileMaterializerTest").toFile();
+            try
+            {
+                File source = new File(dir, "source.vcf.gz");
+                FileUtils.writeStringToFile(source, "content1", "UTF-8");
+
+                //within one temp directory, a link should be possible:
+                File linked = new File(dir, "linked.vcf.gz");
+                FileMaterializer materializer = new FileMaterializer();
+                Method method = materializer.materialize(source, linked);
+                assertNotEquals(Method.EXISTING, method);
+                assertEquals("content1", FileUtils.readFileToString(linked, "UTF-8"));
+                if (method == Method.HARDLINK)
+                {
+                    assertTrue("Expected a hard link", Files.isSameFile(source.toPath(), linked.toPath()));
+                }
+
+                assertEquals("Existing file should not be re-created", Method.EXISTING, materializer.materialize(source, linked));
+
+                //copy fallback:
+                File copied = new File(dir, "copied.vcf.gz");
+                FileMaterializer copyOnly = new FileMaterializer(false);
+                assertEquals(Method.COPY, copyOnly.materialize(source, copied));
+                assertFalse(Files.isSameFile(source.toPath(), copied.toPath()));
+                assertEquals("content1", FileUtils.readFileToString(copied, "UTF-8"));
+                assertEquals("Matching size and checksum should not be re-copied", Method.EXISTING, copyOnly.materialize(source, copied));
+
+                assertEquals("A copy should preserve the modification time", source.lastModified(), copied.lastModified());
+
+                //same size and content, different modification time:
+                assertTrue(copied.setLastModified(source.lastModified() - 10000));
+                assertEquals(Method.EXISTING, copyOnly.materialize(source, copied));
+
+                //same size and modification time, different content:
+                FileUtils.writeStringToFile(copied, "content3", "UTF-8");
+                assertTrue(copied.setLastModified(source.lastModified()));
+                assertFalse(isSameContent(source, copied));
+                assertEquals(Method.COPY, copyOnly.materialize(source, copied));
+                assertEquals("content1", FileUtils.readFileToString(copied, "UTF-8"));
+
+                //same size, different content:
+                FileUtils.writeStringToFile(copied, "content2", "UTF-8");
+                assertTrue(copied.setLastModified(source.lastModified() - 10000));
+                assertEquals(Method.COPY, copyOnly.materialize(source, copied));
+                assertEquals("content1", FileUtils.readFileToString(copied, "UTF-8"));
+
+                //different size:
+                FileUtils.writeStringToFile(copied, "content", "UTF-8");
+                assertEquals(Method.COPY, copyOnly.materialize(source, copied));
+                assertEquals("content1", FileUtils.readFileToString(copied, "UTF-8"));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
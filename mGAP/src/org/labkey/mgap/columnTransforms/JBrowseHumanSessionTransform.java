@@ -1,18 +1,6 @@
 package org.labkey.mgap.columnTransforms;
 
-import org.labkey.api.collections.CaseInsensitiveHashMap;
-import org.labkey.api.data.SimpleFilter;
-import org.labkey.api.data.TableInfo;
-import org.labkey.api.data.TableSelector;
-import org.labkey.api.query.BatchValidationException;
-import org.labkey.api.query.FieldKey;
-import org.labkey.api.util.GUID;
-import org.labkey.api.util.PageFlowUtil;
-
-import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
 
 public class JBrowseHumanSessionTransform extends JBrowseSessionTransform
@@ -61,7 +49,7 @@ protected void addTracks(final String databaseId, String releaseId)
         {
             getStatusLogger().info("possibly creating track for: " + getDatabaseName());
             String jsonFile = getOrCreateJsonFile();
-            getOrCreateDatabaseMember(databaseId, jsonFile);
+            createDatabaseMembers(databaseId, Collections.singletonList(jsonFile));
         }
         catch(Exception e)
         {
@@ -74,31 +62,19 @@ private String getOrCreateJsonFile()
         int outputFileId = getOrCreateOutputFile(getInputValue(getDataFileUrlField()), getInputValue("objectId"), getDatabaseName());
 
         //determine if there is already a JSONfile for this outputfile
-        TableSelector ts1 = new TableSelector(getJsonFiles(), PageFlowUtil.set("objectid"), new SimpleFilter(FieldKey.fromString("outputfile"), outputFileId), null);
-        if (ts1.exists())
+        String existing = getJsonFileByOutputFile().get(outputFileId);
+        if (existing != null)
         {
             getStatusLogger().info("jsonfile already exists for output: " + outputFileId);
-            return ts1.getArrayList(String.class).get(0);
+            return existing;
         }
 
         try
         {
-            TableInfo jsonFiles = getJbrowseUserSchema().getTable("jsonfiles");
-            CaseInsensitiveHashMap<Object> row = new CaseInsensitiveHashMap<>();
-            row.put("objectid", new GUID().toString());
-            row.put("outputFile", outputFileId);
-            row.put("relPath", "tracks/data-" + outputFileId);
-            row.put("container", getContainerUser().getContainer().getId());
-            row.put("created", new Date());
-            row.put("createdby", getContainerUser().getUser().getUserId());
-            row.put("modified", new Date());
-            row.put("modifiedby", getContainerUser().getUser().getUserId());
-            row.put("trackJson", getTrackJson());
-
-            getStatusLogger().info("creating jsonfile for output: " + outputFileId);
-            List<Map<String, Object>> rows = jsonFiles.getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), Arrays.asList(row), new BatchValidationException(), null, new HashMap<>());
+            Map<String, Object> row = createJsonFileRow(outputFileId, getTrackJson());
+            insertJsonFiles(Collections.singletonList(row));
 
-            return (String) rows.get(0).get("objectid");
+            return (String) row.get("objectid");
         }
         catch (Exception e)
         {
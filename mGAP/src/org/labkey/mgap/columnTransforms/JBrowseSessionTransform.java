@@ -3,10 +3,11 @@
 import org.json.JSONObject;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.Container;
 import org.labkey.api.data.DbSchema;
 import org.labkey.api.data.DbSchemaType;
 import org.labkey.api.data.DbScope;
-import org.labkey.api.data.Results;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.SqlSelector;
@@ -18,16 +19,23 @@
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
+import org.labkey.api.security.User;
 import org.labkey.api.util.GUID;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.mgap.mGAPManager;
 import org.labkey.mgap.mGAPSchema;
 
-import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by bimber on 5/15/2017.
@@ -39,6 +47,30 @@ public class JBrowseSessionTransform extends AbstractVariantTransform
     private transient TableInfo _databases;
     private transient UserSchema _jbus;
 
+    // These are loaded once per ETL using set-based queries, rather than queried for each row or track.  For R releases with T tracks each, an ETL run issues
+    // four lookup queries in total and at most three insertRows calls per release, rather than 2 + 4T queries and inserts per release.
+    private transient Map<Integer, String> _databaseByOutputFile;
+    private transient Map<Integer, String> _jsonFileByOutputFile;
+    private transient Set<String> _databaseMemberKeys;
+    private transient Map<String, List<TrackRow>> _tracksByRelease;
+    private transient Set<String> _databasesToReprocess;
+
+    @Override
+    public void reset()
+    {
+        super.reset();
+
+        _jsonFiles = null;
+        _databaseMembers = null;
+        _databases = null;
+        _jbus = null;
+        _databaseByOutputFile = null;
+        _jsonFileByOutputFile = null;
+        _databaseMemberKeys = null;
+        _tracksByRelease = null;
+        _databasesToReprocess = null;
+    }
+
     protected String getDataFileUrlField()
     {
         return "vcfId/dataid/DataFileUrl";
@@ -63,10 +95,7 @@ protected Object doTransform(Object inputValue)
         if (outputFileId != null)
         {
             //find database ID, if exists:
-            //determine if there is already a JSONfile for this outputfile
-            UserSchema us = getJbrowseUserSchema();
-            SQLFragment sql = new SQLFragment("SELECT m." + us.getDbSchema().getScope().getSqlDialect().makeLegalIdentifier("database") + " FROM jbrowse.jsonfiles j JOIN jbrowse.database_members m ON (j.objectId = m.jsonfile) WHERE j.outputfile = ?", outputFileId);
-            String databaseId = new SqlSelector(us.getDbSchema().getScope(), sql).getObject(String.class);
+            String databaseId = getDatabaseByOutputFile().get(outputFileId);
             if (databaseId != null)
             {
                 getStatusLogger().info("jbrowse database exists using the output file: " + outputFileId);
@@ -96,11 +125,19 @@ protected Object doTransform(Object inputValue)
                     dbRow.put("modifiedby", getContainerUser().getUser().getUserId());
                     dbRow.put("jsonConfig", getSessionJson());
 
-                    databases.getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), Arrays.asList(dbRow), new BatchValidationException(), null, new HashMap<>());
+                    BatchValidationException errors = new BatchValidationException();
+                    databases.getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), Arrays.asList(dbRow), errors, null, new HashMap<>());
+                    if (errors.hasErrors())
+                    {
+                        throw errors;
+                    }
+
+                    getDatabaseByOutputFile().put(outputFileId, databaseId);
                 }
                 catch (Exception e)
                 {
                     getStatusLogger().error("Error creating database: " + String.valueOf(inputValue), e);
+                    return null;
                 }
             }
 
@@ -125,181 +162,346 @@ protected String getSessionJson()
     private void recreateSession(final String databaseId)
     {
         // Note: because this transction hasnt committed yet, the DB record will not exist yet, unless it was created in the previous ETL iteration
-        getStatusLogger().info("recreating jbrowse session: " + databaseId);
+        // Reprocessing is queued once per distinct database, and all queued databases are processed by a single post-commit task
+        if (_databasesToReprocess != null)
+        {
+            if (_databasesToReprocess.add(databaseId))
+            {
+                getStatusLogger().info("queueing jbrowse session to be recreated: " + databaseId);
+            }
+
+            return;
+        }
+
+        //NOTE: the set is populated before the task is registered, since without an active transaction the task runs immediately
+        final Set<String> toReprocess = new LinkedHashSet<>();
+        toReprocess.add(databaseId);
+        _databasesToReprocess = toReprocess;
+        getStatusLogger().info("queueing jbrowse session to be recreated: " + databaseId);
+
+        final Container c = getContainerUser().getContainer();
+        final User u = getContainerUser().getUser();
         DbScope.getLabKeyScope().addCommitTask(() -> {
-            try
+            if (_databasesToReprocess == toReprocess)
             {
-                JBrowseService.get().reprocessDatabase(getContainerUser().getContainer(), getContainerUser().getUser(), databaseId);
+                _databasesToReprocess = null;
             }
-            catch (PipelineValidationException e)
+
+            for (String id : toReprocess)
             {
-                getStatusLogger().error(e.getMessage(), e);
+                try
+                {
+                    JBrowseService.get().reprocessDatabase(c, u, id);
+                }
+                catch (PipelineValidationException e)
+                {
+                    getStatusLogger().error(e.getMessage(), e);
+                }
             }
+
+            mGAPManager.get().clearGenomeBrowserTrackCache();
         }, DbScope.CommitTaskOption.POSTCOMMIT);
+
+        //NOTE: if the transaction rolls back the task above never runs.  The queue must be cleared, or databases queued later in this run would never be reprocessed.
+        //The cached lookups may also hold rows that were rolled back, so these are cleared as well and reloaded on next use.
+        if (DbScope.getLabKeyScope().isTransactionActive())
+        {
+            DbScope.getLabKeyScope().addCommitTask(() -> {
+                if (_databasesToReprocess == toReprocess)
+                {
+                    reset();
+                }
+            }, DbScope.CommitTaskOption.POSTROLLBACK);
+        }
     }
 
     protected void addTracks(final String databaseId, String releaseId)
     {
         //then JSONfiles/database members
-        List<FieldKey> fks = Arrays.asList(
-                FieldKey.fromString("trackName"),
-                FieldKey.fromString("label"),
-                FieldKey.fromString("category"),
-                FieldKey.fromString("url"),
-                FieldKey.fromString("description"),
-                FieldKey.fromString("isprimarytrack"),
-                FieldKey.fromString("vcfId/dataid/DataFileUrl")
-        );
-
-        TableInfo tracksPerRelease = QueryService.get().getUserSchema(getContainerUser().getUser(), getContainerUser().getContainer(), mGAPSchema.NAME).getTable(mGAPSchema.TABLE_TRACKS_PER_RELEASE);
-        Map<FieldKey, ColumnInfo> colMap = QueryService.get().getColumns(tracksPerRelease, fks);
-
-        TableSelector ts = new TableSelector(tracksPerRelease, colMap.values(), new SimpleFilter(FieldKey.fromString("releaseId"), releaseId), null);
-        if (!ts.exists())
+        List<TrackRow> tracks = getTracksByRelease().get(releaseId);
+        if (tracks == null || tracks.isEmpty())
         {
             getStatusLogger().error("no track records found for release: " + releaseId);
+            return;
         }
 
-        ts.forEachResults(rs -> {
+        //NOTE: keyed on output file, so that tracks sharing a file do not create duplicate jsonfiles within one batch
+        Map<Integer, Map<String, Object>> jsonFileRows = new LinkedHashMap<>();
+        Set<String> jsonFileIds = new LinkedHashSet<>();
+        for (TrackRow track : tracks)
+        {
             try
             {
-                getStatusLogger().info("possibly creating track for: " + rs.getString(FieldKey.fromString("trackName")));
-                String jsonFile = getOrCreateJsonFile(rs, "vcfId/dataid/DataFileUrl");
-                getOrCreateDatabaseMember(databaseId, jsonFile);
+                getStatusLogger().info("possibly creating track for: " + track._trackName);
+                Integer outputFileId = getOrCreateOutputFile(track._dataFileUrl, getInputValue("objectId"), track._label);
+                if (outputFileId == null)
+                {
+                    continue;
+                }
+
+                String jsonFile = getJsonFileByOutputFile().get(outputFileId);
+                if (jsonFile != null)
+                {
+                    getStatusLogger().info("jsonfile already exists for output: " + outputFileId);
+                }
+                else if (jsonFileRows.containsKey(outputFileId))
+                {
+                    jsonFile = (String)jsonFileRows.get(outputFileId).get("objectid");
+                }
+                else
+                {
+                    CaseInsensitiveHashMap<Object> row = createJsonFileRow(outputFileId, track._isPrimaryTrack ? getTrackJson() : getTrackJson(track));
+                    jsonFile = (String)row.get("objectid");
+                    jsonFileRows.put(outputFileId, row);
+                }
+
+                jsonFileIds.add(jsonFile);
             }
             catch (Exception e)
             {
                 getStatusLogger().error(e.getMessage(), e);
             }
-        });
+        }
+
+        try
+        {
+            insertJsonFiles(new ArrayList<>(jsonFileRows.values()));
+            createDatabaseMembers(databaseId, jsonFileIds);
+        }
+        catch (Exception e)
+        {
+            getStatusLogger().error(e.getMessage(), e);
+        }
     }
 
-    protected void getOrCreateDatabaseMember(String databaseId, String jsonFileId) throws Exception
+    private String getTrackJson(TrackRow track)
     {
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("database"), databaseId);
-        filter.addCondition(FieldKey.fromString("jsonfile"), jsonFileId);
+        JSONObject meta = new JSONObject();
+        if (track._description != null)
+        {
+            meta.put("Description", track._description);
+        }
 
-        if (new TableSelector(getDatabaseMembers(), filter, null).exists())
+        if (track._url != null)
         {
-            getStatusLogger().info("database member exists for: " + jsonFileId);
-            return;
+            meta.put("Website", track._url);
         }
 
-        TableInfo databaseMembers = getJbrowseUserSchema().getTable("database_members");
+        String metaStr = meta.isEmpty() ? "" : ", metadata: " + meta.toString();
+        return "{\"category\":\"" + track._category + "\",\"visibleByDefault\": false" + metaStr + "}";
+    }
+
+    protected CaseInsensitiveHashMap<Object> createJsonFileRow(int outputFileId, String trackJson)
+    {
         CaseInsensitiveHashMap<Object> row = new CaseInsensitiveHashMap<>();
-        row.put("database", databaseId);
-        row.put("jsonfile", jsonFileId);
-        row.put("category", "Variants");
+        row.put("objectid", new GUID().toString());
+        row.put("outputFile", outputFileId);
+        row.put("relPath", "tracks/data-" + outputFileId);
         row.put("container", getContainerUser().getContainer().getId());
         row.put("created", new Date());
         row.put("createdby", getContainerUser().getUser().getUserId());
         row.put("modified", new Date());
         row.put("modifiedby", getContainerUser().getUser().getUserId());
+        row.put("trackJson", trackJson);
 
-        getStatusLogger().info("creating database member for: " + jsonFileId);
-        databaseMembers.getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), Arrays.asList(row), new BatchValidationException(), null, new HashMap<>());
+        return row;
     }
 
-    protected TableInfo getJsonFiles()
+    protected void insertJsonFiles(List<Map<String, Object>> rows) throws Exception
     {
-        if (_jsonFiles == null)
+        if (rows.isEmpty())
         {
-            _jsonFiles = DbSchema.get("jbrowse", DbSchemaType.Module).getTable("jsonfiles");
+            return;
         }
 
-        return _jsonFiles;
+        getStatusLogger().info("creating " + rows.size() + " jsonfiles");
+        TableInfo jsonFiles = getJbrowseUserSchema().getTable("jsonfiles");
+        BatchValidationException errors = new BatchValidationException();
+        jsonFiles.getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), rows, errors, null, new HashMap<>());
+        if (errors.hasErrors())
+        {
+            throw errors;
+        }
+
+        for (Map<String, Object> row : rows)
+        {
+            getJsonFileByOutputFile().put((Integer)row.get("outputFile"), (String)row.get("objectid"));
+        }
     }
 
-    private TableInfo getDatabaseMembers()
+    protected void createDatabaseMembers(String databaseId, Collection<String> jsonFileIds) throws Exception
     {
-        if (_databaseMembers == null)
+        List<Map<String, Object>> toInsert = new ArrayList<>();
+        for (String jsonFileId : jsonFileIds)
         {
-            _databaseMembers = DbSchema.get("jbrowse", DbSchemaType.Module).getTable("database_members");
+            if (jsonFileId == null)
+            {
+                continue;
+            }
+
+            if (!getDatabaseMemberKeys().add(databaseId + "||" + jsonFileId))
+            {
+                getStatusLogger().info("database member exists for: " + jsonFileId);
+                continue;
+            }
+
+            CaseInsensitiveHashMap<Object> row = new CaseInsensitiveHashMap<>();
+            row.put("database", databaseId);
+            row.put("jsonfile", jsonFileId);
+            row.put("category", "Variants");
+            row.put("container", getContainerUser().getContainer().getId());
+            row.put("created", new Date());
+            row.put("createdby", getContainerUser().getUser().getUserId());
+            row.put("modified", new Date());
+            row.put("modifiedby", getContainerUser().getUser().getUserId());
+            toInsert.add(row);
         }
 
-        return _databaseMembers;
+        if (toInsert.isEmpty())
+        {
+            return;
+        }
+
+        getStatusLogger().info("creating " + toInsert.size() + " database members for: " + databaseId);
+        TableInfo databaseMembers = getJbrowseUserSchema().getTable("database_members");
+        BatchValidationException errors = new BatchValidationException();
+        databaseMembers.getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), toInsert, errors, null, new HashMap<>());
+        if (errors.hasErrors())
+        {
+            throw errors;
+        }
     }
 
-    protected UserSchema getJbrowseUserSchema()
+    private Map<Integer, String> getDatabaseByOutputFile()
     {
-        if (_jbus == null)
+        if (_databaseByOutputFile == null)
         {
-            _jbus = QueryService.get().getUserSchema(getContainerUser().getUser(), getContainerUser().getContainer(), "jbrowse");
+            final Map<Integer, String> map = new HashMap<>();
+            DbScope scope = getJbrowseUserSchema().getDbSchema().getScope();
+            SQLFragment sql = new SQLFragment("SELECT j.outputfile, m." + scope.getSqlDialect().makeLegalIdentifier("database") + " AS databaseId FROM jbrowse.jsonfiles j JOIN jbrowse.database_members m ON (j.objectId = m.jsonfile) WHERE j.outputfile IS NOT NULL");
+            new SqlSelector(scope, sql).forEach(rs -> map.putIfAbsent(rs.getInt("outputfile"), rs.getString("databaseId")));
+
+            _databaseByOutputFile = map;
         }
 
-        return _jbus;
+        return _databaseByOutputFile;
     }
 
-    private TableInfo getDatabases()
+    protected Map<Integer, String> getJsonFileByOutputFile()
     {
-        if (_databases == null)
+        if (_jsonFileByOutputFile == null)
         {
-            _databases = DbSchema.get("jbrowse", DbSchemaType.Module).getTable("databases");
-        }
+            final Map<Integer, String> map = new HashMap<>();
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("outputfile"), null, CompareType.NONBLANK);
+            new TableSelector(getJsonFiles(), PageFlowUtil.set("objectid", "outputfile"), filter, null).forEachResults(rs -> map.putIfAbsent(rs.getInt(FieldKey.fromString("outputfile")), rs.getString(FieldKey.fromString("objectid"))));
 
-        return _databases;
+            _jsonFileByOutputFile = map;
+        }
 
+        return _jsonFileByOutputFile;
     }
 
-    private String getOrCreateJsonFile(Results rs, String fieldKey) throws SQLException
+    private Set<String> getDatabaseMemberKeys()
     {
-        int outputFileId = getOrCreateOutputFile(rs.getString(FieldKey.fromString(fieldKey)), getInputValue("objectId"), rs.getString("label"));
-
-        //determine if there is already a JSONfile for this outputfile
-        TableSelector ts1 = new TableSelector(getJsonFiles(), PageFlowUtil.set("objectid"), new SimpleFilter(FieldKey.fromString("outputfile"), outputFileId), null);
-        if (ts1.exists())
+        if (_databaseMemberKeys == null)
         {
-            getStatusLogger().info("jsonfile already exists for output: " + outputFileId);
-            return ts1.getArrayList(String.class).get(0);
+            final Set<String> keys = new HashSet<>();
+            new TableSelector(getDatabaseMembers(), PageFlowUtil.set("database", "jsonfile")).forEachResults(rs -> keys.add(rs.getString(FieldKey.fromString("database")) + "||" + rs.getString(FieldKey.fromString("jsonfile"))));
+
+            _databaseMemberKeys = keys;
         }
 
-        try
+        return _databaseMemberKeys;
+    }
+
+    private Map<String, List<TrackRow>> getTracksByRelease()
+    {
+        if (_tracksByRelease == null)
         {
-            boolean isDefaultTrack = rs.getObject(FieldKey.fromString("isprimarytrack")) != null && rs.getBoolean(FieldKey.fromString("isprimarytrack"));
+            List<FieldKey> fks = Arrays.asList(
+                    FieldKey.fromString("releaseId"),
+                    FieldKey.fromString("trackName"),
+                    FieldKey.fromString("label"),
+                    FieldKey.fromString("category"),
+                    FieldKey.fromString("url"),
+                    FieldKey.fromString("description"),
+                    FieldKey.fromString("isprimarytrack"),
+                    FieldKey.fromString("vcfId/dataid/DataFileUrl")
+            );
+
+            TableInfo tracksPerRelease = QueryService.get().getUserSchema(getContainerUser().getUser(), getContainerUser().getContainer(), mGAPSchema.NAME).getTable(mGAPSchema.TABLE_TRACKS_PER_RELEASE);
+            Map<FieldKey, ColumnInfo> colMap = QueryService.get().getColumns(tracksPerRelease, fks);
+
+            final Map<String, List<TrackRow>> map = new HashMap<>();
+            new TableSelector(tracksPerRelease, colMap.values(), null, null).forEachResults(rs -> {
+                TrackRow track = new TrackRow();
+                track._trackName = rs.getString(FieldKey.fromString("trackName"));
+                track._label = rs.getString(FieldKey.fromString("label"));
+                track._category = rs.getString(FieldKey.fromString("category"));
+                track._url = rs.getString(FieldKey.fromString("url"));
+                track._description = rs.getString(FieldKey.fromString("description"));
+                track._isPrimaryTrack = rs.getObject(FieldKey.fromString("isprimarytrack")) != null && rs.getBoolean(FieldKey.fromString("isprimarytrack"));
+                track._dataFileUrl = rs.getString(FieldKey.fromString("vcfId/dataid/DataFileUrl"));
+
+                map.computeIfAbsent(rs.getString(FieldKey.fromString("releaseId")), x -> new ArrayList<>()).add(track);
+            });
+
+            _tracksByRelease = map;
+        }
 
-            TableInfo jsonFiles = getJbrowseUserSchema().getTable("jsonfiles");
-            CaseInsensitiveHashMap<Object> row = new CaseInsensitiveHashMap<>();
-            row.put("objectid", new GUID().toString());
-            row.put("outputFile", outputFileId);
-            row.put("relPath", "tracks/data-" + outputFileId);
-            row.put("container", getContainerUser().getContainer().getId());
-            row.put("created", new Date());
-            row.put("createdby", getContainerUser().getUser().getUserId());
-            row.put("modified", new Date());
-            row.put("modifiedby", getContainerUser().getUser().getUserId());
+        return _tracksByRelease;
+    }
 
-            if (isDefaultTrack)
-            {
-                row.put("trackJson", getTrackJson());
-            }
-            else
-            {
-                JSONObject meta = new JSONObject();
-                if (rs.getObject(FieldKey.fromString("description")) != null)
-                {
-                    meta.put("Description", rs.getString(FieldKey.fromString("description")));
-                }
+    private static class TrackRow
+    {
+        private String _trackName;
+        private String _label;
+        private String _category;
+        private String _url;
+        private String _description;
+        private boolean _isPrimaryTrack;
+        private String _dataFileUrl;
+    }
 
-                if (rs.getObject(FieldKey.fromString("url")) != null)
-                {
-                    meta.put("Website", rs.getString(FieldKey.fromString("url")));
-                }
+    protected TableInfo getJsonFiles()
+    {
+        if (_jsonFiles == null)
+        {
+            _jsonFiles = DbSchema.get("jbrowse", DbSchemaType.Module).getTable("jsonfiles");
+        }
 
-                String metaStr = meta.isEmpty() ? "" : ", metadata: " + meta.toString();
-                row.put("trackJson", "{\"category\":\"" + rs.getString(FieldKey.fromString("category")) + "\",\"visibleByDefault\": false" + metaStr + "}");
-            }
+        return _jsonFiles;
+    }
 
-            getStatusLogger().info("creating jsonfile for output: " + outputFileId);
-            List<Map<String, Object>> rows = jsonFiles.getUpdateService().insertRows(getContainerUser().getUser(), getContainerUser().getContainer(), Arrays.asList(row), new BatchValidationException(), null, new HashMap<>());
+    private TableInfo getDatabaseMembers()
+    {
+        if (_databaseMembers == null)
+        {
+            _databaseMembers = DbSchema.get("jbrowse", DbSchemaType.Module).getTable("database_members");
+        }
 
-            return (String) rows.get(0).get("objectid");
+        return _databaseMembers;
+    }
+
+    protected UserSchema getJbrowseUserSchema()
+    {
+        if (_jbus == null)
+        {
+            _jbus = QueryService.get().getUserSchema(getContainerUser().getUser(), getContainerUser().getContainer(), "jbrowse");
         }
-        catch (Exception e)
+
+        return _jbus;
+    }
+
+    private TableInfo getDatabases()
+    {
+        if (_databases == null)
         {
-            getStatusLogger().error("Error creating jsonfile for ID: " + outputFileId, e);
+            _databases = DbSchema.get("jbrowse", DbSchemaType.Module).getTable("databases");
         }
 
-        return null;
+        return _databases;
+
     }
 
     protected String getDatabaseName()
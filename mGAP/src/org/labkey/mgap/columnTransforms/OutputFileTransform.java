@@ -1,5 +1,16 @@
 package org.labkey.mgap.columnTransforms;
 
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
+import org.labkey.api.sequenceanalysis.SequenceOutputFile;
+import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
+import org.labkey.mgap.StoredZipBundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by bimber on 5/1/2017.
  */
@@ -11,6 +22,55 @@ protected Object doTransform(Object inputValue)
         if (null == inputValue)
             return null;
 
-        return getOrCreateOutputFile(inputValue, getInputValue("objectId"), null);
+        Integer rowId = getOrCreateOutputFile(inputValue, getInputValue("objectId"), null);
+        if (rowId != null)
+        {
+            computeBundleCrcs(rowId);
+        }
+
+        return rowId;
+    }
+
+    /**
+     * Computes the CRCs of the files served by DownloadBundleAction as part of the import, so the first download does not need to read them
+     */
+    private void computeBundleCrcs(int outputFileId)
+    {
+        SequenceOutputFile so = SequenceOutputFile.getForId(outputFileId);
+        if (so == null || so.getFile() == null || !so.getFile().exists())
+        {
+            return;
+        }
+
+        List<File> files = new ArrayList<>();
+        files.add(so.getFile());
+        File index = new File(so.getFile().getPath() + ".tbi");
+        if (index.exists())
+        {
+            files.add(index);
+        }
+
+        try
+        {
+            Integer libraryId = getLibraryId();
+            if (libraryId != null)
+            {
+                ReferenceGenome genome = SequenceAnalysisService.get().getReferenceGenome(libraryId, getContainerUser().getUser());
+                if (genome != null)
+                {
+                    files.add(genome.getSourceFastaFile());
+                    files.add(genome.getFastaIndex());
+                    files.add(genome.getSequenceDictionary());
+                }
+            }
+
+            getStatusLogger().info("computing CRCs for the download bundle");
+            StoredZipBundle.computeCrcs(files);
+        }
+        catch (IOException | PipelineJobException e)
+        {
+            //NOTE: DownloadBundleAction will compute any missing CRC, so this should not fail the import
+            getStatusLogger().error("Unable to compute CRCs for the download bundle", e);
+        }
     }
 }
@@ -1,8 +1,13 @@
 package org.labkey.mgap.etl;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.xmlbeans.XmlException;
 import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.PropertyManager;
+import org.labkey.api.data.Sort;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.di.DataIntegrationService;
@@ -17,20 +22,31 @@
 import org.labkey.api.writer.ContainerUser;
 import org.labkey.mgap.mGAPSchema;
 import org.labkey.remoteapi.CommandException;
+import org.labkey.remoteapi.Connection;
 import org.labkey.remoteapi.query.DeleteRowsCommand;
 import org.labkey.remoteapi.query.Filter;
 import org.labkey.remoteapi.query.InsertRowsCommand;
 import org.labkey.remoteapi.query.SelectRowsCommand;
-import org.labkey.remoteapi.query.SelectRowsResponse;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PopulateIdsStep implements TaskRefTask
 {
@@ -43,9 +59,28 @@ public class PopulateIdsStep implements TaskRefTask
         targetSchema(),
         targetQuery(),
         targetColumn(),
-        targetAliasColumn();
+        targetAliasColumn(),
+        targetKeyColumn();
     }
 
+    // Remote rows are read in pages keyed on the unique key column, and written in chunks of this size
+    private static final int PAGE_SIZE = 5000;
+    private static final int WRITE_CHUNK_SIZE = 500;
+
+    // Rows modified within this window before the high-water mark are re-checked, to allow for clock skew and transactions that commit late
+    private static final long SAFETY_WINDOW_MS = 10 * 60 * 1000;
+
+    private static final String IN_SEPARATOR = ";";
+
+    private static final String PROP_CATEGORY = "org.labkey.mgap.etl.PopulateIdsStep";
+    private static final String PROP_HIGH_WATER_MARK = "highWaterMark";
+    private static final String PROP_LOCAL_KEY_DIGEST = "localKeyDigest";
+    private static final String PROP_LAST_FULL_SYNC = "lastFullSync";
+
+    // The incremental sync only looks for local changes, so rows edited or deleted directly on the remote server are not detected by it.
+    // A full sync is forced at least this often to repair these.
+    private static final long FULL_SYNC_INTERVAL_MS = 7L * 24 * 60 * 60 * 1000;
+
     @Override
     public RecordedActionSet run(@NotNull PipelineJob job) throws PipelineJobException
     {
@@ -61,10 +96,39 @@ public RecordedActionSet run(@NotNull PipelineJob job) throws PipelineJobExcepti
             throw new PipelineJobException("Unable to find table: " + mGAPSchema.TABLE_ANIMAL_MAPPING);
         }
 
-        TableSelector ts = new TableSelector(sourceTi, PageFlowUtil.set("subjectname", "externalAlias"));
-        Map<String, String> localIdToAlias = new HashMap<>();
+        Map<String, String> state = PropertyManager.getProperties(_containerUser.getContainer(), getPropertyCategory());
+        long highWaterMark = state.containsKey(PROP_HIGH_WATER_MARK) ? Long.parseLong(state.get(PROP_HIGH_WATER_MARK)) : -1;
+        String lastKeyDigest = state.get(PROP_LOCAL_KEY_DIGEST);
+        long lastFullSync = state.containsKey(PROP_LAST_FULL_SYNC) ? Long.parseLong(state.get(PROP_LAST_FULL_SYNC)) : -1;
+        long now = System.currentTimeMillis();
+        long changedSince = highWaterMark - SAFETY_WINDOW_MS;
+
+        TableSelector ts = new TableSelector(sourceTi, PageFlowUtil.set("subjectname", "externalAlias", "created", "modified"), null, new Sort("subjectname"));
+        Map<String, String> localIdToAlias = new TreeMap<>();
+        Set<String> changedIds = new TreeSet<>();
+        Set<String> previousIds = new TreeSet<>();
+        AtomicLong maxModified = new AtomicLong(highWaterMark);
         ts.forEachResults(rs -> {
-            localIdToAlias.put(rs.getString(FieldKey.fromString("subjectname")), rs.getString(FieldKey.fromString("externalAlias")));
+            String id = rs.getString(FieldKey.fromString("subjectname"));
+            localIdToAlias.put(id, rs.getString(FieldKey.fromString("externalAlias")));
+
+            Date created = (Date)rs.getObject(FieldKey.fromString("created"));
+            Date modified = (Date)rs.getObject(FieldKey.fromString("modified"));
+            if (modified == null || modified.getTime() >= changedSince)
+            {
+                changedIds.add(id);
+            }
+
+            if (modified != null)
+            {
+                maxModified.set(Math.max(maxModified.get(), modified.getTime()));
+            }
+
+            //rows that existed at the time of the last sync.  A deleted or renamed row will be missing from this set
+            if (created == null || created.getTime() <= highWaterMark)
+            {
+                previousIds.add(id);
+            }
         });
 
         DataIntegrationService.RemoteConnection rc = DataIntegrationService.get().getRemoteConnection(_settings.get(Settings.remoteSource.name()), _containerUser.getContainer(), job.getLogger());
@@ -73,83 +137,280 @@ public RecordedActionSet run(@NotNull PipelineJob job) throws PipelineJobExcepti
             throw new PipelineJobException("Unable to find remote connection: " + _settings.get(Settings.remoteSource.name()));
         }
 
+        boolean fullSync = true;
         try
         {
-            //first select all rows from remote table
+            //NOTE: an incremental sync is only possible if no local rows were deleted or renamed since the last sync.  This compares the keys that
+            //existed at the last sync against the digest of the keys recorded at that time, and any mismatch falls back to a full sync
+            if (lastFullSync > -1 && now - lastFullSync > FULL_SYNC_INTERVAL_MS)
+            {
+                job.getLogger().info("performing full sync, since the last full sync was more than " + (FULL_SYNC_INTERVAL_MS / (24 * 60 * 60 * 1000)) + " days ago");
+                syncFull(job, rc.connection, rc.remoteContainer, localIdToAlias);
+            }
+            else if (highWaterMark > -1 && lastFullSync > -1 && getKeyDigest(previousIds).equals(lastKeyDigest))
+            {
+                fullSync = false;
+                if (changedIds.isEmpty())
+                {
+                    job.getLogger().info("no local changes since last sync");
+                }
+                else
+                {
+                    job.getLogger().info("performing incremental sync, local rows changed since last sync: " + changedIds.size());
+                    syncIncremental(job, rc.connection, rc.remoteContainer, localIdToAlias, changedIds);
+                }
+            }
+            else
+            {
+                job.getLogger().info("performing full sync");
+                syncFull(job, rc.connection, rc.remoteContainer, localIdToAlias);
+            }
+        }
+        catch (CommandException | IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        //only record the high-water mark once all writes have succeeded, so a failed run is retried in full on the next run
+        PropertyManager.WritablePropertyMap props = PropertyManager.getWritableProperties(_containerUser.getContainer(), getPropertyCategory(), true);
+        props.put(PROP_HIGH_WATER_MARK, String.valueOf(maxModified.get()));
+        props.put(PROP_LOCAL_KEY_DIGEST, getKeyDigest(localIdToAlias.keySet()));
+        if (fullSync)
+        {
+            props.put(PROP_LAST_FULL_SYNC, String.valueOf(now));
+        }
+        props.save();
+
+        return new RecordedActionSet();
+    }
+
+    private static String getKeyDigest(Collection<String> sortedIds)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String id : sortedIds)
+            {
+                md.update(id.getBytes(StandardCharsets.UTF_8));
+                md.update((byte)'\n');
+            }
+
+            return sortedIds.size() + ":" + Base64.getEncoder().encodeToString(md.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String getPropertyCategory()
+    {
+        return PROP_CATEGORY + "||" + _settings.get(Settings.remoteSource.name()) + "||" + _settings.get(Settings.targetSchema.name()) + "||" + _settings.get(Settings.targetQuery.name());
+    }
+
+    /**
+     * Compares every remote row against the local table.  Remote rows are read in pages ordered by the unique key column, using the last key
+     * of the previous page as the lower bound of the next, so memory does not grow with the remote table.
+     */
+    void syncFull(PipelineJob job, Connection connection, String remoteContainer, Map<String, String> localIdToAlias) throws CommandException, IOException
+    {
+        Set<String> toInsert = new TreeSet<>(localIdToAlias.keySet());
+        List<Object> toDelete = new ArrayList<>();
+        int totalDeleted = 0;
+        int totalRemote = 0;
+
+        Object lastKey = null;
+        while (true)
+        {
             SelectRowsCommand sr = new SelectRowsCommand(_settings.get(Settings.targetSchema.name()), _settings.get(Settings.targetQuery.name()));
-            sr.setColumns(Arrays.asList(_settings.get(Settings.targetColumn.name()), _settings.get(Settings.targetAliasColumn.name())));
+            sr.setColumns(getRemoteColumns());
             sr.addFilter(new Filter(_settings.get(Settings.targetColumn.name()), null, Filter.Operator.NONBLANK));
+            if (lastKey != null)
+            {
+                sr.addFilter(new Filter(getKeyColumn(), lastKey, Filter.Operator.GT));
+            }
+            sr.addSort(new org.labkey.remoteapi.query.Sort(getKeyColumn()));
+            sr.setMaxRows(PAGE_SIZE);
 
-            //and select all rows from our source table
-            SelectRowsResponse srr = sr.execute(rc.connection, rc.remoteContainer);
-            Map<String, String> existingIds = new HashMap<>();
-            srr.getRows().forEach(x -> existingIds.put(String.valueOf(x.get(_settings.get(Settings.targetColumn.name()))), String.valueOf(x.get(_settings.get(Settings.targetAliasColumn.name())))));
+            List<Map<String, Object>> rows = sr.execute(connection, remoteContainer).getRows();
+            for (Map<String, Object> row : rows)
+            {
+                lastKey = row.get(getKeyColumn());
+                totalRemote++;
 
-            //identify remote deletes
-            Set<String> toDelete = new HashSet<>();
-            existingIds.forEach((id, alias) -> {
-                if (!localIdToAlias.containsKey(id) || !localIdToAlias.get(id).equals(alias))
+                if (isCurrent(row, localIdToAlias, toInsert))
                 {
-                    toDelete.add(id);
+                    toInsert.remove(getRemoteId(row));
                 }
-            });
+                else
+                {
+                    toDelete.add(lastKey);
+                }
+            }
 
-            if (!toDelete.isEmpty())
+            if (toDelete.size() >= WRITE_CHUNK_SIZE)
             {
-                DeleteRowsCommand dr = new DeleteRowsCommand(_settings.get(Settings.targetSchema.name()), _settings.get(Settings.targetQuery.name()));
-                toDelete.forEach(x -> {
-                    dr.addRow(toRow(x, null));
-                });
-
-                dr.execute(rc.connection, rc.remoteContainer);
-
-                job.getLogger().info("deleted " + dr.getRows().size() + " remote rows");
-                toDelete.forEach(existingIds::remove);
+                totalDeleted += deleteRemote(connection, remoteContainer, toDelete);
+                toDelete.clear();
             }
-            else
+
+            if (rows.size() < PAGE_SIZE)
             {
-                job.getLogger().info("no rows to delete");
+                break;
             }
+        }
+
+        if (!toDelete.isEmpty())
+        {
+            totalDeleted += deleteRemote(connection, remoteContainer, toDelete);
+        }
+
+        job.getLogger().info("total remote rows inspected: " + totalRemote);
+        job.getLogger().info(totalDeleted == 0 ? "no rows to delete" : "deleted " + totalDeleted + " remote rows");
 
-            //then remote inserts
-            Set<String> toInsert = new HashSet<>();
-            localIdToAlias.forEach((id, alias) -> {
-                if (!existingIds.containsKey(id))
+        int totalInserted = insertRemote(connection, remoteContainer, toInsert, localIdToAlias);
+        job.getLogger().info(totalInserted == 0 ? "no rows to insert" : "inserted " + totalInserted + " remote rows");
+    }
+
+    /**
+     * Only inspects the remote rows for local IDs that changed since the last sync.
+     */
+    void syncIncremental(PipelineJob job, Connection connection, String remoteContainer, Map<String, String> localIdToAlias, Set<String> changedIds) throws CommandException, IOException
+    {
+        Map<Filter, List<String>> batches = getIncrementalBatches(changedIds);
+
+        int totalDeleted = 0;
+        int totalInserted = 0;
+        for (Map.Entry<Filter, List<String>> batch : batches.entrySet())
+        {
+            List<String> chunk = batch.getValue();
+
+            SelectRowsCommand sr = new SelectRowsCommand(_settings.get(Settings.targetSchema.name()), _settings.get(Settings.targetQuery.name()));
+            sr.setColumns(getRemoteColumns());
+            sr.addFilter(batch.getKey());
+
+            Set<String> toInsert = new TreeSet<>(chunk);
+            List<Object> toDelete = new ArrayList<>();
+            for (Map<String, Object> row : sr.execute(connection, remoteContainer).getRows())
+            {
+                if (isCurrent(row, localIdToAlias, toInsert))
                 {
-                    toInsert.add(id);
+                    toInsert.remove(getRemoteId(row));
                 }
-            });
+                else
+                {
+                    toDelete.add(row.get(getKeyColumn()));
+                }
+            }
 
-            if (!toInsert.isEmpty())
-            {
-                InsertRowsCommand dr = new InsertRowsCommand(_settings.get(Settings.targetSchema.name()), _settings.get(Settings.targetQuery.name()));
-                toInsert.forEach(x -> {
-                    dr.addRow(toRow(x, localIdToAlias));
-                });
+            totalDeleted += deleteRemote(connection, remoteContainer, toDelete);
+            totalInserted += insertRemote(connection, remoteContainer, toInsert, localIdToAlias);
+        }
 
-                dr.execute(rc.connection, rc.remoteContainer);
+        job.getLogger().info(totalDeleted == 0 ? "no rows to delete" : "deleted " + totalDeleted + " remote rows");
+        job.getLogger().info(totalInserted == 0 ? "no rows to insert" : "inserted " + totalInserted + " remote rows");
+    }
 
-                job.getLogger().info("inserted " + dr.getRows().size() + " remote rows");
+    /**
+     * Groups the changed IDs into remote selects of up to WRITE_CHUNK_SIZE IDs each.
+     */
+    Map<Filter, List<String>> getIncrementalBatches(Collection<String> changedIds)
+    {
+        //NOTE: the values of an IN filter are separated by ';', so an ID containing ';' cannot be part of one.  These are each selected with an EQUAL filter.
+        List<String> ids = new ArrayList<>();
+        Map<Filter, List<String>> batches = new LinkedHashMap<>();
+        for (String id : changedIds)
+        {
+            if (id.contains(IN_SEPARATOR))
+            {
+                batches.put(new Filter(_settings.get(Settings.targetColumn.name()), id, Filter.Operator.EQUAL), Collections.singletonList(id));
             }
             else
             {
-                job.getLogger().info("no rows to insert");
+                ids.add(id);
             }
         }
-        catch (CommandException | IOException e)
+
+        for (int i = 0; i < ids.size(); i += WRITE_CHUNK_SIZE)
         {
-            throw new PipelineJobException(e);
+            List<String> chunk = ids.subList(i, Math.min(ids.size(), i + WRITE_CHUNK_SIZE));
+            batches.put(new Filter(_settings.get(Settings.targetColumn.name()), StringUtils.join(chunk, IN_SEPARATOR), Filter.Operator.IN), chunk);
         }
 
-        return new RecordedActionSet();
+        return batches;
+    }
+
+    /**
+     * A remote row is current if its ID is present locally with the same alias, and no earlier remote row for that ID has been kept.
+     */
+    private boolean isCurrent(Map<String, Object> row, Map<String, String> localIdToAlias, Set<String> notYetFound)
+    {
+        String id = getRemoteId(row);
+        Object alias = row.get(_settings.get(Settings.targetAliasColumn.name()));
+
+        return id != null && notYetFound.contains(id) && Objects.equals(localIdToAlias.get(id), alias == null ? null : String.valueOf(alias));
+    }
+
+    private String getRemoteId(Map<String, Object> row)
+    {
+        Object id = row.get(_settings.get(Settings.targetColumn.name()));
+
+        return id == null ? null : String.valueOf(id);
+    }
+
+    private String getKeyColumn()
+    {
+        //NOTE: this must be unique on the remote table, since it is used both for paging and for deletes.  By default this is the target column.
+        String keyColumn = StringUtils.trimToNull(_settings.get(Settings.targetKeyColumn.name()));
+
+        return keyColumn == null ? _settings.get(Settings.targetColumn.name()) : keyColumn;
+    }
+
+    private List<String> getRemoteColumns()
+    {
+        Set<String> columns = new LinkedHashSet<>();
+        columns.add(getKeyColumn());
+        columns.add(_settings.get(Settings.targetColumn.name()));
+        columns.add(_settings.get(Settings.targetAliasColumn.name()));
+
+        return new ArrayList<>(columns);
+    }
+
+    private int deleteRemote(Connection connection, String remoteContainer, Collection<Object> keys) throws CommandException, IOException
+    {
+        List<Object> toDelete = new ArrayList<>(keys);
+        for (int i = 0; i < toDelete.size(); i += WRITE_CHUNK_SIZE)
+        {
+            DeleteRowsCommand dr = new DeleteRowsCommand(_settings.get(Settings.targetSchema.name()), _settings.get(Settings.targetQuery.name()));
+            toDelete.subList(i, Math.min(toDelete.size(), i + WRITE_CHUNK_SIZE)).forEach(x -> {
+                Map<String, Object> row = new CaseInsensitiveHashMap<>();
+                row.put(getKeyColumn(), x);
+                dr.addRow(row);
+            });
+            dr.execute(connection, remoteContainer);
+        }
+
+        return toDelete.size();
+    }
+
+    private int insertRemote(Connection connection, String remoteContainer, Collection<String> ids, Map<String, String> localIdToAlias) throws CommandException, IOException
+    {
+        List<String> toInsert = new ArrayList<>(ids);
+        for (int i = 0; i < toInsert.size(); i += WRITE_CHUNK_SIZE)
+        {
+            InsertRowsCommand ir = new InsertRowsCommand(_settings.get(Settings.targetSchema.name()), _settings.get(Settings.targetQuery.name()));
+            toInsert.subList(i, Math.min(toInsert.size(), i + WRITE_CHUNK_SIZE)).forEach(x -> ir.addRow(toRow(x, localIdToAlias)));
+            ir.execute(connection, remoteContainer);
+        }
+
+        return toInsert.size();
     }
 
     private Map<String, Object> toRow(String sampleName, Map<String, String> localIdToAlias)
     {
         Map<String, Object> ret = new CaseInsensitiveHashMap<>();
         ret.put(_settings.get(Settings.targetColumn.name()), sampleName);
-        if (localIdToAlias != null)
-            ret.put(_settings.get(Settings.targetAliasColumn.name()), localIdToAlias.get(sampleName));
+        ret.put(_settings.get(Settings.targetAliasColumn.name()), localIdToAlias.get(sampleName));
 
         return ret;
     }
@@ -171,4 +432,49 @@ public void setContainerUser(ContainerUser containerUser)
     {
         _containerUser = containerUser;
     }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testIncrementalBatches() throws Exception
+        {
+            PopulateIdsStep step = new PopulateIdsStep();
+            step.setSettings(Map.of(Settings.targetColumn.name(), "subjectname"));
+
+            Set<String> changedIds = new TreeSet<>();
+            for (int i = 0; i < 1200; i++)
+            {
+                changedIds.add("Id" + i);
+            }
+            changedIds.add("Id;1");
+            changedIds.add("Id;2");
+
+            //each batch costs one remote select, plus at most one delete and one insert, rather than reading the entire remote table:
+            List<Map.Entry<Filter, List<String>>> batches = new ArrayList<>(step.getIncrementalBatches(changedIds).entrySet());
+            assertEquals(5, batches.size());
+
+            Set<String> found = new TreeSet<>();
+            for (Map.Entry<Filter, List<String>> batch : batches)
+            {
+                Filter filter = batch.getKey();
+                assertEquals("subjectname", filter.getColumnName());
+                if (filter.getOperator() == Filter.Operator.EQUAL)
+                {
+                    assertEquals(1, batch.getValue().size());
+                    assertEquals(batch.getValue().get(0), filter.getValue());
+                }
+                else
+                {
+                    assertEquals(Filter.Operator.IN, filter.getOperator());
+                    assertTrue(batch.getValue().size() <= WRITE_CHUNK_SIZE);
+                    assertEquals(StringUtils.join(batch.getValue(), IN_SEPARATOR), filter.getValue());
+                    batch.getValue().forEach(id -> assertFalse(id.contains(IN_SEPARATOR)));
+                }
+
+                found.addAll(batch.getValue());
+            }
+
+            assertEquals(changedIds, found);
+        }
+    }
 }
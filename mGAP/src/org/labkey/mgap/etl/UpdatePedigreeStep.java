@@ -1,9 +1,15 @@
 package org.labkey.mgap.etl;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.xmlbeans.XmlException;
 import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
@@ -26,14 +32,21 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 public class UpdatePedigreeStep implements TaskRefTask
 {
     protected final Map<String, String> _settings = new CaseInsensitiveHashMap<>();
     protected ContainerUser _containerUser;
 
+    private static final int UPDATE_BATCH_SIZE = 1000;
+    private static final int SUBJECT_CHUNK_SIZE = 1000;
+
     @Override
     public RecordedActionSet run(@NotNull PipelineJob job) throws PipelineJobException
     {
@@ -61,83 +74,162 @@ public RecordedActionSet run(@NotNull PipelineJob job) throws PipelineJobExcepti
             throw new PipelineJobException("Unable to find table: subjects");
         }
 
-        List<Map<String, Object>> toUpdate = new ArrayList<>();
-        List<Map<String, Object>> oldKeys = new ArrayList<>();
-        new TableSelector(pedigreeOverrideTable).forEachResults(rs -> {
-            //find existing record for this ID:
-            String id = rs.getString(FieldKey.fromString("subjectId"));
-            String relationship = rs.getString(FieldKey.fromString("relationship"));
-            String correctedValue = StringUtils.trimToNull(rs.getString("correctedValue"));
+        //load all overrides, then the subject rows they reference, in one query each:
+        List<Map<String, Object>> overrides = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        new TableSelector(pedigreeOverrideTable, PageFlowUtil.set("subjectId", "relationship", "originalValue", "correctedValue"), null, null).forEachResults(rs -> {
+            Map<String, Object> override = new CaseInsensitiveHashMap<>();
+            override.put("subjectId", rs.getString(FieldKey.fromString("subjectId")));
+            override.put("relationship", rs.getString(FieldKey.fromString("relationship")));
+            override.put("originalValue", StringUtils.trimToNull(rs.getString(FieldKey.fromString("originalValue"))));
+            override.put("correctedValue", StringUtils.trimToNull(rs.getString(FieldKey.fromString("correctedValue"))));
 
-            TableSelector ts = new TableSelector(subjectsTable, PageFlowUtil.set("subjectname", "mother", "father"), new SimpleFilter(FieldKey.fromString("subjectname"), id), null);
-            if (ts.exists())
-            {
-                Map<String, Object> existing = ts.getMap(id);
+            overrides.add(override);
+            ids.add((String)override.get("subjectId"));
+        });
 
-                Map<String, Object> toApply = new CaseInsensitiveHashMap<>();
-                toApply.put("subjectname", id);
+        if (overrides.isEmpty())
+        {
+            return new RecordedActionSet();
+        }
 
-                String targetField;
-                switch (relationship)
-                {
-                    case "Dam":
-                        targetField = "mother";
-                        break;
-                    case "Sire":
-                        targetField = "father";
-                        break;
-                    case "Self":
-                        targetField = "subjectname";
-                        break;
-                    default:
-                        job.getLogger().error("Unknown value for relationship: " + rs.getString(FieldKey.fromString("relationship")));
-                        return;
-                }
+        //the subject rows are loaded in chunks, to avoid very large IN clauses:
+        Map<String, Map<String, Object>> existingById = new HashMap<>();
+        List<String> idList = new ArrayList<>(ids);
+        for (int i = 0; i < idList.size(); i += SUBJECT_CHUNK_SIZE)
+        {
+            List<String> chunk = idList.subList(i, Math.min(idList.size(), i + SUBJECT_CHUNK_SIZE));
+            new TableSelector(subjectsTable, PageFlowUtil.set("subjectname", "mother", "father"), new SimpleFilter(FieldKey.fromString("subjectname"), chunk, CompareType.IN), null).forEachResults(rs -> {
+                Map<String, Object> existing = new CaseInsensitiveHashMap<>();
+                existing.put("subjectname", rs.getString(FieldKey.fromString("subjectname")));
+                existing.put("mother", rs.getString(FieldKey.fromString("mother")));
+                existing.put("father", rs.getString(FieldKey.fromString("father")));
+
+                existingById.put((String)existing.get("subjectname"), existing);
+            });
+        }
 
-                //santity check:
-                String expectedOriginalValue = StringUtils.trimToNull(rs.getString("originalValue"));
-                String actualOriginalValue = StringUtils.trimToNull((String)existing.get(targetField));
-                if (!((actualOriginalValue == null && expectedOriginalValue == null) || (actualOriginalValue != null && actualOriginalValue.equals(expectedOriginalValue))))
+        Map<String, Map<String, Object>> toUpdateById = computeUpdates(overrides, existingById, job.getLogger());
+
+        if (!toUpdateById.isEmpty())
+        {
+            job.getLogger().info("Applying pedigree overrides, total subjects: " + toUpdateById.size());
+
+            //NOTE: all batches are applied in one transaction.  Otherwise a failure partway would leave earlier batches applied, and since
+            //overrides already applied are skipped, a rerun would not reveal the partial state
+            try (DbScope.Transaction transaction = subjectsTable.getSchema().getScope().ensureTransaction())
+            {
+                List<Map<String, Object>> toUpdate = new ArrayList<>();
+                List<Map<String, Object>> oldKeys = new ArrayList<>();
+                for (String id : toUpdateById.keySet())
                 {
-                    job.getLogger().error("Skipping override for Id: " + id + ", because the expected originalValue did not match the existing value for field: " + targetField + ". values were: " + expectedOriginalValue + " / " + actualOriginalValue);
-                    return;
+                    toUpdate.add(toUpdateById.get(id));
+
+                    Map<String, Object> oldKey = new CaseInsensitiveHashMap<>();
+                    oldKey.put("subjectname", id);
+                    oldKeys.add(oldKey);
+
+                    if (toUpdate.size() >= UPDATE_BATCH_SIZE)
+                    {
+                        updateSubjects(job, subjectsTable, toUpdate, oldKeys);
+                        toUpdate.clear();
+                        oldKeys.clear();
+                    }
                 }
 
-                if ("subjectname".equals(targetField) && correctedValue == null)
+                if (!toUpdate.isEmpty())
                 {
-                    job.getLogger().error("Skipping override for Id: " + id + ", because a null corrected value was provided");
-                    return;
+                    updateSubjects(job, subjectsTable, toUpdate, oldKeys);
                 }
 
-                toApply.put(targetField, correctedValue);
+                transaction.commit();
+            }
+        }
+        else
+        {
+            job.getLogger().info("No pedigree overrides need to be applied");
+        }
 
-                Map<String, Object> oldKey = new CaseInsensitiveHashMap<>();
-                oldKey.put("subjectname", id);
+        return new RecordedActionSet();
+    }
 
-                toUpdate.add(toApply);
-                oldKeys.add(oldKey);
+    /**
+     * Computes the changes in memory, merging all overrides for a given subject into one row.  Overrides already reflected in the subjects table are skipped.
+     */
+    static Map<String, Map<String, Object>> computeUpdates(List<Map<String, Object>> overrides, Map<String, Map<String, Object>> existingById, Logger log)
+    {
+        Map<String, Map<String, Object>> toUpdateById = new LinkedHashMap<>();
+        for (Map<String, Object> override : overrides)
+        {
+            String id = (String)override.get("subjectId");
+            String relationship = (String)override.get("relationship");
+            String correctedValue = (String)override.get("correctedValue");
+
+            Map<String, Object> existing = existingById.get(id);
+            if (existing == null)
+            {
+                log.error("Pedigree overrides contains record for " + id + ", but was not found in subjects table");
+                continue;
             }
-            else
+
+            String targetField;
+            switch (relationship == null ? "" : relationship)
             {
-                job.getLogger().error("Pedigree overrides contains record for " + id + ", but was not found in subjects table");
+                case "Dam":
+                    targetField = "mother";
+                    break;
+                case "Sire":
+                    targetField = "father";
+                    break;
+                case "Self":
+                    targetField = "subjectname";
+                    break;
+                default:
+                    log.error("Unknown value for relationship: " + relationship);
+                    continue;
             }
-        });
 
-        if (!toUpdate.isEmpty())
-        {
-            job.getLogger().info("Applying pedigree overrides, total: " + toUpdate.size());
+            String actualOriginalValue = StringUtils.trimToNull((String)existing.get(targetField));
+            if (Objects.equals(actualOriginalValue, correctedValue))
+            {
+                //this override has already been applied
+                continue;
+            }
 
-            try
+            //santity check:
+            String expectedOriginalValue = (String)override.get("originalValue");
+            if (!Objects.equals(actualOriginalValue, expectedOriginalValue))
             {
-                subjectsTable.getUpdateService().updateRows(job.getUser(), job.getContainer(), toUpdate, oldKeys, null, new HashMap<>());
+                log.error("Skipping override for Id: " + id + ", because the expected originalValue did not match the existing value for field: " + targetField + ". values were: " + expectedOriginalValue + " / " + actualOriginalValue);
+                continue;
             }
-            catch (QueryException | BatchValidationException | SQLException | InvalidKeyException | QueryUpdateServiceException e)
+
+            if ("subjectname".equals(targetField) && correctedValue == null)
             {
-                throw new PipelineJobException(e);
+                log.error("Skipping override for Id: " + id + ", because a null corrected value was provided");
+                continue;
             }
+
+            toUpdateById.computeIfAbsent(id, x -> {
+                Map<String, Object> toApply = new CaseInsensitiveHashMap<>();
+                toApply.put("subjectname", id);
+                return toApply;
+            }).put(targetField, correctedValue);
         }
 
-        return new RecordedActionSet();
+        return toUpdateById;
+    }
+
+    private void updateSubjects(PipelineJob job, TableInfo subjectsTable, List<Map<String, Object>> toUpdate, List<Map<String, Object>> oldKeys) throws PipelineJobException
+    {
+        try
+        {
+            subjectsTable.getUpdateService().updateRows(job.getUser(), job.getContainer(), toUpdate, oldKeys, null, new HashMap<>());
+        }
+        catch (QueryException | BatchValidationException | SQLException | InvalidKeyException | QueryUpdateServiceException e)
+        {
+            throw new PipelineJobException(e);
+        }
     }
 
     @Override
@@ -157,4 +249,57 @@ public void setContainerUser(ContainerUser containerUser)
     {
         _containerUser = containerUser;
     }
+
+    public static class TestCase extends Assert
+    {
+        private static Map<String, Object> createOverride(String id, String relationship, String originalValue, String correctedValue)
+        {
+            Map<String, Object> override = new CaseInsensitiveHashMap<>();
+            override.put("subjectId", id);
+            override.put("relationship", relationship);
+            override.put("originalValue", originalValue);
+            override.put("correctedValue", correctedValue);
+
+            return override;
+        }
+
+        @Test
+        public void testComputeUpdates()
+        {
+            //1250 subjects, each with a Dam and a Sire override:
+            List<Map<String, Object>> overrides = new ArrayList<>();
+            Map<String, Map<String, Object>> existingById = new HashMap<>();
+            for (int i = 0; i < 1250; i++)
+            {
+                String id = "Subject" + i;
+                Map<String, Object> existing = new CaseInsensitiveHashMap<>();
+                existing.put("subjectname", id);
+                existing.put("mother", "Dam" + i);
+                existing.put("father", "Sire" + i);
+                existingById.put(id, existing);
+
+                overrides.add(createOverride(id, "Dam", "Dam" + i, "NewDam" + i));
+                overrides.add(createOverride(id, "Sire", "Sire" + i, "NewSire" + i));
+            }
+
+            //already applied, not matching the expected original value, unknown subject and unknown relationship:
+            existingById.get("Subject0").put("mother", "NewDam0");
+            overrides.add(createOverride("Subject1", "Self", "Other", "Renamed1"));
+            overrides.add(createOverride("Unknown", "Dam", null, "Dam"));
+            overrides.add(createOverride("Subject2", "Other", null, "Value"));
+
+            Map<String, Map<String, Object>> toUpdateById = computeUpdates(overrides, existingById, LogManager.getLogger(UpdatePedigreeStep.class));
+
+            //previously each of the 2504 overrides cost a lookup and an update.  Now the 1250 merged rows are written in two calls to updateRows:
+            assertEquals(1250, toUpdateById.size());
+
+            assertEquals("NewDam5", toUpdateById.get("Subject5").get("mother"));
+            assertEquals("NewSire5", toUpdateById.get("Subject5").get("father"));
+            assertEquals("Subject5", toUpdateById.get("Subject5").get("subjectname"));
+
+            assertFalse("An applied override should be skipped", toUpdateById.get("Subject0").containsKey("mother"));
+            assertEquals("Subject1", toUpdateById.get("Subject1").get("subjectname"));
+            assertFalse(toUpdateById.containsKey("Unknown"));
+        }
+    }
 }
@@ -40,7 +40,9 @@
 import org.labkey.api.data.DbSchemaType;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.Results;
+import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.Sort;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
@@ -90,10 +92,7 @@
 import javax.mail.Message;
 import javax.mail.internet.InternetAddress;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -105,8 +104,6 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class mGAPController extends SpringActionController
 {
@@ -537,7 +534,8 @@ public void export(DownloadBundleForm form, HttpServletResponse response, BindEx
                 return;
             }
 
-            Set<File> toZip = new HashSet<>();
+            //NOTE: the order of members must be stable across requests, since ranges are resolved against the archive layout
+            Set<File> toZip = new LinkedHashSet<>();
             String zipName = "mGap_VariantCatalog_v" + FileUtil.makeLegalName((String)row.get("version"));
             zipName = zipName.replaceAll(" ", "_");
 
@@ -558,21 +556,40 @@ public void export(DownloadBundleForm form, HttpServletResponse response, BindEx
                 toZip.add(genome.getSequenceDictionary());
             }
 
+            //NOTE: the CRC of each member is computed when the release is imported (see OutputFileTransform) and read from its sidecar file here.
+            //Only if that is missing or stale is the file read in full on this thread.
+            StoredZipBundle bundle = new StoredZipBundle(toZip);
+            StoredZipBundle.ByteRange range = bundle.parseRange(getViewContext().getRequest().getHeader("Range"), getViewContext().getRequest().getHeader("If-Range"));
+
             response.reset();
             response.setContentType("application/zip");
             response.setHeader("Content-Disposition", "attachment; filename=\"" + zipName + ".zip\"");
+            response.setHeader("Accept-Ranges", "bytes");
+            response.setHeader("ETag", bundle.getETag());
 
-            try (ZipOutputStream out = new ZipOutputStream(response.getOutputStream()))
+            if (range != null && !range.isSatisfiable())
             {
-                for (File f : toZip)
-                {
-                    ZipEntry entry = new ZipEntry(f.getName());
-                    out.putNextEntry(entry);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", "bytes */" + bundle.getLength());
+                return;
+            }
 
-                    try (InputStream in = new BufferedInputStream(new FileInputStream(f)))
-                    {
-                        FileUtil.copyData(in, out);
-                    }
+            if (range == null)
+            {
+                response.setContentLengthLong(bundle.getLength());
+                bundle.write(response.getOutputStream());
+            }
+            else
+            {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + range.getStart() + "-" + range.getEnd() + "/" + bundle.getLength());
+                response.setContentLengthLong(range.getLength());
+                bundle.write(response.getOutputStream(), range.getStart(), range.getEnd());
+
+                //only audit the start of a download, not each resumed segment
+                if (range.getStart() > 0)
+                {
+                    return;
                 }
             }
 
@@ -928,6 +945,11 @@ public URLHelper getRedirectURL(GenomeBrowserForm form)
         }
 
         public Collection<String> getTracks(Container target, String jbrowseSession, String releaseId, List<String> trackNames)
+        {
+            return mGAPManager.get().getGenomeBrowserTracks(target, releaseId, jbrowseSession, getUser(), trackNames, () -> resolveTracks(target, jbrowseSession, releaseId, trackNames));
+        }
+
+        private Collection<String> resolveTracks(Container target, String jbrowseSession, String releaseId, List<String> trackNames)
         {
             Set<String> ret = new LinkedHashSet<>();
 
@@ -938,51 +960,76 @@ public Collection<String> getTracks(Container target, String jbrowseSession, Str
             SimpleFilter trackFilter = new SimpleFilter(FieldKey.fromString("releaseId"), releaseId);
             trackFilter.addCondition(FieldKey.fromString("trackName"), trackNames, CompareType.IN);
             List<Integer> outputFileIds = new TableSelector(mgap.getTable(mGAPSchema.TABLE_TRACKS_PER_RELEASE), PageFlowUtil.set("vcfId"), trackFilter, null).getArrayList(Integer.class);
+            if (outputFileIds.isEmpty())
+            {
+                _log.error("Unable to find tracks: " + StringUtils.join(trackNames, ";"));
+            }
 
-            //now database members from these outputFileIds:
+            //now database members, either from these outputFileIds or tracks that are defaultVisible for this session (which should include the primary track), in one query:
             TableInfo databaseMembers = jbrowse.getTable("database_members");
-            Map<FieldKey, ColumnInfo> cols = QueryService.get().getColumns(databaseMembers, PageFlowUtil.set(FieldKey.fromString("jsonfile/relpath")));
+            final FieldKey relPathKey = FieldKey.fromString("jsonfile/relpath");
+            final FieldKey outputFileKey = FieldKey.fromString("jsonfile/outputfile");
+            Map<FieldKey, ColumnInfo> cols = QueryService.get().getColumns(databaseMembers, PageFlowUtil.set(relPathKey, outputFileKey));
+
+            SimpleFilter dbFilter = new SimpleFilter(FieldKey.fromString("database"), jbrowseSession);
+            SimpleFilter.FilterClause visibleClause = CompareType.CONTAINS_ONE_OF.createFilterClause(FieldKey.fromString("jsonfile/trackJson"), PageFlowUtil.set("visibleByDefault\":true", "visibleByDefault\": true"));
+            dbFilter.addClause(outputFileIds.isEmpty() ? visibleClause : new SimpleFilter.OrClause(new SimpleFilter.InClause(outputFileKey, outputFileIds), visibleClause));
+
+            Set<Integer> outputFileIdSet = new HashSet<>(outputFileIds);
+            Set<String> selectedTracks = new LinkedHashSet<>();
+            Set<String> defaultTracks = new LinkedHashSet<>();
+            new TableSelector(databaseMembers, cols.values(), dbFilter, null).forEachResults(rs -> {
+                String r = rs.getString(relPathKey);
+                if (r == null)
+                {
+                    return;
+                }
+
+                Object outputFile = rs.getObject(outputFileKey);
+                //NOTE: each member is counted once: a selected track is added to selectedTracks even if it is also defaultVisible, and any other member to defaultTracks
+                (outputFile != null && outputFileIdSet.contains(Integer.parseInt(String.valueOf(outputFile))) ? selectedTracks : defaultTracks).add(r.contains("/") ? r.split("/")[1] : r);
+            });
+
             if (!outputFileIds.isEmpty())
             {
-                SimpleFilter dbFilter = new SimpleFilter(FieldKey.fromString("database"), jbrowseSession);
-                dbFilter.addCondition(FieldKey.fromString("jsonfile/outputfile"), outputFileIds, CompareType.IN);
-                List<String> relPaths = new TableSelector(databaseMembers, cols.values(), dbFilter, null).getArrayList(String.class);
-                if (relPaths != null && !relPaths.isEmpty())
+                if (!selectedTracks.isEmpty())
                 {
-                    relPaths.forEach(r -> ret.add(r.contains("/") ? r.split("/")[1] : r));
+                    ret.addAll(selectedTracks);
                 }
                 else
                 {
                     _log.error("Unable to find jsonfiles for tracks: " + StringUtils.join(trackNames, ";") + ", with outputIDs: " + StringUtils.join(outputFileIds, ","));
                 }
             }
-            else
-            {
-                _log.error("Unable to find tracks: " + StringUtils.join(trackNames, ";"));
-            }
 
-            //any tracks that are defaultVisible for this session, which should include the primary track:
-            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("database"), jbrowseSession);
-            filter.addCondition(FieldKey.fromString("jsonfile/trackJson"), PageFlowUtil.set("visibleByDefault\":true", "visibleByDefault\": true"), CompareType.CONTAINS_ONE_OF);
-            List<String> relPaths = new TableSelector(databaseMembers, cols.values(), filter, null).getArrayList(String.class);
-            if (relPaths != null && !relPaths.isEmpty())
+            if (!defaultTracks.isEmpty() || !selectedTracks.isEmpty())
             {
-                relPaths.forEach(r -> ret.add(r.contains("/") ? r.split("/")[1] : r));
+                ret.addAll(defaultTracks);
             }
             else
             {
                 _log.error("Unable to find any defaultVisible tracks for database: " + jbrowseSession);
             }
 
-            //find genome ID.  this could be across folders, so use DB schema
+            //find genome ID and the base jbrowse session for this genome in one query.  this could be across folders, so use DB schema
             DbSchema jbrowseSchema = DbSchema.get("jbrowse", DbSchemaType.Module);
             TableInfo databasesTable = jbrowseSchema.getTable("databases");
-            Integer genomeId = new TableSelector(databasesTable, PageFlowUtil.set("libraryId"), new SimpleFilter(FieldKey.fromString("objectid"), jbrowseSession), null).getObject(Integer.class);
+            SQLFragment sql = new SQLFragment("SELECT d.libraryId, p.container FROM ").append(databasesTable, "d");
+            sql.append(" LEFT JOIN ").append(databasesTable, "p").append(" ON (p.libraryId = d.libraryId AND p.primarydb = ?)").add(true);
+            sql.append(" WHERE d.objectid = ?").add(jbrowseSession);
+
+            Integer[] genomeIdHolder = new Integer[1];
+            String[] containerHolder = new String[1];
+            new SqlSelector(jbrowseSchema, sql).forEach(rs -> {
+                genomeIdHolder[0] = rs.getObject("libraryId") == null ? null : rs.getInt("libraryId");
+                if (containerHolder[0] == null)
+                {
+                    containerHolder[0] = rs.getString("container");
+                }
+            });
 
-            //then find the base jbrowse session for this genome.
-            SimpleFilter filterPrimaryDb = new SimpleFilter(FieldKey.fromString("libraryId"), genomeId);
-            filterPrimaryDb.addCondition(FieldKey.fromString("primarydb"), true);
-            String defaultSessionContainerId = new TableSelector(databasesTable, PageFlowUtil.set("container"), filterPrimaryDb, null).getObject(String.class);
+            Integer genomeId = genomeIdHolder[0];
+            String defaultSessionContainerId = containerHolder[0];
             if (defaultSessionContainerId != null)
             {
                 //any tracks that are defaultVisible for the primary DB:
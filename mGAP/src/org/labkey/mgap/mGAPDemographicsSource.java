@@ -1,6 +1,10 @@
 package org.labkey.mgap;
 
 import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
@@ -12,8 +16,13 @@
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.security.User;
+import org.labkey.api.util.JunitUtil;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.api.util.TestContext;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -24,9 +33,72 @@
 
 public class mGAPDemographicsSource implements DemographicsSource
 {
+    // Subject lists are resolved in chunks of this size, to avoid very large IN clauses
+    private static final int SUBJECT_CHUNK_SIZE = 1000;
+
+    // Resolved rows, keyed on container, user and subject.  Entries are short-lived, and are also cleared when demographics or sequence datasets are written.
+    // An empty map records a subject that did not resolve.  The cached maps are unmodifiable, since they are shared between callers.
+    private static final Cache<String, Map<String, Object>> _cache = CacheManager.getStringKeyCache(50000, CacheManager.MINUTE * 5, "mGAP Demographics");
+
+    private static final Map<String, String> SEQUENCE_TYPE_MAP = Map.of(
+        "Whole Genome: Deep Coverage", "WGS",
+        "Whole Exome", "WXS"
+    );
 
     @Override
     public Map<String, Map<String, Object>> resolveSubjects(List<String> subjects, Container c, User u)
+    {
+        Map<String, Map<String, Object>> ret = new HashMap<>();
+        List<String> toResolve = new ArrayList<>();
+        for (String subject : new LinkedHashSet<>(subjects))
+        {
+            Map<String, Object> cached = _cache.get(getCacheKey(subject, c, u));
+            if (cached == null)
+            {
+                toResolve.add(subject);
+            }
+            else if (!cached.isEmpty())
+            {
+                ret.put(subject, cached);
+            }
+        }
+
+        for (int i = 0; i < toResolve.size(); i += SUBJECT_CHUNK_SIZE)
+        {
+            List<String> chunk = toResolve.subList(i, Math.min(toResolve.size(), i + SUBJECT_CHUNK_SIZE));
+            Map<String, Map<String, Object>> resolved = resolveChunk(chunk, c, u);
+            for (String subject : chunk)
+            {
+                Map<String, Object> map = resolved.get(subject);
+                _cache.put(getCacheKey(subject, c, u), map == null ? Collections.emptyMap() : map);
+                if (map != null)
+                {
+                    ret.put(subject, map);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private static String getCacheKey(String subject, Container c, User u)
+    {
+        return getCachePrefix(c) + u.getUserId() + "||" + subject;
+    }
+
+    private static String getCachePrefix(Container c)
+    {
+        return c.getId() + "||";
+    }
+
+    public static void clearCache(Container c)
+    {
+        String prefix = getCachePrefix(c);
+        _cache.removeUsingFilter(key -> key.startsWith(prefix));
+    }
+
+    // Issues two queries: one against sequenceDatasets and one against demographics
+    protected Map<String, Map<String, Object>> resolveChunk(List<String> subjects, Container c, User u)
     {
         Map<String, Map<String, Object>> ret = new HashMap<>();
 
@@ -34,21 +106,8 @@ public Map<String, Map<String, Object>> resolveSubjects(List<String> subjects, C
         Map<String, Set<String>> dataTypeMap = new HashMap<>();
         TableInfo sequence = QueryService.get().getUserSchema(u, c, mGAPSchema.NAME).getTable(mGAPSchema.TABLE_SEQUENCE_DATASETS, null);
         new TableSelector(sequence, PageFlowUtil.set("mgapId", "sequenceType"), new SimpleFilter(FieldKey.fromString("mgapId"), subjects, CompareType.IN), null).forEachResults(rs -> {
-            Set<String> types = dataTypeMap.getOrDefault(rs.getString(FieldKey.fromString("mgapId")), new HashSet<>());
             String type = rs.getString(FieldKey.fromString("sequenceType"));
-            switch (type)
-            {
-                case "Whole Genome: Deep Coverage":
-                    type = "WGS";
-                    break;
-                case "Whole Exome":
-                    type = "WXS";
-                    break;
-            }
-
-            types.add(type);
-
-            dataTypeMap.put(rs.getString(FieldKey.fromString("mgapId")), types);
+            dataTypeMap.computeIfAbsent(rs.getString(FieldKey.fromString("mgapId")), x -> new HashSet<>()).add(type == null ? null : SEQUENCE_TYPE_MAP.getOrDefault(type, type));
         });
 
         TableInfo ti = QueryService.get().getUserSchema(u, c, mGAPSchema.NAME).getTable(mGAPSchema.TABLE_DEMOGRAPHICS, null);
@@ -69,7 +128,7 @@ public Map<String, Map<String, Object>> resolveSubjects(List<String> subjects, C
                 }
             }
 
-            ret.put(subject, map);
+            ret.put(subject, Collections.unmodifiableMap(map));
         });
 
         return ret;
@@ -94,4 +153,77 @@ public boolean isAvailable(Container c, User u)
     {
         return c.getActiveModules().contains(ModuleLoader.getInstance().getModule(mGAPModule.class));
     }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testChunkedResolution()
+        {
+            Container c = JunitUtil.getTestContainer();
+            User u = TestContext.get().getUser();
+            clearCache(c);
+
+            //NOTE: this counts the chunks, and therefore the queries, without touching the tables.  Subjects ending in 0 do not resolve.
+            List<Integer> chunkSizes = new ArrayList<>();
+            mGAPDemographicsSource source = new mGAPDemographicsSource()
+            {
+                @Override
+                protected Map<String, Map<String, Object>> resolveChunk(List<String> subjects, Container c, User u)
+                {
+                    chunkSizes.add(subjects.size());
+                    Map<String, Map<String, Object>> ret = new HashMap<>();
+                    for (String subject : subjects)
+                    {
+                        if (!subject.endsWith("0"))
+                        {
+                            ret.put(subject, Collections.unmodifiableMap(new CaseInsensitiveHashMap<>(Map.of("gender", "f"))));
+                        }
+                    }
+
+                    return ret;
+                }
+            };
+
+            try
+            {
+                List<String> subjects = new ArrayList<>();
+                for (int i = 0; i < 2500; i++)
+                {
+                    subjects.add("testChunkedResolution" + i);
+                }
+                subjects.add(subjects.get(0));
+
+                Map<String, Map<String, Object>> ret = source.resolveSubjects(subjects, c, u);
+                assertEquals(2250, ret.size());
+                assertEquals("Expected 3 chunks, or 6 queries", Arrays.asList(1000, 1000, 500), chunkSizes);
+
+                //cached rows and misses should not be queried again, and only new subjects should be resolved:
+                chunkSizes.clear();
+                subjects.add("testChunkedResolution2500");
+                subjects.add("testChunkedResolution2501");
+                ret = source.resolveSubjects(subjects, c, u);
+                assertEquals(2251, ret.size());
+                assertEquals(Collections.singletonList(2), chunkSizes);
+
+                try
+                {
+                    ret.get("testChunkedResolution1").put("gender", "m");
+                    fail("Cached rows should be unmodifiable");
+                }
+                catch (UnsupportedOperationException e)
+                {
+                    //expected
+                }
+
+                chunkSizes.clear();
+                clearCache(c);
+                source.resolveSubjects(subjects, c, u);
+                assertEquals(Arrays.asList(1000, 1000, 502), chunkSizes);
+            }
+            finally
+            {
+                clearCache(c);
+            }
+        }
+    }
 }
@@ -19,6 +19,10 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.module.Module;
@@ -27,9 +31,19 @@
 import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
 import org.labkey.api.security.ValidEmail;
-
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.TestContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class mGAPManager
 {
@@ -40,6 +54,10 @@
     public static final String NotifyPropName = "MGAPContactUsers";
     public static final String OmimApiKeyPropName = "OmimApiKey";
 
+    // Track IDs resolved by the genome browser redirect, keyed on container, release, session, user and requested tracks.
+    // This is cleared whenever release, track or session rows are written.
+    private final Cache<String, List<String>> _genomeBrowserTrackCache = CacheManager.getStringKeyCache(1000, CacheManager.HOUR, "mGAP Genome Browser Tracks");
+
     private mGAPManager()
     {
         // prevent external construction with a private default constructor
@@ -61,6 +79,23 @@ public Container getMGapContainer()
         return ContainerManager.getForPath(path);
     }
 
+    /**
+     * Returns the track IDs for the genome browser redirect, calling the resolver only if these are not cached.  The order of the requested track names does not matter.
+     */
+    public List<String> getGenomeBrowserTracks(Container c, String releaseId, String databaseId, User u, List<String> trackNames, Supplier<Collection<String>> resolver)
+    {
+        List<String> sortedNames = new ArrayList<>(trackNames);
+        Collections.sort(sortedNames);
+        String cacheKey = c.getId() + "||" + releaseId + "||" + databaseId + "||" + u.getUserId() + "||" + StringUtils.join(sortedNames, ",");
+
+        return _genomeBrowserTrackCache.get(cacheKey, null, (key, argument) -> Collections.unmodifiableList(new ArrayList<>(resolver.get())));
+    }
+
+    public void clearGenomeBrowserTrackCache()
+    {
+        _genomeBrowserTrackCache.clear();
+    }
+
     public String getOmimApiKey(Container c)
     {
         Module m = ModuleLoader.getInstance().getModule(mGAPModule.NAME);
@@ -107,4 +142,37 @@ public Set<User> getNotificationUsers()
 
         return ret;
     }
-}
\ No newline at end of file
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testGenomeBrowserTrackCache()
+        {
+            Container c = JunitUtil.getTestContainer();
+            User u = TestContext.get().getUser();
+            String releaseId = new GUID().toString();
+            String databaseId = new GUID().toString();
+
+            //NOTE: resolving tracks on a cache miss costs four queries.  This counts how often the resolver runs:
+            AtomicInteger resolved = new AtomicInteger();
+            Supplier<Collection<String>> resolver = () -> {
+                resolved.incrementAndGet();
+                return Arrays.asList("track-1", "track-2");
+            };
+
+            for (int i = 0; i < 100; i++)
+            {
+                List<String> trackNames = i % 2 == 0 ? Arrays.asList("TrackA", "TrackB") : Arrays.asList("TrackB", "TrackA");
+                assertEquals(Arrays.asList("track-1", "track-2"), mGAPManager.get().getGenomeBrowserTracks(c, releaseId, databaseId, u, trackNames, resolver));
+            }
+            assertEquals("100 redirects should resolve tracks once", 1, resolved.get());
+
+            mGAPManager.get().getGenomeBrowserTracks(c, releaseId, databaseId, u, Collections.singletonList("TrackA"), resolver);
+            assertEquals(2, resolved.get());
+
+            mGAPManager.get().clearGenomeBrowserTrackCache();
+            mGAPManager.get().getGenomeBrowserTracks(c, releaseId, databaseId, u, Arrays.asList("TrackA", "TrackB"), resolver);
+            assertEquals(3, resolved.get());
+        }
+    }
+}
@@ -38,10 +38,17 @@
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.writer.ContainerUser;
 import org.labkey.mgap.buttons.ReleaseButton;
+import org.labkey.mgap.columnTransforms.FileMaterializer;
+import org.labkey.mgap.etl.PopulateIdsStep;
+import org.labkey.mgap.etl.UpdatePedigreeStep;
 import org.labkey.mgap.pipeline.AnnotationStep;
+import org.labkey.mgap.pipeline.CassandraRunner;
 import org.labkey.mgap.pipeline.RemoveAnnotationsForMgapStep;
 import org.labkey.mgap.pipeline.RenameSamplesForMgapStep;
+import org.labkey.mgap.pipeline.VcfStats;
 import org.labkey.mgap.pipeline.mGapReleaseGenerator;
+import org.labkey.mgap.query.CachedHtmlDisplayColumnFactory;
+import org.labkey.mgap.query.TriggerHelper;
 import org.labkey.mgap.query.mGAPUserSchema;
 
 import java.util.Set;
@@ -162,6 +169,6 @@ public JSONObject getPageContextJson(ContainerUser context)
     @Override
     public @NotNull Set<Class> getUnitTests()
     {
-        return PageFlowUtil.set(mGapReleaseGenerator.TestCase.class);
+        return PageFlowUtil.set(mGapReleaseGenerator.TestCase.class, CassandraRunner.TestCase.class, StoredZipBundle.TestCase.class, FileMaterializer.TestCase.class, TriggerHelper.TestCase.class, VcfStats.TestCase.class, CachedHtmlDisplayColumnFactory.TestCase.class, mGAPDemographicsSource.TestCase.class, UpdatePedigreeStep.TestCase.class, PopulateIdsStep.TestCase.class, mGAPManager.TestCase.class);
     }
 }
\ No newline at end of file
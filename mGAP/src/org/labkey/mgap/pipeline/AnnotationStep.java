@@ -31,7 +31,6 @@
 import org.labkey.api.sequenceanalysis.pipeline.VariantProcessingStepOutputImpl;
 import org.labkey.api.sequenceanalysis.run.AbstractCommandPipelineStep;
 import org.labkey.api.sequenceanalysis.run.SelectVariantsWrapper;
-import org.labkey.api.sequenceanalysis.run.SimpleScriptWrapper;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.PageFlowUtil;
 
@@ -52,6 +51,9 @@ public class AnnotationStep extends AbstractCommandPipelineStep<CassandraRunner>
     public static final String GRCH37 = "genome37";
     private static final String CLINVAR_VCF = "clinvar37";
     public static final String CHAIN_FILE = "CHAIN_FILE";
+    private static final String CASSANDRA_RECORDS_PER_SHARD = "cassandraRecordsPerShard";
+    private static final int DEFAULT_RECORDS_PER_SHARD = 1000000;
+    private static final int MIN_RAM_PER_CASSANDRA_PROCESS = 8;
 
     public AnnotationStep(PipelineStepProvider provider, PipelineContext ctx)
     {
@@ -81,7 +83,11 @@ public Provider()
                     ToolParameterDescriptor.create("dropFiltered", "Drop Filtered Sites", "If checked, filtered sites will be discarded, which can substantially improve speed.", "checkbox", new JSONObject()
                     {{
                         put("checked", true);
-                    }}, true)
+                    }}, true),
+                    ToolParameterDescriptor.create(CASSANDRA_RECORDS_PER_SHARD, "Cassandra Sites Per Shard", "Cassandra is run as concurrent processes over contiguous shards of the VCF, each containing up to this many sites.", "ldk-integerfield", new JSONObject()
+                    {{
+                        put("minValue", 1);
+                    }}, DEFAULT_RECORDS_PER_SHARD)
             ), new LinkedHashSet<String>(Arrays.asList("ldk/field/ExpDataField.js")), null);
         }
 
@@ -216,11 +222,11 @@ public Output processVariants(File inputVCF, File outputDirectory, ReferenceGeno
             output.addOutput(subset, "VCF Subset");
             output.addIntermediateFile(subset);
             output.addIntermediateFile(new File(subset.getPath() + ".tbi"));
+            output.addIntermediateFile(VcfStats.getSidecarFile(subset));
 
             currentVcf = subset;
 
-            getPipelineCtx().getJob().getLogger().info("total variants: " + SequenceAnalysisService.get().getVCFLineCount(currentVcf, getPipelineCtx().getJob().getLogger(), false));
-            getPipelineCtx().getJob().getLogger().info("passing variants: " + SequenceAnalysisService.get().getVCFLineCount(currentVcf, getPipelineCtx().getJob().getLogger(), true));
+            VcfStats.getOrCreate(currentVcf, getPipelineCtx().getJob().getLogger()).logSummary(getPipelineCtx().getJob().getLogger());
         }
         else
         {
@@ -251,11 +257,11 @@ public Output processVariants(File inputVCF, File outputDirectory, ReferenceGeno
                 output.addOutput(intervalSubset, "VCF Subset");
                 output.addIntermediateFile(intervalSubset);
                 output.addIntermediateFile(new File(intervalSubset.getPath() + ".tbi"));
+                output.addIntermediateFile(VcfStats.getSidecarFile(intervalSubset));
 
                 currentVcf = intervalSubset;
 
-                getPipelineCtx().getJob().getLogger().info("total variants: " + SequenceAnalysisService.get().getVCFLineCount(currentVcf, getPipelineCtx().getJob().getLogger(), false));
-                getPipelineCtx().getJob().getLogger().info("passing variants: " + SequenceAnalysisService.get().getVCFLineCount(currentVcf, getPipelineCtx().getJob().getLogger(), true));
+                VcfStats.getOrCreate(currentVcf, getPipelineCtx().getJob().getLogger()).logSummary(getPipelineCtx().getJob().getLogger());
             }
         }
 
@@ -380,8 +386,7 @@ public Output processVariants(File inputVCF, File outputDirectory, ReferenceGeno
         }
         output.addOutput(multiAnnotated, "VCF Multi-Annotated");
 
-        getPipelineCtx().getJob().getLogger().info("total variants: " + SequenceAnalysisService.get().getVCFLineCount(multiAnnotated, getPipelineCtx().getJob().getLogger(), false));
-        getPipelineCtx().getJob().getLogger().info("passing variants: " + SequenceAnalysisService.get().getVCFLineCount(multiAnnotated, getPipelineCtx().getJob().getLogger(), true));
+        VcfStats.getOrCreate(multiAnnotated, getPipelineCtx().getJob().getLogger()).logSummary(getPipelineCtx().getJob().getLogger());
 
         //final output
         output.setVcf(multiAnnotated);
@@ -393,7 +398,7 @@ private File runCassandra(File liftedToGRCh37, File finalOutput, VariantProcessi
     {
         List<String> extraArgs = new ArrayList<>();
 
-        //NOTE: Cassandra will not sort the output when multithreaded, so the extra sorting we would need to do negates any benefit here
+        //NOTE: Cassandra will not sort the output when multithreaded, so instead we run concurrent single-threaded processes over contiguous shards
         String tmpDir = SequencePipelineService.get().getJavaTempDir();
         if (!StringUtils.isEmpty(tmpDir))
         {
@@ -412,37 +417,22 @@ private File runCassandra(File liftedToGRCh37, File finalOutput, VariantProcessi
         Integer maxRam = SequencePipelineService.get().getMaxRam();
         cassRunner.setMaxRamOverride(maxRam);
 
-        //Cassandra requires unzipped files
-        File liftedToGRCh37Unzipped = new File(liftedToGRCh37.getParentFile(), FileUtil.getBaseName(liftedToGRCh37.getName()));
-        File liftedToGRCh37UnzippedDone = new File(liftedToGRCh37Unzipped.getPath() + ".done");
-        if (forceRecreate || !liftedToGRCh37UnzippedDone.exists())
+        //NOTE: Cassandra requires unzipped files.  Rather than gunzip the whole VCF first, the shards are written unzipped directly
+        File shardDir = new File(finalOutput.getParentFile(), FileUtil.getBaseName(finalOutput.getName()) + ".shards");
+        if (forceRecreate && shardDir.exists())
         {
-            SimpleScriptWrapper wrapper = new SimpleScriptWrapper(getPipelineCtx().getLogger());
-            wrapper.execute(Arrays.asList("gunzip", liftedToGRCh37.getPath()));
             try
             {
-                FileUtils.touch(liftedToGRCh37UnzippedDone);
-                if (!liftedToGRCh37.exists() && indexExists(liftedToGRCh37))
-                {
-                    File idx = new File(liftedToGRCh37.getPath() + ".tbi");
-                    idx.delete();
-                }
+                FileUtils.deleteDirectory(shardDir);
             }
             catch (IOException e)
             {
                 throw new PipelineJobException(e);
             }
         }
-        else
-        {
-            getPipelineCtx().getLogger().info("Resuming from file: " + liftedToGRCh37Unzipped.getPath());
-        }
-
-        output.addIntermediateFile(liftedToGRCh37Unzipped);
-        output.addIntermediateFile(new File(liftedToGRCh37Unzipped.getPath() + ".idx"));
-        output.addIntermediateFile(liftedToGRCh37UnzippedDone);
 
-        cassRunner.execute(liftedToGRCh37Unzipped, finalOutput, extraArgs);
+        int recordsPerShard = getProvider().getParameterByName(CASSANDRA_RECORDS_PER_SHARD).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Integer.class, DEFAULT_RECORDS_PER_SHARD);
+        cassRunner.executeSharded(liftedToGRCh37, finalOutput, extraArgs, shardDir, getMaxConcurrentCassandra(maxRam), recordsPerShard);
         if (!finalOutput.exists())
         {
             throw new PipelineJobException("Unable to find output");
@@ -451,6 +441,7 @@ private File runCassandra(File liftedToGRCh37, File finalOutput, VariantProcessi
         try
         {
             SequenceAnalysisService.get().ensureVcfIndex(finalOutput, getPipelineCtx().getLogger());
+            FileUtils.deleteDirectory(shardDir);
         }
         catch (IOException e)
         {
@@ -460,6 +451,20 @@ private File runCassandra(File liftedToGRCh37, File finalOutput, VariantProcessi
         return finalOutput;
     }
 
+    private int getMaxConcurrentCassandra(@Nullable Integer maxRam)
+    {
+        Integer threads = SequencePipelineService.get().getMaxThreads(getPipelineCtx().getLogger());
+        int concurrent = threads == null ? 1 : threads;
+
+        //each Cassandra process needs enough RAM for the annotation sources, so dont divide RAM too thinly
+        if (maxRam != null)
+        {
+            concurrent = Math.min(concurrent, Math.max(1, maxRam / MIN_RAM_PER_CASSANDRA_PROCESS));
+        }
+
+        return Math.max(1, concurrent);
+    }
+
     protected static boolean indexExists(File vcf)
     {
         File idx = new File(vcf.getPath() + ".tbi");
@@ -1,6 +1,11 @@
 package org.labkey.mgap.pipeline;
 
+import htsjdk.samtools.util.IOUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.pipeline.PipelineJobService;
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
@@ -10,16 +15,23 @@
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.writer.PrintWriters;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class CassandraRunner extends AbstractCommandWrapper
 {
     private Integer _maxRamOverride = null;
+    private List<String> _commandOverride = null;
 
     public CassandraRunner(Logger log)
     {
@@ -31,6 +43,14 @@ public void setMaxRamOverride(Integer maxRamOverride)
         _maxRamOverride = maxRamOverride;
     }
 
+    /**
+     * Replaces the java -jar Cassandra.jar invocation with an arbitrary command.  This is primarily intended to allow testing with a fake executable.
+     */
+    public void setCommandOverride(List<String> commandOverride)
+    {
+        _commandOverride = commandOverride;
+    }
+
     public File execute(File inputVcfUnzipped, File outputVcfZipped, List<String> extraArgs) throws PipelineJobException
     {
         if (inputVcfUnzipped.getPath().endsWith(".gz"))
@@ -43,11 +63,34 @@ public File execute(File inputVcfUnzipped, File outputVcfZipped, List<String> ex
             throw new PipelineJobException("Expected output VCF to be gzipped:" + outputVcfZipped.getPath());
         }
 
+        File outputVcfUnzipped = new File(outputVcfZipped.getParentFile(), FileUtil.getBaseName(outputVcfZipped));
+        runAnnotate(inputVcfUnzipped, outputVcfUnzipped, extraArgs);
+
+        correctHeaderAndBGzip(outputVcfUnzipped, outputVcfZipped);
+        if (!outputVcfZipped.exists())
+        {
+            throw new PipelineJobException("Unable to find file: " + outputVcfZipped.getPath());
+        }
+
+        outputVcfUnzipped.delete();
+
+        return outputVcfUnzipped;
+    }
+
+    private void runAnnotate(File inputVcfUnzipped, File outputVcfUnzipped, List<String> extraArgs) throws PipelineJobException
+    {
         List<String> args = new ArrayList<>();
-        args.add(SequencePipelineService.get().getJavaFilepath());
-        args.addAll(SequencePipelineService.get().getJavaOpts(_maxRamOverride));
-        args.add("-jar");
-        args.add(getJar().getPath());
+        if (_commandOverride != null)
+        {
+            args.addAll(_commandOverride);
+        }
+        else
+        {
+            args.add(SequencePipelineService.get().getJavaFilepath());
+            args.addAll(SequencePipelineService.get().getJavaOpts(_maxRamOverride));
+            args.add("-jar");
+            args.add(getJar().getPath());
+        }
         args.add("-t");
         args.add("Annotate");
 
@@ -68,7 +111,6 @@ public File execute(File inputVcfUnzipped, File outputVcfZipped, List<String> ex
         args.add("-i");
         args.add(inputVcfUnzipped.getPath());
 
-        File outputVcfUnzipped = new File(outputVcfZipped.getParentFile(), FileUtil.getBaseName(outputVcfZipped));
         args.add("-o");
         args.add(outputVcfUnzipped.getPath());
 
@@ -81,16 +123,219 @@ public File execute(File inputVcfUnzipped, File outputVcfZipped, List<String> ex
         {
             throw new PipelineJobException("Unable to find file: " + outputVcfUnzipped.getPath());
         }
+    }
 
-        correctHeaderAndBGzip(outputVcfUnzipped, outputVcfZipped);
+    /**
+     * Cassandra will not sort its output when multithreaded, so rather than using its internal threading this splits the input into
+     * contiguous shards of at most recordsPerShard sites, runs one single-threaded Cassandra process per shard (up to maxConcurrent at once),
+     * sorts each shard's output and then merges these.  Because the final merge uses the same sort keys as correctHeaderAndBGzip(),
+     * the output is identical to running Cassandra over the whole file.  The input can be gzipped, since shards are written unzipped.
+     */
+    public File executeSharded(File inputVcf, File outputVcfZipped, List<String> extraArgs, File shardDir, int maxConcurrent, int recordsPerShard) throws PipelineJobException
+    {
+        if (!outputVcfZipped.getPath().endsWith(".gz"))
+        {
+            throw new PipelineJobException("Expected output VCF to be gzipped:" + outputVcfZipped.getPath());
+        }
+
+        if (!shardDir.exists())
+        {
+            shardDir.mkdirs();
+        }
+
+        List<File> shards = splitIntoShards(inputVcf, shardDir, recordsPerShard);
+        int concurrent = Math.max(1, Math.min(maxConcurrent, shards.size()));
+        Integer ramPerShard = _maxRamOverride == null ? null : Math.max(1, _maxRamOverride / concurrent);
+        getLogger().info("Running Cassandra over " + shards.size() + " shards, with up to " + concurrent + " concurrent processes" + (ramPerShard == null ? "" : " and " + ramPerShard + "GB RAM each"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrent);
+        List<File> sortedOutputs = new ArrayList<>();
+        try
+        {
+            List<Future<File>> futures = new ArrayList<>();
+            for (File shard : shards)
+            {
+                futures.add(executor.submit(() -> runShard(shard, ramPerShard, extraArgs)));
+            }
+
+            //NOTE: collect in shard order so the merge inputs are deterministic
+            for (Future<File> future : futures)
+            {
+                sortedOutputs.add(future.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof PipelineJobException ? (PipelineJobException)e.getCause() : new PipelineJobException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        mergeShardsAndBGzip(new File(shardDir, "shard0.cassandra.vcf"), sortedOutputs, outputVcfZipped);
         if (!outputVcfZipped.exists())
         {
             throw new PipelineJobException("Unable to find file: " + outputVcfZipped.getPath());
         }
 
-        outputVcfUnzipped.delete();
+        return outputVcfZipped;
+    }
 
-        return outputVcfUnzipped;
+    private List<File> splitIntoShards(File inputVcf, File shardDir, int recordsPerShard) throws PipelineJobException
+    {
+        getLogger().info("Splitting VCF into shards of up to " + recordsPerShard + " sites: " + inputVcf.getPath());
+
+        List<File> shards = new ArrayList<>();
+        List<String> headerLines = new ArrayList<>();
+        PrintWriter writer = null;
+        long recordsInShard = 0;
+        try (BufferedReader reader = IOUtil.openFileForBufferedReading(inputVcf))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.startsWith("#"))
+                {
+                    headerLines.add(line);
+                    continue;
+                }
+
+                if (writer == null || recordsInShard >= recordsPerShard)
+                {
+                    if (writer != null)
+                    {
+                        writer.close();
+                    }
+
+                    writer = openShard(shardDir, shards, headerLines);
+                    recordsInShard = 0;
+                }
+
+                writer.write(line);
+                writer.write('\n');
+                recordsInShard++;
+            }
+
+            //Cassandra should still run on an empty VCF, so that header lines are consistent with non-sharded output
+            if (writer == null)
+            {
+                writer = openShard(shardDir, shards, headerLines);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+        finally
+        {
+            if (writer != null)
+            {
+                writer.close();
+            }
+        }
+
+        return shards;
+    }
+
+    private PrintWriter openShard(File shardDir, List<File> shards, List<String> headerLines) throws IOException
+    {
+        File shard = new File(shardDir, "shard" + shards.size() + ".vcf");
+        shards.add(shard);
+
+        PrintWriter writer = PrintWriters.getPrintWriter(shard);
+        for (String header : headerLines)
+        {
+            writer.write(header);
+            writer.write('\n');
+        }
+
+        return writer;
+    }
+
+    private File runShard(File shard, Integer ramPerShard, List<String> extraArgs) throws PipelineJobException
+    {
+        String basename = FileUtil.getBaseName(shard);
+        File shardOutput = new File(shard.getParentFile(), basename + ".cassandra.vcf");
+        File sortedBody = new File(shard.getParentFile(), basename + ".sorted.txt");
+
+        CassandraRunner runner = new CassandraRunner(getLogger());
+        runner.setMaxRamOverride(ramPerShard);
+        runner.setCommandOverride(_commandOverride);
+        runner.runAnnotate(shard, shardOutput, extraArgs);
+
+        File bashTmp = new File(shard.getParentFile(), basename + ".sort.sh");
+        try (PrintWriter writer = PrintWriters.getPrintWriter(bashTmp))
+        {
+            writer.write("#!/bin/bash\n");
+            writer.write("set -x\n");
+            writer.write("set -e\n");
+            writer.write("cat " + shardOutput.getPath() + " | grep -v '^#' | sort -V -k1,1 -k2,2n > " + sortedBody.getPath() + "\n");
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        new SimpleScriptWrapper(getLogger()).execute(Arrays.asList("/bin/bash", bashTmp.getPath()));
+        bashTmp.delete();
+        shard.delete();
+        new File(shard.getPath() + ".idx").delete();
+
+        return sortedBody;
+    }
+
+    private void mergeShardsAndBGzip(File headerSource, List<File> sortedBodies, File outputGzip) throws PipelineJobException
+    {
+        try
+        {
+            File bashTmp = new File(outputGzip.getParentFile(), "cassandraMerge.sh");
+            try (PrintWriter writer = PrintWriters.getPrintWriter(bashTmp))
+            {
+                writer.write("#!/bin/bash\n");
+                writer.write("set -x\n");
+                writer.write("set -e\n");
+                writer.write("{\n");
+                writer.write("cat " + headerSource.getPath() + " | head -n 50000 | grep -e '^#' | grep -v '^##META' | sed 's/Number=0,Type=String/Number=1,Type=String/';\n");
+
+                //each input is already sorted, so this is a linear merge rather than a full sort
+                writer.write("sort -m -V -k1,1 -k2,2n");
+                for (File f : sortedBodies)
+                {
+                    writer.write(" " + f.getPath());
+                }
+                writer.write(";\n");
+
+                writer.write("} | bgzip -f" + getBgzipThreadArgs() + " > " + outputGzip + "\n");
+            }
+
+            SimpleScriptWrapper wrapper = new SimpleScriptWrapper(getLogger());
+            wrapper.execute(Arrays.asList("/bin/bash", bashTmp.getPath()));
+
+            SequenceAnalysisService.get().ensureVcfIndex(outputGzip, getLogger());
+
+            bashTmp.delete();
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+    }
+
+    private String getBgzipThreadArgs()
+    {
+        Integer threads = SequencePipelineService.get().getMaxThreads(getLogger());
+        if (threads != null)
+        {
+            threads = Math.max(1, threads - 1);
+        }
+
+        return threads == null ? "" : " --threads " + threads;
     }
 
     private void correctHeaderAndBGzip(File inputUnzip, File outputGzip) throws PipelineJobException
@@ -106,13 +351,7 @@ private void correctHeaderAndBGzip(File inputUnzip, File outputGzip) throws Pipe
                 writer.write("{\n");
                 writer.write("cat " + inputUnzip.getPath() + " | head -n 50000 | grep -e '^#' | grep -v '^##META' | sed 's/Number=0,Type=String/Number=1,Type=String/';\n");
                 writer.write("cat " + inputUnzip.getPath() + " | grep -v '^#' |  sort -V -k1,1 -k2,2n;\n");
-
-                Integer threads = SequencePipelineService.get().getMaxThreads(getLogger());
-                if (threads != null)
-                {
-                    threads = Math.max(1, threads - 1);
-                }
-                writer.write("} | bgzip -f" + (threads == null ? "" : " --threads " + threads) + " > " + outputGzip + "\n");
+                writer.write("} | bgzip -f" + getBgzipThreadArgs() + " > " + outputGzip + "\n");
             }
 
             SimpleScriptWrapper wrapper = new SimpleScriptWrapper(getLogger());
@@ -154,4 +393,91 @@ private File getJar()
 
         return path == null ? new File("Cassandra.jar") : new File(path, "Cassandra.jar");
     }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(TestCase.class);
+
+        @Test
+        public void testShardedMatchesSingleThreaded() throws Exception
+        {
+            File dir = Files.createTempDirectory("cassandraTest").toFile();
+            try
+            {
+                //this stands in for Cassandra, and emits the records in reverse order to mimic unsorted output
+                File fakeCassandra = new File(dir, "fakeCassandra.sh");
+                try (PrintWriter writer = PrintWriters.getPrintWriter(fakeCassandra))
+                {
+                    writer.write("#!/bin/bash\n");
+                    writer.write("set -e\n");
+                    writer.write("while [ $# -gt 0 ]; do case \"$1\" in -i) IN=$2; shift;; -o) OUT=$2; shift;; esac; shift; done\n");
+                    writer.write("{\n");
+                    writer.write("grep '^##' $IN;\n");
+                    writer.write("echo \"##META=<ID=input,Value=$IN>\";\n");
+                    writer.write("grep '^#CHROM' $IN;\n");
+                    writer.write("grep -v '^#' $IN | tac | sed 's/\\tPASS\\t\\./\\tPASS\\tCASS=1/';\n");
+                    writer.write("} > $OUT\n");
+                }
+
+                File input = new File(dir, "input.vcf");
+                try (PrintWriter writer = PrintWriters.getPrintWriter(input))
+                {
+                    writer.write("##fileformat=VCFv4.2\n");
+                    writer.write("##INFO=<ID=CASS,Number=0,Type=String,Description=\"Annotation\">\n");
+                    writer.write("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+                    for (String contig : Arrays.asList("1", "2", "10"))
+                    {
+                        writer.write("##contig=<ID=" + contig + ",length=100000>\n");
+                    }
+                    writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tSample1\n");
+                    for (String contig : Arrays.asList("1", "2", "10"))
+                    {
+                        for (int i = 1; i <= 25; i++)
+                        {
+                            writer.write(contig + "\t" + (i * 97) + "\t.\tA\tG\t50\tPASS\t.\tGT\t0/1\n");
+                        }
+                    }
+                }
+
+                List<String> fakeCommand = Arrays.asList("/bin/bash", fakeCassandra.getPath());
+
+                File singleDir = new File(dir, "single");
+                singleDir.mkdirs();
+                File singleOutput = new File(singleDir, "single.cassandra.vcf.gz");
+                CassandraRunner single = new CassandraRunner(_log);
+                single.setCommandOverride(fakeCommand);
+                single.execute(input, singleOutput, null);
+
+                File shardedDir = new File(dir, "sharded");
+                shardedDir.mkdirs();
+                File shardedOutput = new File(shardedDir, "sharded.cassandra.vcf.gz");
+                CassandraRunner sharded = new CassandraRunner(_log);
+                sharded.setCommandOverride(fakeCommand);
+                sharded.executeSharded(input, shardedOutput, null, new File(shardedDir, "shards"), 3, 7);
+
+                List<String> expected = readLines(singleOutput);
+                assertEquals("Incorrect number of lines", 82, expected.size());
+                assertEquals("Sharded output does not match single-threaded output", expected, readLines(shardedOutput));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        private List<String> readLines(File vcf) throws IOException
+        {
+            List<String> ret = new ArrayList<>();
+            try (BufferedReader reader = IOUtil.openFileForBufferedReading(vcf))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    ret.add(line);
+                }
+            }
+
+            return ret;
+        }
+    }
 }
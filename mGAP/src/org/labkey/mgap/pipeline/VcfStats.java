@@ -0,0 +1,350 @@
+package org.labkey.mgap.pipeline;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.writer.PrintWriters;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Summary counts for a VCF, which are persisted to a small sidecar file next to the VCF.  Counting sites requires a full
+ * decompress-and-scan of the VCF, so steps that produce a VCF should call getOrCreate() once and downstream consumers can then
+ * read the sidecar.  The sidecar records the size and modification time of the VCF it describes, and is ignored if either has changed.
+ */
+public class VcfStats
+{
+    public static final String SIDECAR_EXTENSION = ".stats.json";
+
+    private long _fileSize;
+    private long _lastModified;
+    private String _md5;
+    private int _totalSamples;
+    private long _totalRecords = 0;
+    private long _passingRecords = 0;
+    private final Map<String, Long> _recordsByContig = new LinkedHashMap<>();
+
+    private VcfStats()
+    {
+
+    }
+
+    public static File getSidecarFile(File vcf)
+    {
+        return new File(vcf.getPath() + SIDECAR_EXTENSION);
+    }
+
+    public static VcfStats getOrCreate(File vcf, Logger log) throws PipelineJobException
+    {
+        VcfStats stats = readIfCurrent(vcf, log);
+        if (stats != null)
+        {
+            log.debug("using cached VCF stats: " + getSidecarFile(vcf).getPath());
+            return stats;
+        }
+
+        log.info("counting sites in VCF: " + vcf.getName());
+        stats = scan(vcf);
+        stats.write(getSidecarFile(vcf));
+
+        return stats;
+    }
+
+    /**
+     * Returns the stats from the sidecar file, or null if this does not exist or is stale relative to the VCF.
+     */
+    public static VcfStats readIfCurrent(File vcf, Logger log) throws PipelineJobException
+    {
+        File sidecar = getSidecarFile(vcf);
+        if (!sidecar.exists() || !vcf.exists())
+        {
+            return null;
+        }
+
+        VcfStats stats;
+        try
+        {
+            JSONObject json = new JSONObject(FileUtils.readFileToString(sidecar, StandardCharsets.UTF_8));
+
+            stats = new VcfStats();
+            stats._fileSize = json.getLong("fileSize");
+            stats._lastModified = json.getLong("lastModified");
+            stats._md5 = json.getString("md5");
+            stats._totalSamples = json.getInt("totalSamples");
+            stats._totalRecords = json.getLong("totalRecords");
+            stats._passingRecords = json.getLong("passingRecords");
+
+            //NOTE: this is an array, rather than an object keyed on contig, in order to preserve the order of contigs in the VCF
+            JSONArray contigs = json.getJSONArray("recordsByContig");
+            for (int i = 0; i < contigs.length(); i++)
+            {
+                JSONObject contig = contigs.getJSONObject(i);
+                stats._recordsByContig.put(contig.getString("contig"), contig.getLong("records"));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+        catch (Exception e)
+        {
+            log.warn("unable to parse VCF stats file, will recreate: " + sidecar.getPath());
+            return null;
+        }
+
+        if (stats._fileSize != vcf.length() || stats._lastModified != vcf.lastModified())
+        {
+            log.info("VCF stats file is out of date, will recreate: " + sidecar.getPath());
+            return null;
+        }
+
+        return stats;
+    }
+
+    private static VcfStats scan(File vcf) throws PipelineJobException
+    {
+        VcfStats stats = new VcfStats();
+        stats._fileSize = vcf.length();
+        stats._lastModified = vcf.lastModified();
+
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            try (DigestInputStream dis = new DigestInputStream(new BufferedInputStream(new FileInputStream(vcf)), md))
+            {
+                //NOTE: do not close the decompressing stream before the raw stream is drained below
+                InputStream is = vcf.getName().toLowerCase().endsWith(".gz") ? new BlockCompressedInputStream(dis) : dis;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.startsWith("#"))
+                    {
+                        if (line.startsWith("#CHROM"))
+                        {
+                            stats._totalSamples = Math.max(0, line.split("\t").length - 9);
+                        }
+
+                        continue;
+                    }
+
+                    stats.addRecord(line);
+                }
+
+                //ensure the checksum covers any trailing bytes, such as the BGZF EOF block
+                byte[] buffer = new byte[8192];
+                while (dis.read(buffer) != -1)
+                {
+                    //drain
+                }
+            }
+
+            stats._md5 = String.format("%032x", new BigInteger(1, md.digest()));
+        }
+        catch (IOException | NoSuchAlgorithmException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        return stats;
+    }
+
+    private void addRecord(String line)
+    {
+        _totalRecords++;
+
+        int contigEnd = line.indexOf('\t');
+        String contig = contigEnd == -1 ? line : line.substring(0, contigEnd);
+        _recordsByContig.merge(contig, 1L, Long::sum);
+
+        //FILTER is the 7th column.  Both PASS and '.' are treated as unfiltered, consistent with htsjdk
+        int filterStart = contigEnd;
+        for (int i = 0; i < 5 && filterStart != -1; i++)
+        {
+            filterStart = line.indexOf('\t', filterStart + 1);
+        }
+
+        if (filterStart == -1)
+        {
+            return;
+        }
+
+        int filterEnd = line.indexOf('\t', filterStart + 1);
+        String filter = filterEnd == -1 ? line.substring(filterStart + 1) : line.substring(filterStart + 1, filterEnd);
+        if ("PASS".equals(filter) || ".".equals(filter))
+        {
+            _passingRecords++;
+        }
+    }
+
+    private void write(File sidecar) throws PipelineJobException
+    {
+        JSONObject json = new JSONObject();
+        json.put("fileSize", _fileSize);
+        json.put("lastModified", _lastModified);
+        json.put("md5", _md5);
+        json.put("totalSamples", _totalSamples);
+        json.put("totalRecords", _totalRecords);
+        json.put("passingRecords", _passingRecords);
+
+        JSONArray contigs = new JSONArray();
+        for (String contig : _recordsByContig.keySet())
+        {
+            JSONObject contigJson = new JSONObject();
+            contigJson.put("contig", contig);
+            contigJson.put("records", _recordsByContig.get(contig).longValue());
+            contigs.put(contigJson);
+        }
+        json.put("recordsByContig", contigs);
+
+        try (PrintWriter writer = PrintWriters.getPrintWriter(sidecar))
+        {
+            writer.write(json.toString(1));
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+    }
+
+    public void logSummary(Logger log)
+    {
+        log.info("total variants: " + _totalRecords);
+        log.info("passing variants: " + _passingRecords);
+    }
+
+    public String getMd5()
+    {
+        return _md5;
+    }
+
+    public int getTotalSamples()
+    {
+        return _totalSamples;
+    }
+
+    public long getTotalRecords()
+    {
+        return _totalRecords;
+    }
+
+    public long getPassingRecords()
+    {
+        return _passingRecords;
+    }
+
+    public long getFilteredRecords()
+    {
+        return _totalRecords - _passingRecords;
+    }
+
+    public Map<String, Long> getRecordsByContig()
+    {
+        return Collections.unmodifiableMap(_recordsByContig);
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(VcfStats.TestCase.class);
+
+        private static final String HEADER = "##fileformat=VCFv4.2\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\n";
+
+        private static String getRecord(String contig, int pos, String filter)
+        {
+            return contig + "\t" + pos + "\t.\tA\tG\t50\t" + filter + "\t.\tGT\t0/1\t0/0\n";
+        }
+
+        @Test
+        public void testRoundTrip() throws Exception
+        {
+            File dir = Files.createTempDirectory("vcfStatsTest").toFile();
+            try
+            {
+                //contigs are deliberately not in lexicographic order, which should be preserved
+                File vcf = new File(dir, "test.vcf");
+                FileUtils.writeStringToFile(vcf, HEADER + getRecord("chr2", 1, "PASS") + getRecord("chr2", 5, "LowQual") + getRecord("chr10", 1, ".") + getRecord("chr1", 1, "PASS"), StandardCharsets.UTF_8);
+
+                assertNull("No sidecar should exist yet", readIfCurrent(vcf, _log));
+
+                VcfStats stats = getOrCreate(vcf, _log);
+                assertTrue(getSidecarFile(vcf).exists());
+                assertEquals(2, stats.getTotalSamples());
+                assertEquals(4, stats.getTotalRecords());
+                assertEquals(3, stats.getPassingRecords());
+                assertEquals(1, stats.getFilteredRecords());
+
+                VcfStats read = readIfCurrent(vcf, _log);
+                assertNotNull("Sidecar should be current", read);
+                assertEquals(stats.getMd5(), read.getMd5());
+                assertEquals(stats.getTotalSamples(), read.getTotalSamples());
+                assertEquals(stats.getTotalRecords(), read.getTotalRecords());
+                assertEquals(stats.getPassingRecords(), read.getPassingRecords());
+                assertEquals(stats.getRecordsByContig(), read.getRecordsByContig());
+                assertEquals(Arrays.asList("chr2", "chr10", "chr1"), new ArrayList<>(read.getRecordsByContig().keySet()));
+                assertEquals(Long.valueOf(2), read.getRecordsByContig().get("chr2"));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testStaleDetection() throws Exception
+        {
+            File dir = Files.createTempDirectory("vcfStatsTest").toFile();
+            try
+            {
+                File vcf = new File(dir, "test.vcf");
+                FileUtils.writeStringToFile(vcf, HEADER + getRecord("chr1", 1, "PASS"), StandardCharsets.UTF_8);
+                getOrCreate(vcf, _log);
+                assertNotNull(readIfCurrent(vcf, _log));
+
+                //same size, different modification time
+                assertTrue(vcf.setLastModified(vcf.lastModified() - 10000));
+                assertNull("Sidecar should be stale after the VCF is touched", readIfCurrent(vcf, _log));
+
+                //different size
+                FileUtils.writeStringToFile(vcf, HEADER + getRecord("chr1", 1, "PASS") + getRecord("chr1", 2, "PASS"), StandardCharsets.UTF_8);
+                assertNull("Sidecar should be stale after the VCF changes", readIfCurrent(vcf, _log));
+
+                VcfStats stats = getOrCreate(vcf, _log);
+                assertEquals("Stats should be recreated", 2, stats.getTotalRecords());
+                assertNotNull(readIfCurrent(vcf, _log));
+
+                //an unreadable sidecar is recreated rather than failing
+                FileUtils.writeStringToFile(getSidecarFile(vcf), "not json", StandardCharsets.UTF_8);
+                assertNull(readIfCurrent(vcf, _log));
+                assertEquals(2, getOrCreate(vcf, _log).getTotalRecords());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
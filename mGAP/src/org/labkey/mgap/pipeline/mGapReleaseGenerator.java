@@ -330,30 +330,16 @@ else if (so.getCategory().endsWith("Release Track"))
 
                 //find basic stats:
                 job.getLogger().info("inspecting file: " + so.getName());
-                int totalSubjects;
-                long totalVariants = 0;
-                try (VCFFileReader reader = new VCFFileReader(so.getFile()))
+                //NOTE: this will normally be read from the stats file written by processFilesRemote(), rather than rescanning the VCF
+                VcfStats stats = VcfStats.getOrCreate(so.getFile(), job.getLogger());
+                if (stats.getFilteredRecords() > 0)
                 {
-                    totalSubjects = reader.getFileHeader().getSampleNamesInOrder().size();
-                    try (CloseableIterator<VariantContext> it = reader.iterator())
-                    {
-                        while (it.hasNext())
-                        {
-                            VariantContext vc = it.next();
-                            if (vc.isFiltered())
-                            {
-                                throw new PipelineJobException("The published VCF should not contain filtered sites");
-                            }
-
-                            totalVariants++;
-                            if (totalVariants % 1000000 == 0)
-                            {
-                                job.getLogger().info("processed " + totalVariants + " sites");
-                            }
-                        }
-                    }
+                    throw new PipelineJobException("The published VCF should not contain filtered sites");
                 }
 
+                int totalSubjects = stats.getTotalSamples();
+                long totalVariants = stats.getTotalRecords();
+
                 //actually create release record
                 Map<String, Object> row = new CaseInsensitiveHashMap<>();
                 row.put("version", job.getParameters().get("releaseVersion"));
@@ -827,6 +813,9 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                 throw new PipelineJobException("Unable to find primary track VCF, expected: " + primaryTrackVcf.getPath());
             }
 
+            //cache site counts, so these can be read by complete() without rescanning the VCF
+            VcfStats.getOrCreate(primaryTrackVcf, ctx.getLogger()).logSummary(ctx.getLogger());
+
             //Then summarize:
             ctx.getLogger().info("inspecting primary VCF and creating summary table");
             inspectAndSummarizeVcf(ctx, primaryTrackVcf, translator, genome, true);
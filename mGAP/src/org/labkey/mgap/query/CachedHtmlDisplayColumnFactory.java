@@ -0,0 +1,108 @@
+package org.labkey.mgap.query;
+
+import org.apache.commons.lang3.StringUtils;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.DataColumn;
+import org.labkey.api.data.DisplayColumn;
+import org.labkey.api.data.DisplayColumnFactory;
+import org.labkey.api.data.RenderContext;
+import org.labkey.api.query.FieldKey;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Renders the value of a sibling column as HTML using the supplied function.  The HTML depends only on the raw value, which repeats
+ * heavily across variants, so it is cached rather than rebuilt for each cell.
+ */
+abstract public class CachedHtmlDisplayColumnFactory implements DisplayColumnFactory
+{
+    private static final Cache<String, String> _cache = CacheManager.getStringKeyCache(30000, CacheManager.HOUR, "mGAP Display Column HTML");
+
+    private final String _sourceColumn;
+    private final Function<String, String> _renderer;
+
+    protected CachedHtmlDisplayColumnFactory(String sourceColumn, Function<String, String> renderer)
+    {
+        _sourceColumn = sourceColumn;
+        _renderer = renderer;
+    }
+
+    @Override
+    public DisplayColumn createRenderer(ColumnInfo colInfo)
+    {
+        return new CachedHtmlDataColumn(colInfo);
+    }
+
+    protected String getHtml(String rawValue)
+    {
+        return _cache.get(_sourceColumn + "||" + rawValue, rawValue, (key, argument) -> _renderer.apply((String)argument));
+    }
+
+    protected class CachedHtmlDataColumn extends DataColumn
+    {
+        public CachedHtmlDataColumn(ColumnInfo colInfo)
+        {
+            super(colInfo);
+        }
+
+        private FieldKey getBoundKey(String colName)
+        {
+            return new FieldKey(getBoundColumn().getFieldKey().getParent(), colName);
+        }
+
+        @Override
+        public void renderGridCellContents(RenderContext ctx, Writer out) throws IOException
+        {
+            String rawValue = StringUtils.trimToNull(ctx.get(getBoundKey(_sourceColumn), String.class));
+            if (rawValue == null)
+            {
+                return;
+            }
+
+            out.write(getHtml(rawValue));
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testRenderCount()
+        {
+            //NOTE: use a source name unique to this run, since the cache is shared with live requests
+            AtomicInteger renders = new AtomicInteger();
+            CachedHtmlDisplayColumnFactory factory = new CachedHtmlDisplayColumnFactory("testRenderCount" + System.nanoTime(), rawValue -> {
+                renders.incrementAndGet();
+                return render(rawValue);
+            }){};
+
+            //a grid of 10,000 variants drawing on 50 distinct gene lists:
+            List<String> values = new ArrayList<>();
+            for (int i = 0; i < 10000; i++)
+            {
+                values.add("GENE" + (i % 50) + ";GENE" + ((i + 1) % 50));
+            }
+
+            for (String value : values)
+            {
+                assertEquals(render(value), factory.getHtml(value));
+            }
+
+            //previously each cell was rendered, so this would have been 10,000:
+            assertEquals("Each distinct value should be rendered once", 50, renders.get());
+        }
+
+        private static String render(String rawValue)
+        {
+            return "<a>" + rawValue.replaceAll(";", "</a><br><a>") + "</a>";
+        }
+    }
+}
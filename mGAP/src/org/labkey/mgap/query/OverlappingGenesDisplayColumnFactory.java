@@ -1,73 +1,45 @@
 package org.labkey.mgap.query;
 
-import org.apache.commons.lang3.StringUtils;
-import org.labkey.api.data.ColumnInfo;
-import org.labkey.api.data.DataColumn;
-import org.labkey.api.data.DisplayColumn;
-import org.labkey.api.data.DisplayColumnFactory;
-import org.labkey.api.data.RenderContext;
-import org.labkey.api.query.FieldKey;
-
-import java.io.IOException;
-import java.io.Writer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
-public class OverlappingGenesDisplayColumnFactory implements DisplayColumnFactory
+public class OverlappingGenesDisplayColumnFactory extends CachedHtmlDisplayColumnFactory
 {
-    @Override
-    public DisplayColumn createRenderer(ColumnInfo colInfo)
+    public OverlappingGenesDisplayColumnFactory()
     {
-        return new DataColumn(colInfo)
+        super("overlappingGenes", OverlappingGenesDisplayColumnFactory::render);
+    }
+
+    private static String render(String rawValue)
+    {
+        List<String> tokens = Arrays.asList(rawValue.split(";"));
+        Collections.sort(tokens);
+
+        StringBuilder sb = new StringBuilder();
+        String delim = "";
+        for (String geneName : tokens)
         {
-            @Override
-            public void addQueryFieldKeys(Set<FieldKey> keys)
+            String url = null;
+            if (geneName.startsWith("ENSMMUT"))
             {
-                super.addQueryFieldKeys(keys);
+                url = "http://uswest.ensembl.org/Macaca_mulatta/Transcript/Summary?db=core;t=" + geneName;
             }
-
-            private FieldKey getBoundKey(String colName)
+            else if (geneName.startsWith("ENSMMUE"))
             {
-                return new FieldKey(getBoundColumn().getFieldKey().getParent(), colName);
+                //exons.  these should be getting filtered out upstream
+                continue;
             }
-
-            @Override
-            public void renderGridCellContents(RenderContext ctx, Writer out) throws IOException
+            else //if (geneName.startsWith("ENSMMUG"))
             {
-                String rawValue = StringUtils.trimToNull(ctx.get(getBoundKey("overlappingGenes"), String.class));
-                if (rawValue == null)
-                {
-                    return;
-                }
-
-                List<String> tokens = Arrays.asList(rawValue.split(";"));
-                Collections.sort(tokens);
+                //this appears to also work based on gene name
+                url = "http://uswest.ensembl.org/Macaca_mulatta/Gene/Summary?db=core;g=" + geneName;
+            }
 
-                String delim = "";
-                for (String geneName : tokens)
-                {
-                    String url = null;
-                    if (geneName.startsWith("ENSMMUT"))
-                    {
-                        url = "http://uswest.ensembl.org/Macaca_mulatta/Transcript/Summary?db=core;t=" + geneName;
-                    }
-                    else if (geneName.startsWith("ENSMMUE"))
-                    {
-                        //exons.  these should be getting filtered out upstream
-                        continue;
-                    }
-                    else //if (geneName.startsWith("ENSMMUG"))
-                    {
-                        //this appears to also work based on gene name
-                        url = "http://uswest.ensembl.org/Macaca_mulatta/Gene/Summary?db=core;g=" + geneName;
-                    }
+            sb.append(delim).append("<a target=\"_blank\" href=\"").append(url).append("\">").append(geneName).append("</a>");
+            delim = "<br>";
+        }
 
-                    out.write(delim + "<a target=\"_blank\" href=\"" + url + "\">" + geneName + "</a>");
-                    delim = "<br>";
-                }
-            }
-        };
+        return sb.toString();
     }
 }
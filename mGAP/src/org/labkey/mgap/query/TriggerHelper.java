@@ -3,12 +3,31 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSequence;
 import org.labkey.api.data.DbSequenceManager;
 import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.mgap.mGAPDemographicsSource;
+import org.labkey.mgap.mGAPManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by bimber on 3/23/2017.
@@ -20,6 +39,11 @@
     private static final Logger _log = LogManager.getLogger(TriggerHelper.class);
     private static final String SEQUENCE_NAME = "org.labkey.mgap.MGAP_ALIAS";
 
+    // Aliases are reserved from the DB in blocks of this size and handed out from memory.  The reservation is an atomic DB update,
+    // so blocks never overlap across threads or servers.  Unused values in a block are skipped if the server restarts, which leaves gaps.
+    private static final int ALIAS_BLOCK_SIZE = 100;
+    private static final Map<String, DbSequence> _aliasSequences = new ConcurrentHashMap<>();
+
     public TriggerHelper(int userId, String containerId)
     {
         _user = UserManager.getUser(userId);
@@ -34,8 +58,141 @@ public TriggerHelper(int userId, String containerId)
 
     public String getNextAlias()
     {
-        DbSequence sequence = DbSequenceManager.get((_container.isWorkbookOrTab() ? _container.getParent() : _container), SEQUENCE_NAME);
+        return "m" + StringUtils.leftPad(String.valueOf(nextValue((_container.isWorkbookOrTab() ? _container.getParent() : _container), SEQUENCE_NAME)), 5, "0");
+    }
+
+    public void clearDemographicsCache()
+    {
+        mGAPDemographicsSource.clearCache(_container);
+    }
+
+    public void clearGenomeBrowserTrackCache()
+    {
+        mGAPManager.get().clearGenomeBrowserTrackCache();
+    }
+
+    private static long nextValue(Container c, String sequenceName)
+    {
+        DbSequence sequence = _aliasSequences.computeIfAbsent(c.getId() + "||" + sequenceName, key -> DbSequenceManager.getPreallocatingSequence(c, sequenceName, 0, ALIAS_BLOCK_SIZE));
+        synchronized (sequence)
+        {
+            return sequence.next();
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testConcurrentAllocation() throws Exception
+        {
+            Container c = JunitUtil.getTestContainer();
+            String sequenceName = SEQUENCE_NAME + "_TEST_" + new GUID();
+
+            int threads = 8;
+            int perThread = 1000;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try
+            {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<List<Long>>> futures = new ArrayList<>();
+                for (int i = 0; i < threads; i++)
+                {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        List<Long> values = new ArrayList<>();
+                        for (int j = 0; j < perThread; j++)
+                        {
+                            values.add(nextValue(c, sequenceName));
+                        }
+
+                        return values;
+                    }));
+                }
+
+                start.countDown();
+
+                Set<Long> allValues = new HashSet<>();
+                for (Future<List<Long>> future : futures)
+                {
+                    List<Long> values = future.get();
+                    List<Long> sorted = new ArrayList<>(values);
+                    Collections.sort(sorted);
+                    assertEquals("Values should be increasing within a thread", sorted, values);
+                    allValues.addAll(values);
+                }
+
+                assertEquals("Duplicate aliases were allocated", threads * perThread, allValues.size());
+                _log.info("allocated " + allValues.size() + " unique aliases across " + threads + " threads");
+            }
+            finally
+            {
+                executor.shutdownNow();
+                _aliasSequences.remove(c.getId() + "||" + sequenceName);
+                DbSequenceManager.delete(c, sequenceName);
+            }
+        }
+
+        /**
+         * Each server holds its own preallocating sequence, so this allocates from two separate instances at once, as two servers would
+         */
+        @Test
+        public void testIndependentSequences() throws Exception
+        {
+            Container c = JunitUtil.getTestContainer();
+            String sequenceName = SEQUENCE_NAME + "_TEST_" + new GUID();
+
+            List<DbSequence> sequences = Arrays.asList(
+                    DbSequenceManager.getPreallocatingSequence(c, sequenceName, 0, ALIAS_BLOCK_SIZE),
+                    DbSequenceManager.getPreallocatingSequence(c, sequenceName, 0, ALIAS_BLOCK_SIZE)
+            );
+            assertNotSame("Expected independent sequence instances", sequences.get(0), sequences.get(1));
+
+            int threadsPerSequence = 4;
+            int perThread = 1000;
+            ExecutorService executor = Executors.newFixedThreadPool(threadsPerSequence * sequences.size());
+            try
+            {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<List<Long>>> futures = new ArrayList<>();
+                for (DbSequence sequence : sequences)
+                {
+                    for (int i = 0; i < threadsPerSequence; i++)
+                    {
+                        futures.add(executor.submit(() -> {
+                            start.await();
+                            List<Long> values = new ArrayList<>();
+                            for (int j = 0; j < perThread; j++)
+                            {
+                                synchronized (sequence)
+                                {
+                                    values.add(sequence.next());
+                                }
+                            }
+
+                            return values;
+                        }));
+                    }
+                }
+
+                start.countDown();
+
+                Set<Long> allValues = new HashSet<>();
+                int total = 0;
+                for (Future<List<Long>> future : futures)
+                {
+                    List<Long> values = future.get();
+                    allValues.addAll(values);
+                    total += values.size();
+                }
 
-        return "m" + StringUtils.leftPad(String.valueOf(sequence.next()), 5, "0");
+                assertEquals("Duplicate aliases were allocated across sequence instances", total, allValues.size());
+                _log.info("allocated " + allValues.size() + " unique aliases from " + sequences.size() + " independent sequences");
+            }
+            finally
+            {
+                executor.shutdownNow();
+                DbSequenceManager.delete(c, sequenceName);
+            }
+        }
     }
 }
@@ -30,13 +30,19 @@
 import org.labkey.api.util.SystemMaintenance;
 import org.labkey.api.view.WebPartFactory;
 import org.labkey.primeseq.analysis.CombineMethylationRatesHandler;
+import org.labkey.primeseq.analysis.GFF3Codec;
+import org.labkey.primeseq.analysis.GFF3IntervalScanner;
 import org.labkey.primeseq.analysis.MethylationRateComparisonHandler;
+import org.labkey.primeseq.analysis.MethylationRateMerger;
+import org.labkey.primeseq.analysis.MethylationRateStatistics;
 import org.labkey.primeseq.pipeline.BisSnpGenotyperAnalysis;
 import org.labkey.primeseq.pipeline.BisSnpIndelRealignerStep;
 import org.labkey.primeseq.pipeline.BismarkWrapper;
 import org.labkey.primeseq.pipeline.BlastPipelineJobResourceAllocator;
 import org.labkey.primeseq.pipeline.ClusterMaintenanceTask;
 import org.labkey.primeseq.pipeline.ExacloudResourceSettings;
+import org.labkey.primeseq.pipeline.JobResourceHistory;
+import org.labkey.primeseq.pipeline.MethylationSiteAccumulator;
 import org.labkey.primeseq.pipeline.MhcMigrationPipelineJob;
 import org.labkey.primeseq.pipeline.SequenceJobResourceAllocator;
 
@@ -121,7 +127,7 @@ public PipelineStartup()
     @Override
     public @NotNull Set<Class> getUnitTests()
     {
-        return PageFlowUtil.set(ClusterMaintenanceTask.TestCase.class);
+        return PageFlowUtil.set(ClusterMaintenanceTask.TestCase.class, MethylationSiteAccumulator.TestCase.class, MethylationRateStatistics.TestCase.class, MethylationRateMerger.TestCase.class, GFF3IntervalScanner.TestCase.class, GFF3Codec.TestCase.class, JobResourceHistory.TestCase.class);
     }
 
     @Override
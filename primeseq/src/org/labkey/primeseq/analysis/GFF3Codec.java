@@ -5,10 +5,13 @@
 import htsjdk.tribble.annotation.Strand;
 import htsjdk.tribble.index.tabix.TabixFormat;
 import htsjdk.tribble.readers.LineIterator;
-import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 /**
@@ -19,6 +22,17 @@ public class GFF3Codec extends AsciiFeatureCodec<GFF3Feature>
     public static final String GFF_EXTENSION = ".gff";
     private static final Pattern SPLIT_PATTERN = Pattern.compile("\\t|( +)");
 
+    private static final int COLUMNS = 9;
+    private static final int MAX_EXACT_FLOAT_INT = 1 << 24;
+    private static final float[] POWERS_OF_TEN = new float[]{1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    //NOTE: a codec decodes one line at a time, so the column offsets are reused between lines rather than splitting each line into a String[]
+    private final int[] _columnStarts = new int[COLUMNS];
+    private final int[] _columnEnds = new int[COLUMNS];
+
+    private final Map<String, String> _names = new HashMap<>();
+    private final String[] _previousNames = new String[3];
+
     public GFF3Codec()
     {
         super(GFF3Feature.class);
@@ -37,8 +51,12 @@ public GFF3Feature decode(String line)
         }
         else if (!line.startsWith("#"))
         {
-            String[] tokens = SPLIT_PATTERN.split(line, -1);
-            return this.decode(tokens);
+            if (!splitColumns(line))
+            {
+                return null;
+            }
+
+            return decodeColumns(line);
         }
         else
         {
@@ -70,64 +88,243 @@ public GFF3Feature decode(String[] tokens)
             feature.setSource(tokens[1]);
             feature.setType(tokens[2]);
             feature.setScore(Float.parseFloat(tokens[5]));
+            feature.setStrand(parseStrand(tokens[6].isEmpty() ? 32 : tokens[6].charAt(0)));
 
-            char strand = tokens[6].isEmpty() ? 32 : tokens[6].charAt(0);
-            if (strand == 45)
+            try
             {
-                feature.setStrand(Strand.NEGATIVE);
+                feature.setPhase(Integer.parseInt(tokens[7]));
             }
-            else if(strand == 43)
+            catch (NumberFormatException e)
             {
-                feature.setStrand(Strand.POSITIVE);
+                //ignore
             }
-            else
+
+            if (!tokens[8].isEmpty())
             {
-                feature.setStrand(Strand.NONE);
+                feature.setRawAttributes(tokens[8]);
             }
 
-            try
+            return feature;
+        }
+    }
+
+    /**
+     * Records the offsets of the first 9 columns, splitting on the same separators as SPLIT_PATTERN: a single tab, or a run of spaces.
+     * @return False if the line has fewer than 9 columns
+     */
+    private boolean splitColumns(String line)
+    {
+        int length = line.length();
+        int column = 0;
+        int start = 0;
+        while (column < COLUMNS)
+        {
+            int end = start;
+            while (end < length && line.charAt(end) != '\t' && line.charAt(end) != ' ')
             {
-                feature.setPhase(Integer.parseInt(tokens[7]));
+                end++;
             }
-            catch (NumberFormatException e)
+
+            _columnStarts[column] = start;
+            _columnEnds[column] = end;
+            column++;
+
+            if (end == length)
             {
-                //ignore
+                break;
             }
 
-            String attributes = tokens[8];
-            Map<String, String> attrMap = new HashMap<>();
-            if (!attributes.isEmpty())
+            start = end + 1;
+            if (line.charAt(end) == ' ')
             {
-                String[] attrs = attributes.split(";");
-                for (String pair : attrs)
+                while (start < length && line.charAt(start) == ' ')
                 {
-                    pair = StringUtils.trimToNull(pair);
-                    if (pair == null)
-                    {
-                        continue;
-                    }
+                    start++;
+                }
+            }
+        }
 
-                    String delim = "=";
-                    if (!pair.contains("=") && pair.contains(":"))
-                    {
-                        //not official GFF3 spec, but keep to handle legacy bismark GFFs
-                        delim = ":";
-                    }
+        return column == COLUMNS;
+    }
 
-                    String[] parts = pair.split(delim);
-                    if (parts.length != 2)
-                    {
-                        continue;
-                    }
+    private GFF3Feature decodeColumns(String line)
+    {
+        String chr = getName(line, 0);
+        int start = parseInt(line, 3);
+        int end = parseInt(line, 4);
+
+        GFF3FeatureImpl feature = new GFF3FeatureImpl(chr, start, end);
+
+        feature.setSource(getName(line, 1));
+        feature.setType(getName(line, 2));
+        feature.setScore(parseFloat(line, 5));
+        feature.setStrand(parseStrand(_columnStarts[6] == _columnEnds[6] ? 32 : line.charAt(_columnStarts[6])));
+
+        Integer phase = parsePhase(line, 7);
+        if (phase != null)
+        {
+            feature.setPhase(phase);
+        }
 
-                    attrMap.put(parts[0], parts[1]);
+        if (_columnStarts[8] != _columnEnds[8])
+        {
+            feature.setRawAttributes(line.substring(_columnStarts[8], _columnEnds[8]));
+        }
+
+        return feature;
+    }
+
+    private static Strand parseStrand(char strand)
+    {
+        if (strand == 45)
+        {
+            return Strand.NEGATIVE;
+        }
+        else if (strand == 43)
+        {
+            return Strand.POSITIVE;
+        }
+        else
+        {
+            return Strand.NONE;
+        }
+    }
+
+    /**
+     * Returns the value of this column, reusing the instance from the prior line if unchanged.  Otherwise the value is
+     * canonicalized, so features from this codec share one instance per contig, source and type.
+     */
+    private String getName(String line, int column)
+    {
+        int start = _columnStarts[column];
+        int length = _columnEnds[column] - start;
+        String previous = _previousNames[column];
+        if (previous != null && previous.length() == length && line.regionMatches(start, previous, 0, length))
+        {
+            return previous;
+        }
+
+        String value = _names.computeIfAbsent(line.substring(start, start + length), Function.identity());
+        _previousNames[column] = value;
+
+        return value;
+    }
+
+    private int parseInt(String line, int column)
+    {
+        int start = _columnStarts[column];
+        int end = _columnEnds[column];
+
+        //NOTE: plain digits are parsed in place.  Anything else (signs, very long values, invalid values) falls back to Integer.parseInt(), which also preserves the prior exceptions
+        if (end > start && end - start <= 9)
+        {
+            int value = 0;
+            for (int i = start; i < end; i++)
+            {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9')
+                {
+                    value = -1;
+                    break;
                 }
 
-                feature.addAttributes(attrMap);
+                value = value * 10 + (c - '0');
             }
 
-            return feature;
+            if (value >= 0)
+            {
+                return value;
+            }
+        }
+
+        return Integer.parseInt(line.substring(start, end));
+    }
+
+    private Integer parsePhase(String line, int column)
+    {
+        int start = _columnStarts[column];
+        int end = _columnEnds[column];
+
+        //NOTE: phase is usually '.', which previously threw and caught a NumberFormatException on every line
+        if (end - start == 1)
+        {
+            char c = line.charAt(start);
+            if (c == '.')
+            {
+                return null;
+            }
+            else if (c >= '0' && c <= '9')
+            {
+                return c - '0';
+            }
+        }
+
+        try
+        {
+            return Integer.parseInt(line.substring(start, end));
+        }
+        catch (NumberFormatException e)
+        {
+            //ignore
+            return null;
+        }
+    }
+
+    private float parseFloat(String line, int column)
+    {
+        int start = _columnStarts[column];
+        int end = _columnEnds[column];
+
+        //NOTE: simple decimals (ie. 0.75) whose digits fit in a float's mantissa are computed as mantissa / 10^k.  Since both operands are exact,
+        //the single IEEE division is correctly rounded and equals Float.parseFloat().  Anything else falls back to Float.parseFloat().
+        int i = start;
+        boolean negative = i < end && line.charAt(i) == '-';
+        if (negative)
+        {
+            i++;
+        }
+
+        int mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean hasPoint = false;
+        boolean simple = true;
+        for (; i < end; i++)
+        {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9')
+            {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (hasPoint)
+                {
+                    fractionDigits++;
+                }
+
+                if (mantissa > MAX_EXACT_FLOAT_INT || fractionDigits >= POWERS_OF_TEN.length)
+                {
+                    simple = false;
+                    break;
+                }
+            }
+            else if (c == '.' && !hasPoint)
+            {
+                hasPoint = true;
+            }
+            else
+            {
+                simple = false;
+                break;
+            }
+        }
+
+        if (simple && digits > 0)
+        {
+            float value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
         }
+
+        return Float.parseFloat(line.substring(start, end));
     }
 
     protected boolean readHeaderLine(String line)
@@ -154,5 +351,138 @@ public TabixFormat getTabixFormat()
     {
         return TabixFormat.GFF;
     }
-}
 
+    public static class TestCase extends Assert
+    {
+        private static final String[] FLOATS = new String[]{"0", "1", "0.5", "0.75", "0.3333333", "0.123456789", "1.", ".5", "-0", "-0.25", "16777216", "16777217", "123456.789", "1e-3", "+0.5", "NaN", "0.00000000001", "1.0000001"};
+
+        private static String randomLine(Random r)
+        {
+            String[] columns = new String[]{
+                    r.nextBoolean() ? "chr1" : "chr10",
+                    r.nextBoolean() ? "Bismark" : "src",
+                    r.nextBoolean() ? "CpG" : "CHH",
+                    String.valueOf(r.nextInt(250000000)),
+                    r.nextInt(20) == 0 ? "+" + r.nextInt(100) : String.valueOf(r.nextInt(250000000)),
+                    r.nextInt(4) == 0 ? FLOATS[r.nextInt(FLOATS.length)] : String.valueOf(r.nextFloat()),
+                    new String[]{"+", "-", ".", "", "?"}[r.nextInt(5)],
+                    new String[]{".", "0", "1", "2", "", "10", "x"}[r.nextInt(7)],
+                    new String[]{"Depth=10;Methylated=5", "Depth:10;Methylated:5", "Depth=10; Note=a b", "", "A=1;;B=2=3"}[r.nextInt(5)]
+            };
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < columns.length; i++)
+            {
+                if (i > 0)
+                {
+                    sb.append(new String[]{"\t", "\t", "\t", " ", "   ", "\t "}[r.nextInt(6)]);
+                }
+                sb.append(columns[i]);
+            }
+
+            if (r.nextInt(10) == 0)
+            {
+                sb.append(r.nextBoolean() ? "\textra" : "  ");
+            }
+
+            return sb.toString();
+        }
+
+        private static void assertSameFeature(String line, GFF3Feature expected, GFF3Feature actual)
+        {
+            if (expected == null)
+            {
+                assertNull(line, actual);
+                return;
+            }
+
+            assertNotNull(line, actual);
+            assertEquals(line, expected.getContig(), actual.getContig());
+            assertEquals(line, expected.getStart(), actual.getStart());
+            assertEquals(line, expected.getEnd(), actual.getEnd());
+            assertEquals(line, expected.getType(), actual.getType());
+            assertEquals(line, expected.getScore(), actual.getScore());
+            assertEquals(line, expected.getStrand(), actual.getStrand());
+            assertEquals(line, ((GFF3FeatureImpl)expected).getSource(), ((GFF3FeatureImpl)actual).getSource());
+            assertEquals(line, ((GFF3FeatureImpl)expected).getPhase(), ((GFF3FeatureImpl)actual).getPhase());
+            for (String key : new String[]{"Depth", "Methylated", "Note", "A", "B"})
+            {
+                assertEquals(line, expected.hasAttribute(key), actual.hasAttribute(key));
+                assertEquals(line, expected.getAttribute(key), actual.getAttribute(key));
+            }
+        }
+
+        @Test
+        public void testMatchesRegexSplit()
+        {
+            GFF3Codec codec = new GFF3Codec();
+            Random r = new Random(0);
+            for (int i = 0; i < 20000; i++)
+            {
+                String line = randomLine(r);
+
+                //the prior implementation split each line with SPLIT_PATTERN
+                GFF3Feature expected;
+                try
+                {
+                    expected = codec.decode(SPLIT_PATTERN.split(line, -1));
+                }
+                catch (NumberFormatException e)
+                {
+                    try
+                    {
+                        codec.decode(line);
+                        fail("Expected NumberFormatException for: " + line);
+                    }
+                    catch (NumberFormatException e2)
+                    {
+                        assertEquals(e.getMessage(), e2.getMessage());
+                    }
+
+                    continue;
+                }
+
+                assertSameFeature(line, expected, codec.decode(line));
+            }
+
+            assertNull(codec.decode("chr1\tBismark\tCpG\t10\t10\t0.5\t+\t."));
+            assertNull(codec.decode("   "));
+            assertNull(codec.decode("#gff-version 3"));
+        }
+
+        @Test
+        public void testAttributesAndNames()
+        {
+            GFF3Codec codec = new GFF3Codec();
+            GFF3Feature f1 = codec.decode("chr1\tBismark\tCpG\t10\t10\t0.5\t+\t.\tDepth=10;Methylated=5;;Note=x;Bad");
+            assertEquals("10", f1.getAttribute("Depth"));
+            assertEquals("5", f1.getAttribute("Methylated"));
+            assertEquals("x", f1.getAttribute("Note"));
+            assertFalse(f1.hasAttribute("Bad"));
+
+            //legacy bismark GFFs
+            GFF3Feature f2 = codec.decode("chr1\tBismark\tCpG\t11\t11\t0.25\t-\t.\tDepth:4;Methylated:1");
+            assertEquals("4", f2.getAttribute("Depth"));
+            assertEquals(0.25f, f2.getScore(), 0.0f);
+
+            //attributes added directly are combined with the parsed values
+            Map<String, String> toAdd = new HashMap<>();
+            toAdd.put("Depth", "20");
+            toAdd.put("Other", "1");
+            ((GFF3FeatureImpl)f2).addAttributes(toAdd);
+            assertEquals("20", f2.getAttribute("Depth"));
+            assertEquals("1", f2.getAttribute("Other"));
+            assertEquals("1", f2.getAttribute("Methylated"));
+
+            GFF3Feature f3 = codec.decode("chr10\tBismark\tCpG\t12\t12\t1\t+\t.\t");
+            assertFalse(f3.hasAttribute("Depth"));
+
+            //repeated names share one instance, including after the value changes and returns
+            GFF3Feature f4 = codec.decode(new String("chr1\tBismark\tCpG\t13\t13\t1\t+\t.\t"));
+            assertSame(f1.getContig(), f2.getContig());
+            assertSame(f1.getContig(), f4.getContig());
+            assertSame(((GFF3FeatureImpl)f1).getSource(), ((GFF3FeatureImpl)f4).getSource());
+            assertSame(f1.getType(), f4.getType());
+        }
+    }
+}
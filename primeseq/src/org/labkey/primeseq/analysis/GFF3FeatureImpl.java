@@ -1,6 +1,7 @@
 package org.labkey.primeseq.analysis;
 
 import htsjdk.tribble.annotation.Strand;
+import org.apache.commons.lang3.StringUtils;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -19,7 +20,10 @@ public class GFF3FeatureImpl implements GFF3Feature
     private int _end;
     private String _name;
     private Float _score;
-    private Map<String, String> _attributes =  new HashMap<>();
+    private Map<String, String> _attributes = null;
+
+    //NOTE: the attribute column is only parsed on first access, since most callers read only the position and score
+    private String _rawAttributes = null;
 
     public GFF3FeatureImpl(String contig, int start, int end)
     {
@@ -55,13 +59,13 @@ public Float getScore()
     @Override
     public String getAttribute(String key)
     {
-        return _attributes.get(key);
+        return getAttributeMap().get(key);
     }
 
     @Override
     public boolean hasAttribute(String key)
     {
-        return _attributes.containsKey(key);
+        return getAttributeMap().containsKey(key);
     }
 
     @Override
@@ -139,6 +143,63 @@ public void setPhase(Integer phase)
 
     public void addAttributes(Map<String, String> attributes)
     {
-        _attributes.putAll(attributes);
+        getAttributeMap().putAll(attributes);
+    }
+
+    /**
+     * Sets the unparsed GFF3 attribute column (ie. key1=value1;key2=value2), which will be parsed on first access.
+     */
+    public void setRawAttributes(String rawAttributes)
+    {
+        _attributes = null;
+        _rawAttributes = rawAttributes;
+    }
+
+    private Map<String, String> getAttributeMap()
+    {
+        if (_attributes == null)
+        {
+            _attributes = new HashMap<>();
+            if (_rawAttributes != null)
+            {
+                parseAttributes(_rawAttributes, _attributes);
+                _rawAttributes = null;
+            }
+        }
+
+        return _attributes;
+    }
+
+    private static void parseAttributes(String attributes, Map<String, String> attrMap)
+    {
+        if (attributes.isEmpty())
+        {
+            return;
+        }
+
+        String[] attrs = attributes.split(";");
+        for (String pair : attrs)
+        {
+            pair = StringUtils.trimToNull(pair);
+            if (pair == null)
+            {
+                continue;
+            }
+
+            String delim = "=";
+            if (!pair.contains("=") && pair.contains(":"))
+            {
+                //not official GFF3 spec, but keep to handle legacy bismark GFFs
+                delim = ":";
+            }
+
+            String[] parts = pair.split(delim);
+            if (parts.length != 2)
+            {
+                continue;
+            }
+
+            attrMap.put(parts[0], parts[1]);
+        }
     }
 }
@@ -0,0 +1,276 @@
+package org.labkey.primeseq.analysis;
+
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.PeekableIterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Walks a set of position-sorted GFF3 inputs across a series of intervals, and reports each position where at least one input has a feature.
+ * Rather than visiting every base of the interval, each input's next matching position is tracked and the scan jumps to the lowest of these,
+ * so the cost scales with the number of features rather than the interval length.
+ * <p>
+ * The rules for advancing each input are those of the per-base scan this replaced, so the output is identical: at each visited position, an input
+ * skips features that sort before the interval (by Interval.compareTo) until it reaches a feature at this position, which is matched, or one that
+ * sorts after the interval, where it waits.  An input is only advanced past a match if the interval continues beyond that position.
+ */
+public class GFF3IntervalScanner
+{
+    private static final int NONE = Integer.MAX_VALUE;
+
+    public interface PositionConsumer
+    {
+        /**
+         * @param features The feature from each input at this position, or null for inputs without one.  This array is reused between calls.
+         */
+        void accept(int position, GFF3Feature[] features) throws IOException;
+    }
+
+    private final List<PeekableIterator<GFF3Feature>> _iterators;
+    private final int[] _nextMatch;
+    private final GFF3Feature[] _features;
+
+    public GFF3IntervalScanner(List<PeekableIterator<GFF3Feature>> iterators)
+    {
+        _iterators = iterators;
+        _nextMatch = new int[iterators.size()];
+        _features = new GFF3Feature[iterators.size()];
+    }
+
+    /**
+     * @return The number of positions with data
+     */
+    public int scan(Interval il, PositionConsumer consumer) throws IOException
+    {
+        if (il.getStart() > il.getEnd())
+        {
+            return 0;
+        }
+
+        for (int i = 0; i < _iterators.size(); i++)
+        {
+            _nextMatch[i] = advance(_iterators.get(i), il, il.getStart());
+        }
+
+        int positionsWithData = 0;
+        while (true)
+        {
+            int position = NONE;
+            for (int next : _nextMatch)
+            {
+                position = Math.min(position, next);
+            }
+
+            if (position == NONE)
+            {
+                break;
+            }
+
+            for (int i = 0; i < _iterators.size(); i++)
+            {
+                if (_nextMatch[i] == position)
+                {
+                    _features[i] = _iterators.get(i).next();
+                    _nextMatch[i] = position < il.getEnd() ? advance(_iterators.get(i), il, position + 1) : NONE;
+                }
+                else
+                {
+                    _features[i] = null;
+                }
+            }
+
+            consumer.accept(position, _features);
+            positionsWithData++;
+        }
+
+        return positionsWithData;
+    }
+
+    /**
+     * Skips features as the per-base scan would at this position, and returns the position at which the next feature will match, or NONE
+     */
+    private static int advance(PeekableIterator<GFF3Feature> it, Interval il, int position)
+    {
+        while (it.hasNext())
+        {
+            GFF3Feature toInspect = it.peek();
+            boolean sameContig = toInspect.getContig().equals(il.getContig());
+            if (sameContig && toInspect.getStart() == position)
+            {
+                return position;
+            }
+            else if (new Interval(toInspect.getContig(), toInspect.getStart(), toInspect.getEnd()).compareTo(il) > 0)
+            {
+                //this feature waits until the scan reaches it, if that happens within this interval
+                return sameContig && toInspect.getStart() > position && toInspect.getStart() <= il.getEnd() ? toInspect.getStart() : NONE;
+            }
+
+            it.next();
+        }
+
+        return NONE;
+    }
+
+    public static class TestCase extends Assert
+    {
+        //NOTE: the site report orders contigs as chr10, chr1, chr2, while intervals are sorted lexicographically.  This mismatch is part of the prior behavior and must be reproduced.
+        private static final String[] CONTIGS = new String[]{"chr10", "chr1", "chr2", "chrX"};
+
+        private static List<GFF3Feature> createSample(Random r, int maxPos, int density)
+        {
+            List<GFF3Feature> ret = new ArrayList<>();
+            for (String contig : CONTIGS)
+            {
+                for (int pos = 1; pos <= maxPos; pos++)
+                {
+                    if (r.nextInt(density) == 0)
+                    {
+                        GFF3FeatureImpl f = new GFF3FeatureImpl(contig, pos, pos);
+                        f.setScore(r.nextFloat());
+                        ret.add(f);
+                    }
+                }
+            }
+
+            return ret;
+        }
+
+        private static List<Interval> createIntervals(Random r, int maxPos, int maxLength)
+        {
+            List<Interval> ret = new ArrayList<>();
+            for (int i = 0; i < 30; i++)
+            {
+                int start = 1 + r.nextInt(maxPos);
+                ret.add(new Interval(CONTIGS[r.nextInt(CONTIGS.length)], start, start + r.nextInt(maxLength)));
+            }
+            Collections.sort(ret);
+
+            return ret;
+        }
+
+        private static List<PeekableIterator<GFF3Feature>> getIterators(List<List<GFF3Feature>> samples)
+        {
+            List<PeekableIterator<GFF3Feature>> ret = new ArrayList<>();
+            for (List<GFF3Feature> sample : samples)
+            {
+                ret.add(new PeekableIterator<>(sample.iterator()));
+            }
+
+            return ret;
+        }
+
+        //the per-base scan previously in MethylationRateComparisonHandler.buildCombinedTable()
+        private static List<String> scanByPosition(List<Interval> intervals, List<PeekableIterator<GFF3Feature>> iterators)
+        {
+            List<String> rows = new ArrayList<>();
+            for (Interval il : intervals)
+            {
+                int position = il.getStart();
+                while (position <= il.getEnd())
+                {
+                    boolean hasData = false;
+                    List<String> data = new ArrayList<>();
+                    for (PeekableIterator<GFF3Feature> it : iterators)
+                    {
+                        GFF3Feature f = null;
+                        while (it.hasNext())
+                        {
+                            GFF3Feature toInspect = it.peek();
+                            Interval i2 = new Interval(toInspect.getContig(), toInspect.getStart(), toInspect.getEnd());
+                            if (toInspect.getContig().equals(il.getContig()) && toInspect.getStart() == position)
+                            {
+                                f = it.next();
+                                break;
+                            }
+                            else if (i2.compareTo(il) > 0)
+                            {
+                                break;
+                            }
+
+                            it.next();
+                        }
+
+                        hasData = hasData || f != null;
+                        data.add(f == null ? "" : String.valueOf(f.getScore()));
+                    }
+
+                    if (hasData)
+                    {
+                        rows.add(il.getContig() + ":" + il.getStart() + "-" + il.getEnd() + "\t" + position + "\t" + String.join("\t", data));
+                    }
+
+                    position++;
+                }
+            }
+
+            return rows;
+        }
+
+        private static List<String> scanByFeature(List<Interval> intervals, List<PeekableIterator<GFF3Feature>> iterators) throws IOException
+        {
+            List<String> rows = new ArrayList<>();
+            GFF3IntervalScanner scanner = new GFF3IntervalScanner(iterators);
+            for (Interval il : intervals)
+            {
+                scanner.scan(il, (position, features) -> {
+                    List<String> data = new ArrayList<>();
+                    for (GFF3Feature f : features)
+                    {
+                        data.add(f == null ? "" : String.valueOf(f.getScore()));
+                    }
+
+                    rows.add(il.getContig() + ":" + il.getStart() + "-" + il.getEnd() + "\t" + position + "\t" + String.join("\t", data));
+                });
+            }
+
+            return rows;
+        }
+
+        @Test
+        public void testIdenticalOutput() throws Exception
+        {
+            for (int seed = 0; seed < 25; seed++)
+            {
+                Random r = new Random(seed);
+                List<List<GFF3Feature>> samples = new ArrayList<>();
+                for (int i = 0; i < 5; i++)
+                {
+                    samples.add(createSample(r, 5000, 2 + r.nextInt(20)));
+                }
+
+                List<Interval> intervals = createIntervals(r, 5000, seed % 2 == 0 ? 50 : 2000);
+
+                //include intervals that end exactly on a site, and one beyond the data
+                intervals.add(new Interval(samples.get(0).get(0).getContig(), 1, samples.get(0).get(0).getStart()));
+                intervals.add(new Interval("chrY", 1, 100));
+
+                List<String> expected = scanByPosition(intervals, getIterators(samples));
+                List<String> actual = scanByFeature(intervals, getIterators(samples));
+                assertEquals("Output differs for seed: " + seed, expected, actual);
+            }
+        }
+
+        @Test
+        public void testSparseInterval() throws Exception
+        {
+            //a single 10Mb interval with a handful of sites
+            GFF3FeatureImpl f1 = new GFF3FeatureImpl("chr1", 5, 5);
+            f1.setScore(0.5f);
+            GFF3FeatureImpl f2 = new GFF3FeatureImpl("chr1", 9999999, 9999999);
+            f2.setScore(0.25f);
+
+            List<List<GFF3Feature>> samples = Arrays.asList(Arrays.asList(f1, f2), Collections.singletonList(f2));
+            List<Interval> intervals = Collections.singletonList(new Interval("chr1", 1, 10000000));
+
+            List<String> rows = scanByFeature(intervals, getIterators(samples));
+            assertEquals(Arrays.asList("chr1:1-10000000\t5\t0.5\t", "chr1:1-10000000\t9999999\t0.25\t0.25"), rows);
+        }
+    }
+}
@@ -42,7 +42,6 @@
 import org.labkey.primeseq.PrimeseqModule;
 import org.labkey.primeseq.pipeline.CombpRunner;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -52,6 +51,11 @@
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Created by bimber on 8/26/2014.
@@ -199,14 +203,20 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
             String jobDescription = ctx.getParams().optString("jobDescription");
             String statisticalMethod = ctx.getParams().optString("statisticalMethod");
 
-            //build map of site rates
-            Map<String, Map<Integer, Map<Integer, List<Double>>>> rateMap = new HashMap<>();
+            boolean useRscript = ctx.getParams().optBoolean("useRscript", false);
+            if (!useRscript && !MethylationRateStatistics.isSupported(statisticalMethod))
+            {
+                throw new PipelineJobException("Unknown statistical method: " + statisticalMethod);
+            }
+            ctx.getLogger().info(useRscript ? "p-values will be calculated using Rscript" : "p-values will be calculated in-process");
 
+            List<File> rateFiles = new ArrayList<>();
+            List<Integer> groups = new ArrayList<>();
             int i = 0;
             for (SequenceOutputFile o : inputFiles)
             {
                 i++;
-                ctx.getJob().getLogger().info("processing: " + o.getName() + ", " + i + " of " + inputFiles.size());
+                ctx.getJob().getLogger().info("input: " + o.getName() + ", " + i + " of " + inputFiles.size());
 
                 if (!fileToGroupMap.containsKey(o.getRowid()))
                 {
@@ -218,187 +228,75 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                 ctx.getJob().getLogger().debug("group #: " + groupNum);
 
                 action.addInputIfNotPresent(o.getFile(), "Site Methylation Rates");
-
-                try (BufferedReader reader = Readers.getReader(o.getFile()))
-                {
-                    int lineNo = 0;
-                    String line;
-                    int skippedForDepth = 0;
-                    LINE: while ((line = reader.readLine()) != null)
-                    {
-                        lineNo++;
-
-                        if (line.startsWith("#"))
-                        {
-                            continue;
-                        }
-
-                        if (StringUtils.trimToNull(line) == null)
-                        {
-                            continue;
-                        }
-
-                        String[] tokens = line.split("\t");
-                        if (tokens.length < 9)
-                        {
-                            throw new PipelineJobException("Fewer than 9 fields found on line: " + lineNo + ", line was: [" + line + "]");
-                        }
-
-                        String chr = tokens[0];
-                        Integer pos = Integer.parseInt(tokens[3]);
-                        Double rate = Double.parseDouble(tokens[5]);
-                        String attrs = StringUtils.trimToNull(tokens[8]);
-                        if (attrs != null)
-                        {
-                            for (String attr : attrs.split(";"))
-                            {
-                                String[] pieces = attr.split("=");
-                                if (pieces[0].equals("Depth"))
-                                {
-                                    Integer depth = Integer.parseInt(pieces[1]);
-                                    if (depth < minDepthPerSite)
-                                    {
-                                        skippedForDepth++;
-                                        continue LINE;
-                                    }
-                                }
-                            }
-                        }
-
-                        if (!rateMap.containsKey(chr))
-                        {
-                            rateMap.put(chr, new HashMap<>());
-                        }
-
-                        if (!rateMap.get(chr).containsKey(pos))
-                        {
-                            rateMap.get(chr).put(pos, new HashMap<>());
-                        }
-
-                        if (!rateMap.get(chr).get(pos).containsKey(groupNum))
-                        {
-                            rateMap.get(chr).get(pos).put(groupNum, new ArrayList<>());
-                        }
-
-                        rateMap.get(chr).get(pos).get(groupNum).add(rate);
-                    }
-
-                    ctx.getLogger().info("total sites skipped due to low depth: " + skippedForDepth);
-                }
-                catch (IOException e)
-                {
-                    throw new PipelineJobException(e);
-                }
+                rateFiles.add(o.getFile());
+                groups.add(groupNum);
             }
 
+            //NOTE: the inputs are merged one contig at a time, and each contig is handed to a worker thread.  The number of contigs queued or in progress
+            //is limited to the number of threads, which bounds memory.  Files are registered on this thread, in contig order.
+            Integer maxThreads = SequencePipelineService.get().getMaxThreads(ctx.getLogger());
+            int threads = Math.max(1, maxThreads == null ? 1 : maxThreads);
+            ctx.getLogger().debug("processing chromosomes using " + threads + " threads");
+
             List<File> outputs = new ArrayList<>();
-            for (String chr : rateMap.keySet())
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            Semaphore slots = new Semaphore(threads);
+            try
             {
-                ctx.getLogger().info("processing chr: " + chr);
-                Map<Integer, Map<Integer, List<Double>>> posMap = rateMap.get(chr);
-                if (posMap.isEmpty())
-                {
-                    ctx.getLogger().info("no data for chromosome, skipping");
-                    continue;
-                }
-                ctx.getLogger().info("total positions with data in at least one subject: " + posMap.size());
-
-                File tsvOut = new File(ctx.getOutputDir(), "chrCombined." + chr + ".txt");
-                int totalLines = 0;
-                int totalPassingPositions = 0;
-                int group1Skipped = 0;
-                int group2Skipped = 0;
-                try (CSVWriter writer = new CSVWriter(PrintWriters.getPrintWriter(tsvOut), '\t', CSVWriter.NO_QUOTE_CHARACTER))
-                {
-                    for (Integer pos : posMap.keySet())
+                List<Future<ChromosomeResult>> futures = new ArrayList<>();
+                new MethylationRateMerger(ctx.getLogger(), minDepthPerSite, minDatapointsPerGroup).merge(rateFiles, groups, rates -> {
+                    try
                     {
-                        List<Double> group1 = posMap.get(pos).get(0);
-                        if (group1 == null)
-                        {
-                            group1Skipped++;
-                            continue;
-                        }
-
-                        List<Double> group2 = posMap.get(pos).get(1);
-                        if (group2 == null)
-                        {
-                            group2Skipped++;
-                            continue;
-                        }
+                        slots.acquire();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new PipelineJobException(e);
+                    }
 
-                        if (minDatapointsPerGroup != null)
+                    futures.add(executor.submit(() -> {
+                        try
                         {
-                            boolean doSkip = false;
-                            if (group1.size() < minDatapointsPerGroup)
-                            {
-                                group1Skipped++;
-                                doSkip = true;
-                            }
-
-                            if (group2.size() < minDatapointsPerGroup)
-                            {
-                                group2Skipped++;
-                                doSkip = true;
-                            }
-
-                            if (doSkip)
-                            {
-                                continue;
-                            }
+                            return processChromosome(ctx, rates, statisticalMethod, useRscript);
                         }
-
-                        totalPassingPositions++;
-
-                        for (Double d : group1)
+                        finally
                         {
-                            totalLines++;
-                            writer.writeNext(new String[]{chr, String.valueOf(pos), "Group1", String.valueOf(d)});
+                            slots.release();
                         }
+                    }));
+                });
 
-                        for (Double d : group2)
-                        {
-                            totalLines++;
-                            writer.writeNext(new String[]{chr, String.valueOf(pos), "Group2", String.valueOf(d)});
-                        }
-                    }
-                }
-                catch (IOException e)
+                for (Future<ChromosomeResult> future : futures)
                 {
-                    throw new PipelineJobException(e);
-                }
+                    ChromosomeResult result = future.get();
+                    if (result == null)
+                    {
+                        continue;
+                    }
 
-                ctx.getLogger().info("total skipped due to insufficient group1 datapoints: " + group1Skipped);
-                ctx.getLogger().info("total skipped due to insufficient group2 datapoints: " + group2Skipped);
-                ctx.getLogger().info("total passing positions: " + totalPassingPositions);
+                    if (result.combinedRates != null)
+                    {
+                        ctx.getFileManager().addIntermediateFile(result.combinedRates);
+                        action.addOutput(result.combinedRates, "Combined Methylation Rates", false);
+                    }
 
-                if (totalLines == 0)
-                {
-                    ctx.getLogger().info("no passing positions, skipping chr: " + chr);
-                    tsvOut.delete();
-                    continue;
+                    ctx.getFileManager().addIntermediateFile(result.pvalues);
+                    outputs.add(result.pvalues);
                 }
-
-                //now calculate pvalues
-                ctx.getFileManager().addIntermediateFile(tsvOut);
-                action.addOutput(tsvOut, "Combined Methylation Rates", false);
-
-                AbstractCommandWrapper wrapper = new AbstractCommandWrapper(ctx.getJob().getLogger()){};
-                wrapper.setOutputDir(ctx.getOutputDir());
-                wrapper.setWorkingDir(ctx.getOutputDir());
-
-                List<String> args = new ArrayList<>();
-                args.add(getRPath(ctx.getLogger()));
-                args.add(getScriptPath());
-                args.add(tsvOut.getPath());
-                args.add(statisticalMethod);
-
-                File pvalOut = new File(ctx.getOutputDir(), "chrCombined." + chr + ".pval.txt");
-                args.add(pvalOut.getPath());
-                ctx.getFileManager().addIntermediateFile(pvalOut);
-
-                wrapper.execute(args);
-
-                outputs.add(pvalOut);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new PipelineJobException(e);
+            }
+            catch (ExecutionException e)
+            {
+                throw e.getCause() instanceof PipelineJobException ? (PipelineJobException)e.getCause() : new PipelineJobException(e.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
             }
 
             if (!outputs.isEmpty())
@@ -562,6 +460,85 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
             action.setEndTime(new Date());
         }
 
+        private class ChromosomeResult
+        {
+            private final File pvalues;
+            private final @Nullable File combinedRates;
+
+            private ChromosomeResult(File pvalues, @Nullable File combinedRates)
+            {
+                this.pvalues = pvalues;
+                this.combinedRates = combinedRates;
+            }
+        }
+
+        private @Nullable ChromosomeResult processChromosome(JobContext ctx, MethylationRateMerger.ContigRates rates, String statisticalMethod, boolean useRscript) throws PipelineJobException
+        {
+            String chr = rates.getContig();
+            ctx.getLogger().info("processing chr: " + chr);
+            ctx.getLogger().info(chr + ": total positions with data in at least one subject: " + rates.getPositionsWithData());
+            ctx.getLogger().info(chr + ": total skipped due to insufficient group1 datapoints: " + rates.getGroup1Skipped());
+            ctx.getLogger().info(chr + ": total skipped due to insufficient group2 datapoints: " + rates.getGroup2Skipped());
+            ctx.getLogger().info(chr + ": total passing positions: " + rates.size());
+
+            if (rates.size() == 0)
+            {
+                ctx.getLogger().info("no passing positions, skipping chr: " + chr);
+                return null;
+            }
+
+            File pvalOut = new File(ctx.getOutputDir(), "chrCombined." + chr + ".pval.txt");
+            File tsvOut = useRscript ? new File(ctx.getOutputDir(), "chrCombined." + chr + ".txt") : null;
+            try (CSVWriter writer = new CSVWriter(PrintWriters.getPrintWriter(useRscript ? tsvOut : pvalOut), '\t', CSVWriter.NO_QUOTE_CHARACTER))
+            {
+                for (int idx = 0; idx < rates.size(); idx++)
+                {
+                    String pos = String.valueOf(rates.getPosition(idx));
+                    if (useRscript)
+                    {
+                        for (double d : rates.getValues(idx, 0))
+                        {
+                            writer.writeNext(new String[]{chr, pos, "Group1", String.valueOf(d)});
+                        }
+
+                        for (double d : rates.getValues(idx, 1))
+                        {
+                            writer.writeNext(new String[]{chr, pos, "Group2", String.valueOf(d)});
+                        }
+                    }
+                    else
+                    {
+                        //NOTE: NaN (all values tied) is written as NA, which is skipped when building the BED file
+                        double pval = MethylationRateStatistics.wilcoxonRankSumPValue(rates.getValues(idx, 0), rates.getValues(idx, 1));
+                        writer.writeNext(new String[]{chr, pos, Double.isNaN(pval) ? "NA" : String.valueOf(pval)});
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                throw new PipelineJobException(e);
+            }
+
+            if (useRscript)
+            {
+                //now calculate pvalues
+                AbstractCommandWrapper wrapper = new AbstractCommandWrapper(ctx.getJob().getLogger()){};
+                wrapper.setOutputDir(ctx.getOutputDir());
+                wrapper.setWorkingDir(ctx.getOutputDir());
+
+                List<String> args = new ArrayList<>();
+                args.add(getRPath(ctx.getLogger()));
+                args.add(getScriptPath());
+                args.add(tsvOut.getPath());
+                args.add(statisticalMethod);
+                args.add(pvalOut.getPath());
+
+                wrapper.execute(args);
+            }
+
+            return new ChromosomeResult(pvalOut, tsvOut);
+        }
+
         private String getScriptPath() throws PipelineJobException
         {
             String path = "/external/methylationComparison.R";
@@ -619,78 +596,35 @@ public static void buildCombinedTable(File table, List<Pair<Interval, String>> i
                 iterators.add(new PeekableIterator(gffReader.iterator()));
             }
 
+            GFF3IntervalScanner scanner = new GFF3IntervalScanner(iterators);
             for (Pair<Interval, String> pair : intervals)
             {
                 Interval il = pair.first;
                 String intervalName = pair.second;
+                String ilName = il.getContig() + ":" + il.getStart() + "-" + il.getEnd();
 
                 ctx.getLogger().info("inspecting interval: " + il.getContig() + ": " + il.getStart() + "-" + il.getEnd());
-                int positionsInspected = 0;
-                int positionsWithData = 0;
+                int positionsInspected = Math.max(0, il.getEnd() - il.getStart() + 1);
 
                 totalBedLines++;
 
-                int position = il.getStart();
-                while (position <= il.getEnd())
-                {
-                    positionsInspected++;
+                //NOTE: this jumps between positions with a feature in at least one input, rather than testing every position of the interval
+                int positionsWithData = scanner.scan(il, (position, features) -> {
+                    List<String> row = new ArrayList<>(features.length + 4);
+                    row.add(ilName);
+                    row.add(il.getContig());
+                    row.add(String.valueOf(position));
 
-                    boolean hasData = false;
-                    List<String> data = new ArrayList<>(inputFiles.size());
-                    for (PeekableIterator<GFF3Feature> it : iterators)
-                    {
-                        //scan until we hit this position or exceed
-                        GFF3Feature f = null;
-                        while (it.hasNext())
-                        {
-                            GFF3Feature toInspect = it.peek();
-                            Interval i2 = new Interval(toInspect.getContig(), toInspect.getStart(), toInspect.getEnd());
-
-                            if (toInspect.getContig().equals(il.getContig()) && toInspect.getStart() == position)
-                            {
-                                //this is a match, select and increment iterator
-                                f = it.next();
-                                break;
-                            }
-                            else if (i2.compareTo(il) > 0)
-                            {
-                                //if this interval is beyond the target position, abort but dont increment iterator
-                                break;
-                            }
-
-                            //scan to next
-                            it.next();
-                        }
-
-                        if (f != null)
-                        {
-                            hasData = true;
-                            data.add(f.getScore() == null ? "" :String.valueOf(f.getScore()));
-                        }
-                        else
-                        {
-                            data.add("");
-                        }
-                    }
+                    if (includePValCol)
+                        row.add(intervalName); //this is the column holding score
 
-                    if (hasData)
+                    for (GFF3Feature f : features)
                     {
-                        List<String> row = new ArrayList<>();
-                        row.add(il.getContig() + ":" + il.getStart() + "-" + il.getEnd());
-                        row.add(il.getContig());
-                        row.add(String.valueOf(position));
-
-                        if (includePValCol)
-                            row.add(intervalName); //this is the column holding score
-                        row.addAll(data);
-
-                        writer.writeNext(row.toArray(new String[row.size()]));
-
-                        positionsWithData++;
+                        row.add(f == null || f.getScore() == null ? "" : String.valueOf(f.getScore()));
                     }
 
-                    position++;
-                }
+                    writer.writeNext(row.toArray(new String[row.size()]));
+                });
 
                 ctx.getLogger().info("positions inspected: " + positionsInspected);
                 ctx.getLogger().info("positions with data: " + positionsWithData);
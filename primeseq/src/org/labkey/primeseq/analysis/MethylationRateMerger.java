@@ -0,0 +1,585 @@
+package org.labkey.primeseq.analysis;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.reader.Readers;
+import org.labkey.primeseq.pipeline.MethylationSiteAccumulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Merges the per-sample site rate GFFs produced by the Bismark site report into per-contig batches of rates by group.  Each input is already sorted
+ * by contig (see MethylationSiteAccumulator.CONTIG_ORDER) and position, so the inputs are read as parallel streams and only the current contig is held,
+ * with the rates for each site stored in flat primitive arrays rather than nested maps of boxed values.
+ */
+public class MethylationRateMerger
+{
+    private final Logger _log;
+    private final int _minDepthPerSite;
+    private final @Nullable Integer _minDatapointsPerGroup;
+
+    public interface ContigConsumer
+    {
+        void accept(ContigRates rates) throws PipelineJobException;
+    }
+
+    public MethylationRateMerger(Logger log, @Nullable Integer minDepthPerSite, @Nullable Integer minDatapointsPerGroup)
+    {
+        _log = log;
+        _minDepthPerSite = minDepthPerSite == null ? 0 : minDepthPerSite;
+        _minDatapointsPerGroup = minDatapointsPerGroup;
+    }
+
+    /**
+     * The sites on one contig with data in both groups, in position order.  Group values for site i are stored in
+     * values[offsets[i]] through values[offsets[i + 1] - 1].
+     */
+    public static class ContigRates
+    {
+        private final String _contig;
+        private int _size = 0;
+        private int[] _positions = new int[1024];
+        private final int[][] _offsets = new int[][]{new int[1025], new int[1025]};
+        private final double[][] _values = new double[][]{new double[4096], new double[4096]};
+
+        private int _positionsWithData = 0;
+        private int _group1Skipped = 0;
+        private int _group2Skipped = 0;
+
+        private ContigRates(String contig)
+        {
+            _contig = contig;
+        }
+
+        private void add(int pos, double[][] groupValues, int[] groupSizes)
+        {
+            if (_size == _positions.length)
+            {
+                _positions = Arrays.copyOf(_positions, _size * 2);
+                _offsets[0] = Arrays.copyOf(_offsets[0], _size * 2 + 1);
+                _offsets[1] = Arrays.copyOf(_offsets[1], _size * 2 + 1);
+            }
+
+            _positions[_size] = pos;
+            for (int group = 0; group < 2; group++)
+            {
+                int start = _offsets[group][_size];
+                int end = start + groupSizes[group];
+                if (end > _values[group].length)
+                {
+                    _values[group] = Arrays.copyOf(_values[group], Math.max(end, _values[group].length * 2));
+                }
+
+                System.arraycopy(groupValues[group], 0, _values[group], start, groupSizes[group]);
+                _offsets[group][_size + 1] = end;
+            }
+
+            _size++;
+        }
+
+        public String getContig()
+        {
+            return _contig;
+        }
+
+        public int size()
+        {
+            return _size;
+        }
+
+        public int getPosition(int idx)
+        {
+            return _positions[idx];
+        }
+
+        /**
+         * @param group Either 0 (group 1) or 1 (group 2)
+         */
+        public double[] getValues(int idx, int group)
+        {
+            return Arrays.copyOfRange(_values[group], _offsets[group][idx], _offsets[group][idx + 1]);
+        }
+
+        public int getPositionsWithData()
+        {
+            return _positionsWithData;
+        }
+
+        public int getGroup1Skipped()
+        {
+            return _group1Skipped;
+        }
+
+        public int getGroup2Skipped()
+        {
+            return _group2Skipped;
+        }
+    }
+
+    /**
+     * Reads the inputs in parallel, passing each contig to the consumer once all of its sites are merged.
+     * @param groups The group (0 or 1) of each input
+     */
+    public void merge(List<File> inputs, List<Integer> groups, ContigConsumer consumer) throws PipelineJobException
+    {
+        List<SiteReader> readers = new ArrayList<>();
+        try
+        {
+            for (int i = 0; i < inputs.size(); i++)
+            {
+                SiteReader reader = new SiteReader(inputs.get(i), groups.get(i), _minDepthPerSite);
+                readers.add(reader);
+                reader.next();
+            }
+
+            double[][] groupValues = new double[][]{new double[readers.size()], new double[readers.size()]};
+            int[] groupSizes = new int[2];
+            SiteReader[] onContig = new SiteReader[readers.size()];
+
+            while (true)
+            {
+                //the next contig is the lowest among the inputs' current contigs
+                String contig = null;
+                for (SiteReader reader : readers)
+                {
+                    if (reader._contig != null && (contig == null || MethylationSiteAccumulator.CONTIG_ORDER.compare(reader._contig, contig) < 0))
+                    {
+                        contig = reader._contig;
+                    }
+                }
+
+                if (contig == null)
+                {
+                    break;
+                }
+
+                int totalOnContig = 0;
+                for (SiteReader reader : readers)
+                {
+                    if (contig.equals(reader._contig))
+                    {
+                        onContig[totalOnContig++] = reader;
+                    }
+                }
+
+                ContigRates rates = new ContigRates(contig);
+                while (totalOnContig > 0)
+                {
+                    int pos = Integer.MAX_VALUE;
+                    for (int i = 0; i < totalOnContig; i++)
+                    {
+                        pos = Math.min(pos, onContig[i]._pos);
+                    }
+
+                    //collect the rates at this position, in input order, and advance those readers
+                    groupSizes[0] = 0;
+                    groupSizes[1] = 0;
+                    int remaining = 0;
+                    for (int i = 0; i < totalOnContig; i++)
+                    {
+                        SiteReader reader = onContig[i];
+                        while (reader._contig != null && reader._pos == pos && reader._contig.equals(contig))
+                        {
+                            groupValues[reader._group][groupSizes[reader._group]++] = reader._rate;
+                            reader.next();
+                            if (groupSizes[reader._group] == groupValues[reader._group].length)
+                            {
+                                groupValues[reader._group] = Arrays.copyOf(groupValues[reader._group], groupValues[reader._group].length * 2);
+                            }
+                        }
+
+                        if (contig.equals(reader._contig))
+                        {
+                            onContig[remaining++] = reader;
+                        }
+                    }
+                    totalOnContig = remaining;
+
+                    rates._positionsWithData++;
+                    if (groupSizes[0] == 0)
+                    {
+                        rates._group1Skipped++;
+                        continue;
+                    }
+
+                    if (groupSizes[1] == 0)
+                    {
+                        rates._group2Skipped++;
+                        continue;
+                    }
+
+                    if (_minDatapointsPerGroup != null)
+                    {
+                        boolean doSkip = false;
+                        if (groupSizes[0] < _minDatapointsPerGroup)
+                        {
+                            rates._group1Skipped++;
+                            doSkip = true;
+                        }
+
+                        if (groupSizes[1] < _minDatapointsPerGroup)
+                        {
+                            rates._group2Skipped++;
+                            doSkip = true;
+                        }
+
+                        if (doSkip)
+                        {
+                            continue;
+                        }
+                    }
+
+                    rates.add(pos, groupValues, groupSizes);
+                }
+
+                consumer.accept(rates);
+            }
+
+            for (SiteReader reader : readers)
+            {
+                _log.info("total sites skipped due to low depth in " + reader._file.getName() + ": " + reader._skippedForDepth);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+        finally
+        {
+            for (SiteReader reader : readers)
+            {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Reads one site rate GFF.  Fields are located by scanning for tabs rather than splitting each line.
+     */
+    private static class SiteReader implements AutoCloseable
+    {
+        private final File _file;
+        private final int _group;
+        private final int _minDepth;
+        private final BufferedReader _reader;
+        private final int[] _starts = new int[9];
+
+        private int _lineNo = 0;
+        private int _skippedForDepth = 0;
+
+        private String _contig = null;
+        private int _pos;
+        private double _rate;
+
+        private SiteReader(File file, int group, int minDepth) throws IOException
+        {
+            _file = file;
+            _group = group;
+            _minDepth = minDepth;
+            _reader = Readers.getReader(file);
+        }
+
+        /**
+         * Advances to the next site passing the depth filter.  _contig is null once the file is exhausted.
+         */
+        private void next() throws IOException, PipelineJobException
+        {
+            String previousContig = _contig;
+            int previousPos = _pos;
+
+            String line;
+            while ((line = _reader.readLine()) != null)
+            {
+                _lineNo++;
+                if (line.startsWith("#") || StringUtils.isBlank(line))
+                {
+                    continue;
+                }
+
+                //find the start of the first 9 fields
+                int[] starts = _starts;
+                int found = 1;
+                for (int idx = line.indexOf('\t'); idx != -1 && found < 9; idx = line.indexOf('\t', idx + 1))
+                {
+                    starts[found++] = idx + 1;
+                }
+
+                if (found < 9)
+                {
+                    throw new PipelineJobException("Fewer than 9 fields found on line: " + _lineNo + " of " + _file.getName() + ", line was: [" + line + "]");
+                }
+
+                if (getDepth(line, starts[8]) < _minDepth)
+                {
+                    _skippedForDepth++;
+                    continue;
+                }
+
+                //NOTE: reuse the contig string while it is unchanged
+                int contigEnd = starts[1] - 1;
+                String contig = previousContig != null && contigEnd == previousContig.length() && line.startsWith(previousContig) ? previousContig : line.substring(0, contigEnd);
+                int pos = parseInt(line, starts[3], starts[4] - 1);
+                if (previousContig != null)
+                {
+                    int cmp = contig == previousContig ? 0 : MethylationSiteAccumulator.CONTIG_ORDER.compare(contig, previousContig);
+                    if (cmp < 0 || (cmp == 0 && pos < previousPos))
+                    {
+                        throw new PipelineJobException("Sites are not sorted in " + _file.getName() + " on line " + _lineNo + ".  This file may need to be regenerated.");
+                    }
+                }
+
+                _contig = contig;
+                _pos = pos;
+                _rate = Double.parseDouble(line.substring(starts[5], starts[6] - 1));
+
+                return;
+            }
+
+            _contig = null;
+        }
+
+        private static int getDepth(String line, int attrStart)
+        {
+            //NOTE: attributes are semicolon-delimited key=value pairs, such as Depth=10;TotalMethlated=5;...
+            int attrEnd = line.indexOf('\t', attrStart);
+            if (attrEnd == -1)
+            {
+                attrEnd = line.length();
+            }
+
+            int start = attrStart;
+            while (start < attrEnd)
+            {
+                int end = line.indexOf(';', start);
+                if (end == -1 || end > attrEnd)
+                {
+                    end = attrEnd;
+                }
+
+                if (line.startsWith("Depth=", start))
+                {
+                    return parseInt(line, start + 6, end);
+                }
+
+                start = end + 1;
+            }
+
+            return Integer.MAX_VALUE;
+        }
+
+        private static int parseInt(String line, int start, int end)
+        {
+            int ret = 0;
+            for (int i = start; i < end; i++)
+            {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9' || end - start > 9)
+                {
+                    //defer to Integer.parseInt() for signs, overflow and errors
+                    return Integer.parseInt(line.substring(start, end));
+                }
+
+                ret = ret * 10 + (c - '0');
+            }
+
+            if (start == end)
+            {
+                return Integer.parseInt("");
+            }
+
+            return ret;
+        }
+
+        @Override
+        public void close()
+        {
+            try
+            {
+                _reader.close();
+            }
+            catch (IOException e)
+            {
+                //ignore
+            }
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _testLog = LogManager.getLogger(MethylationRateMerger.TestCase.class);
+
+        //NOTE: contigs are listed in the order the site report writes them
+        private static final String[] CONTIGS = new String[]{"chr10", "chr1", "chr2", "chrX"};
+
+        private static List<File> writeSamples(File dir, int samples, int sitesPerContig, long seed) throws IOException
+        {
+            Random r = new Random(seed);
+            List<File> ret = new ArrayList<>();
+            for (int i = 0; i < samples; i++)
+            {
+                File f = new File(dir, "sample" + i + ".CpG_Site_Summary.gff");
+                try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(f.toPath())))
+                {
+                    writer.write("##gff-version 3\n");
+                    for (String contig : CONTIGS)
+                    {
+                        for (int pos = 1; pos <= sitesPerContig; pos++)
+                        {
+                            //each sample is missing some sites
+                            if (r.nextInt(10) == 0)
+                            {
+                                continue;
+                            }
+
+                            int depth = r.nextInt(30);
+                            double rate = r.nextInt(depth + 1) / (double)Math.max(1, depth);
+                            writer.write(contig + "\t.\tsite_methylation_rate\t" + (pos * 2) + "\t" + (pos * 2) + "\t" + rate + "\t+\t0\tDepth=" + depth + ";TotalMethlated=;\n");
+                        }
+                    }
+                }
+
+                ret.add(f);
+            }
+
+            return ret;
+        }
+
+        @Test
+        public void testMerge() throws Exception
+        {
+            File dir = Files.createTempDirectory("methylationRateMergerTest").toFile();
+            try
+            {
+                List<File> inputs = writeSamples(dir, 6, 20000, 1234);
+                List<Integer> groups = Arrays.asList(0, 1, 0, 1, 0, 1);
+
+                //the nested maps the handler previously built:
+                Map<String, Map<Integer, Map<Integer, List<Double>>>> expected = new HashMap<>();
+                for (int i = 0; i < inputs.size(); i++)
+                {
+                    try (BufferedReader reader = Readers.getReader(inputs.get(i)))
+                    {
+                        String line;
+                        while ((line = reader.readLine()) != null)
+                        {
+                            if (line.startsWith("#"))
+                            {
+                                continue;
+                            }
+
+                            String[] tokens = line.split("\t");
+                            int depth = Integer.parseInt(tokens[8].split(";")[0].split("=")[1]);
+                            if (depth < 10)
+                            {
+                                continue;
+                            }
+
+                            expected.computeIfAbsent(tokens[0], x -> new TreeMap<>()).computeIfAbsent(Integer.parseInt(tokens[3]), x -> new HashMap<>()).computeIfAbsent(groups.get(i), x -> new ArrayList<>()).add(Double.parseDouble(tokens[5]));
+                        }
+                    }
+                }
+
+                List<String> contigsSeen = new ArrayList<>();
+                new MethylationRateMerger(_testLog, 10, 2).merge(inputs, groups, rates -> {
+                    contigsSeen.add(rates.getContig());
+                    Map<Integer, Map<Integer, List<Double>>> posMap = expected.get(rates.getContig());
+                    assertEquals(posMap.size(), rates.getPositionsWithData());
+
+                    int idx = 0;
+                    int skipped1 = 0;
+                    int skipped2 = 0;
+                    for (Integer pos : posMap.keySet())
+                    {
+                        List<Double> group1 = posMap.get(pos).get(0);
+                        if (group1 == null)
+                        {
+                            skipped1++;
+                            continue;
+                        }
+
+                        List<Double> group2 = posMap.get(pos).get(1);
+                        if (group2 == null)
+                        {
+                            skipped2++;
+                            continue;
+                        }
+
+                        if (group1.size() < 2 || group2.size() < 2)
+                        {
+                            skipped1 += group1.size() < 2 ? 1 : 0;
+                            skipped2 += group2.size() < 2 ? 1 : 0;
+                            continue;
+                        }
+
+                        assertEquals(pos.intValue(), rates.getPosition(idx));
+                        assertEquals(group1.toString(), toList(rates.getValues(idx, 0)).toString());
+                        assertEquals(group2.toString(), toList(rates.getValues(idx, 1)).toString());
+                        idx++;
+                    }
+
+                    assertEquals(idx, rates.size());
+                    assertEquals(skipped1, rates.getGroup1Skipped());
+                    assertEquals(skipped2, rates.getGroup2Skipped());
+                });
+
+                assertEquals(Arrays.asList(CONTIGS), contigsSeen);
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testUnsorted() throws Exception
+        {
+            File dir = Files.createTempDirectory("methylationRateMergerTest").toFile();
+            try
+            {
+                File f = new File(dir, "unsorted.gff");
+                FileUtils.writeStringToFile(f, "chr1\t.\tsite_methylation_rate\t20\t20\t0.5\t+\t0\tDepth=20;\nchr1\t.\tsite_methylation_rate\t10\t10\t0.5\t+\t0\tDepth=20;\n", "UTF-8");
+                try
+                {
+                    new MethylationRateMerger(_testLog, 0, null).merge(Arrays.asList(f, f), Arrays.asList(0, 1), rates -> {});
+                    fail("Expected an exception for unsorted input");
+                }
+                catch (PipelineJobException e)
+                {
+                    assertTrue(e.getMessage().contains("not sorted"));
+                }
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        private static List<Double> toList(double[] values)
+        {
+            List<Double> ret = new ArrayList<>();
+            for (double d : values)
+            {
+                ret.add(d);
+            }
+
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.labkey.primeseq.analysis;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.apache.commons.math3.stat.ranking.NaNStrategy;
+import org.apache.commons.math3.stat.ranking.NaturalRanking;
+import org.apache.commons.math3.stat.ranking.TiesStrategy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * In-JVM implementations of the tests previously run through methylationComparison.R.  The results match R's wilcox.test(x, y, paired = FALSE, exact = FALSE),
+ * which uses the normal approximation with a correction for ties and a continuity correction.
+ * Unlike commons-math3's MannWhitneyUTest, which applies neither correction, this reproduces R's p-values.
+ */
+public class MethylationRateStatistics
+{
+    public static final String WILCOX = "wilcox";
+
+    //NOTE: passing a null RandomGenerator avoids seeding one per instance; cumulativeProbability() is stateless and safe to share across threads
+    private static final NormalDistribution STANDARD_NORMAL = new NormalDistribution(null, 0, 1);
+
+    private MethylationRateStatistics()
+    {
+
+    }
+
+    public static boolean isSupported(String method)
+    {
+        return WILCOX.equals(method);
+    }
+
+    /**
+     * @return The two-sided p-value, or NaN if it cannot be computed (for example, if every value is tied)
+     */
+    public static double wilcoxonRankSumPValue(double[] x, double[] y)
+    {
+        int nx = x.length;
+        int ny = y.length;
+        if (nx == 0 || ny == 0)
+        {
+            return Double.NaN;
+        }
+
+        double[] combined = new double[nx + ny];
+        System.arraycopy(x, 0, combined, 0, nx);
+        System.arraycopy(y, 0, combined, nx, ny);
+
+        double[] ranks = new NaturalRanking(NaNStrategy.FIXED, TiesStrategy.AVERAGE).rank(combined);
+
+        double rankSumX = 0;
+        for (int i = 0; i < nx; i++)
+        {
+            rankSumX += ranks[i];
+        }
+
+        double w = rankSumX - nx * (nx + 1) / 2.0;
+        double z = w - nx * (double)ny / 2.0;
+
+        //sum of (t^3 - t) over each group of tied values
+        Arrays.sort(ranks);
+        double tieSum = 0;
+        int start = 0;
+        for (int i = 1; i <= ranks.length; i++)
+        {
+            if (i == ranks.length || ranks[i] != ranks[start])
+            {
+                double t = i - start;
+                tieSum += t * t * t - t;
+                start = i;
+            }
+        }
+
+        double n = nx + ny;
+        double sigma = Math.sqrt((nx * (double)ny / 12.0) * ((n + 1) - tieSum / (n * (n - 1))));
+        if (sigma == 0)
+        {
+            return Double.NaN;
+        }
+
+        z = (z - Math.signum(z) * 0.5) / sigma;
+
+        //equivalent to 2 * min(pnorm(z), pnorm(z, lower.tail = FALSE)), without losing precision in the upper tail
+        return 2 * STANDARD_NORMAL.cumulativeProbability(-Math.abs(z));
+    }
+
+    public static class TestCase extends Assert
+    {
+        //NOTE: expected values are the p-values printed by R (4 significant digits) for the standard datasets below
+        @Test
+        public void testRParity()
+        {
+            //wilcox.test(mpg ~ am, data = mtcars): W = 42, p-value = 0.001871
+            double[] automatic = new double[]{21.4, 18.7, 18.1, 14.3, 24.4, 22.8, 19.2, 17.8, 16.4, 17.3, 15.2, 10.4, 10.4, 14.7, 21.5, 15.5, 15.2, 13.3, 19.2};
+            double[] manual = new double[]{21.0, 21.0, 22.8, 32.4, 30.4, 33.9, 27.3, 26.0, 30.4, 15.8, 19.7, 15.0, 21.4};
+            assertEquals(0.001871, wilcoxonRankSumPValue(automatic, manual), 0.0000005);
+
+            //wilcox.test(len ~ supp, data = ToothGrowth): W = 575.5, p-value = 0.06449
+            double[] oj = new double[]{15.2, 21.5, 17.6, 9.7, 14.5, 10, 8.2, 9.4, 16.5, 9.7, 19.7, 23.3, 23.6, 26.4, 20, 25.2, 25.8, 21.2, 14.5, 27.3, 25.5, 26.4, 22.4, 24.5, 24.8, 30.9, 26.4, 27.3, 29.4, 23};
+            double[] vc = new double[]{4.2, 11.5, 7.3, 5.8, 6.4, 10, 11.2, 11.2, 5.2, 7, 16.5, 16.5, 15.2, 17.3, 22.5, 17.3, 13.6, 14.5, 18.8, 15.5, 23.6, 18.5, 33.9, 25.5, 26.4, 32.5, 26.7, 21.5, 23.3, 29.5};
+            assertEquals(0.06449, wilcoxonRankSumPValue(oj, vc), 0.000005);
+
+            //wilcox.test(extra ~ group, data = sleep): W = 25.5, p-value = 0.06933
+            double[] group1 = new double[]{0.7, -1.6, -0.2, -1.2, -0.1, 3.4, 3.7, 0.8, 0.0, 2.0};
+            double[] group2 = new double[]{1.9, 0.8, 1.1, 0.1, -0.1, 4.4, 5.5, 1.6, 4.6, 3.4};
+            assertEquals(0.06933, wilcoxonRankSumPValue(group1, group2), 0.000005);
+
+            //the test is symmetric in its groups
+            assertEquals(wilcoxonRankSumPValue(group1, group2), wilcoxonRankSumPValue(group2, group1), 1e-12);
+        }
+
+        @Test
+        public void testEdgeCases()
+        {
+            //R returns NaN when every value is tied, such as sites fully methylated in all samples
+            assertTrue(Double.isNaN(wilcoxonRankSumPValue(new double[]{1.0, 1.0, 1.0}, new double[]{1.0, 1.0})));
+            assertTrue(Double.isNaN(wilcoxonRankSumPValue(new double[]{}, new double[]{0.5})));
+
+            //identical distributions
+            assertEquals(1.0, wilcoxonRankSumPValue(new double[]{0.1, 0.5, 0.9}, new double[]{0.1, 0.5, 0.9}), 1e-12);
+        }
+    }
+}
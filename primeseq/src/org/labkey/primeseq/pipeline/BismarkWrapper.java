@@ -6,7 +6,6 @@
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
-import org.labkey.api.data.ConvertHelper;
 import org.labkey.api.data.DbSchema;
 import org.labkey.api.data.DbSchemaType;
 import org.labkey.api.data.Table;
@@ -59,12 +58,9 @@
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -436,10 +432,11 @@ else if (getProvider().getParameterByName("siteReport") != null && getProvider()
                     getPipelineCtx().getLogger().info("creating per-site summary report");
 
                     Integer minCoverageDepth = getProvider().getParameterByName("minCoverageDepth").extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Integer.class);
+                    Integer siteReportMemory = getProvider().getParameterByName("siteReportMemory").extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Integer.class);
                     File siteReport = new File(outputDir, basename + ".CpG_Site_Summary.methylation.txt");
                     File outputGff = new File(outputDir, basename + ".CpG_Site_Summary.gff");
 
-                    produceSiteReport(getWrapper().getLogger(), siteReport, outputGff, CpGmethlyationData, minCoverageDepth);
+                    produceSiteReport(getWrapper().getLogger(), siteReport, outputGff, CpGmethlyationData, minCoverageDepth, siteReportMemory);
                     if (siteReport.exists())
                     {
                         output.addOutput(siteReport, "Bismark CpG Methylation Raw Data");
@@ -601,14 +598,14 @@ private File createSummaryReport(Logger log, File siteReport, Integer minCoverag
             return null;
         }
 
-        private void produceSiteReport(Logger log, File output, File outputGff, List<Pair<File, Integer>> methlyationData, Integer minCoverageDepth) throws PipelineJobException
+        private void produceSiteReport(Logger log, File output, File outputGff, List<Pair<File, Integer>> methlyationData, Integer minCoverageDepth, @Nullable Integer memoryMb) throws PipelineJobException
         {
-            try
-            {
-                Set<String> keys = new TreeSet<>();
+            //NOTE: by default, allow the sites to use a quarter of the heap before they are written to disk in sorted runs
+            long maxBytes = memoryMb == null ? Runtime.getRuntime().maxMemory() / 4 : memoryMb * 1024L * 1024L;
+            log.debug("memory budget for site report: " + (maxBytes / 1024 / 1024) + "MB");
 
-                Map<String, Integer[]> totalMethylatedPerSite = new HashMap<>();
-                Map<String, Integer[]> totalNonMethylatedPerSite = new HashMap<>();
+            try (MethylationSiteAccumulator sites = new MethylationSiteAccumulator(new File(output.getParentFile(), "siteReportRuns"), maxBytes))
+            {
                 if (minCoverageDepth == null)
                 {
                     minCoverageDepth = 0;
@@ -623,6 +620,8 @@ private void produceSiteReport(Logger log, File output, File outputGff, List<Pai
                         continue;
                     }
 
+                    //if the offset is zero, this is a proxy for being + strand.  otherwise it's minus strand
+                    boolean plusStrand = pair.second.equals(0);
                     try (BufferedReader reader = Readers.getReader(new GZIPInputStream(new FileInputStream(pair.first))))
                     {
                         String line;
@@ -651,47 +650,28 @@ private void produceSiteReport(Logger log, File output, File outputGff, List<Pai
                                 continue;
                             }
 
-                            Integer pos = ConvertHelper.convert(tokens[3], Integer.class);
-                            pos += pair.second;
-                            String key = tokens[2] + "||" + StringUtils.leftPad(Integer.toString(pos), 12, '0');
-                            keys.add(key);
+                            int pos = Integer.parseInt(tokens[3]) + pair.second;
 
                             // NOTE: + indicates methylated, not the strand
-                            Map<String, Integer[]> totalMap;
                             if ("+".equals(tokens[1]))
                             {
-                                totalMap = totalMethylatedPerSite;
+                                sites.add(tokens[2], pos, true, plusStrand);
                             }
                             else if ("-".equals(tokens[1]))
                             {
-                                totalMap = totalNonMethylatedPerSite;
+                                sites.add(tokens[2], pos, false, plusStrand);
                             }
                             else
                             {
+                                //the position is still reported, with no calls
+                                sites.addPosition(tokens[2], pos);
                                 log.error("unknown strand: " + tokens[1]);
-                                continue;
-                            }
-
-                            //the array should be: total encountered, total plus strand, total minus strand,
-                            Integer[] arr = totalMap.containsKey(key) ? totalMap.get(key) : new Integer[]{0, 0, 0};
-                            arr[0]++;
-
-                            //if the offset is zero, this is a proxy for being + strand.  otherwise it's minus strand
-                            if (pair.second.equals(0))
-                            {
-                                arr[1]++;
-                            }
-                            else
-                            {
-                                arr[2]++;
                             }
-
-                            totalMap.put(key, arr);
                         }
                     }
                 }
 
-                if (keys.isEmpty())
+                if (sites.isEmpty())
                 {
                     log.info("no positions to report, skipping");
                     return;
@@ -710,46 +690,53 @@ else if ("-".equals(tokens[1]))
                     outputGff.createNewFile();
                 }
 
+                if (sites.getTotalRuns() > 0)
+                {
+                    log.info("sites exceeded the memory budget and were written to " + sites.getTotalRuns() + " sorted runs, which will be merged");
+                }
+
                 try (PrintWriter writer = PrintWriters.getPrintWriter(output); PrintWriter gffWriter = PrintWriters.getPrintWriter(outputGff))
                 {
-                    log.info("writing output, " + keys.size() + " total positions");
+                    log.info("writing output");
                     DecimalFormat df = new DecimalFormat("0.00");
+                    String lineSeparator = System.getProperty("line.separator");
+                    final int minDepth = minCoverageDepth;
 
                     writer.write(StringUtils.join(new String[]{"Chr", "Pos", "Depth", "Methylation Rate", "Total Methylated", "Total NonMethylated", "Total Methylated Plus Strand", "Total Methylated Minus Strand", "Total NonMethylated Plus Strand", "Total NonMethylated Minus Strand"}, "\t") + '\n');
-                    gffWriter.write("##gff-version 3" + System.getProperty("line.separator"));
-
-                    String[] line;
-                    for (String key : keys)
-                    {
-                        String[] tokens = key.split("\\|\\|");
-                        line = new String[10];
-                        line[0] = tokens[0];
-                        line[1] = Integer.toString(Integer.parseInt(tokens[1]));  //pos, remove leading zeros
-
-                        Integer[] methlyatedArr = totalMethylatedPerSite.containsKey(key) ? totalMethylatedPerSite.get(key) : new Integer[]{0, 0, 0};
-                        Integer[] nonMethlyatedArr = totalNonMethylatedPerSite.containsKey(key) ? totalNonMethylatedPerSite.get(key) : new Integer[]{0, 0, 0};
-
-                        int depth = methlyatedArr[0] + nonMethlyatedArr[0];
-                        if (depth < minCoverageDepth)
+                    gffWriter.write("##gff-version 3" + lineSeparator);
+
+                    String[] line = new String[10];
+                    long totalPositions = sites.forEachSite((contig, pos, counts) -> {
+                        int methylatedPlus = counts[MethylationSiteAccumulator.METHYLATED_PLUS];
+                        int methylatedMinus = counts[MethylationSiteAccumulator.METHYLATED_MINUS];
+                        int nonMethylatedPlus = counts[MethylationSiteAccumulator.NON_METHYLATED_PLUS];
+                        int nonMethylatedMinus = counts[MethylationSiteAccumulator.NON_METHYLATED_MINUS];
+                        int methylated = methylatedPlus + methylatedMinus;
+                        int nonMethylated = nonMethylatedPlus + nonMethylatedMinus;
+
+                        int depth = methylated + nonMethylated;
+                        if (depth < minDepth)
                         {
-                            continue;  //skip low coverage to save file size
+                            return;  //skip low coverage to save file size
                         }
 
+                        line[0] = contig;
+                        line[1] = Integer.toString(pos);
                         line[2] = Integer.toString(depth);
 
-                        Double rate = methlyatedArr[0].equals(0) ? 0.0 : ((double) methlyatedArr[0] / (double) depth);
-                        line[3] = rate == null ? "" : df.format(rate);
+                        double rate = methylated == 0 ? 0.0 : ((double) methylated / (double) depth);
+                        line[3] = df.format(rate);
 
-                        line[4] = methlyatedArr[0].equals(0) ? "" : Integer.toString(methlyatedArr[0]);
-                        line[5] = nonMethlyatedArr[0].equals(0) ? "" : Integer.toString(nonMethlyatedArr[0]);
+                        line[4] = methylated == 0 ? "" : Integer.toString(methylated);
+                        line[5] = nonMethylated == 0 ? "" : Integer.toString(nonMethylated);
 
-                        line[6] = methlyatedArr[1].equals(0) ? "" : Integer.toString(methlyatedArr[1]);
-                        line[7] = methlyatedArr[2].equals(0) ? "" : Integer.toString(methlyatedArr[2]);
+                        line[6] = methylatedPlus == 0 ? "" : Integer.toString(methylatedPlus);
+                        line[7] = methylatedMinus == 0 ? "" : Integer.toString(methylatedMinus);
 
-                        line[8] = nonMethlyatedArr[1].equals(0) ? "" : Integer.toString(nonMethlyatedArr[1]);
-                        line[9] = nonMethlyatedArr[2].equals(0) ? "" : Integer.toString(nonMethlyatedArr[2]);
+                        line[8] = nonMethylatedPlus == 0 ? "" : Integer.toString(nonMethylatedPlus);
+                        line[9] = nonMethylatedMinus == 0 ? "" : Integer.toString(nonMethylatedMinus);
 
-                        writer.write(StringUtils.join(line, '\t') + System.getProperty("line.separator"));
+                        writer.write(StringUtils.join(line, '\t') + lineSeparator);
 
                         String attributes = "Depth=" + depth + ";" +
                                 "TotalMethlated=" + line[4] + ";" +
@@ -760,17 +747,19 @@ else if ("-".equals(tokens[1]))
                                 "TotalNonMethylatedOnPlusStand=" + line[9] + ";";
 
                         gffWriter.write(StringUtils.join(new String[]{
-                                tokens[0],  //sequence name
+                                contig,  //sequence name
                                 ".",  //source
                                 "site_methylation_rate",  //type
                                 line[1],  //start, 1-based
                                 line[1],  //end
-                                (depth < minCoverageDepth ? "" : Double.toString(rate)),   //score (rate)
+                                Double.toString(rate),   //score (rate)
                                 "+",       //strand
                                 "0",       //phase
                                 attributes
-                        }, '\t') + System.getProperty("line.separator"));
-                    }
+                        }, '\t') + lineSeparator);
+                    });
+
+                    log.info(totalPositions + " total positions");
                 }
             }
             catch (Exception e)
@@ -835,7 +824,8 @@ public MethylationExtractorProvider()
                     {{
                         put("checked", true);
                     }}, true),
-                    ToolParameterDescriptor.create("minCoverageDepth", "Min Coverage Depth (For Site Report)", "If provided, only sites with at least this coverage depth will be included in the site-based rate calculation.", "ldk-integerfield", null, 10)
+                    ToolParameterDescriptor.create("minCoverageDepth", "Min Coverage Depth (For Site Report)", "If provided, only sites with at least this coverage depth will be included in the site-based rate calculation.", "ldk-integerfield", null, 10),
+                    ToolParameterDescriptor.create("siteReportMemory", "Memory For Site Report (MB)", "If provided, once the sites collected for the site report exceed approximately this much memory, they will be written to disk as sorted runs and merged at the end.  If blank, a quarter of the java heap is used.", "ldk-integerfield", null, null)
             ), null, "http://www.bioinformatics.babraham.ac.uk/projects/bismark/");
         }
 
@@ -2,6 +2,7 @@
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -18,12 +19,14 @@
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.pipeline.PipeRoot;
 import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.pipeline.PipelineJobService;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.pipeline.PipelineValidationException;
 import org.labkey.api.pipeline.RemoteExecutionEngine;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.UserManager;
+import org.labkey.api.sequenceanalysis.run.SimpleScriptWrapper;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Job;
 import org.labkey.api.util.JobRunner;
@@ -31,15 +34,21 @@
 import org.labkey.api.util.SystemMaintenance;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -51,6 +60,8 @@ public class ClusterMaintenanceTask implements SystemMaintenance.MaintenanceTask
 {
     private static final Logger _log = LogManager.getLogger(ClusterMaintenanceTask.class);
 
+    public static final String MAINTENANCE_DIR = "clusterMaintenance";
+
     public ClusterMaintenanceTask()
     {
 
@@ -79,6 +90,21 @@ public void run(Logger log)
         TableSelector ts2 = new TableSelector(ti, PageFlowUtil.set("EntityId"), new SimpleFilter(FieldKey.fromString("Status"), "COMPLETE", CompareType.NEQ_OR_NULL), null);
         jobGuids.addAll(ts2.getArrayList(String.class));
 
+        JobResourceHistory history = JobResourceHistory.get();
+        Map<String, String> clusterJobs = Collections.emptyMap();
+        if (history != null)
+        {
+            try
+            {
+                history.importUsage(log);
+                clusterJobs = getClusterJobsToCollect(log, history, getRunningJobGuids(ti, jobGuids));
+            }
+            catch (IOException e)
+            {
+                log.error(e);
+            }
+        }
+
         JobRunner jr = JobRunner.getDefault();
         for (RemoteExecutionEngine engine : PipelineJobService.get().getRemoteExecutionEngines())
         {
@@ -88,12 +114,19 @@ public void run(Logger log)
             {
                 RemoteWorkTask task = new RemoteWorkTask(jobGuids);
                 PipeRoot pr = PipelineService.get().getPipelineRootSetting(ContainerManager.getHomeContainer());
-                File subdir = new File(pr.getRootPath(), "clusterMaintenance");
+                File subdir = new File(pr.getRootPath(), MAINTENANCE_DIR);
                 if (!subdir.exists())
                 {
                     subdir.mkdirs();
                 }
 
+                //NOTE: resource usage is only available through Slurm accounting
+                if ("SlurmEngine".equals(engine.getType()) && !clusterJobs.isEmpty())
+                {
+                    task._clusterJobs = new HashMap<>(clusterJobs);
+                    task._resourceUsageFile = new File(subdir, JobResourceHistory.USAGE_FILE_PREFIX + engine.getType() + "." + FileUtil.getTimestamp() + ".txt");
+                }
+
                 File logFile = new File(subdir, "Maintenance-" + engine.getType() + "." + FileUtil.getTimestamp() + ".log");
 
                 jr.execute(new Job()
@@ -122,6 +155,77 @@ public void run()
         jr.waitForCompletion();
     }
 
+    /**
+     * @return The jobs still running.  Unlike the jobs passed to RemoteWorkTask, this excludes jobs that failed or were cancelled, since these
+     * are finished and their resource usage (such as an OOM or timeout) should be collected.  Their working directories must be kept, so these remain in jobGuids.
+     */
+    private Set<String> getRunningJobGuids(TableInfo statusFiles, Set<String> jobGuids)
+    {
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("Status"), Arrays.asList(PipelineJob.TaskStatus.error.toString(), PipelineJob.TaskStatus.cancelled.toString()), CompareType.IN);
+
+        Set<String> ret = new HashSet<>(jobGuids);
+        ret.removeAll(new TableSelector(statusFiles, PageFlowUtil.set("Job"), filter, null).getArrayList(String.class));
+        ret.removeAll(new TableSelector(statusFiles, PageFlowUtil.set("EntityId"), filter, null).getArrayList(String.class));
+
+        return ret;
+    }
+
+    /**
+     * @return The Slurm job ID and submission of each task recorded by SequenceJobResourceAllocator whose job has since finished
+     */
+    private Map<String, String> getClusterJobsToCollect(Logger log, JobResourceHistory history, Set<String> runningJobGuids)
+    {
+        Map<String, JobResourceHistory.Submission> submissions = new HashMap<>();
+        for (JobResourceHistory.Submission s : history.getCompletedSubmissions(runningJobGuids))
+        {
+            submissions.put(s.getKey(), s);
+        }
+
+        Map<String, String> ret = new HashMap<>();
+        if (submissions.isEmpty())
+        {
+            return ret;
+        }
+
+        Set<String> jobGuids = new HashSet<>();
+        submissions.values().forEach(s -> jobGuids.add(s.getJobGuid()));
+
+        //the cluster module records the cluster's job ID for each task it submits
+        //NOTE: clusterJobs.activeTaskId holds job.getActiveTaskId().toString(), the same value recorded in the submission by SequenceJobResourceAllocator
+        DbSchema clusterSchema = DbSchema.get("cluster", DbSchemaType.Module);
+        TableInfo ti = clusterSchema == null ? null : clusterSchema.getTable("clusterJobs");
+        if (ti == null)
+        {
+            log.warn("cluster.clusterJobs not found, unable to collect resource usage for " + submissions.size() + " submissions");
+            return ret;
+        }
+
+        for (String col : Arrays.asList("clusterId", "jobId", "activeTaskId"))
+        {
+            if (ti.getColumn(col) == null)
+            {
+                log.warn("cluster.clusterJobs is missing the column: " + col + ", unable to collect resource usage for " + submissions.size() + " submissions");
+                return ret;
+            }
+        }
+
+        new TableSelector(ti, PageFlowUtil.set("clusterId", "jobId", "activeTaskId"), new SimpleFilter(FieldKey.fromString("jobId"), jobGuids, CompareType.IN), null).forEach(rs -> {
+            JobResourceHistory.Submission s = submissions.get(JobResourceHistory.Submission.getKey(rs.getString("jobId"), rs.getString("activeTaskId")));
+            if (s != null && rs.getString("clusterId") != null)
+            {
+                ret.put(rs.getString("clusterId"), s.toLine());
+            }
+        });
+
+        //if the job or task IDs were recorded in a different form than the cluster module uses, usage would otherwise never be collected without any sign of it
+        if (ret.isEmpty())
+        {
+            log.warn("none of the " + submissions.size() + " finished submissions matched a row in cluster.clusterJobs, so no resource usage will be collected");
+        }
+
+        return ret;
+    }
+
     @Override
     public boolean isEnabledByDefault()
     {
@@ -132,6 +236,10 @@ public static class RemoteWorkTask implements ClusterService.ClusterRemoteTask
     {
         private Set<String> _jobGuids;
 
+        //Slurm job ID to the JobResourceHistory.Submission for that job
+        private Map<String, String> _clusterJobs = null;
+        private File _resourceUsageFile = null;
+
         //for serialization
         protected RemoteWorkTask()
         {
@@ -157,6 +265,44 @@ public void run(Logger log)
 
             inspectFolder(log, new File("/home/exacloud/gscratch/prime-seq/workDir/"));
             inspectFolder(log, new File("/home/exacloud/gscratch/prime-seq/cachedData/"));
+
+            collectResourceUsage(log);
+        }
+
+        /**
+         * Writes the resource usage of finished jobs, as reported by sacct, which is imported into the JobResourceHistory by the next maintenance run
+         */
+        private void collectResourceUsage(Logger log)
+        {
+            if (_clusterJobs == null || _clusterJobs.isEmpty() || _resourceUsageFile == null)
+            {
+                return;
+            }
+
+            log.info("collecting resource usage for jobs: " + _clusterJobs.size());
+
+            Map<String, JobResourceHistory.Submission> clusterIdToSubmission = new HashMap<>();
+            _clusterJobs.forEach((clusterId, line) -> clusterIdToSubmission.put(clusterId, JobResourceHistory.Submission.fromLine(line)));
+
+            try
+            {
+                String output = new SimpleScriptWrapper(log).executeWithOutput(Arrays.asList("sacct", "-P", "-n", "--format=" + JobResourceHistory.SACCT_FORMAT, "-j", StringUtils.join(_clusterJobs.keySet(), ",")));
+                Map<String, JobResourceHistory.Observation> observations = JobResourceHistory.parseSacct(Arrays.asList(output.split("\n")), clusterIdToSubmission);
+
+                try (PrintWriter writer = new PrintWriter(new FileWriter(_resourceUsageFile)))
+                {
+                    for (String clusterId : observations.keySet())
+                    {
+                        writer.println(clusterIdToSubmission.get(clusterId).getKey() + "\t" + observations.get(clusterId).toLine());
+                    }
+                }
+
+                log.info("total jobs with resource usage: " + observations.size());
+            }
+            catch (PipelineJobException | IOException e)
+            {
+                log.error(e.getMessage(), e);
+            }
         }
 
         private void deleteDirectory(File child, Logger log)
@@ -230,6 +376,9 @@ public void testSerialization() throws Exception
             RemoteWorkTask task = new RemoteWorkTask();
             task._jobGuids = new HashSet<>();
             task._jobGuids.add("1");
+            task._clusterJobs = new HashMap<>();
+            task._clusterJobs.put("101", new JobResourceHistory.Submission("1", "task", "SequenceAlignmentTask", 1000L, 0L).toLine());
+            task._resourceUsageFile = new File("ResourceUsage.txt");
 
             ObjectMapper mapper = PipelineJob.createObjectMapper();
 
@@ -239,6 +388,8 @@ public void testSerialization() throws Exception
 
             assertEquals("Class not serialized properly", 1, deserialized._jobGuids.size());
             assertEquals("Class not serialized properly", "1", deserialized._jobGuids.iterator().next());
+            assertEquals("Class not serialized properly", task._clusterJobs, deserialized._clusterJobs);
+            assertEquals("Class not serialized properly", task._resourceUsageFile, deserialized._resourceUsageFile);
         }
     }
 }
@@ -0,0 +1,995 @@
+package org.labkey.primeseq.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.pipeline.PipeRoot;
+import org.labkey.api.pipeline.PipelineService;
+import org.labkey.api.reader.Readers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Records the resources actually used by completed cluster jobs, keyed by task type and total input size, and sizes new jobs from prior jobs of
+ * the same type and similar size.  When a job is submitted, SequenceJobResourceAllocator records a Submission.  ClusterMaintenanceTask later
+ * matches these to their Slurm job IDs, collects the peak memory and runtime from sacct, and these are imported here as Observations.
+ *
+ * Created by bbimber
+ */
+public class JobResourceHistory
+{
+    private static final Logger _log = LogManager.getLogger(JobResourceHistory.class);
+
+    public static final String OBSERVATIONS_FILE = "resourceHistory.txt";
+    public static final String SUBMISSIONS_FILE = "resourceSubmissions.txt";
+    public static final String USAGE_FILE_PREFIX = "ResourceUsage-";
+    public static final String SACCT_FORMAT = "JobID,State,Elapsed,MaxRSS,ReqMem,AllocCPUS,TotalCPU";
+
+    //the minimum number of completed jobs of a similar size before the history is used instead of the static rules
+    public static final int MIN_OBSERVATIONS = 5;
+
+    //prior jobs with an input size within this factor of the new job are considered similar
+    private static final double SIZE_RANGE = 2.0;
+
+    //only the most recent jobs of each type are considered, so the estimates follow changes in tools or data
+    private static final int MAX_OBSERVATIONS_PER_TYPE = 500;
+
+    private static final double PERCENTILE = 0.95;
+    private static final double MEMORY_MARGIN = 1.25;
+    private static final double CPU_MARGIN = 1.25;
+    private static final double RUNTIME_MARGIN = 1.5;
+
+    //a job killed for memory or time is retried with at least this multiple of what it was given
+    private static final double FAILURE_MARGIN = 1.5;
+
+    private static final int MIN_MEMORY_GB = 4;
+    private static final int MIN_RUNTIME_HOURS = 2;
+
+    //the static rules request at most 48GB and 36 hours in the default queue, so by default an estimate never exceeds these
+    public static final int DEFAULT_MAX_MEMORY_GB = 48;
+    public static final int DEFAULT_MAX_RUNTIME_HOURS = 36;
+
+    private static final long SUBMISSION_EXPIRATION_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final double GB = 1024.0 * 1024 * 1024;
+
+    public enum Outcome
+    {
+        COMPLETED,
+        OUT_OF_MEMORY,
+        TIMEOUT,
+        FAILED
+    }
+
+    private static JobResourceHistory _instance = null;
+
+    private final File _dir;
+    private final int _maxMemoryGb;
+    private final int _maxRuntimeHours;
+    private Map<String, List<Observation>> _observations = null;
+    private Map<String, Submission> _submissions = null;
+
+    //true if a history file could not be read, in which case the cache is incomplete and must not be written back over the files
+    private boolean _loadFailed = false;
+
+    public JobResourceHistory(File dir)
+    {
+        this(dir, DEFAULT_MAX_MEMORY_GB, DEFAULT_MAX_RUNTIME_HOURS);
+    }
+
+    public JobResourceHistory(File dir, int maxMemoryGb, int maxRuntimeHours)
+    {
+        _dir = dir;
+        _maxMemoryGb = maxMemoryGb;
+        _maxRuntimeHours = maxRuntimeHours;
+    }
+
+    /**
+     * @return The history stored in the home container's pipeline root, or null if this is not configured
+     */
+    @Nullable
+    public static synchronized JobResourceHistory get()
+    {
+        if (_instance == null)
+        {
+            PipeRoot pr = PipelineService.get().getPipelineRootSetting(ContainerManager.getHomeContainer());
+            if (pr == null)
+            {
+                return null;
+            }
+
+            _instance = new JobResourceHistory(new File(pr.getRootPath(), ClusterMaintenanceTask.MAINTENANCE_DIR));
+        }
+
+        return _instance;
+    }
+
+    public static class Submission
+    {
+        private final String _jobGuid;
+        private final String _taskId;
+        private final String _taskType;
+        private final long _inputBytes;
+        private final long _created;
+
+        public Submission(String jobGuid, String taskId, String taskType, long inputBytes, long created)
+        {
+            _jobGuid = jobGuid;
+            _taskId = taskId;
+            _taskType = taskType;
+            _inputBytes = inputBytes;
+            _created = created;
+        }
+
+        public static String getKey(String jobGuid, String taskId)
+        {
+            return jobGuid + "||" + taskId;
+        }
+
+        public String getKey()
+        {
+            return getKey(_jobGuid, _taskId);
+        }
+
+        public String getJobGuid()
+        {
+            return _jobGuid;
+        }
+
+        public String getTaskId()
+        {
+            return _taskId;
+        }
+
+        public String getTaskType()
+        {
+            return _taskType;
+        }
+
+        public long getInputBytes()
+        {
+            return _inputBytes;
+        }
+
+        public String toLine()
+        {
+            return StringUtils.join(Arrays.asList(_jobGuid, _taskId, _taskType, String.valueOf(_inputBytes), String.valueOf(_created)), '\t');
+        }
+
+        public static Submission fromLine(String line)
+        {
+            String[] tokens = line.split("\t");
+
+            return new Submission(tokens[0], tokens[1], tokens[2], Long.parseLong(tokens[3]), Long.parseLong(tokens[4]));
+        }
+    }
+
+    public static class Observation
+    {
+        private final String _taskType;
+        private final long _inputBytes;
+        private final long _peakMemoryBytes;
+        private final long _requestedMemoryBytes;
+        private final long _runtimeSeconds;
+        private final int _cpus;
+        private final long _cpuSeconds;
+        private final Outcome _outcome;
+
+        public Observation(String taskType, long inputBytes, long peakMemoryBytes, long requestedMemoryBytes, long runtimeSeconds, int cpus, long cpuSeconds, Outcome outcome)
+        {
+            _taskType = taskType;
+            _inputBytes = inputBytes;
+            _peakMemoryBytes = peakMemoryBytes;
+            _requestedMemoryBytes = requestedMemoryBytes;
+            _runtimeSeconds = runtimeSeconds;
+            _cpus = cpus;
+            _cpuSeconds = cpuSeconds;
+            _outcome = outcome;
+        }
+
+        public String getTaskType()
+        {
+            return _taskType;
+        }
+
+        public long getInputBytes()
+        {
+            return _inputBytes;
+        }
+
+        public Outcome getOutcome()
+        {
+            return _outcome;
+        }
+
+        public String toLine()
+        {
+            return StringUtils.join(Arrays.asList(_taskType, String.valueOf(_inputBytes), String.valueOf(_peakMemoryBytes), String.valueOf(_requestedMemoryBytes), String.valueOf(_runtimeSeconds), String.valueOf(_cpus), String.valueOf(_cpuSeconds), _outcome.name()), '\t');
+        }
+
+        public static Observation fromLine(String line)
+        {
+            String[] tokens = line.split("\t");
+
+            return new Observation(tokens[0], Long.parseLong(tokens[1]), Long.parseLong(tokens[2]), Long.parseLong(tokens[3]), Long.parseLong(tokens[4]), Integer.parseInt(tokens[5]), Long.parseLong(tokens[6]), Outcome.valueOf(tokens[7]));
+        }
+    }
+
+    public static class Estimate
+    {
+        private final int _memoryGb;
+        private final int _cpus;
+        private final int _runtimeHours;
+        private final int _observations;
+
+        public Estimate(int memoryGb, int cpus, int runtimeHours, int observations)
+        {
+            _memoryGb = memoryGb;
+            _cpus = cpus;
+            _runtimeHours = runtimeHours;
+            _observations = observations;
+        }
+
+        public int getMemoryGb()
+        {
+            return _memoryGb;
+        }
+
+        public int getCpus()
+        {
+            return _cpus;
+        }
+
+        public int getRuntimeHours()
+        {
+            return _runtimeHours;
+        }
+
+        /**
+         * @return The number of completed jobs this estimate is based on
+         */
+        public int getObservations()
+        {
+            return _observations;
+        }
+    }
+
+    /**
+     * @return An estimate based on prior jobs of this type and a similar input size, or null if there are too few of these
+     */
+    @Nullable
+    public synchronized Estimate estimate(String taskType, long inputBytes)
+    {
+        if (inputBytes <= 0)
+        {
+            return null;
+        }
+
+        List<Observation> similar = new ArrayList<>();
+        for (Observation o : getObservations(taskType))
+        {
+            if (o._inputBytes >= inputBytes / SIZE_RANGE && o._inputBytes <= inputBytes * SIZE_RANGE)
+            {
+                similar.add(o);
+            }
+        }
+
+        List<Observation> completed = new ArrayList<>();
+        for (Observation o : similar)
+        {
+            if (o._outcome == Outcome.COMPLETED && o._runtimeSeconds > 0)
+            {
+                completed.add(o);
+            }
+        }
+
+        if (completed.size() < MIN_OBSERVATIONS)
+        {
+            return null;
+        }
+
+        double[] peakMemory = new double[completed.size()];
+        double[] runtime = new double[completed.size()];
+        double[] cpusUsed = new double[completed.size()];
+        int maxCpus = 1;
+        for (int i = 0; i < completed.size(); i++)
+        {
+            Observation o = completed.get(i);
+            peakMemory[i] = o._peakMemoryBytes;
+            runtime[i] = o._runtimeSeconds;
+            cpusUsed[i] = (double)o._cpuSeconds / o._runtimeSeconds;
+            maxCpus = Math.max(maxCpus, o._cpus);
+        }
+
+        double memoryBytes = percentile(peakMemory, PERCENTILE) * MEMORY_MARGIN;
+        double runtimeSeconds = percentile(runtime, PERCENTILE) * RUNTIME_MARGIN;
+
+        //a similar job that was killed shows the estimate must be higher than what that job was given
+        for (Observation o : similar)
+        {
+            if (o._outcome == Outcome.OUT_OF_MEMORY)
+            {
+                memoryBytes = Math.max(memoryBytes, o._requestedMemoryBytes * FAILURE_MARGIN);
+            }
+            else if (o._outcome == Outcome.TIMEOUT)
+            {
+                runtimeSeconds = Math.max(runtimeSeconds, o._runtimeSeconds * FAILURE_MARGIN);
+            }
+        }
+
+        //NOTE: a single outlier or repeated failures could otherwise push the request beyond what any node can provide
+        int memoryGb = Math.min(_maxMemoryGb, Math.max(MIN_MEMORY_GB, (int)Math.ceil(memoryBytes / GB)));
+        int runtimeHours = Math.min(_maxRuntimeHours, Math.max(MIN_RUNTIME_HOURS, (int)Math.ceil(runtimeSeconds / 3600)));
+
+        //never request more CPUs than prior jobs were given, since their usage cannot show whether more would help
+        int cpus = Math.min(maxCpus, Math.max(1, (int)Math.ceil(percentile(cpusUsed, PERCENTILE) * CPU_MARGIN)));
+
+        return new Estimate(memoryGb, cpus, runtimeHours, completed.size());
+    }
+
+    private static double percentile(double[] values, double percentile)
+    {
+        double[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+
+        int idx = (int)Math.ceil(percentile * sorted.length) - 1;
+
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+
+    private List<Observation> getObservations(String taskType)
+    {
+        ensureLoaded();
+
+        return _observations.getOrDefault(taskType, Collections.emptyList());
+    }
+
+    public synchronized void addObservation(Observation o) throws IOException
+    {
+        ensureLoaded();
+
+        addToCache(o);
+        writeObservations();
+    }
+
+    private void addToCache(Observation o)
+    {
+        List<Observation> list = _observations.computeIfAbsent(o._taskType, x -> new ArrayList<>());
+        list.add(o);
+        if (list.size() > MAX_OBSERVATIONS_PER_TYPE)
+        {
+            list.remove(0);
+        }
+    }
+
+    public synchronized void addSubmission(Submission s) throws IOException
+    {
+        ensureLoaded();
+
+        _submissions.put(s.getKey(), s);
+        appendLines(new File(_dir, SUBMISSIONS_FILE), Collections.singletonList(s.toLine()));
+    }
+
+    /**
+     * @return The submissions not yet matched to an observation, excluding those from jobs still running
+     */
+    public synchronized List<Submission> getCompletedSubmissions(Collection<String> activeJobGuids)
+    {
+        ensureLoaded();
+
+        List<Submission> ret = new ArrayList<>();
+        for (Submission s : _submissions.values())
+        {
+            if (!activeJobGuids.contains(s._jobGuid))
+            {
+                ret.add(s);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Imports the usage files written by ClusterMaintenanceTask.RemoteWorkTask, each line of which is a submission key and the observation for that job.
+     * The matched submissions and any expired submissions are removed, and the imported files are deleted.
+     */
+    public synchronized void importUsage(Logger log) throws IOException
+    {
+        ensureLoaded();
+
+        File[] files = _dir.listFiles(f -> f.getName().startsWith(USAGE_FILE_PREFIX));
+        if (files == null)
+        {
+            return;
+        }
+
+        int imported = 0;
+        for (File f : files)
+        {
+            try (BufferedReader reader = Readers.getReader(f))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (StringUtils.isBlank(line))
+                    {
+                        continue;
+                    }
+
+                    String[] tokens = line.split("\t", 2);
+                    if (_submissions.remove(tokens[0]) != null)
+                    {
+                        Observation o = Observation.fromLine(tokens[1]);
+                        addToCache(o);
+                        imported++;
+                    }
+                }
+            }
+        }
+
+        long minCreated = System.currentTimeMillis() - SUBMISSION_EXPIRATION_MS;
+        _submissions.values().removeIf(s -> s._created < minCreated);
+
+        log.info("imported resource usage for " + imported + " jobs, " + _submissions.size() + " submissions remain pending");
+        if (imported > 0)
+        {
+            writeObservations();
+        }
+
+        if (_loadFailed)
+        {
+            log.error("The job resource history could not be read, so the submissions file will not be rewritten: " + _dir.getPath());
+            return;
+        }
+
+        File submissionsFile = new File(_dir, SUBMISSIONS_FILE);
+        try (PrintWriter writer = new PrintWriter(new FileWriter(submissionsFile, false)))
+        {
+            for (Submission s : _submissions.values())
+            {
+                writer.println(s.toLine());
+            }
+        }
+
+        for (File f : files)
+        {
+            FileUtils.deleteQuietly(f);
+        }
+    }
+
+    private void appendLines(File file, List<String> lines) throws IOException
+    {
+        if (lines.isEmpty())
+        {
+            return;
+        }
+
+        if (!_dir.exists())
+        {
+            _dir.mkdirs();
+        }
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file, true)))
+        {
+            for (String line : lines)
+            {
+                writer.println(line);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the observations file from the cache, so the file holds only the most recent jobs of each type rather than growing without limit
+     */
+    private void writeObservations() throws IOException
+    {
+        if (_loadFailed)
+        {
+            _log.error("The job resource history could not be read, so it will not be rewritten: " + _dir.getPath());
+            return;
+        }
+
+        if (!_dir.exists())
+        {
+            _dir.mkdirs();
+        }
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(new File(_dir, OBSERVATIONS_FILE), false)))
+        {
+            for (List<Observation> list : _observations.values())
+            {
+                for (Observation o : list)
+                {
+                    writer.println(o.toLine());
+                }
+            }
+        }
+    }
+
+    private void ensureLoaded()
+    {
+        if (_observations != null)
+        {
+            return;
+        }
+
+        _observations = new HashMap<>();
+        _submissions = new LinkedHashMap<>();
+        try
+        {
+            //NOTE: a malformed line, such as one truncated by a crash mid-write, is skipped so the remainder of the history is kept
+            for (String line : readLines(new File(_dir, OBSERVATIONS_FILE)))
+            {
+                try
+                {
+                    addToCache(Observation.fromLine(line));
+                }
+                catch (RuntimeException e)
+                {
+                    _log.warn("Skipping malformed line in " + OBSERVATIONS_FILE + ": " + line);
+                }
+            }
+
+            for (String line : readLines(new File(_dir, SUBMISSIONS_FILE)))
+            {
+                try
+                {
+                    Submission s = Submission.fromLine(line);
+                    _submissions.put(s.getKey(), s);
+                }
+                catch (RuntimeException e)
+                {
+                    _log.warn("Skipping malformed line in " + SUBMISSIONS_FILE + ": " + line);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            //NOTE: the history only refines the static rules, so a problem reading it should not prevent jobs from being submitted
+            _log.error("Unable to read job resource history from: " + _dir.getPath(), e);
+            _loadFailed = true;
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException
+    {
+        List<String> ret = new ArrayList<>();
+        if (!file.exists())
+        {
+            return ret;
+        }
+
+        try (BufferedReader reader = Readers.getReader(file))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (!StringUtils.isBlank(line))
+                {
+                    ret.add(line);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parses the output of: sacct -P -n --format=SACCT_FORMAT.  Each job is reported as one line for the allocation, followed by one per step
+     * (ie. 123.batch), which hold the peak memory (MaxRSS).
+     *
+     * @return The observation for each Slurm job ID, using the submission for that job
+     */
+    public static Map<String, Observation> parseSacct(List<String> lines, Map<String, Submission> clusterIdToSubmission)
+    {
+        Map<String, String[]> jobLines = new LinkedHashMap<>();
+        Map<String, Long> maxRss = new HashMap<>();
+        Map<String, Boolean> stepOutOfMemory = new HashMap<>();
+        for (String line : lines)
+        {
+            String[] tokens = line.split("\\|", -1);
+            if (tokens.length < 7)
+            {
+                continue;
+            }
+
+            String jobId = tokens[0].contains(".") ? tokens[0].substring(0, tokens[0].indexOf(".")) : tokens[0];
+            if (!clusterIdToSubmission.containsKey(jobId))
+            {
+                continue;
+            }
+
+            if (jobId.equals(tokens[0]))
+            {
+                jobLines.put(jobId, tokens);
+            }
+            else if (tokens[1].startsWith("OUT_OF_MEMORY"))
+            {
+                stepOutOfMemory.put(jobId, true);
+            }
+
+            maxRss.put(jobId, Math.max(maxRss.getOrDefault(jobId, 0L), parseMemory(tokens[3], 1)));
+        }
+
+        Map<String, Observation> ret = new LinkedHashMap<>();
+        for (String jobId : jobLines.keySet())
+        {
+            String[] tokens = jobLines.get(jobId);
+            Outcome outcome = parseState(tokens[1]);
+            if (outcome == null)
+            {
+                //still running or pending
+                continue;
+            }
+            else if (stepOutOfMemory.containsKey(jobId))
+            {
+                outcome = Outcome.OUT_OF_MEMORY;
+            }
+
+            int cpus = StringUtils.isBlank(tokens[5]) ? 1 : Integer.parseInt(tokens[5]);
+            Submission s = clusterIdToSubmission.get(jobId);
+            ret.put(jobId, new Observation(s._taskType, s._inputBytes, maxRss.get(jobId), parseMemory(tokens[4], cpus), parseDuration(tokens[2]), cpus, parseDuration(tokens[6]), outcome));
+        }
+
+        return ret;
+    }
+
+    @Nullable
+    private static Outcome parseState(String state)
+    {
+        if (state.startsWith("COMPLETED"))
+        {
+            return Outcome.COMPLETED;
+        }
+        else if (state.startsWith("OUT_OF_MEMORY"))
+        {
+            return Outcome.OUT_OF_MEMORY;
+        }
+        else if (state.startsWith("TIMEOUT"))
+        {
+            return Outcome.TIMEOUT;
+        }
+        else if (state.startsWith("RUNNING") || state.startsWith("PENDING") || state.startsWith("REQUEUED") || state.startsWith("SUSPENDED"))
+        {
+            return null;
+        }
+
+        return Outcome.FAILED;
+    }
+
+    /**
+     * Parses memory values such as 2048K, 48G or 48Gn.  Older versions of Slurm append 'c' to per-CPU requests, such as 4Gc.
+     * Values without a unit are in bytes.
+     */
+    private static long parseMemory(String value, int cpus)
+    {
+        value = StringUtils.trimToNull(value);
+        if (value == null)
+        {
+            return 0;
+        }
+
+        long multiplier = 1;
+        char last = value.charAt(value.length() - 1);
+        if (last == 'n' || last == 'c')
+        {
+            multiplier = last == 'c' ? cpus : 1;
+            value = value.substring(0, value.length() - 1);
+            last = value.charAt(value.length() - 1);
+        }
+
+        int unitIdx = "KMGT".indexOf(Character.toUpperCase(last));
+        if (unitIdx > -1)
+        {
+            multiplier *= 1L << (10 * (unitIdx + 1));
+            value = value.substring(0, value.length() - 1);
+        }
+
+        return (long)(Double.parseDouble(value) * multiplier);
+    }
+
+    /**
+     * Parses Slurm durations, [DD-][HH:]MM:SS[.mmm], into seconds
+     */
+    private static long parseDuration(String value)
+    {
+        value = StringUtils.trimToNull(value);
+        if (value == null)
+        {
+            return 0;
+        }
+
+        long days = 0;
+        if (value.contains("-"))
+        {
+            days = Long.parseLong(value.substring(0, value.indexOf("-")));
+            value = value.substring(value.indexOf("-") + 1);
+        }
+
+        double seconds = 0;
+        for (String part : value.split(":"))
+        {
+            seconds = seconds * 60 + Double.parseDouble(part);
+        }
+
+        return days * 24 * 3600 + Math.round(seconds);
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String TASK_TYPE = "SequenceAlignmentTask+STAR";
+
+        //the static rules in SequenceJobResourceAllocator give alignment tasks using STAR 48GB, regardless of input size
+        private static final int STATIC_MEMORY_GB = 48;
+
+        private static File getTempDir()
+        {
+            File ret = new File(System.getProperty("java.io.tmpdir"), "jobResourceHistory-" + System.nanoTime());
+            ret.mkdirs();
+
+            return ret;
+        }
+
+        /**
+         * Replays a synthetic series of jobs where peak memory and runtime scale with input size, sizing each from the history of those before it,
+         * and recording the resulting usage (or OOM) as the cluster would.
+         */
+        @Test
+        public void testReplayHistory() throws Exception
+        {
+            File dir = getTempDir();
+            try
+            {
+                JobResourceHistory history = new JobResourceHistory(dir);
+                Random r = new Random(0);
+
+                int jobs = 2000;
+                int fromHistory = 0;
+                int outOfMemory = 0;
+                long requestedGb = 0;
+                long staticGb = 0;
+                for (int i = 0; i < jobs; i++)
+                {
+                    long inputBytes = (long)(Math.exp(r.nextDouble() * Math.log(60)) * GB);
+                    long peakMemory = (long)((6 + 0.4 * inputBytes / GB) * (0.9 + 0.2 * r.nextDouble()) * GB);
+                    long runtime = (long)(1800 + 120 * inputBytes / GB * (0.8 + 0.4 * r.nextDouble()));
+
+                    Estimate estimate = history.estimate(TASK_TYPE, inputBytes);
+                    int memoryGb = estimate == null ? STATIC_MEMORY_GB : estimate.getMemoryGb();
+                    if (estimate != null)
+                    {
+                        fromHistory++;
+                        assertTrue(estimate.getObservations() >= MIN_OBSERVATIONS);
+                        assertTrue(estimate.getCpus() >= 1 && estimate.getCpus() <= 16);
+                        assertTrue("Runtime estimate too low", estimate.getRuntimeHours() * 3600L >= runtime * 0.9);
+                    }
+
+                    if (peakMemory > memoryGb * GB)
+                    {
+                        outOfMemory++;
+                        history.addObservation(new Observation(TASK_TYPE, inputBytes, (long)(memoryGb * GB), (long)(memoryGb * GB), runtime / 2, 16, runtime * 4, Outcome.OUT_OF_MEMORY));
+                    }
+                    else
+                    {
+                        history.addObservation(new Observation(TASK_TYPE, inputBytes, peakMemory, (long)(memoryGb * GB), runtime, 16, runtime * 6, Outcome.COMPLETED));
+                    }
+
+                    requestedGb += memoryGb;
+                    staticGb += STATIC_MEMORY_GB;
+                }
+
+                //once the history fills in, nearly every job is sized from it, using far less memory than the static rules with few OOM kills
+                assertTrue("Too few jobs sized from history: " + fromHistory, fromHistory > jobs * 0.95);
+                assertTrue("Too many OOM: " + outOfMemory, outOfMemory < jobs * 0.02);
+                assertTrue("Memory not reduced: " + requestedGb + " / " + staticGb, requestedGb < staticGb * 0.6);
+
+                //CPU usage averaged 6 of the 16 allocated
+                Estimate estimate = history.estimate(TASK_TYPE, (long)(10 * GB));
+                assertNotNull(estimate);
+                assertEquals(8, estimate.getCpus());
+
+                //the history should persist
+                JobResourceHistory reloaded = new JobResourceHistory(dir);
+                Estimate estimate2 = reloaded.estimate(TASK_TYPE, (long)(10 * GB));
+                assertNotNull(estimate2);
+                assertEquals(estimate.getMemoryGb(), estimate2.getMemoryGb());
+                assertEquals(estimate.getRuntimeHours(), estimate2.getRuntimeHours());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testThinHistory() throws Exception
+        {
+            File dir = getTempDir();
+            try
+            {
+                JobResourceHistory history = new JobResourceHistory(dir);
+                for (int i = 0; i < MIN_OBSERVATIONS - 1; i++)
+                {
+                    history.addObservation(new Observation(TASK_TYPE, (long)(10 * GB), (long)(8 * GB), (long)(48 * GB), 3600, 8, 3600 * 8, Outcome.COMPLETED));
+                }
+
+                //too few jobs, or jobs of a different type or size, fall back to the static rules
+                assertNull(history.estimate(TASK_TYPE, (long)(10 * GB)));
+
+                history.addObservation(new Observation(TASK_TYPE, (long)(10 * GB), (long)(8 * GB), (long)(48 * GB), 3600, 8, 3600 * 8, Outcome.COMPLETED));
+                Estimate estimate = history.estimate(TASK_TYPE, (long)(10 * GB));
+                assertNotNull(estimate);
+                assertEquals(10, estimate.getMemoryGb());
+                assertEquals(2, estimate.getRuntimeHours());
+                assertEquals(8, estimate.getCpus());
+
+                assertNull(history.estimate("SequenceAlignmentTask", (long)(10 * GB)));
+                assertNull(history.estimate(TASK_TYPE, (long)(25 * GB)));
+                assertNull(history.estimate(TASK_TYPE, 0));
+
+                //an OOM kill at a given level raises the estimate above it
+                history.addObservation(new Observation(TASK_TYPE, (long)(12 * GB), (long)(16 * GB), (long)(16 * GB), 1800, 8, 1800 * 8, Outcome.OUT_OF_MEMORY));
+                assertEquals(24, history.estimate(TASK_TYPE, (long)(10 * GB)).getMemoryGb());
+
+                //but never above the configured maximum
+                history.addObservation(new Observation(TASK_TYPE, (long)(12 * GB), (long)(40 * GB), (long)(40 * GB), 1800, 8, 1800 * 8, Outcome.OUT_OF_MEMORY));
+                history.addObservation(new Observation(TASK_TYPE, (long)(12 * GB), (long)(8 * GB), (long)(48 * GB), 30 * 3600, 8, 1800 * 8, Outcome.TIMEOUT));
+                Estimate clamped = history.estimate(TASK_TYPE, (long)(10 * GB));
+                assertEquals(DEFAULT_MAX_MEMORY_GB, clamped.getMemoryGb());
+                assertEquals(DEFAULT_MAX_RUNTIME_HOURS, clamped.getRuntimeHours());
+
+                JobResourceHistory limited = new JobResourceHistory(dir, 32, 12);
+                assertEquals(32, limited.estimate(TASK_TYPE, (long)(10 * GB)).getMemoryGb());
+                assertEquals(12, limited.estimate(TASK_TYPE, (long)(10 * GB)).getRuntimeHours());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testTrimHistory() throws Exception
+        {
+            File dir = getTempDir();
+            try
+            {
+                JobResourceHistory history = new JobResourceHistory(dir);
+                for (int i = 0; i < MAX_OBSERVATIONS_PER_TYPE + 100; i++)
+                {
+                    history.addObservation(new Observation(TASK_TYPE, (long)(10 * GB), (long)(8 * GB), (long)(48 * GB), 3600 + i, 8, 3600 * 8, Outcome.COMPLETED));
+                    history.addObservation(new Observation("SequenceAlignmentTask", (long)(10 * GB), (long)(8 * GB), (long)(48 * GB), 3600 + i, 8, 3600 * 8, Outcome.COMPLETED));
+                }
+
+                //the file is rewritten with only the most recent jobs of each type
+                assertEquals(2 * MAX_OBSERVATIONS_PER_TYPE, readLines(new File(dir, OBSERVATIONS_FILE)).size());
+
+                JobResourceHistory reloaded = new JobResourceHistory(dir);
+                List<Observation> observations = reloaded.getObservations(TASK_TYPE);
+                assertEquals(MAX_OBSERVATIONS_PER_TYPE, observations.size());
+                assertEquals(3600 + 100, observations.get(0)._runtimeSeconds);
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testMalformedHistory() throws Exception
+        {
+            File dir = getTempDir();
+            try
+            {
+                JobResourceHistory history = new JobResourceHistory(dir);
+                for (int i = 0; i < 10; i++)
+                {
+                    history.addObservation(new Observation(TASK_TYPE, (long)(10 * GB), (long)(8 * GB), (long)(48 * GB), 3600, 8, 3600 * 8, Outcome.COMPLETED));
+                }
+
+                //a truncated line in the middle of the file
+                File file = new File(dir, OBSERVATIONS_FILE);
+                List<String> lines = readLines(file);
+                lines.add(5, TASK_TYPE + "\t1073741824\t858");
+                FileUtils.writeLines(file, lines);
+
+                JobResourceHistory reloaded = new JobResourceHistory(dir);
+                assertEquals(10, reloaded.getObservations(TASK_TYPE).size());
+
+                reloaded.addObservation(new Observation(TASK_TYPE, (long)(10 * GB), (long)(8 * GB), (long)(48 * GB), 3600, 8, 3600 * 8, Outcome.COMPLETED));
+                assertEquals(11, readLines(file).size());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testImportSacct() throws Exception
+        {
+            File dir = getTempDir();
+            try
+            {
+                JobResourceHistory history = new JobResourceHistory(dir);
+                Submission s1 = new Submission("guid1", "task", TASK_TYPE, (long)(10 * GB), System.currentTimeMillis());
+                Submission s2 = new Submission("guid2", "task", TASK_TYPE, (long)(20 * GB), System.currentTimeMillis());
+                Submission s3 = new Submission("guid3", "task", TASK_TYPE, (long)(20 * GB), System.currentTimeMillis());
+                history.addSubmission(s1);
+                history.addSubmission(s2);
+                history.addSubmission(s3);
+
+                assertEquals(2, history.getCompletedSubmissions(Collections.singleton("guid3")).size());
+
+                Map<String, Submission> clusterIdToSubmission = new HashMap<>();
+                clusterIdToSubmission.put("101", s1);
+                clusterIdToSubmission.put("102", s2);
+                clusterIdToSubmission.put("103", s3);
+
+                List<String> sacct = Arrays.asList(
+                        "101|COMPLETED|01:30:00||48G|16|10:00:00",
+                        "101.batch|COMPLETED|01:30:00|20971520K||16|09:59:00.500",
+                        "101.extern|COMPLETED|01:30:00|1024K||16|00:00.001",
+                        "102|FAILED|1-00:00:05||3Gc|16|2-00:00:00",
+                        "102.batch|OUT_OF_MEMORY|1-00:00:05|47.5G||16|2-00:00:00",
+                        "103|RUNNING|00:10:00||48Gn|16|00:00:00",
+                        "104|COMPLETED|00:10:00||48G|16|00:00:00"
+                );
+
+                Map<String, Observation> observations = parseSacct(sacct, clusterIdToSubmission);
+                assertEquals(2, observations.size());
+
+                Observation o1 = observations.get("101");
+                assertEquals(Outcome.COMPLETED, o1.getOutcome());
+                assertEquals(20L * 1024 * 1024 * 1024, o1._peakMemoryBytes);
+                assertEquals(48L * 1024 * 1024 * 1024, o1._requestedMemoryBytes);
+                assertEquals(5400, o1._runtimeSeconds);
+                assertEquals(36000, o1._cpuSeconds);
+                assertEquals(16, o1._cpus);
+
+                Observation o2 = observations.get("102");
+                assertEquals(Outcome.OUT_OF_MEMORY, o2.getOutcome());
+                assertEquals(48L * 1024 * 1024 * 1024, o2._requestedMemoryBytes);
+                assertEquals(86405, o2._runtimeSeconds);
+                assertEquals(172800, o2._cpuSeconds);
+
+                //this is the file written by RemoteWorkTask
+                try (PrintWriter writer = new PrintWriter(new FileWriter(new File(dir, USAGE_FILE_PREFIX + "1.txt"))))
+                {
+                    writer.println(s1.getKey() + "\t" + o1.toLine());
+                    writer.println(s2.getKey() + "\t" + o2.toLine());
+                }
+
+                history.importUsage(_log);
+                assertEquals(1, history.getCompletedSubmissions(Collections.emptySet()).size());
+                assertEquals(2, history.getObservations(TASK_TYPE).size());
+                assertEquals(0, dir.listFiles(f -> f.getName().startsWith(USAGE_FILE_PREFIX)).length);
+
+                JobResourceHistory reloaded = new JobResourceHistory(dir);
+                assertEquals(2, reloaded.getObservations(TASK_TYPE).size());
+                assertEquals("guid3", reloaded.getCompletedSubmissions(Collections.emptySet()).get(0).getJobGuid());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package org.labkey.primeseq.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Accumulates per-site methylation calls from the Bismark methylation extractor.  Sites are stored per contig, keyed on the primitive position
+ * through an open-addressing table, with the four counters for each site packed into a single int array.  This replaces a TreeSet of string keys
+ * and two maps of boxed Integer arrays, which cost several hundred bytes per site.
+ * <p>
+ * The extractor output is not position-sorted, so every site is held until the end.  If a memory budget is given and the sites exceed it,
+ * they are written to disk as a sorted run of fixed-width binary records (contig, position, counts) and the in-memory store is cleared.
+ * forEachSite() then performs a k-way merge of the runs, summing the counts of any site present in more than one run.
+ */
+public class MethylationSiteAccumulator implements AutoCloseable
+{
+    public static final int METHYLATED_PLUS = 0;
+    public static final int METHYLATED_MINUS = 1;
+    public static final int NON_METHYLATED_PLUS = 2;
+    public static final int NON_METHYLATED_MINUS = 3;
+    private static final int COUNTERS = 4;
+
+    //NOTE: the estimate is only checked periodically, since it iterates the contigs
+    private static final int BUDGET_CHECK_INTERVAL = 1 << 16;
+
+    //NOTE: the report was previously sorted on keys of the form contig||position, which places chr10 ahead of chr1
+    public static final Comparator<String> CONTIG_ORDER = Comparator.comparing(contig -> contig + "||");
+
+    public interface SiteConsumer
+    {
+        void accept(String contig, int pos, int[] counts) throws IOException;
+    }
+
+    private final Map<String, ContigSites> _contigs = new HashMap<>();
+    private String _lastContigName = null;
+    private ContigSites _lastContig = null;
+    private long _totalSites = 0;
+    private long _sitesSinceCheck = 0;
+
+    private final @Nullable File _workDir;
+    private final long _maxBytes;
+    private final List<File> _runs = new ArrayList<>();
+    private boolean _createdWorkDir = false;
+    private final List<String> _contigNames = new ArrayList<>();
+    private final Map<String, Integer> _contigIds = new HashMap<>();
+
+    /**
+     * Holds all sites in memory
+     */
+    public MethylationSiteAccumulator()
+    {
+        this(null, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param workDir The directory for sorted runs, which are deleted on close()
+     * @param maxBytes The approximate heap the in-memory sites may use before they are written to disk
+     */
+    public MethylationSiteAccumulator(@Nullable File workDir, long maxBytes)
+    {
+        _workDir = workDir;
+        _maxBytes = workDir == null ? Long.MAX_VALUE : maxBytes;
+    }
+
+    public void add(String contig, int pos, boolean methylated, boolean plusStrand) throws IOException
+    {
+        int idx = getIndex(contig, pos);
+        _lastContig.counts[idx * COUNTERS + getCounter(methylated, plusStrand)]++;
+        spillIfNeeded();
+    }
+
+    /**
+     * Registers the site without incrementing any counter
+     */
+    public void addPosition(String contig, int pos) throws IOException
+    {
+        getIndex(contig, pos);
+        spillIfNeeded();
+    }
+
+    private int getIndex(String contig, int pos)
+    {
+        //NOTE: the extractor output is grouped by read, so consecutive calls are usually on the same contig
+        if (!contig.equals(_lastContigName))
+        {
+            _lastContig = _contigs.computeIfAbsent(contig, c -> new ContigSites());
+            _lastContigName = contig;
+        }
+
+        int idx = _lastContig.getOrCreate(pos);
+        if (_lastContig.isNew)
+        {
+            _totalSites++;
+            _sitesSinceCheck++;
+        }
+
+        return idx;
+    }
+
+    private static int getCounter(boolean methylated, boolean plusStrand)
+    {
+        return methylated ? (plusStrand ? METHYLATED_PLUS : METHYLATED_MINUS) : (plusStrand ? NON_METHYLATED_PLUS : NON_METHYLATED_MINUS);
+    }
+
+    /**
+     * The number of distinct sites.  Once sites have been written to disk, a site present in more than one run is counted once per run,
+     * so this is an upper bound.  The exact number is returned by forEachSite().
+     */
+    public long getTotalSites()
+    {
+        return _totalSites;
+    }
+
+    public int getTotalRuns()
+    {
+        return _runs.size();
+    }
+
+    /**
+     * Approximate heap used by the in-memory sites, in bytes
+     */
+    public long getEstimatedBytes()
+    {
+        long total = 0;
+        for (ContigSites sites : _contigs.values())
+        {
+            total += 4L * (sites.table.length + sites.positions.length + sites.counts.length);
+        }
+
+        return total;
+    }
+
+    public boolean isEmpty()
+    {
+        return _totalSites == 0;
+    }
+
+    private void spillIfNeeded() throws IOException
+    {
+        if (_maxBytes == Long.MAX_VALUE || _sitesSinceCheck < BUDGET_CHECK_INTERVAL)
+        {
+            return;
+        }
+
+        _sitesSinceCheck = 0;
+        if (getEstimatedBytes() > _maxBytes)
+        {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException
+    {
+        if (_contigs.isEmpty())
+        {
+            return;
+        }
+
+        if (!_workDir.exists())
+        {
+            _workDir.mkdirs();
+            _createdWorkDir = true;
+        }
+
+        File run = File.createTempFile("methylationSites", ".run", _workDir);
+        _runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16)))
+        {
+            forEachInMemorySite((contig, pos, counts) -> {
+                out.writeInt(_contigIds.computeIfAbsent(contig, c -> {
+                    _contigNames.add(c);
+                    return _contigNames.size() - 1;
+                }));
+                out.writeInt(pos);
+                for (int count : counts)
+                {
+                    out.writeInt(count);
+                }
+            });
+        }
+
+        _contigs.clear();
+        _lastContigName = null;
+        _lastContig = null;
+    }
+
+    /**
+     * Passes each site to the consumer, ordered by contig (see CONTIG_ORDER) and then position.  The counts array is reused between calls.
+     * @return The number of distinct sites
+     */
+    public long forEachSite(SiteConsumer consumer) throws IOException
+    {
+        if (_runs.isEmpty())
+        {
+            return forEachInMemorySite(consumer);
+        }
+
+        spill();
+
+        //rank the contigs once, so the merge compares ints rather than strings
+        Integer[] sortedIds = new Integer[_contigNames.size()];
+        for (int i = 0; i < sortedIds.length; i++)
+        {
+            sortedIds[i] = i;
+        }
+        Arrays.sort(sortedIds, (a, b) -> CONTIG_ORDER.compare(_contigNames.get(a), _contigNames.get(b)));
+
+        int[] ranks = new int[sortedIds.length];
+        for (int i = 0; i < sortedIds.length; i++)
+        {
+            ranks[sortedIds[i]] = i;
+        }
+
+        List<RunReader> readers = new ArrayList<>();
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, _runs.size()), (a, b) -> a.rank != b.rank ? Integer.compare(a.rank, b.rank) : Integer.compare(a.pos, b.pos));
+        try
+        {
+            for (File run : _runs)
+            {
+                RunReader reader = new RunReader(run, ranks);
+                readers.add(reader);
+                if (reader.next())
+                {
+                    queue.add(reader);
+                }
+            }
+
+            long total = 0;
+            int[] counts = new int[COUNTERS];
+            int contigId = -1;
+            int rank = -1;
+            int pos = 0;
+            while (!queue.isEmpty())
+            {
+                RunReader reader = queue.poll();
+                if (reader.rank != rank || reader.pos != pos)
+                {
+                    if (contigId != -1)
+                    {
+                        consumer.accept(_contigNames.get(contigId), pos, counts);
+                        total++;
+                    }
+
+                    contigId = reader.contigId;
+                    rank = reader.rank;
+                    pos = reader.pos;
+                    Arrays.fill(counts, 0);
+                }
+
+                for (int i = 0; i < COUNTERS; i++)
+                {
+                    counts[i] += reader.counts[i];
+                }
+
+                if (reader.next())
+                {
+                    queue.add(reader);
+                }
+            }
+
+            if (contigId != -1)
+            {
+                consumer.accept(_contigNames.get(contigId), pos, counts);
+                total++;
+            }
+
+            return total;
+        }
+        finally
+        {
+            for (RunReader reader : readers)
+            {
+                reader.close();
+            }
+        }
+    }
+
+    private long forEachInMemorySite(SiteConsumer consumer) throws IOException
+    {
+        Map<String, ContigSites> sorted = new TreeMap<>(CONTIG_ORDER);
+        sorted.putAll(_contigs);
+
+        long total = 0;
+        int[] counts = new int[COUNTERS];
+        for (Map.Entry<String, ContigSites> e : sorted.entrySet())
+        {
+            ContigSites sites = e.getValue();
+            for (int idx : sites.getSortedIndexes())
+            {
+                System.arraycopy(sites.counts, idx * COUNTERS, counts, 0, COUNTERS);
+                consumer.accept(e.getKey(), sites.positions[idx], counts);
+                total++;
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public void close()
+    {
+        for (File run : _runs)
+        {
+            if (run.exists())
+            {
+                run.delete();
+            }
+        }
+        _runs.clear();
+
+        if (_createdWorkDir)
+        {
+            _workDir.delete();
+            _createdWorkDir = false;
+        }
+    }
+
+    private static class RunReader implements AutoCloseable
+    {
+        private final DataInputStream _in;
+        private final int[] _ranks;
+
+        private int contigId;
+        private int rank;
+        private int pos;
+        private final int[] counts = new int[COUNTERS];
+
+        private RunReader(File run, int[] ranks) throws IOException
+        {
+            _in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+            _ranks = ranks;
+        }
+
+        private boolean next() throws IOException
+        {
+            try
+            {
+                contigId = _in.readInt();
+            }
+            catch (EOFException e)
+            {
+                return false;
+            }
+
+            rank = _ranks[contigId];
+            pos = _in.readInt();
+            for (int i = 0; i < COUNTERS; i++)
+            {
+                counts[i] = _in.readInt();
+            }
+
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+            try
+            {
+                _in.close();
+            }
+            catch (IOException e)
+            {
+                //ignore
+            }
+        }
+    }
+
+    private static class ContigSites
+    {
+        // open-addressing table of (index + 1), where 0 is empty
+        private int[] table = new int[1024];
+        private int[] positions = new int[512];
+        private int[] counts = new int[512 * COUNTERS];
+        private int size = 0;
+        private boolean isNew = false;
+
+        private int getOrCreate(int pos)
+        {
+            int mask = table.length - 1;
+            int slot = mix(pos) & mask;
+            while (table[slot] != 0)
+            {
+                int idx = table[slot] - 1;
+                if (positions[idx] == pos)
+                {
+                    isNew = false;
+                    return idx;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == positions.length)
+            {
+                positions = Arrays.copyOf(positions, size * 2);
+                counts = Arrays.copyOf(counts, size * 2 * COUNTERS);
+            }
+
+            positions[size] = pos;
+            table[slot] = size + 1;
+            size++;
+            isNew = true;
+
+            //keep the load factor under 0.5
+            if (size * 2 > table.length)
+            {
+                rehash();
+            }
+
+            return size - 1;
+        }
+
+        private void rehash()
+        {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int idx = 0; idx < size; idx++)
+            {
+                int slot = mix(positions[idx]) & mask;
+                while (table[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+
+                table[slot] = idx + 1;
+            }
+        }
+
+        private int[] getSortedIndexes()
+        {
+            long[] packed = new long[size];
+            for (int idx = 0; idx < size; idx++)
+            {
+                //NOTE: the position occupies the high bits, so sorting the packed values orders by position
+                packed[idx] = ((long)positions[idx] << 32) | idx;
+            }
+            Arrays.sort(packed);
+
+            int[] ret = new int[size];
+            for (int i = 0; i < size; i++)
+            {
+                ret[i] = (int)(packed[i] & 0xFFFFFFFFL);
+            }
+
+            return ret;
+        }
+
+        private static int mix(int pos)
+        {
+            int h = pos * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String[] CONTIGS = new String[]{"chr1", "chr10", "chr2", "chrX", "chr1_random"};
+
+        @Test
+        public void testAccumulation() throws Exception
+        {
+            //compare against the string-keyed approach this replaced:
+            Random r = new Random(1234);
+            Map<String, int[]> expected = new TreeMap<>();
+            MethylationSiteAccumulator acc = new MethylationSiteAccumulator();
+            for (int i = 0; i < 200000; i++)
+            {
+                String contig = CONTIGS[r.nextInt(CONTIGS.length)];
+                int pos = r.nextInt(50000);
+                boolean methylated = r.nextBoolean();
+                boolean plusStrand = r.nextBoolean();
+
+                acc.add(contig, pos, methylated, plusStrand);
+
+                String key = contig + "||" + String.format("%012d", pos);
+                int[] arr = expected.computeIfAbsent(key, k -> new int[4]);
+                arr[getCounter(methylated, plusStrand)]++;
+            }
+
+            assertEquals(expected.size(), acc.getTotalSites());
+
+            List<String> actualKeys = new ArrayList<>();
+            List<int[]> actualCounts = new ArrayList<>();
+            long total = acc.forEachSite((contig, pos, counts) -> {
+                actualKeys.add(contig + "||" + String.format("%012d", pos));
+                actualCounts.add(counts.clone());
+            });
+
+            assertEquals(expected.size(), total);
+            assertEquals(new ArrayList<>(expected.keySet()), actualKeys);
+            int i = 0;
+            for (int[] counts : expected.values())
+            {
+                assertArrayEquals(counts, actualCounts.get(i));
+                i++;
+            }
+        }
+
+        @Test
+        public void testSpill() throws Exception
+        {
+            File dir = Files.createTempDirectory("methylationSiteAccumulatorTest").toFile();
+            try (MethylationSiteAccumulator inMemory = new MethylationSiteAccumulator(); MethylationSiteAccumulator spilled = new MethylationSiteAccumulator(dir, 64 * 1024))
+            {
+                //the same calls, with a budget small enough to force several sorted runs.  sites recur across runs, so the merge must sum them:
+                Random r = new Random(5678);
+                for (int i = 0; i < 2000000; i++)
+                {
+                    String contig = CONTIGS[r.nextInt(CONTIGS.length)];
+                    int pos = r.nextInt(400000);
+                    boolean methylated = r.nextBoolean();
+                    boolean plusStrand = r.nextBoolean();
+
+                    inMemory.add(contig, pos, methylated, plusStrand);
+                    spilled.add(contig, pos, methylated, plusStrand);
+                }
+
+                assertTrue("Expected sites to be written to disk", spilled.getTotalRuns() > 1);
+
+                //compare digests of the two outputs, so the test itself does not need to hold every site
+                MessageDigest expected = MessageDigest.getInstance("SHA-256");
+                long expectedTotal = inMemory.forEachSite((contig, pos, counts) -> expected.update((contig + ":" + pos + ":" + Arrays.toString(counts) + "\n").getBytes(StandardCharsets.UTF_8)));
+
+                MessageDigest actual = MessageDigest.getInstance("SHA-256");
+                long actualTotal = spilled.forEachSite((contig, pos, counts) -> actual.update((contig + ":" + pos + ":" + Arrays.toString(counts) + "\n").getBytes(StandardCharsets.UTF_8)));
+
+                assertEquals(expectedTotal, actualTotal);
+                assertArrayEquals(expected.digest(), actual.digest());
+            }
+            finally
+            {
+                File[] leftovers = dir.listFiles();
+                FileUtils.deleteDirectory(dir);
+
+                assertEquals("Sorted runs should be deleted", 0, leftovers == null ? 0 : leftovers.length);
+            }
+        }
+    }
+}
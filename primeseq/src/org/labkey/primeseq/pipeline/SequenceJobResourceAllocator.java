@@ -20,8 +20,10 @@
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -70,6 +72,10 @@ private boolean isSequenceSequenceOutputHandlerTask(PipelineJob job)
     private Long _totalFileSize = null;
     private static final Long UNABLE_TO_DETERMINE = -1L;
 
+    private Set<String> _memoryIntensiveTools = null;
+    private JobResourceHistory.Estimate _estimate = null;
+    private boolean _estimateResolved = false;
+
     @Override
     public Integer getMaxRequestCpus(PipelineJob job)
     {
@@ -84,6 +90,13 @@ public Integer getMaxRequestCpus(PipelineJob job)
             }
         }
 
+        JobResourceHistory.Estimate estimate = getEstimate(job);
+        if (estimate != null)
+        {
+            job.getLogger().debug("setting CPUs to " + estimate.getCpus() + " based on " + estimate.getObservations() + " prior jobs of this type and size");
+            return estimate.getCpus();
+        }
+
         if (isSequenceNormalizationTask(job))
         {
             job.getLogger().debug("setting max CPUs to 8");
@@ -135,6 +148,16 @@ public Integer getMaxRequestMemory(PipelineJob job)
             }
         }
 
+        if (ret == null)
+        {
+            JobResourceHistory.Estimate estimate = getEstimate(job);
+            if (estimate != null)
+            {
+                job.getLogger().debug("setting memory to " + estimate.getMemoryGb() + " based on " + estimate.getObservations() + " prior jobs of this type and size");
+                return estimate.getMemoryGb();
+            }
+        }
+
         if (isSequenceNormalizationTask(job))
         {
             job.getLogger().debug("setting memory to 24");
@@ -153,11 +176,49 @@ public Integer getMaxRequestMemory(PipelineJob job)
             return null;
         }
 
-        boolean hasHaplotypeCaller = false;
-        boolean hasStar = false;
-        boolean hasBismark = false;
-        boolean hasBowtie2 = false;
+        if (isSequenceAlignmentTask(job))
+        {
+            if (ret == null)
+            {
+                if (totalFileSize <= 30e9)
+                {
+                    job.getLogger().debug("file size less than 30gb, setting memory to 24");
 
+                    ret = 24;
+                }
+                else
+                {
+                    job.getLogger().debug("file size greater than 30gb, setting memory to 48");
+
+                    ret = 48;
+                }
+            }
+        }
+
+        for (String tool : getMemoryIntensiveTools(job))
+        {
+            Integer orig = ret;
+            ret = ret == null ? 48 : Math.max(ret, 48);
+            if (!ret.equals(orig))
+            {
+                job.getLogger().debug("adjusting RAM for " + tool + " to: " + ret);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The tools used by this job that require at least 48GB under the static rules.  These are part of the task type used for the job's resource history.
+     */
+    private Set<String> getMemoryIntensiveTools(PipelineJob job)
+    {
+        if (_memoryIntensiveTools != null)
+        {
+            return _memoryIntensiveTools;
+        }
+
+        _memoryIntensiveTools = new LinkedHashSet<>();
         if (isSequenceSequenceOutputHandlerTask(job))
         {
             File jobXml = new File(job.getLogFile().getParentFile(), FileUtil.getBaseName(job.getLogFile()) + ".job.json.txt");
@@ -170,7 +231,7 @@ public Integer getMaxRequestMemory(PipelineJob job)
                     {
                         if (line.contains("HaplotypeCallerHandler"))
                         {
-                            hasHaplotypeCaller = true;
+                            _memoryIntensiveTools.add("HaplotypeCaller");
                             break;
                         }
                     }
@@ -184,93 +245,118 @@ public Integer getMaxRequestMemory(PipelineJob job)
 
         if (isSequenceAlignmentTask(job))
         {
-            if (ret == null)
-            {
-                if (totalFileSize <= 30e9)
-                {
-                    job.getLogger().debug("file size less than 30gb, setting memory to 24");
-
-                    ret = 24;
-                }
-                else
-                {
-                    job.getLogger().debug("file size greater than 30gb, setting memory to 48");
-
-                    ret = 48;
-                }
-            }
-
             Map<String, String> params = job.getParameters();
             if (params != null)
             {
                 if (params.containsKey(PipelineStep.CorePipelineStepTypes.analysis.name()) && params.get(PipelineStep.CorePipelineStepTypes.analysis.name()).contains("HaplotypeCallerAnalysis"))
                 {
-                    hasHaplotypeCaller = true;
+                    _memoryIntensiveTools.add("HaplotypeCaller");
                 }
 
                 if (params.containsKey(PipelineStep.CorePipelineStepTypes.alignment.name()) && params.get(PipelineStep.CorePipelineStepTypes.alignment.name()).contains("STAR"))
                 {
-                    hasStar = true;
+                    _memoryIntensiveTools.add("STAR");
                 }
 
                 if (params.containsKey(PipelineStep.CorePipelineStepTypes.alignment.name()) && params.get(PipelineStep.CorePipelineStepTypes.alignment.name()).contains("Bismark"))
                 {
-                    hasBismark = true;
+                    _memoryIntensiveTools.add("Bismark");
                 }
 
                 if (params.containsKey(PipelineStep.CorePipelineStepTypes.alignment.name()) && params.get(PipelineStep.CorePipelineStepTypes.alignment.name()).contains("Bowtie2"))
                 {
-                    hasBowtie2 = true;
+                    _memoryIntensiveTools.add("bowtie2");
                 }
             }
         }
 
-        if (hasHaplotypeCaller)
+        return _memoryIntensiveTools;
+    }
+
+    /**
+     * @return The key under which this job's resource usage is recorded: the active task, plus any memory-intensive tools it uses (ie. SequenceAlignmentTask+STAR)
+     */
+    private String getTaskType(PipelineJob job)
+    {
+        if (job.getActiveTaskId() == null)
         {
-            Integer orig = ret;
-            ret = ret == null ? 48 : Math.max(ret, 48);
-            if (!ret.equals(orig))
-            {
-                job.getLogger().debug("adjusting RAM for HaplotypeCaller to: " + ret);
-            }
+            return null;
         }
 
-        if (hasStar)
+        StringBuilder sb = new StringBuilder(job.getActiveTaskId().getNamespaceClass().getSimpleName());
+        for (String tool : getMemoryIntensiveTools(job))
         {
-            Integer orig = ret;
-            ret = ret == null ? 48 : Math.max(ret, 48);
-            if (!ret.equals(orig))
-            {
-                job.getLogger().debug("adjusting RAM for STAR to: " + ret);
-            }
+            sb.append("+").append(tool);
         }
 
-        if (hasBismark)
+        return sb.toString();
+    }
+
+    /**
+     * @return The resources used by prior jobs of this type and a similar input size, or null if there are too few of these and the static rules should be used
+     */
+    private JobResourceHistory.Estimate getEstimate(PipelineJob job)
+    {
+        if (_estimateResolved)
         {
-            Integer orig = ret;
-            ret = ret == null ? 48 : Math.max(ret, 48);
-            if (!ret.equals(orig))
-            {
-                job.getLogger().debug("adjusting RAM for Bismark to: " + ret);
-            }
+            return _estimate;
         }
 
-        if (hasBowtie2)
+        _estimateResolved = true;
+
+        String taskType = getTaskType(job);
+        JobResourceHistory history = JobResourceHistory.get();
+        if (taskType == null || history == null)
         {
-            Integer orig = ret;
-            ret = ret == null ? 48 : Math.max(ret, 48);
-            if (!ret.equals(orig))
-            {
-                job.getLogger().debug("adjusting RAM for bowtie2 to: " + ret);
-            }
+            return null;
         }
 
-        return ret;
+        Long totalFileSize = getFileSize(job);
+        if (UNABLE_TO_DETERMINE.equals(totalFileSize))
+        {
+            return null;
+        }
+
+        _estimate = history.estimate(taskType, totalFileSize);
+        if (_estimate == null)
+        {
+            job.getLogger().debug("too few prior jobs of type " + taskType + " with a similar input size, using default resources");
+        }
+
+        return _estimate;
+    }
+
+    private void recordSubmission(PipelineJob job)
+    {
+        String taskType = getTaskType(job);
+        JobResourceHistory history = JobResourceHistory.get();
+        if (taskType == null || history == null)
+        {
+            return;
+        }
+
+        Long totalFileSize = getFileSize(job);
+        if (UNABLE_TO_DETERMINE.equals(totalFileSize))
+        {
+            return;
+        }
+
+        try
+        {
+            history.addSubmission(new JobResourceHistory.Submission(job.getJobGUID(), job.getActiveTaskId().toString(), taskType, totalFileSize, System.currentTimeMillis()));
+        }
+        catch (IOException e)
+        {
+            //NOTE: the history is only used to size future jobs, so do not fail this submission
+            job.getLogger().warn("Unable to record job resource history: " + e.getMessage());
+        }
     }
 
     @Override
     public void addExtraSubmitScriptLines(PipelineJob job, RemoteExecutionEngine engine, List<String> lines)
     {
+        recordSubmission(job);
+
         if (job instanceof HasJobParams)
         {
             possiblyAddQOS(job, engine, lines);
@@ -336,6 +422,21 @@ private String getTime(PipelineJob job)
         return null;
     }
 
+    /**
+     * @return The time limit for jobs in the default queue: 36 hours, or less if prior jobs of this type and size needed less
+     */
+    private String getDefaultTime(PipelineJob job)
+    {
+        JobResourceHistory.Estimate estimate = getEstimate(job);
+        if (estimate != null && estimate.getRuntimeHours() < 36)
+        {
+            job.getLogger().debug("setting time to " + estimate.getRuntimeHours() + " hours based on " + estimate.getObservations() + " prior jobs of this type and size");
+            return "0-" + estimate.getRuntimeHours();
+        }
+
+        return "0-36";
+    }
+
     private void possiblyAddHighIO(PipelineJob job, RemoteExecutionEngine engine, List<String> lines)
     {
         Map<String, String> params = ((HasJobParams)job).getJobParams();
@@ -489,7 +590,7 @@ private void possiblyAddQOS(PipelineJob job, RemoteExecutionEngine engine, List<
                 {
                     case "Default":
                         qosName = null;
-                        time = time == null ? "0-36" : time;
+                        time = time == null ? getDefaultTime(job) : time;
                         break;
                     case "LongJobs":
                         qosName = "long_jobs";
@@ -520,7 +621,7 @@ private void possiblyAddQOS(PipelineJob job, RemoteExecutionEngine engine, List<
         {
             //otherwise add defaults
             lines.add("#SBATCH --partition=exacloud");
-            lines.add("#SBATCH --time=" + (time == null ? "0-36" : time));
+            lines.add("#SBATCH --time=" + (time == null ? getDefaultTime(job) : time));
         }
     }
 
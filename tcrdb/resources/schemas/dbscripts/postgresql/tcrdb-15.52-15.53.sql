@@ -0,0 +1,30 @@
+CREATE TABLE tcrdb.result_summary (
+  rowid serial,
+  keyType varchar(50),
+  keyValue int,
+
+  numResults int,
+  numTrbResults int,
+  numCDR3s int,
+  numCells int,
+  numCellsTrb int,
+  numRuns int,
+  distinctLoci varchar(1000),
+  distinctCDR3s text,
+  clonotypeTRA text,
+  clonotypeTRB text,
+  clonotypeTRD text,
+  clonotypeTRG text,
+
+  container entityid,
+  created timestamp,
+  createdby int,
+  modified timestamp,
+  modifiedby int,
+
+  constraint PK_result_summary PRIMARY KEY (rowid)
+);
+
+CREATE UNIQUE INDEX IDX_result_summary_key ON tcrdb.result_summary (keyType, keyValue);
+
+SELECT core.executeJavaUpgradeCode('rebuildResultSummary');
@@ -0,0 +1,30 @@
+CREATE TABLE tcrdb.result_summary (
+  rowid int IDENTITY(1,1),
+  keyType varchar(50),
+  keyValue int,
+
+  numResults int,
+  numTrbResults int,
+  numCDR3s int,
+  numCells int,
+  numCellsTrb int,
+  numRuns int,
+  distinctLoci varchar(1000),
+  distinctCDR3s varchar(max),
+  clonotypeTRA varchar(max),
+  clonotypeTRB varchar(max),
+  clonotypeTRD varchar(max),
+  clonotypeTRG varchar(max),
+
+  container entityid,
+  created datetime,
+  createdby int,
+  modified datetime,
+  modifiedby int,
+
+  constraint PK_result_summary PRIMARY KEY (rowid)
+);
+
+CREATE UNIQUE INDEX IDX_result_summary_key ON tcrdb.result_summary (keyType, keyValue);
+
+EXEC core.executeJavaUpgradeCode 'rebuildResultSummary';
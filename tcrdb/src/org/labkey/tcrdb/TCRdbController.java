@@ -39,7 +39,6 @@
 import org.labkey.api.query.QueryAction;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
-import org.labkey.api.reader.Readers;
 import org.labkey.api.security.IgnoresTermsOfUse;
 import org.labkey.api.security.RequiresPermission;
 import org.labkey.api.security.permissions.AdminPermission;
@@ -54,16 +53,17 @@
 import org.labkey.api.view.HtmlView;
 import org.labkey.api.view.NavTree;
 import org.labkey.api.view.SpringErrorView;
+import org.labkey.api.view.WebPartView;
+import org.labkey.tcrdb.pipeline.MiXCRAlignmentExporter;
 import org.labkey.tcrdb.pipeline.MiXCRWrapper;
 import org.springframework.validation.BindException;
 import org.springframework.validation.Errors;
 import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.StringWriter;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -124,25 +124,25 @@ public ModelAndView getView(ExportAlignmentsForm form, BindException errors) thr
             List<Integer> rowIds = new ArrayList<>(Arrays.asList(form.getAssayRowIds()));
 
             TableSelector ts = new TableSelector(ti, new SimpleFilter(FieldKey.fromString("rowid"), rowIds, CompareType.IN), null);
-            final StringWriter writer = new StringWriter();
+            final List<String> messages = new ArrayList<>();
 
             ts.forEach(AssayRecord.class, r -> {
                 if (r.getVdjFile() == null)
                 {
-                    writer.write("ERROR: Row lacks VDJCA file: " + r.getRowId() + "\n");
+                    messages.add("ERROR: Row lacks VDJCA file: " + r.getRowId());
                     return;
                 }
 
                 ExpData d = ExperimentService.get().getExpData(r.getVdjFile());
                 if (d == null)
                 {
-                    writer.write("ERROR: Unable to find VDJCA file for row: " + r.getRowId() + ", ExpData: " + r.getVdjFile() + "\n");
+                    messages.add("ERROR: Unable to find VDJCA file for row: " + r.getRowId() + ", ExpData: " + r.getVdjFile());
                     return;
                 }
 
                 if (!d.getFile().exists())
                 {
-                    writer.write("ERROR: Unable to find VDJCA file for row: " + r.getRowId() + ", file does not exist: " + d.getFile().getPath() + "\n");
+                    messages.add("ERROR: Unable to find VDJCA file for row: " + r.getRowId() + ", file does not exist: " + d.getFile().getPath());
                     return;
                 }
 
@@ -160,124 +160,119 @@ public ModelAndView getView(ExportAlignmentsForm form, BindException errors) thr
                 return new SpringErrorView(errors);
             }
 
-            SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd");
+            List<String> args = new ArrayList<>();
+            if (StringUtils.trimToNull(form.getCdr3Equals()) != null)
+            {
+                args.add("--cdr3-equals");
+                args.add(form.getCdr3Equals());
+            }
+
+            if (StringUtils.trimToNull(form.getReadContains()) != null)
+            {
+                args.add("--read-contains");
+                args.add(form.getReadContains());
+            }
+
+            //NOTE: exports run in the background and are cached, so this request never waits on MiXCR
+            boolean running = false;
+            Map<File, MiXCRAlignmentExporter.Status> statusMap = new HashMap<>();
             for (File f : VDJMap.keySet())
             {
-                File tmp = File.createTempFile("mixcr", ".txt");
-                MiXCRWrapper wrapper = new MiXCRWrapper(_log);
-                //TODO:
-                //wrapper.setLibraryPath();
-                List<String> args = new ArrayList<>();
-                if (StringUtils.trimToNull(form.getCdr3Equals()) != null)
+                MiXCRAlignmentExporter.Status status = MiXCRAlignmentExporter.getOrSubmit(f, args);
+                statusMap.put(f, status);
+                running = running || status == MiXCRAlignmentExporter.Status.RUNNING;
+            }
+
+            if (running)
+            {
+                return new HtmlView("MiXCR Alignments", "The alignments are being exported in the background. <a href=\"" + PageFlowUtil.filter(getViewContext().getActionURL()) + "\">Refresh this page</a> to check for results.");
+            }
+
+            //mixcr exportReadsForClones index_file alignments.vdjca.gz 0 1 2 33 54 reads.fastq.gz
+            //mixcr exportAlignmentsPretty input.vdjca test.txt
+
+            return new AlignmentsView(VDJMap, statusMap, args, messages);
+        }
+
+        @Override
+        public void addNavTrail(NavTree root)
+        {
+            root.addChild("TCR Data Export"); //necessary to set page title, it seems
+        }
+    }
+
+    private static class AlignmentsView extends WebPartView<Object>
+    {
+        private final Map<File, List<AssayRecord>> _vdjMap;
+        private final Map<File, MiXCRAlignmentExporter.Status> _statusMap;
+        private final List<String> _args;
+        private final List<String> _messages;
+
+        public AlignmentsView(Map<File, List<AssayRecord>> vdjMap, Map<File, MiXCRAlignmentExporter.Status> statusMap, List<String> args, List<String> messages)
+        {
+            super("MiXCR Alignments");
+            _vdjMap = vdjMap;
+            _statusMap = statusMap;
+            _args = args;
+            _messages = messages;
+        }
+
+        @Override
+        protected void renderView(Object model, PrintWriter out) throws Exception
+        {
+            //NOTE: the cached export is copied to the response, rather than building the page in memory
+            SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd");
+            out.write("<div style=\"font-family:courier,Courier New,monospace;white-space:nowrap;padding:5px;\"><pre>");
+            for (String message : _messages)
+            {
+                out.write(message + '\n');
+            }
+
+            for (File f : _vdjMap.keySet())
+            {
+                if (_statusMap.get(f) != MiXCRAlignmentExporter.Status.READY)
                 {
-                    args.add("--cdr3-equals");
-                    args.add(form.getCdr3Equals());
+                    out.write("Unable to run export alignments for: " + f.getName() + "\n");
+                    MiXCRAlignmentExporter.clearFailure(f, _args);
+                    continue;
                 }
 
-                if (StringUtils.trimToNull(form.getReadContains()) != null)
+                out.write("File: " + f.getName() + '\n');
+                out.write("Result Rows From This File: " + '\n');
+                for (AssayRecord r : _vdjMap.get(f))
                 {
-                    args.add("--read-contains");
-                    args.add(form.getReadContains());
+                    out.write("Sample: " + r.getSampleName() + '\n');
+                    out.write("Sample Date: " + (r.getDate() == null ? "" : fmt.format(r.getDate())) + '\n');
+                    out.write("CDR3: " + coalesce(r.getCDR3()) + '\n');
+                    out.write("vHit: " + coalesce(r.getvHit()) + '\n');
+                    out.write("dHit: " + coalesce(r.getdHit()) + '\n');
+                    out.write("jHit: " + coalesce(r.getjHit()) + '\n');
+                    out.write("cHit: " + coalesce(r.getcHit()) + '\n');
+                    out.write("Read Count: " + coalesce(r.getCount()) + '\n');
+                    out.write("Fraction: " + coalesce(r.getFraction()) + '\n');
+                    out.write("Comments: " + coalesce(r.getComment()) + '\n');
+                    out.write('\n');
                 }
+                out.write('\n');
 
-                try
+                if (!MiXCRAlignmentExporter.copyCached(f, _args, out))
                 {
-                    wrapper.doExportAlignmentsPretty(f, tmp, args);
-
-                    writer.write("File: " + f.getName() + '\n');
-                    writer.write("Result Rows From This File: " + '\n');
-                    for (AssayRecord r : VDJMap.get(f))
-                    {
-                        writer.write("Sample: " + r.getSampleName() + '\n');
-                        writer.write("Sample Date: " + (r.getDate() == null ? "" : fmt.format(r.getDate())) + '\n');
-                        writer.write("CDR3: " + coalesce(r.getCDR3()) + '\n');
-                        writer.write("vHit: " + coalesce(r.getvHit()) + '\n');
-                        writer.write("dHit: " + coalesce(r.getdHit()) + '\n');
-                        writer.write("jHit: " + coalesce(r.getjHit()) + '\n');
-                        writer.write("cHit: " + coalesce(r.getcHit()) + '\n');
-                        writer.write("Read Count: " + coalesce(r.getCount()) + '\n');
-                        writer.write("Fraction: " + coalesce(r.getFraction()) + '\n');
-                        writer.write("Comments: " + coalesce(r.getComment()) + '\n');
-                        writer.write('\n');
-                    }
-                    writer.write('\n');
-                    try (BufferedReader reader = Readers.getReader(new FileInputStream(tmp)))
-                    {
-                        String line;
-                        boolean inAlignmentBlock = false;
-                        while ((line = reader.readLine()) != null)
-                        {
-                            line = line.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
-
-                            String trimmed = StringUtils.trimToEmpty(line);
-                            if (StringUtils.isEmpty(trimmed))
-                            {
-                                inAlignmentBlock = false;
-                            }
-
-                            //Highlight mismatches
-                            if (inAlignmentBlock)
-                            {
-                                String[] tokens = trimmed.split("( )+");
-                                String alignmentRaw = tokens[2];
-                                StringBuilder sb = new StringBuilder();
-                                for (int i=0; i<alignmentRaw.length();i++)
-                                {
-                                    char c = alignmentRaw.charAt(i);
-                                    if (Character.isUpperCase(c))
-                                    {
-                                        sb.append("<span style=\"background: yellow;\">");
-                                        sb.append(c);
-                                        sb.append("</span>");
-                                    }
-                                    else
-                                    {
-                                        sb.append(c);
-                                    }
-                                }
-
-                                line = line.replaceAll(alignmentRaw, sb.toString());
-                            }
-
-                            writer.write(line + '\n');
-
-                            if (trimmed.startsWith("Target"))
-                            {
-                                inAlignmentBlock = true;
-                            }
-                        }
-                    }
-
-                    writer.write('\n');
-                    writer.write("<hr>");
-                    writer.write('\n');
-                    writer.write('\n');
-
-                    tmp.delete();
+                    out.write("The export for this file has expired, please reload the page\n");
                 }
-                catch (PipelineJobException e){
-                    writer.write("Unable to run export alignments\n");
 
-                    _log.error("Unable to run exportAlignments:\n" + StringUtils.join(wrapper.getCommandsExecuted(), "\n"), e);
-                }
+                out.write('\n');
+                out.write("<hr>");
+                out.write('\n');
+                out.write('\n');
             }
 
-            //mixcr exportReadsForClones index_file alignments.vdjca.gz 0 1 2 33 54 reads.fastq.gz
-            //mixcr exportAlignmentsPretty input.vdjca test.txt
-
-            return new HtmlView("MiXCR Alignments", "<div style=\"font-family:courier,Courier New,monospace;white-space:nowrap;padding:5px;\"><pre>" + writer.toString() + "</pre></div>");
+            out.write("</pre></div>");
         }
 
         private String coalesce(Object s)
         {
             return s == null ? "None" : s.toString();
         }
-
-        @Override
-        public void addNavTrail(NavTree root)
-        {
-            root.addChild("TCR Data Export"); //necessary to set page title, it seems
-        }
     }
 
     public static class AssayRecord
@@ -997,6 +992,39 @@ public URLHelper getSuccessURL(CreateGenomeFromMixcrForm form)
         }
     }
 
+    @RequiresPermission(AdminPermission.class)
+    public class RebuildResultSummaryAction extends ConfirmAction<Object>
+    {
+        @Override
+        public ModelAndView getConfirmView(Object form, BindException errors) throws Exception
+        {
+            setTitle("Rebuild TCR Result Summary");
+
+            return new HtmlView("This will recalculate the TCR result summary (the counts and clonotypes shown on the readset, analysis and cDNA grids) for every analysis with TCR results in this folder.  This is normally kept current as data is imported or deleted, and is only needed after results are changed outside of the pipeline.  Do you want to continue?");
+        }
+
+        @Override
+        public boolean handlePost(Object form, BindException errors) throws Exception
+        {
+            TCRdbManager.get().rebuildResultSummary(getUser(), getContainer());
+
+            return true;
+        }
+
+        @Override
+        public void validateCommand(Object form, Errors errors)
+        {
+
+        }
+
+        @NotNull
+        @Override
+        public URLHelper getSuccessURL(Object form)
+        {
+            return QueryService.get().urlFor(getUser(), getContainer(), QueryAction.executeQuery, TCRdbSchema.NAME, TCRdbSchema.TABLE_RESULT_SUMMARY);
+        }
+    }
+
     public static class CreateGenomeFromMixcrForm
     {
         private Integer _rowId;
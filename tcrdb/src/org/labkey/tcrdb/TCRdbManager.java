@@ -24,12 +24,26 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.assay.AssayProtocolSchema;
+import org.labkey.api.assay.AssayProvider;
+import org.labkey.api.assay.AssayService;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
+import org.labkey.api.exp.api.ExpProtocol;
 import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.query.FieldKey;
@@ -48,15 +62,27 @@
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class TCRdbManager
 {
     private static final TCRdbManager _instance = new TCRdbManager();
     private static final Logger _log = LogManager.getLogger(TCRdbManager.class);
 
+    public static final String SUMMARY_KEY_ANALYSIS = "analysis";
+    public static final String SUMMARY_KEY_READSET = "readset";
+    public static final String SUMMARY_KEY_CDNA = "cdna";
+    public static final List<String> SUMMARY_CLONOTYPE_LOCI = Collections.unmodifiableList(Arrays.asList("TRA", "TRB", "TRD", "TRG"));
+    private static final int SUMMARY_IN_CLAUSE_SIZE = 500;
+
     private TCRdbManager()
     {
 
@@ -273,6 +299,230 @@ public void createGenomeFromMixcrDb(int mixcrRowId, User u, Container c) throws
         }
     }
 
+    /**
+     * Recalculates the rows of tcrdb.result_summary affected by these analyses: one per analysis, one per readset of those analyses and
+     * one per cDNA with results from them.  cDNAs whose results were just deleted should be supplied in extraCDNAs, since they can no longer be found from the analyses.
+     *
+     * A failure here is logged rather than thrown, since the summary is derived from results that have already been saved, and can be rebuilt.
+     * If the caller has an outer transaction, that transaction will still be rolled back.
+     */
+    public void refreshResultSummary(User u, Container c, Collection<Integer> analysisIds, Collection<Integer> extraCDNAs)
+    {
+        Container target = c.isWorkbookOrTab() ? c.getParent() : c;
+        AssayProtocolSchema schema = getAssaySchema(u, target);
+        if (schema == null || analysisIds.isEmpty())
+        {
+            return;
+        }
+
+        TableInfo data = schema.getTable("data");
+        TableInfo runs = schema.getTable("runs");
+        TableInfo analyses = QueryService.get().getUserSchema(u, target, TCRdbSchema.SEQUENCE_ANALYSIS).getTable("sequence_analyses");
+
+        Set<Integer> readsets = new HashSet<>();
+        Set<Integer> cDNAs = new HashSet<>(extraCDNAs);
+        List<Integer> analysisIdList = new ArrayList<>(analysisIds);
+        for (int i = 0; i < analysisIdList.size(); i += SUMMARY_IN_CLAUSE_SIZE)
+        {
+            List<Integer> chunk = analysisIdList.subList(i, Math.min(analysisIdList.size(), i + SUMMARY_IN_CLAUSE_SIZE));
+            readsets.addAll(new TableSelector(analyses, PageFlowUtil.set("readset"), new SimpleFilter(FieldKey.fromString("rowid"), chunk, CompareType.IN), null).getArrayList(Integer.class));
+            cDNAs.addAll(new TableSelector(data, PageFlowUtil.set("cDNA"), new SimpleFilter(FieldKey.fromString("analysisId"), chunk, CompareType.IN), null).getArrayList(Integer.class));
+        }
+        readsets.remove(null);
+        cDNAs.remove(null);
+
+        try (DbScope.Transaction transaction = TCRdbSchema.getInstance().getSchema().getScope().ensureTransaction())
+        {
+            lockResultSummary();
+
+            updateResultSummary(u, target, data, runs, SUMMARY_KEY_ANALYSIS, "analysisId", analysisIds);
+            updateResultSummary(u, target, data, runs, SUMMARY_KEY_READSET, "analysisId/readset", readsets);
+            updateResultSummary(u, target, data, null, SUMMARY_KEY_CDNA, "cDNA", cDNAs);
+
+            transaction.commit();
+        }
+        catch (RuntimeException e)
+        {
+            _log.error("Unable to refresh the TCR result summary for analyses: " + StringUtils.join(analysisIds, ";") + ".  This can be rebuilt using rebuildResultSummary()", e);
+        }
+    }
+
+    /**
+     * Each refresh deletes and re-inserts the rows for its keys.  Two imports for analyses that share a readset or cDNA would otherwise both delete,
+     * and the second insert would violate the unique index on (keyType, keyValue).  This takes a table lock that is held until the transaction ends,
+     * which serializes refreshes (including across servers) while still allowing the summary to be read.
+     */
+    private void lockResultSummary()
+    {
+        TableInfo summaryTable = TCRdbSchema.getInstance().getSchema().getTable(TCRdbSchema.TABLE_RESULT_SUMMARY);
+        DbScope scope = summaryTable.getSchema().getScope();
+        if (scope.getSqlDialect().isPostgreSQL())
+        {
+            new SqlExecutor(scope).execute(new SQLFragment("LOCK TABLE " + summaryTable.getSelectName() + " IN SHARE ROW EXCLUSIVE MODE"));
+        }
+        else if (scope.getSqlDialect().isSqlServer())
+        {
+            new SqlSelector(scope, new SQLFragment("SELECT COUNT(*) FROM " + summaryTable.getSelectName() + " WITH (UPDLOCK, TABLOCK, HOLDLOCK)")).getObject(Integer.class);
+        }
+    }
+
+    /**
+     * Rebuilds tcrdb.result_summary for every analysis with TCR results in this container
+     */
+    public void rebuildResultSummary(User u, Container c)
+    {
+        Container target = c.isWorkbookOrTab() ? c.getParent() : c;
+        AssayProtocolSchema schema = getAssaySchema(u, target);
+        if (schema == null)
+        {
+            return;
+        }
+
+        TableInfo runs = schema.getTable("runs");
+        Set<Integer> analysisIds = new HashSet<>(new TableSelector(runs, PageFlowUtil.set("analysisId"), null, null).getArrayList(Integer.class));
+        analysisIds.remove(null);
+
+        _log.info("rebuilding TCR result summary for " + analysisIds.size() + " analyses");
+        refreshResultSummary(u, target, analysisIds, Collections.emptySet());
+    }
+
+    @Nullable
+    private AssayProtocolSchema getAssaySchema(User u, Container c)
+    {
+        AssayProvider ap = AssayService.get().getProvider("TCRdb");
+        if (ap == null)
+        {
+            return null;
+        }
+
+        List<ExpProtocol> protocols = AssayService.get().getAssayProtocols(c, ap);
+        if (protocols.size() != 1)
+        {
+            return null;
+        }
+
+        return ap.createProtocolSchema(u, c, protocols.get(0), null);
+    }
+
+    private void updateResultSummary(User u, Container c, TableInfo data, @Nullable TableInfo runs, String keyType, String keyField, Collection<Integer> keys)
+    {
+        TableInfo summaryTable = TCRdbSchema.getInstance().getSchema().getTable(TCRdbSchema.TABLE_RESULT_SUMMARY);
+        FieldKey keyFieldKey = FieldKey.fromString(keyField);
+        List<Integer> keyList = new ArrayList<>(keys);
+        for (int i = 0; i < keyList.size(); i += SUMMARY_IN_CLAUSE_SIZE)
+        {
+            List<Integer> chunk = keyList.subList(i, Math.min(keyList.size(), i + SUMMARY_IN_CLAUSE_SIZE));
+            Map<Integer, ResultSummary> summaries = new HashMap<>();
+
+            //NOTE: these match the filters previously applied by TCRdbTableCustomizer
+            SimpleFilter filter = new SimpleFilter(keyFieldKey, chunk, CompareType.IN);
+            filter.addCondition(FieldKey.fromString("locus"), "None", CompareType.NEQ_OR_NULL);
+            filter.addCondition(FieldKey.fromString("disabled"), true, CompareType.NEQ_OR_NULL);
+
+            final Map<FieldKey, ColumnInfo> cols = QueryService.get().getColumns(data, Arrays.asList(keyFieldKey, FieldKey.fromString("CDR3"), FieldKey.fromString("locus"), FieldKey.fromString("fraction"), FieldKey.fromString("count")));
+            new TableSelector(data, cols.values(), filter, null).forEachResults(rs -> {
+                Integer key = toInteger(rs.getObject(keyFieldKey));
+                Object fraction = rs.getObject(FieldKey.fromString("fraction"));
+                summaries.computeIfAbsent(key, k -> new ResultSummary()).add(rs.getString(FieldKey.fromString("CDR3")), rs.getString(FieldKey.fromString("locus")), fraction == null ? null : ((Number)fraction).doubleValue(), toInteger(rs.getObject(FieldKey.fromString("count"))));
+            });
+
+            //NOTE: a large import is saved as several runs for one analysis, so this counts distinct analyses.  A run without an analysis counts on its own.
+            if (runs != null)
+            {
+                final Map<FieldKey, ColumnInfo> runCols = QueryService.get().getColumns(runs, Arrays.asList(keyFieldKey, FieldKey.fromString("analysisId"), FieldKey.fromString("RowId")));
+                new TableSelector(runs, runCols.values(), new SimpleFilter(keyFieldKey, chunk, CompareType.IN), null).forEachResults(rs -> {
+                    Object analysisId = rs.getObject(FieldKey.fromString("analysisId"));
+                    summaries.computeIfAbsent(toInteger(rs.getObject(keyFieldKey)), k -> new ResultSummary()).runs.add(analysisId == null ? "run:" + rs.getObject(FieldKey.fromString("RowId")) : "analysis:" + analysisId);
+                });
+            }
+
+            SQLFragment deleteSql = new SQLFragment("DELETE FROM " + summaryTable.getSelectName() + " WHERE keyType = ? AND keyValue IN (" + StringUtils.repeat("?", ",", chunk.size()) + ")", keyType);
+            deleteSql.addAll(chunk);
+            new SqlExecutor(summaryTable.getSchema()).execute(deleteSql);
+
+            for (Integer key : summaries.keySet())
+            {
+                Map<String, Object> row = summaries.get(key).toRow();
+                row.put("keyType", keyType);
+                row.put("keyValue", key);
+                row.put("container", c.getId());
+                Table.insert(u, summaryTable, row);
+            }
+        }
+    }
+
+    @Nullable
+    private static Integer toInteger(@Nullable Object val)
+    {
+        return val == null ? null : ((Number)val).intValue();
+    }
+
+    private static class ResultSummary
+    {
+        private int numResults = 0;
+        private int numTrbResults = 0;
+        private final Set<String> runs = new HashSet<>();
+        private Integer numCells = null;
+        private Integer numCellsTrb = null;
+        private final Set<String> cdr3s = new TreeSet<>();
+        private final Set<String> loci = new TreeSet<>();
+        private final Map<String, Set<String>> clonotypesByLocus = new HashMap<>();
+
+        public void add(@Nullable String cdr3, @Nullable String locus, @Nullable Double fraction, @Nullable Integer count)
+        {
+            numResults++;
+            boolean isTrb = "TRB".equals(locus);
+            if (isTrb)
+            {
+                numTrbResults++;
+            }
+
+            if (count != null)
+            {
+                numCells = numCells == null ? count : numCells + count;
+                if (isTrb)
+                {
+                    numCellsTrb = numCellsTrb == null ? count : numCellsTrb + count;
+                }
+            }
+
+            if (cdr3 != null)
+            {
+                cdr3s.add(cdr3);
+            }
+
+            if (locus != null)
+            {
+                loci.add(locus);
+            }
+
+            if (cdr3 != null && locus != null && fraction != null && fraction >= 0.05)
+            {
+                clonotypesByLocus.computeIfAbsent(locus, k -> new TreeSet<>()).add(cdr3);
+            }
+        }
+
+        public Map<String, Object> toRow()
+        {
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("numResults", numResults);
+            row.put("numTrbResults", numTrbResults);
+            row.put("numCDR3s", cdr3s.size());
+            row.put("numCells", numCells);
+            row.put("numCellsTrb", numCellsTrb);
+            row.put("numRuns", runs.size());
+            row.put("distinctLoci", loci.isEmpty() ? null : StringUtils.join(loci, ","));
+            row.put("distinctCDR3s", cdr3s.isEmpty() ? null : StringUtils.join(cdr3s, "\n"));
+            for (String locus : SUMMARY_CLONOTYPE_LOCI)
+            {
+                Set<String> clonotypes = clonotypesByLocus.get(locus);
+                row.put("clonotype" + locus, clonotypes == null ? null : StringUtils.join(clonotypes, "\n"));
+            }
+
+            return row;
+        }
+    }
+
     public static class MiXCRGenomeTrigger implements GenomeTrigger
     {
         private Integer _mixcrId = null;
@@ -349,4 +599,66 @@ public boolean isAvailable(Container c)
             return c.getActiveModules().contains(ModuleLoader.getInstance().getModule(TCRdbModule.class));
         }
     }
-}
\ No newline at end of file
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testResultSummary()
+        {
+            //NOTE: each summary row replaces roughly fifteen correlated subqueries per grid row, so these values should match what those returned
+            ResultSummary summary = new ResultSummary();
+            summary.add("CASSA", "TRB", 0.5, 10);
+            summary.add("CASSA", "TRB", 0.01, 5);
+            summary.add("CAVB", "TRA", 0.2, null);
+            summary.add(null, "TRA", null, 3);
+            summary.add("CAVC", null, 0.9, 1);
+            summary.runs.add("analysis:1");
+            summary.runs.add("analysis:1");
+            summary.runs.add("run:7");
+
+            Map<String, Object> row = summary.toRow();
+            assertEquals(5, row.get("numResults"));
+            assertEquals(2, row.get("numTrbResults"));
+            assertEquals(3, row.get("numCDR3s"));
+            assertEquals(19, row.get("numCells"));
+            assertEquals(15, row.get("numCellsTrb"));
+            assertEquals("Runs of one analysis should be counted once", 2, row.get("numRuns"));
+            assertEquals("TRA,TRB", row.get("distinctLoci"));
+            assertEquals("CASSA\nCAVB\nCAVC", row.get("distinctCDR3s"));
+            assertEquals("CAVB", row.get("clonotypeTRA"));
+            assertEquals("CASSA", row.get("clonotypeTRB"));
+            assertNull(row.get("clonotypeTRD"));
+
+            ResultSummary empty = new ResultSummary();
+            row = empty.toRow();
+            assertEquals(0, row.get("numResults"));
+            assertNull("sum() of no rows is null", row.get("numCells"));
+            assertNull(row.get("distinctLoci"));
+        }
+
+        @Test
+        public void testResultSummaryScale()
+        {
+            //one million results across 1000 analyses, as aggregated by a rebuild:
+            Map<Integer, ResultSummary> summaries = new HashMap<>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 1000000; i++)
+            {
+                int analysisId = i % 1000;
+                summaries.computeIfAbsent(analysisId, k -> new ResultSummary()).add("CDR3_" + (i % 5000), i % 2 == 0 ? "TRA" : "TRB", (i % 20) / 100.0, 1);
+            }
+
+            for (ResultSummary summary : summaries.values())
+            {
+                summary.toRow();
+            }
+            _log.info("aggregated 1000000 TCR results into " + summaries.size() + " summary rows in " + (System.currentTimeMillis() - start) + "ms");
+
+            Map<String, Object> row = summaries.get(0).toRow();
+            assertEquals(1000, row.get("numResults"));
+            assertEquals(0, row.get("numTrbResults"));
+            assertEquals(5, row.get("numCDR3s"));
+            assertEquals(1000, row.get("numCells"));
+        }
+    }
+}
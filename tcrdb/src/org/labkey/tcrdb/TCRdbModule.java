@@ -19,7 +19,9 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.UpgradeCode;
 import org.labkey.api.laboratory.LaboratoryService;
 import org.labkey.api.ldk.ExtendedSimpleModule;
 import org.labkey.api.ldk.LDKService;
@@ -27,11 +29,18 @@
 import org.labkey.api.module.ModuleContext;
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
+import org.labkey.api.util.PageFlowUtil;
 import org.labkey.tcrdb.pipeline.CellRangerVDJCellHashingHandler;
+import org.labkey.tcrdb.pipeline.ContigSequenceLookup;
+import org.labkey.tcrdb.pipeline.FastqConcatenator;
+import org.labkey.tcrdb.pipeline.MiXCRAlignmentExporter;
 import org.labkey.tcrdb.pipeline.MiXCRAnalysis;
+import org.labkey.tcrdb.pipeline.MiXCRCloneTableMerger;
+import org.labkey.tcrdb.pipeline.MiXCRScheduler;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Set;
 
 public class TCRdbModule extends ExtendedSimpleModule
 {
@@ -46,7 +55,7 @@ public String getName()
     @Override
     public Double getSchemaVersion()
     {
-        return 15.52;
+        return 15.53;
     }
 
     @Override
@@ -55,6 +64,12 @@ public boolean hasScripts()
         return true;
     }
 
+    @Override
+    public @Nullable UpgradeCode getUpgradeCode()
+    {
+        return new TCRdbUpgradeCode();
+    }
+
     @Override
     protected void init()
     {
@@ -80,6 +95,8 @@ protected void doStartupAfterSpringConfig(ModuleContext moduleContext)
 
         //register resources
         new PipelineStartup();
+
+        MiXCRAlignmentExporter.registerShutdownListener();
     }
 
     @Override
@@ -89,6 +106,12 @@ public Collection<String> getSummary(Container c)
         return Collections.emptyList();
     }
 
+    @Override
+    public @NotNull Set<Class> getUnitTests()
+    {
+        return PageFlowUtil.set(MiXCRScheduler.TestCase.class, FastqConcatenator.TestCase.class, ContigSequenceLookup.TestCase.class, MiXCRAlignmentExporter.TestCase.class, MiXCRCloneTableMerger.TestCase.class, TCRdbManager.TestCase.class);
+    }
+
     @Override
     protected void registerSchemas()
     {
@@ -27,6 +27,7 @@
 
     public static final String TABLE_MIXCR_LIBRARIES = "mixcr_libraries";
     public static final String TABLE_CLONES = "clones";
+    public static final String TABLE_RESULT_SUMMARY = "result_summary";
 
     public static final String SEQUENCE_ANALYSIS = "sequenceanalysis";
     public static final String SINGLE_CELL = "singlecell";
@@ -20,12 +20,17 @@
 import org.labkey.api.query.ExprColumn;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
+import org.labkey.api.util.PageFlowUtil;
+import org.labkey.tcrdb.query.ResultSummaryTriggerFactory;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 public class TCRdbTableCustomizer extends AbstractTableCustomizer
 {
+    private static final Set<String> COUNT_FIELDS = PageFlowUtil.set("numResults", "numTrbResults", "numCDR3s", "numRuns");
+
     @Override
     public void customize(TableInfo table)
     {
@@ -62,32 +67,36 @@ private void customizeCdnas(AbstractTableInfo ti)
 
     private void customizeReadsets(AbstractTableInfo ti)
     {
-        addAssayFieldsToTable(ti, "analysisId/readset", "LEFT JOIN sequenceanalysis.sequence_analyses a2 ON (a.analysisId = a2.rowId) WHERE a2.readset = " + ExprColumn.STR_TABLE_ALIAS + ".rowid", "rowid");
+        addAssayFieldsToTable(ti, "analysisId/readset", TCRdbManager.SUMMARY_KEY_READSET, "rowid");
     }
 
     private void addAssayFieldsToAnalyses(AbstractTableInfo ti)
     {
-        addAssayFieldsToTable(ti, "analysisId", "WHERE a.analysisId = " + ExprColumn.STR_TABLE_ALIAS + ".rowid", "rowid");
+        addAssayFieldsToTable(ti, "analysisId", TCRdbManager.SUMMARY_KEY_ANALYSIS, "rowid");
     }
 
     private void addAssayFieldsToCDnas(AbstractTableInfo ti)
     {
-        addAssayFieldsToTable(ti, "analysisId/readset", "LEFT JOIN sequenceanalysis.sequence_analyses a2 ON (a.analysisId = a2.rowId) WHERE a2.readset = " + ExprColumn.STR_TABLE_ALIAS + ".readsetId", "readsetId", "FullTranscript", " (Full Transcriptome)");
+        addAssayFieldsToTable(ti, "analysisId/readset", TCRdbManager.SUMMARY_KEY_READSET, "readsetId", "FullTranscript", " (Full Transcriptome)");
 
-        addAssayFieldsToTable(ti, "cdna", " WHERE a.cDNA = " + ExprColumn.STR_TABLE_ALIAS + ".rowid", "rowid", "TCREnriched", " (TCR Enriched)", false);
+        addAssayFieldsToTable(ti, "cdna", TCRdbManager.SUMMARY_KEY_CDNA, "rowid", "TCREnriched", " (TCR Enriched)", false);
     }
 
-    private void addAssayFieldsToTable(AbstractTableInfo ti, String urlField, String whereClause, String urlSourceCol)
+    private void addAssayFieldsToTable(AbstractTableInfo ti, String urlField, String keyType, String urlSourceCol)
     {
-        addAssayFieldsToTable(ti, urlField, whereClause, urlSourceCol, "", "");
+        addAssayFieldsToTable(ti, urlField, keyType, urlSourceCol, "", "");
     }
 
-    private void addAssayFieldsToTable(AbstractTableInfo ti, String urlField, String whereClause, String urlSourceCol, String colNameSuffix, String colLabelSuffix)
+    private void addAssayFieldsToTable(AbstractTableInfo ti, String urlField, String keyType, String urlSourceCol, String colNameSuffix, String colLabelSuffix)
     {
-        addAssayFieldsToTable(ti, urlField, whereClause, urlSourceCol, colNameSuffix, colLabelSuffix, true);
+        addAssayFieldsToTable(ti, urlField, keyType, urlSourceCol, colNameSuffix, colLabelSuffix, true);
     }
 
-    private void addAssayFieldsToTable(AbstractTableInfo ti, String urlField, String whereClause, String urlSourceCol, String colNameSuffix, String colLabelSuffix, boolean addRunColumns)
+    /**
+     * These columns read from tcrdb.result_summary, which TCRdbManager keeps current as assay data is imported or deleted.
+     * Each is a lookup on the unique (keyType, keyValue) index, rather than an aggregate over the full assay results per row.
+     */
+    private void addAssayFieldsToTable(AbstractTableInfo ti, String urlField, String keyType, String urlSourceCol, String colNameSuffix, String colLabelSuffix, boolean addRunColumns)
     {
         if (ti.getColumn("numTcrResults" + colNameSuffix) == null)
         {
@@ -103,81 +112,47 @@ private void addAssayFieldsToTable(AbstractTableInfo ti, String urlField, String
                 return;
             }
 
-            AssayProtocolSchema schema = ap.createProtocolSchema(ti.getUserSchema().getUser(), ti.getUserSchema().getContainer(), protocols.get(0), null);
-            TableInfo data = schema.getTable("data");
-
-            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("locus"), "None", CompareType.NEQ_OR_NULL);
-            filter.addCondition(FieldKey.fromString("disabled"), true, CompareType.NEQ_OR_NULL);
-
-            SQLFragment selectSql = QueryService.get().getSelectSQL(data, Arrays.asList(data.getColumn("analysisId"), data.getColumn("CDR3"), data.getColumn("locus"), data.getColumn("fraction"), data.getColumn("count"), data.getColumn("cDNA")), filter, null, Table.ALL_ROWS, Table.NO_OFFSET, false);
             DetailsURL details = DetailsURL.fromString("/query/executeQuery.view?schemaName=assay." + ap.getName().replaceAll(" ", "") + "." + protocols.get(0).getName() + "&query.queryName=data&query." + urlField + "~eq=${" + urlSourceCol + "}", (ti.getUserSchema().getContainer().isWorkbook() ? ti.getUserSchema().getContainer().getParent() : ti.getUserSchema().getContainer()));
 
-            SQLFragment sql = new SQLFragment("(select count(*) as expr FROM (").append(selectSql).append(") a " + whereClause + ")");
-            ExprColumn newCol = new ExprColumn(ti, "numTcrResults" + colNameSuffix, sql, JdbcType.INTEGER, ti.getColumn("rowid"));
-            newCol.setLabel("# TCR Results" + colLabelSuffix);
-            newCol.setURL(details);
-            ti.addColumn(newCol);
-
-            SQLFragment sql0 = new SQLFragment("(select count(*) as expr FROM (").append(selectSql).append(") a " + whereClause + " AND a.locus = 'TRB')");
-            ExprColumn newCol0 = new ExprColumn(ti, "numTcrTrbResults" + colNameSuffix, sql0, JdbcType.INTEGER, ti.getColumn("rowid"));
-            newCol0.setLabel("# TCR TRB Results" + colLabelSuffix);
-            newCol0.setURL(details);
-            ti.addColumn(newCol0);
-
-            SQLFragment sql2 = new SQLFragment("(select count(distinct CDR3) as expr FROM (").append(selectSql).append(") a " + whereClause + ")");
-            ExprColumn newCol2 = new ExprColumn(ti, "numCDR3s" + colNameSuffix, sql2, JdbcType.INTEGER, ti.getColumn("rowid"));
-            newCol2.setLabel("# Distinct CDR3s" + colLabelSuffix);
-            newCol2.setURL(details);
-            ti.addColumn(newCol2);
-
-            SQLFragment sql3 = new SQLFragment("(select ").append(ti.getSqlDialect().getGroupConcat(new SQLFragment("locus"), true, true)).append(" FROM (").append(selectSql).append(") a " + whereClause + ")");
-            ExprColumn newCol3 = new ExprColumn(ti, "distinctLoci" + colNameSuffix, sql3, JdbcType.VARCHAR, ti.getColumn("rowid"));
-            newCol3.setLabel("Distinct Loci" + colLabelSuffix);
-            newCol3.setURL(details);
-            ti.addColumn(newCol3);
-
-            SQLFragment sql4 = new SQLFragment("(select ").append(ti.getSqlDialect().getGroupConcat(new SQLFragment("CDR3"), true, true, getChr(ti) + "(10)")).append(" FROM (").append(selectSql).append(") a " + whereClause + " )");
-            ExprColumn newCol4 = new ExprColumn(ti, "distinctCDR3s" + colNameSuffix, sql4, JdbcType.VARCHAR, ti.getColumn("rowid"));
-            newCol4.setLabel("Distinct CDR3s" + colLabelSuffix);
-            newCol4.setURL(details);
-            ti.addColumn(newCol4);
-
-            SQLFragment sqlTotal = new SQLFragment("(select sum(count) as expr FROM (").append(selectSql).append(") a " + whereClause + ")");
-            ExprColumn newColTotal = new ExprColumn(ti, "numCells" + colNameSuffix, sqlTotal, JdbcType.INTEGER, ti.getColumn("rowid"));
-            newColTotal.setLabel("# TCR Cells/Reads" + colLabelSuffix);
-            newColTotal.setURL(details);
-            ti.addColumn(newColTotal);
-
-            SQLFragment sqlTotal2 = new SQLFragment("(select sum(count) as expr FROM (").append(selectSql).append(") a " + whereClause + " AND a.locus = 'TRB')");
-            ExprColumn newColTotal2 = new ExprColumn(ti, "numCellsTrb" + colNameSuffix, sqlTotal2, JdbcType.INTEGER, ti.getColumn("rowid"));
-            newColTotal2.setLabel("# TCR Cells/Reads - TRB " + colLabelSuffix);
-            newColTotal2.setURL(details);
-            ti.addColumn(newColTotal2);
-
-            SQLFragment sql6 = new SQLFragment("(select sum(a.count) as expr FROM (").append(selectSql).append(") a " + whereClause + " )");
-            ExprColumn newCol6 = new ExprColumn(ti, "totalCDR3Reads" + colNameSuffix, sql6, JdbcType.INTEGER, ti.getColumn("rowid"));
-            newCol6.setLabel("Total CDR3 Reads" + colLabelSuffix);
-            newCol6.setURL(details);
-            ti.addColumn(newCol6);
+            addSummaryColumn(ti, "numTcrResults" + colNameSuffix, "# TCR Results" + colLabelSuffix, "numResults", JdbcType.INTEGER, keyType, urlSourceCol, details);
+            addSummaryColumn(ti, "numTcrTrbResults" + colNameSuffix, "# TCR TRB Results" + colLabelSuffix, "numTrbResults", JdbcType.INTEGER, keyType, urlSourceCol, details);
+            addSummaryColumn(ti, "numCDR3s" + colNameSuffix, "# Distinct CDR3s" + colLabelSuffix, "numCDR3s", JdbcType.INTEGER, keyType, urlSourceCol, details);
+            addSummaryColumn(ti, "distinctLoci" + colNameSuffix, "Distinct Loci" + colLabelSuffix, "distinctLoci", JdbcType.VARCHAR, keyType, urlSourceCol, details);
+            addSummaryColumn(ti, "distinctCDR3s" + colNameSuffix, "Distinct CDR3s" + colLabelSuffix, "distinctCDR3s", JdbcType.VARCHAR, keyType, urlSourceCol, details);
+            addSummaryColumn(ti, "numCells" + colNameSuffix, "# TCR Cells/Reads" + colLabelSuffix, "numCells", JdbcType.INTEGER, keyType, urlSourceCol, details);
+            addSummaryColumn(ti, "numCellsTrb" + colNameSuffix, "# TCR Cells/Reads - TRB " + colLabelSuffix, "numCellsTrb", JdbcType.INTEGER, keyType, urlSourceCol, details);
+            addSummaryColumn(ti, "totalCDR3Reads" + colNameSuffix, "Total CDR3 Reads" + colLabelSuffix, "numCells", JdbcType.INTEGER, keyType, urlSourceCol, details);
 
             if (addRunColumns)
             {
-                TableInfo runs = schema.getTable("runs");
-                SQLFragment runSelectSql = QueryService.get().getSelectSQL(runs, Arrays.asList(runs.getColumn("analysisId")), null, null, Table.ALL_ROWS, Table.NO_OFFSET, false);
                 DetailsURL runDetails = DetailsURL.fromString("/query/executeQuery.view?schemaName=assay." + ap.getName().replaceAll(" ", "") + "." + protocols.get(0).getName() + "&query.queryName=runs&query." + urlField + "~eq=${" + urlSourceCol + "}", (ti.getUserSchema().getContainer().isWorkbook() ? ti.getUserSchema().getContainer().getParent() : ti.getUserSchema().getContainer()));
+                addSummaryColumn(ti, "numTcrRuns" + colNameSuffix, "# TCR Runs" + colLabelSuffix, "numRuns", JdbcType.INTEGER, keyType, urlSourceCol, runDetails);
+            }
 
-                SQLFragment sql5 = new SQLFragment("(select count(*) as expr FROM (").append(runSelectSql).append(") a " + whereClause + ")");
-                ExprColumn newCol5 = new ExprColumn(ti, "numTcrRuns" + colNameSuffix, sql5, JdbcType.INTEGER, ti.getColumn("rowid"));
-                newCol5.setLabel("# TCR Runs" + colLabelSuffix);
-                newCol5.setURL(runDetails);
-                ti.addColumn(newCol5);
+            for (String locus : TCRdbManager.SUMMARY_CLONOTYPE_LOCI)
+            {
+                addClonotypeForLocusCol(ti, keyType, urlSourceCol, details, locus, colNameSuffix, colLabelSuffix);
             }
+        }
+    }
+
+    private ExprColumn addSummaryColumn(AbstractTableInfo ti, String name, String label, String summaryField, JdbcType type, String keyType, String keyCol, DetailsURL details)
+    {
+        String expr = "(select s." + summaryField + " FROM " + TCRdbSchema.NAME + "." + TCRdbSchema.TABLE_RESULT_SUMMARY + " s WHERE s.keyType = ? AND s.keyValue = " + ExprColumn.STR_TABLE_ALIAS + "." + keyCol + ")";
 
-            addClonotypeForLocusCol(ti, selectSql, whereClause, details, "TRA", colNameSuffix, colLabelSuffix);
-            addClonotypeForLocusCol(ti, selectSql, whereClause, details, "TRB", colNameSuffix, colLabelSuffix);
-            addClonotypeForLocusCol(ti, selectSql, whereClause, details, "TRD", colNameSuffix, colLabelSuffix);
-            addClonotypeForLocusCol(ti, selectSql, whereClause, details, "TRG", colNameSuffix, colLabelSuffix);
+        //NOTE: counts are zero, rather than null, when there are no results, which matches the prior count(*) subqueries.  Sums remain null
+        if (COUNT_FIELDS.contains(summaryField))
+        {
+            expr = "COALESCE(" + expr + ", 0)";
         }
+
+        SQLFragment sql = new SQLFragment(expr, keyType);
+        ExprColumn newCol = new ExprColumn(ti, name, sql, type, ti.getColumn(keyCol));
+        newCol.setLabel(label);
+        newCol.setURL(details);
+        ti.addColumn(newCol);
+
+        return newCol;
     }
 
     private void addAssayClonotypeColumn(AbstractTableInfo ti)
@@ -209,18 +184,13 @@ private void addAssayClonotypeColumn(AbstractTableInfo ti)
         ti.addColumn(newCol);
     }
 
-    private void addClonotypeForLocusCol(AbstractTableInfo ti, SQLFragment selectSql, String whereClause, DetailsURL details, String locus, String colNameSuffix, String colLabelSuffix)
+    private void addClonotypeForLocusCol(AbstractTableInfo ti, String keyType, String keyCol, DetailsURL details, String locus, String colNameSuffix, String colLabelSuffix)
     {
-        whereClause += " AND a.locus = '" + locus + "' AND a.fraction >= 0.05";
         DetailsURL detailsURL = details.clone();
         detailsURL.addParameter("data.locus~eq", locus);
 
-        SQLFragment sql = new SQLFragment("(select ").append(ti.getSqlDialect().getGroupConcat(new SQLFragment("CDR3"), true, true, getChr(ti) + "(10)")).append(" FROM (").append(selectSql).append(") a " + whereClause + " )");
-        ExprColumn newCol = new ExprColumn(ti, "clonotype" + locus + colNameSuffix, sql, JdbcType.VARCHAR, ti.getColumn("rowid"));
-        newCol.setLabel("Clonotype: " + locus + colLabelSuffix);
+        ExprColumn newCol = addSummaryColumn(ti, "clonotype" + locus + colNameSuffix, "Clonotype: " + locus + colLabelSuffix, "clonotype" + locus, JdbcType.VARCHAR, keyType, keyCol, detailsURL);
         newCol.setDescription("Showing CDR3 clonotypes for " + locus + " with fraction >=0.05");
-        newCol.setURL(detailsURL);
-        ti.addColumn(newCol);
     }
 
     private void customizeClones(AbstractTableInfo ti)
@@ -262,6 +232,9 @@ private void customizeAssayData(AbstractTableInfo ti)
     {
         LaboratoryService.get().getAssayTableCustomizer().customize(ti);
 
+        //keep tcrdb.result_summary current when results are edited or disabled from the grid:
+        ti.addTriggerFactory(new ResultSummaryTriggerFactory());
+
         String colName = "cloneNames";
         if (ti.getColumn(colName) == null)
         {
@@ -0,0 +1,48 @@
+package org.labkey.tcrdb;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.DeferredUpgrade;
+import org.labkey.api.data.UpgradeCode;
+import org.labkey.api.module.Module;
+import org.labkey.api.module.ModuleContext;
+import org.labkey.api.module.ModuleLoader;
+
+public class TCRdbUpgradeCode implements UpgradeCode
+{
+    private static final Logger _log = LogManager.getLogger(TCRdbUpgradeCode.class);
+
+    /**
+     * Called from tcrdb-15.52-15.53.sql.  This is deferred until startup, since the assay schemas are needed to populate tcrdb.result_summary.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    @DeferredUpgrade
+    public void rebuildResultSummary(final ModuleContext moduleContext)
+    {
+        if (moduleContext.isNewInstall())
+        {
+            return;
+        }
+
+        Module module = ModuleLoader.getInstance().getModule(TCRdbModule.NAME);
+        for (Container c : ContainerManager.getAllChildren(ContainerManager.getRoot()))
+        {
+            //workbooks are summarized with their parent
+            if (c.isWorkbookOrTab() || !c.getActiveModules().contains(module))
+            {
+                continue;
+            }
+
+            try
+            {
+                TCRdbManager.get().rebuildResultSummary(moduleContext.getUpgradeUser(), c);
+            }
+            catch (Exception e)
+            {
+                _log.error("Unable to rebuild the TCR result summary for: " + c.getPath(), e);
+            }
+        }
+    }
+}
@@ -2,22 +2,28 @@
 
 import au.com.bytecode.opencsv.CSVReader;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 import org.labkey.api.assay.AssayProtocolSchema;
 import org.labkey.api.assay.AssayProvider;
+import org.labkey.api.assay.AssayResultTable;
 import org.labkey.api.assay.AssayService;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.exp.api.ExpData;
+import org.labkey.api.exp.api.ExpExperiment;
 import org.labkey.api.exp.api.ExpProtocol;
 import org.labkey.api.exp.api.ExpRun;
 import org.labkey.api.exp.api.ExperimentService;
-import org.labkey.api.iterator.CloseableIterator;
 import org.labkey.api.laboratory.LaboratoryService;
 import org.labkey.api.pipeline.PipelineJob;
 import org.labkey.api.pipeline.PipelineJobException;
@@ -27,8 +33,6 @@
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.QueryUpdateServiceException;
 import org.labkey.api.query.ValidationException;
-import org.labkey.api.reader.FastaDataLoader;
-import org.labkey.api.reader.FastaLoader;
 import org.labkey.api.reader.Readers;
 import org.labkey.api.security.User;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
@@ -37,8 +41,10 @@
 import org.labkey.api.singlecell.model.CDNA_Library;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.api.util.Pair;
 import org.labkey.api.view.ViewBackgroundInfo;
 import org.labkey.api.view.ViewContext;
+import org.labkey.tcrdb.TCRdbManager;
 import org.labkey.tcrdb.TCRdbSchema;
 
 import java.io.File;
@@ -48,16 +54,26 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 public class CellRangerVDJUtils
 {
     public static final String TCR_HASHING_CALLS = "Cell Hashing TCR Calls";
 
+    // Very large runs are imported as more than one assay run, each with about this many rows.  Chunks are only cut between cloneIds,
+    // so all rows of one clone are in the same run
+    private static final int ASSAY_CHUNK_SIZE = 50000;
+
+    // Number of runs per set-based DELETE of prior results
+    private static final int DELETE_CHUNK_SIZE = 100;
+
     private Logger _log;
 
     public CellRangerVDJUtils(Logger log)
@@ -413,50 +429,99 @@ else if (discordantBarcodes.contains(barcode))
             throw new PipelineJobException(e);
         }
 
-        //build map of distinct FL sequences:
-        Map<String, String> sequenceMap = new HashMap<>();
-        for (File f : Arrays.asList(consensusFasta, allFasta))
+        //NOTE: existing runs are found now but deleted only after the new runs are saved, so prior results remain in place if the import fails
+        AssayProvider ap = AssayService.get().getProvider(protocol);
+        Collection<Integer> existingRuns = Collections.emptyList();
+        if (deleteExisting)
+        {
+            if (model.getReadset() == null)
+            {
+                _log.info("No readset found for this sample, cannot delete existing runs");
+            }
+            else
+            {
+                existingRuns = findExistingRuns(ap, protocol, job.getContainer(), job.getUser(), _log, model.getReadset());
+            }
+        }
+
+        //NOTE: sequences are read on demand through a FASTA index, rather than loading every contig into memory.
+        //rows are passed to the assay in chunks, so only one chunk of assay rows is held at a time
+        List<AssayModel> sortedRows = new ArrayList<>(rows.values());
+        sortedRows.sort(Comparator.comparing(m -> m.cloneId, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+        int totalCells = 0;
+        int totalRows = 0;
+        int part = 0;
+        long insertTime = 0;
+        Set<String> clonesInspected = new HashSet<>();
+        List<Integer> savedRuns = new ArrayList<>();
+        List<Map<String, Object>> assayRows = new ArrayList<>();
+        try
         {
-            _log.info("processing FASTA: " + f.getPath());
-            try (FastaDataLoader loader = new FastaDataLoader(f, false))
+            try (ContigSequenceLookup sequenceLookup = new ContigSequenceLookup(Arrays.asList(consensusFasta, allFasta), _log))
             {
-                loader.setCharacterFilter(new FastaLoader.UpperAndLowercaseCharacterFilter());
-                try (CloseableIterator<Map<String, Object>> i = loader.iterator())
+                String previousCloneId = null;
+                for (AssayModel m : sortedRows)
                 {
-                    while (i.hasNext())
+                    //the clonotypes column joins rows of one cloneId within a run, so a clone must not be split across runs
+                    if (assayRows.size() >= ASSAY_CHUNK_SIZE && !Objects.equals(previousCloneId, m.cloneId))
                     {
-                        Map<String, Object> fastaRecord = i.next();
-                        String header = (String) fastaRecord.get("header");
-                        if (uniqueContigNames.contains(header))
-                        {
-                            sequenceMap.put(header, (String) fastaRecord.get("sequence"));
-                        }
+                        part++;
+                        long start = System.currentTimeMillis();
+                        addIfNotNull(savedRuns, saveRun(job, protocol, model, assayRows, outDir, runId, part));
+                        insertTime += System.currentTimeMillis() - start;
+                        totalRows += assayRows.size();
+                        assayRows = new ArrayList<>();
                     }
+
+                    clonesInspected.add(m.cloneId);
+                    totalCells += m.barcodes.size();
+                    previousCloneId = m.cloneId;
+
+                    assayRows.add(processRow(m, model, cDNAMap, runId, totalCellsBySample, sequenceLookup));
                 }
             }
-            catch (IOException e)
+
+            if (!assayRows.isEmpty() || part == 0)
             {
-                throw new PipelineJobException(e);
+                part++;
+                long start = System.currentTimeMillis();
+                addIfNotNull(savedRuns, saveRun(job, protocol, model, assayRows, outDir, runId, part));
+                insertTime += System.currentTimeMillis() - start;
+                totalRows += assayRows.size();
             }
-
-            _log.info("total sequences: " + sequenceMap.size());
         }
-
-        List<Map<String, Object>> assayRows = new ArrayList<>();
-        int totalCells = 0;
-        Set<String> clonesInspected = new HashSet<>();
-        for (AssayModel m : rows.values())
+        catch (PipelineJobException | RuntimeException e)
         {
-            clonesInspected.add(m.cloneId);
-            totalCells += m.barcodes.size();
+            //NOTE: each part is saved in its own transaction, so remove the parts already saved.  Otherwise these would sit beside the prior runs, duplicating results
+            if (!savedRuns.isEmpty())
+            {
+                _log.error("Import failed after " + savedRuns.size() + " of the runs were saved, deleting these");
+                try
+                {
+                    deleteRuns(ap, protocol, job.getContainer(), job.getUser(), _log, savedRuns);
+                }
+                catch (PipelineJobException | RuntimeException e2)
+                {
+                    _log.error("Unable to delete the partially imported runs: " + StringUtils.join(savedRuns, ";"), e2);
+                }
+            }
 
-            assayRows.add(processRow(m, model, cDNAMap, runId, totalCellsBySample, sequenceMap));
+            throw e;
         }
 
         _log.info("total added: " + clonesInspected.size());
-        _log.info("total assay rows: " + assayRows.size());
+        _log.info("total assay rows: " + totalRows);
         _log.info("total cells: " + totalCells);
-        saveRun(job, protocol, model, assayRows, outDir, runId, deleteExisting);
+        _log.info("time spent inserting: " + DurationFormatUtils.formatDurationHMS(insertTime));
+
+        //matches the prior behavior, where existing data was only replaced if there were new rows
+        if (totalRows > 0)
+        {
+            deleteRuns(ap, protocol, job.getContainer(), job.getUser(), _log, existingRuns);
+        }
+
+        TCRdbManager.get().refreshResultSummary(job.getUser(), job.getContainer(), Collections.singleton(model.getRowId()), Collections.emptySet());
     }
 
     private AssayModel createForRow(String[] line, String sequenceContigName, Integer cDNA, String clonotypeId, String locus)
@@ -515,7 +580,7 @@ private File getCellToHtoFile(ExpRun run) throws PipelineJobException
         private String sequenceContigName;
     }
 
-    private Map<String, Object> processRow(AssayModel assayModel, AnalysisModel model, Map<Integer, CDNA_Library> cDNAMap, Integer runId, Map<Integer, Set<String>> totalCellsBySample, Map<String, String> sequenceMap) throws PipelineJobException
+    private Map<String, Object> processRow(AssayModel assayModel, AnalysisModel model, Map<Integer, CDNA_Library> cDNAMap, Integer runId, Map<Integer, Set<String>> totalCellsBySample, ContigSequenceLookup sequenceLookup) throws PipelineJobException
     {
         CDNA_Library cDNARecord = cDNAMap.get(assayModel.cdna);
         if (cDNARecord == null)
@@ -548,12 +613,13 @@ private Map<String, Object> processRow(AssayModel assayModel, AnalysisModel mode
         double fraction = (double)assayModel.barcodes.size() / totalCellsBySample.get(assayModel.cdna).size();
         row.put("fraction", fraction);
 
-        if (!sequenceMap.containsKey(assayModel.sequenceContigName))
+        String sequence = sequenceLookup.getSequence(assayModel.sequenceContigName);
+        if (sequence == null)
         {
             throw new PipelineJobException("Unable to find sequence for: " + assayModel.sequenceContigName);
         }
 
-        row.put("sequence", sequenceMap.get(assayModel.sequenceContigName));
+        row.put("sequence", sequence);
 
         return row;
     }
@@ -563,7 +629,19 @@ private String removeNone(String input)
         return "None".equals(input) ? null : input;
     }
 
-    private void saveRun(PipelineJob job, ExpProtocol protocol, AnalysisModel model, List<Map<String, Object>> rows, File outDir, Integer runId, boolean deleteExisting) throws PipelineJobException
+    private static void addIfNotNull(List<Integer> list, @Nullable Integer val)
+    {
+        if (val != null)
+        {
+            list.add(val);
+        }
+    }
+
+    /**
+     * @return The RowId of the saved run, or null if there were no rows
+     */
+    @Nullable
+    private Integer saveRun(PipelineJob job, ExpProtocol protocol, AnalysisModel model, List<Map<String, Object>> rows, File outDir, Integer runId, int part) throws PipelineJobException
     {
         ViewBackgroundInfo info = job.getInfo();
         ViewContext vc = ViewContext.getMockViewContext(info.getUser(), info.getContainer(), info.getURL(), false);
@@ -571,7 +649,7 @@ private void saveRun(PipelineJob job, ExpProtocol protocol, AnalysisModel model,
         JSONObject runProps = new JSONObject();
         runProps.put("performedby", job.getUser().getDisplayName(job.getUser()));
         runProps.put("assayName", "10x");
-        runProps.put("Name", "Analysis: " + model.getAnalysisId());
+        runProps.put("Name", "Analysis: " + model.getAnalysisId() + (part > 1 ? " (part " + part + ")" : ""));
         runProps.put("analysisId", model.getAnalysisId());
         runProps.put("pipelineRunId", runId);
 
@@ -596,7 +674,7 @@ private void saveRun(PipelineJob job, ExpProtocol protocol, AnalysisModel model,
         JSONObject json = new JSONObject();
         json.put("Run", runProps);
 
-        File assayTmp = new File(outDir, FileUtil.makeLegalName("10x-assay-upload_" + FileUtil.getTimestamp() + ".txt"));
+        File assayTmp = new File(outDir, FileUtil.makeLegalName("10x-assay-upload_" + FileUtil.getTimestamp() + (part > 1 ? "_" + part : "") + ".txt"));
         if (assayTmp.exists())
         {
             assayTmp.delete();
@@ -609,28 +687,29 @@ private void saveRun(PipelineJob job, ExpProtocol protocol, AnalysisModel model,
             try
             {
                 AssayProvider ap = AssayService.get().getProvider(protocol);
-                if (deleteExisting)
-                {
-                    if (model.getReadset() == null)
-                    {
-                        _log.info("No readset found for this sample, cannot delete existing runs");
-                    }
-                    else
-                    {
-                        deleteExistingData(ap, protocol, info.getContainer(), info.getUser(), _log, model.getReadset());
-                    }
-                }
+                Pair<ExpExperiment, ExpRun> ret = LaboratoryService.get().saveAssayBatch(rows, json, assayTmp, vc, ap, protocol);
 
-                LaboratoryService.get().saveAssayBatch(rows, json, assayTmp, vc, ap, protocol);
+                return ret.second.getRowId();
             }
             catch (ValidationException e)
             {
                 throw new PipelineJobException(e);
             }
         }
+
+        return null;
     }
 
     public static void deleteExistingData(AssayProvider ap, ExpProtocol protocol, Container c, User u, Logger log, int readsetId) throws PipelineJobException
+    {
+        deleteRuns(ap, protocol, c, u, log, findExistingRuns(ap, protocol, c, u, log, readsetId));
+    }
+
+    /**
+     * Returns the existing runs from this container for the same readset.  Callers replacing data should find these before importing,
+     * and pass them to deleteRuns() after the new runs are saved, so the prior results remain available until the new ones are in place.
+     */
+    public static Collection<Integer> findExistingRuns(AssayProvider ap, ExpProtocol protocol, Container c, User u, Logger log, int readsetId)
     {
         log.info("Preparing to delete any existing runs from this container for the same readset: " + readsetId);
 
@@ -640,30 +719,74 @@ public static void deleteExistingData(AssayProvider ap, ExpProtocol protocol, Co
         AssayProtocolSchema aps = ap.createProtocolSchema(u, c, protocol, null);
         TableInfo runsTable = QueryService.get().getUserSchema(u, c, aps.getSchemaPath()).getTable(AssayProtocolSchema.RUNS_TABLE_NAME);
 
-        TableSelector ts = new TableSelector(runsTable, PageFlowUtil.set("RowId"), filter, null);
-        if (ts.exists())
+        return new TableSelector(runsTable, PageFlowUtil.set("RowId"), filter, null).getArrayList(Integer.class);
+    }
+
+    /**
+     * Deletes these runs.  The result rows are removed first with one set-based DELETE per chunk of runs, since deleting them through
+     * the assay's update service is slow for runs with many clonotype rows.  The runs themselves are then deleted through the update service.
+     */
+    public static void deleteRuns(AssayProvider ap, ExpProtocol protocol, Container c, User u, Logger log, Collection<Integer> toDelete) throws PipelineJobException
+    {
+        if (toDelete.isEmpty())
         {
-            Collection<Integer> toDelete = ts.getArrayList(Integer.class);
-            if (!toDelete.isEmpty())
-            {
-                log.info("Deleting existing runs: " + StringUtils.join(toDelete, ";"));
-                List<Map<String, Object>> keys = new ArrayList<>();
-                toDelete.forEach(x -> {
-                    Map<String, Object> row = new CaseInsensitiveHashMap<>();
-                    row.put("rowid", x);
-                    keys.add(row);
-                });
+            return;
+        }
 
-                try
-                {
-                    runsTable.getUpdateService().deleteRows(u, c, keys, null, null);
-                }
-                catch (BatchValidationException | SQLException | QueryUpdateServiceException | InvalidKeyException e)
+        long start = System.currentTimeMillis();
+        log.info("Deleting existing runs: " + StringUtils.join(toDelete, ";"));
+
+        AssayProtocolSchema aps = ap.createProtocolSchema(u, c, protocol, null);
+        TableInfo runsTable = QueryService.get().getUserSchema(u, c, aps.getSchemaPath()).getTable(AssayProtocolSchema.RUNS_TABLE_NAME);
+        TableInfo dataTable = QueryService.get().getUserSchema(u, c, aps.getSchemaPath()).getTable(AssayProtocolSchema.DATA_TABLE_NAME);
+
+        //capture what these runs contributed to the result summary before they are deleted:
+        Set<Integer> analysisIds = new HashSet<>(new TableSelector(runsTable, PageFlowUtil.set("analysisId"), new SimpleFilter(FieldKey.fromString("RowId"), toDelete, CompareType.IN), null).getArrayList(Integer.class));
+        analysisIds.remove(null);
+
+        Set<Integer> cDNAs = new HashSet<>(new TableSelector(dataTable, PageFlowUtil.set("cDNA"), new SimpleFilter(FieldKey.fromString("Run"), toDelete, CompareType.IN), null).getArrayList(Integer.class));
+        cDNAs.remove(null);
+
+        List<Map<String, Object>> keys = new ArrayList<>();
+        toDelete.forEach(x -> {
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("rowid", x);
+            keys.add(row);
+        });
+
+        int resultsDeleted = 0;
+        try (DbScope.Transaction transaction = DbScope.getLabKeyScope().ensureTransaction())
+        {
+            TableInfo results = aps.createDataTable(null, false);
+            TableInfo resultsStorage = results instanceof AssayResultTable ? ((AssayResultTable)results).getRealTable() : null;
+            if (resultsStorage != null && resultsStorage.getColumn("DataId") != null)
+            {
+                List<Integer> runIds = new ArrayList<>(toDelete);
+                for (int i = 0; i < runIds.size(); i += DELETE_CHUNK_SIZE)
                 {
-                    throw new PipelineJobException(e);
+                    List<Integer> chunk = runIds.subList(i, Math.min(runIds.size(), i + DELETE_CHUNK_SIZE));
+                    SQLFragment sql = new SQLFragment("DELETE FROM " + resultsStorage.getSelectName() + " WHERE DataId IN (SELECT d.RowId FROM " + ExperimentService.get().getTinfoData().getSelectName() + " d WHERE d.RunId IN (" + StringUtils.repeat("?", ",", chunk.size()) + "))");
+                    sql.addAll(chunk);
+                    resultsDeleted += new SqlExecutor(resultsStorage.getSchema()).execute(sql);
                 }
             }
+            else
+            {
+                log.debug("Unable to find the assay results storage table, results will be deleted with the runs");
+            }
+
+            runsTable.getUpdateService().deleteRows(u, c, keys, null, null);
+
+            transaction.commit();
         }
+        catch (BatchValidationException | SQLException | QueryUpdateServiceException | InvalidKeyException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        log.info("deleted " + toDelete.size() + " runs and " + resultsDeleted + " result rows in " + DurationFormatUtils.formatDurationHMS(System.currentTimeMillis() - start));
+
+        TCRdbManager.get().refreshResultSummary(u, c, analysisIds, cDNAs);
     }
 
     public static File getPerCellCsv(File cellRangerOutDir)
@@ -0,0 +1,197 @@
+package org.labkey.tcrdb.pipeline;
+
+import htsjdk.samtools.reference.FastaSequenceIndex;
+import htsjdk.samtools.reference.FastaSequenceIndexCreator;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves contig sequences from one or more CellRanger FASTA files through a .fai index, rather than holding every sequence in memory.
+ * When a contig name is present in more than one file, the last file wins.  Recently used sequences are kept in a small LRU cache, since
+ * the same contig is typically referenced by several assay rows.
+ */
+public class ContigSequenceLookup implements AutoCloseable
+{
+    private static final int CACHE_SIZE = 1000;
+
+    private final List<FastaSequenceIndex> _indexes = new ArrayList<>();
+    private final List<IndexedFastaSequenceFile> _readers = new ArrayList<>();
+    private final List<File> _createdIndexes = new ArrayList<>();
+
+    private final Map<String, String> _cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public ContigSequenceLookup(List<File> fastas, Logger log) throws PipelineJobException
+    {
+        try
+        {
+            //NOTE: iterate in reverse so the last file takes precedence
+            for (int i = fastas.size() - 1; i >= 0; i--)
+            {
+                File fasta = fastas.get(i);
+                File fai = new File(fasta.getPath() + ".fai");
+                if (!fai.exists())
+                {
+                    log.info("indexing FASTA: " + fasta.getPath());
+                    FastaSequenceIndexCreator.create(fasta.toPath(), false);
+                    _createdIndexes.add(fai);
+                }
+
+                FastaSequenceIndex index = new FastaSequenceIndex(fai.toPath());
+                _indexes.add(index);
+                _readers.add(new IndexedFastaSequenceFile(fasta, index));
+                log.info("total sequences in " + fasta.getName() + ": " + index.size());
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            throw new PipelineJobException(e);
+        }
+    }
+
+    public @Nullable String getSequence(String contigName)
+    {
+        String ret = _cache.get(contigName);
+        if (ret != null)
+        {
+            return ret;
+        }
+
+        for (int i = 0; i < _indexes.size(); i++)
+        {
+            if (_indexes.get(i).hasIndexEntry(contigName))
+            {
+                ret = _readers.get(i).getSequence(contigName).getBaseString();
+                _cache.put(contigName, ret);
+
+                return ret;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close()
+    {
+        for (IndexedFastaSequenceFile reader : _readers)
+        {
+            try
+            {
+                reader.close();
+            }
+            catch (IOException e)
+            {
+                //ignore
+            }
+        }
+        _readers.clear();
+
+        for (File f : _createdIndexes)
+        {
+            if (f.exists())
+            {
+                f.delete();
+            }
+        }
+        _createdIndexes.clear();
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _testLog = LogManager.getLogger(ContigSequenceLookup.TestCase.class);
+        private static final String[] BASES = new String[]{"A", "C", "G", "T"};
+
+        private static String getSequence(int i, int offset)
+        {
+            //deterministic sequence of varying length, long enough to span several FASTA lines
+            StringBuilder sb = new StringBuilder();
+            int length = 200 + (i % 300);
+            for (int j = 0; j < length; j++)
+            {
+                sb.append(BASES[(i + j * 7 + offset) % 4]);
+            }
+
+            return sb.toString();
+        }
+
+        private static void writeFasta(File f, int start, int end, int offset) throws IOException
+        {
+            try (BufferedWriter writer = Files.newBufferedWriter(f.toPath(), StandardCharsets.UTF_8))
+            {
+                for (int i = start; i < end; i++)
+                {
+                    writer.write(">contig_" + i + "\n");
+                    String seq = getSequence(i, offset);
+                    for (int j = 0; j < seq.length(); j += 60)
+                    {
+                        writer.write(seq, j, Math.min(60, seq.length() - j));
+                        writer.write('\n');
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void testLookup() throws Exception
+        {
+            File dir = Files.createTempDirectory("contigSequenceLookupTest").toFile();
+            try
+            {
+                //a synthetic run with 500k contigs, where the second file overlaps and replaces part of the first:
+                int total = 500000;
+                File consensus = new File(dir, "consensus.fasta");
+                writeFasta(consensus, 0, total, 0);
+
+                File all = new File(dir, "all_contig.fasta");
+                writeFasta(all, total - 1000, total + 1000, 1);
+
+                try (ContigSequenceLookup lookup = new ContigSequenceLookup(Arrays.asList(consensus, all), _testLog))
+                {
+                    for (int i = 0; i < total + 1000; i++)
+                    {
+                        String expected = i < total - 1000 ? getSequence(i, 0) : getSequence(i, 1);
+                        assertEquals("Incorrect sequence for: contig_" + i, expected, lookup.getSequence("contig_" + i));
+                    }
+
+                    //repeat lookups are served from the cache, which stays bounded:
+                    assertEquals(getSequence(total + 999, 1), lookup.getSequence("contig_" + (total + 999)));
+                    assertEquals(CACHE_SIZE, lookup._cache.size());
+
+                    assertNull(lookup.getSequence("contig_missing"));
+                }
+
+                assertFalse("Index should be removed", new File(consensus.getPath() + ".fai").exists());
+                assertFalse("Index should be removed", new File(all.getPath() + ".fai").exists());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
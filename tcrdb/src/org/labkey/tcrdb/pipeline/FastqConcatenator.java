@@ -0,0 +1,338 @@
+package org.labkey.tcrdb.pipeline;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Concatenates FASTQ files into a single gzipped FASTQ without parsing records.  A file made of concatenated gzip members is itself valid gzip,
+ * so inputs that are already gzipped are appended byte-for-byte.  Uncompressed inputs are first BGZF-compressed into temporary parts, in parallel,
+ * and then appended the same way.  Unlike reading and re-writing with FastqReader/FastqWriter, the records are not altered.
+ *
+ * A gzipped input is only appended as-is if its decompressed content ends with a newline, which requires one decompressing read of it (also in parallel).
+ * Otherwise its last record would be joined to the first line of the next file, so it is recompressed with a newline added.
+ */
+public class FastqConcatenator
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger _log;
+    private final int _threads;
+
+    public FastqConcatenator(Logger log, @Nullable Integer threads)
+    {
+        _log = log;
+        _threads = threads == null ? 1 : Math.max(1, threads);
+    }
+
+    public void concatenate(List<File> inputs, File output) throws PipelineJobException
+    {
+        long start = System.currentTimeMillis();
+
+        List<File> parts = new ArrayList<>();
+        List<File> tempParts = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_threads, Math.max(1, inputs.size())));
+        try
+        {
+            List<Future<File>> futures = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++)
+            {
+                File input = inputs.get(i);
+                if (input.length() == 0)
+                {
+                    _log.debug("skipping empty file: " + input.getPath());
+                    continue;
+                }
+
+                File part = new File(output.getParentFile(), output.getName() + ".part" + i + ".gz");
+                tempParts.add(part);
+                if (isGzip(input))
+                {
+                    futures.add(executor.submit(() -> {
+                        if (endsWithNewline(input))
+                        {
+                            return input;
+                        }
+
+                        _log.debug("gzipped input does not end with a newline, recompressing: " + input.getPath());
+                        try (InputStream is = new GZIPInputStream(new FileInputStream(input), BUFFER_SIZE))
+                        {
+                            compress(is, part);
+                        }
+
+                        return part;
+                    }));
+                }
+                else
+                {
+                    futures.add(executor.submit(() -> {
+                        try (InputStream is = new BufferedInputStream(new FileInputStream(input)))
+                        {
+                            compress(is, part);
+                        }
+
+                        return part;
+                    }));
+                }
+            }
+
+            int compressed = 0;
+            for (int i = 0; i < futures.size(); i++)
+            {
+                File part = futures.get(i).get();
+                parts.add(part);
+                if (tempParts.contains(part))
+                {
+                    compressed++;
+                }
+            }
+
+            long totalBytes = 0;
+            try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                for (File part : parts)
+                {
+                    try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ))
+                    {
+                        long size = in.size();
+                        long position = 0;
+                        while (position < size)
+                        {
+                            position += in.transferTo(position, size - position, out);
+                        }
+
+                        totalBytes += size;
+                    }
+                }
+            }
+
+            double seconds = Math.max(0.001, (System.currentTimeMillis() - start) / 1000.0);
+            _log.info("concatenated " + parts.size() + " FASTQ files (" + compressed + " compressed first) into " + output.getName() + ": " + (totalBytes / 1024 / 1024) + " MB, " + String.format("%.1f", (totalBytes / 1024.0 / 1024.0) / seconds) + " MB/s");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new PipelineJobException(e.getCause());
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+        finally
+        {
+            executor.shutdownNow();
+            for (File f : tempParts)
+            {
+                if (f.exists())
+                {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private static boolean isGzip(File f) throws IOException
+    {
+        try (InputStream is = new FileInputStream(f))
+        {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
+
+    /**
+     * @return True if the decompressed content is empty or ends with a newline
+     */
+    private static boolean endsWithNewline(File gzip) throws IOException
+    {
+        try (InputStream is = new GZIPInputStream(new FileInputStream(gzip), BUFFER_SIZE))
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int lastByte = -1;
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                if (read > 0)
+                {
+                    lastByte = buffer[read - 1];
+                }
+            }
+
+            return lastByte == -1 || lastByte == '\n';
+        }
+    }
+
+    private static void compress(InputStream is, File output) throws IOException
+    {
+        try (OutputStream os = new BlockCompressedOutputStream(output))
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int lastByte = -1;
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                os.write(buffer, 0, read);
+                if (read > 0)
+                {
+                    lastByte = buffer[read - 1];
+                }
+            }
+
+            //ensure the next file starts on a new line
+            if (lastByte != -1 && lastByte != '\n')
+            {
+                os.write('\n');
+            }
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _testLog = LogManager.getLogger(FastqConcatenator.TestCase.class);
+
+        @Test
+        public void testLossless() throws Exception
+        {
+            File dir = Files.createTempDirectory("fastqConcatenatorTest").toFile();
+            try
+            {
+                //a mix of gzip, BGZF, plain text and empty inputs, including a record whose '+' line repeats the header:
+                StringBuilder expected = new StringBuilder();
+                List<File> inputs = new ArrayList<>();
+                for (int i = 0; i < 6; i++)
+                {
+                    StringBuilder sb = new StringBuilder();
+                    for (int j = 0; j < 1000; j++)
+                    {
+                        sb.append("@read").append(i).append("_").append(j).append(" 1:N:0\nACGTACGTNNACGT\n").append(j % 2 == 0 ? "+" : "+read" + i + "_" + j).append("\nIIIIIIIIIIII#I\n");
+                    }
+                    expected.append(sb);
+
+                    File f;
+                    switch (i % 3)
+                    {
+                        case 0:
+                            f = new File(dir, "input" + i + ".fastq.gz");
+                            try (OutputStream os = new GZIPOutputStream(new FileOutputStream(f)))
+                            {
+                                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                            }
+                            break;
+                        case 1:
+                            f = new File(dir, "input" + i + ".fastq.gz");
+                            try (OutputStream os = new BlockCompressedOutputStream(f))
+                            {
+                                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                            }
+                            break;
+                        default:
+                            f = new File(dir, "input" + i + ".fastq");
+                            FileUtils.writeStringToFile(f, sb.toString(), StandardCharsets.UTF_8);
+                    }
+
+                    inputs.add(f);
+                }
+
+                File empty = new File(dir, "empty.fastq");
+                empty.createNewFile();
+                inputs.add(2, empty);
+
+                File output = new File(dir, "output.fastq.gz");
+                new FastqConcatenator(_testLog, 4).concatenate(inputs, output);
+
+                StringBuilder actual = new StringBuilder();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(output)), StandardCharsets.UTF_8)))
+                {
+                    char[] buffer = new char[8192];
+                    int read;
+                    while ((read = reader.read(buffer)) != -1)
+                    {
+                        actual.append(buffer, 0, read);
+                    }
+                }
+
+                assertEquals(expected.toString(), actual.toString());
+
+                File[] leftovers = dir.listFiles((d, name) -> name.contains(".part"));
+                assertEquals("Temporary parts should be deleted", 0, leftovers == null ? 0 : leftovers.length);
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testMissingFinalNewline() throws Exception
+        {
+            File dir = Files.createTempDirectory("fastqConcatenatorTest").toFile();
+            try
+            {
+                String record1 = "@read1 1:N:0\nACGT\n+\nIIII";
+                String record2 = "@read2 1:N:0\nTTTT\n+\nIIII\n";
+
+                File gzipped = new File(dir, "input1.fastq.gz");
+                try (OutputStream os = new GZIPOutputStream(new FileOutputStream(gzipped)))
+                {
+                    os.write(record1.getBytes(StandardCharsets.UTF_8));
+                }
+
+                File plain = new File(dir, "input2.fastq");
+                FileUtils.writeStringToFile(plain, record1, StandardCharsets.UTF_8);
+
+                File last = new File(dir, "input3.fastq.gz");
+                try (OutputStream os = new GZIPOutputStream(new FileOutputStream(last)))
+                {
+                    os.write(record2.getBytes(StandardCharsets.UTF_8));
+                }
+
+                File output = new File(dir, "output.fastq.gz");
+                new FastqConcatenator(_testLog, 2).concatenate(Arrays.asList(gzipped, plain, last), output);
+
+                String actual;
+                try (InputStream is = new GZIPInputStream(new FileInputStream(output)))
+                {
+                    actual = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+                }
+
+                assertEquals(record1 + "\n" + record1 + "\n" + record2, actual);
+                assertTrue("The original gzip input should not be modified", isGzip(gzipped) && !endsWithNewline(gzipped));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
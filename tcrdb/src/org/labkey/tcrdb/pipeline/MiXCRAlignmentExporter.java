@@ -0,0 +1,419 @@
+package org.labkey.tcrdb.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.reader.Readers;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.ShutdownListener;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Runs mixcr exportAlignmentsPretty in the background and caches the rendered HTML on disk.  Entries are keyed on a hash of the
+ * VDJCA file (path, size and timestamp) and the export arguments, so a repeat request for the same alignments is served from the cache,
+ * and an entry is never reused after the VDJCA file changes.  Entries expire a day after they were last requested, and are only removed while
+ * none are being served.
+ */
+public class MiXCRAlignmentExporter
+{
+    private static final Logger _log = LogManager.getLogger(MiXCRAlignmentExporter.class);
+
+    private static final Pattern WHITESPACE = Pattern.compile(" +");
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_CONCURRENT = 2;
+
+    private static final ExecutorService _executor = Executors.newFixedThreadPool(MAX_CONCURRENT, r -> {
+        Thread t = new Thread(r, "TCRdb alignment export");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Map<String, Boolean> _running = new ConcurrentHashMap<>();
+    private static final Map<String, String> _failures = new ConcurrentHashMap<>();
+
+    // Requests hold the read lock while checking or serving an entry, and expired entries are only deleted under the write lock
+    private static final ReadWriteLock _cacheLock = new ReentrantReadWriteLock();
+
+    public enum Status
+    {
+        READY,
+        RUNNING,
+        FAILED
+    }
+
+    private MiXCRAlignmentExporter()
+    {
+
+    }
+
+    public static void registerShutdownListener()
+    {
+        ContextListener.addShutdownListener(new ShutdownListener()
+        {
+            @Override
+            public String getName()
+            {
+                return "TCRdb alignment export";
+            }
+
+            @Override
+            public void shutdownPre()
+            {
+
+            }
+
+            @Override
+            public void shutdownStarted()
+            {
+                _executor.shutdownNow();
+            }
+        });
+    }
+
+    private static File getCacheDir()
+    {
+        return new File(FileUtil.getTempDirectory(), "tcrdbAlignmentExports");
+    }
+
+    public static File getCachedFile(File vdjca, List<String> args)
+    {
+        return new File(getCacheDir(), getCacheKey(vdjca, args) + ".html");
+    }
+
+    private static String getCacheKey(File vdjca, List<String> args)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((vdjca.getAbsolutePath() + "|" + vdjca.length() + "|" + vdjca.lastModified() + "|" + StringUtils.join(args, "\t")).getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest())
+            {
+                sb.append(String.format("%02x", b));
+            }
+
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the state of the export for this file and arguments, starting a background export if it is neither cached nor running.
+     * A failure is reported until clearFailure() is called, after which the next request will try again.
+     */
+    public static Status getOrSubmit(File vdjca, List<String> args)
+    {
+        String key = getCacheKey(vdjca, args);
+        File cached = new File(getCacheDir(), key + ".html");
+        _cacheLock.readLock().lock();
+        try
+        {
+            //NOTE: this resets the expiration, so the entry cannot expire before it is served
+            if (cached.exists() && cached.setLastModified(System.currentTimeMillis()))
+            {
+                return Status.READY;
+            }
+        }
+        finally
+        {
+            _cacheLock.readLock().unlock();
+        }
+
+        if (_failures.containsKey(key))
+        {
+            return Status.FAILED;
+        }
+
+        if (_running.putIfAbsent(key, true) == null)
+        {
+            _executor.execute(() -> {
+                try
+                {
+                    export(vdjca, args, cached);
+                }
+                catch (PipelineJobException | IOException e)
+                {
+                    _log.error("Unable to run exportAlignments for: " + vdjca.getPath(), e);
+                    _failures.put(key, e.getMessage() == null ? "" : e.getMessage());
+                }
+                finally
+                {
+                    _running.remove(key);
+                }
+            });
+        }
+
+        return Status.RUNNING;
+    }
+
+    /**
+     * Copies the cached export to the writer, holding the entry so that it cannot be deleted while it is served.
+     * @return false if there is no cached export
+     */
+    public static boolean copyCached(File vdjca, List<String> args, Writer out) throws IOException
+    {
+        File cached = getCachedFile(vdjca, args);
+        _cacheLock.readLock().lock();
+        try
+        {
+            if (!cached.exists())
+            {
+                return false;
+            }
+
+            try (BufferedReader reader = Readers.getReader(cached))
+            {
+                IOUtils.copy(reader, out);
+            }
+
+            return true;
+        }
+        finally
+        {
+            _cacheLock.readLock().unlock();
+        }
+    }
+
+    public static void clearFailure(File vdjca, List<String> args)
+    {
+        _failures.remove(getCacheKey(vdjca, args));
+    }
+
+    private static void export(File vdjca, List<String> args, File cached) throws PipelineJobException, IOException
+    {
+        File dir = cached.getParentFile();
+        if (!dir.exists())
+        {
+            dir.mkdirs();
+        }
+
+        deleteExpired(dir);
+
+        File raw = new File(dir, cached.getName() + ".mixcr.txt");
+        File rendered = new File(dir, cached.getName() + ".tmp");
+        try
+        {
+            MiXCRWrapper wrapper = new MiXCRWrapper(_log);
+            try
+            {
+                wrapper.doExportAlignmentsPretty(vdjca, raw, args);
+            }
+            catch (PipelineJobException e)
+            {
+                _log.error("Unable to run exportAlignments:\n" + StringUtils.join(wrapper.getCommandsExecuted(), "\n"));
+                throw e;
+            }
+
+            try (BufferedReader reader = Readers.getReader(new FileInputStream(raw)); BufferedWriter writer = Files.newBufferedWriter(rendered.toPath(), StandardCharsets.UTF_8))
+            {
+                render(reader, writer);
+            }
+
+            //NOTE: the entry only becomes visible once it is complete
+            Files.move(rendered.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            raw.delete();
+            rendered.delete();
+        }
+    }
+
+    static void deleteExpired(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        _cacheLock.writeLock().lock();
+        try
+        {
+            long cutoff = System.currentTimeMillis() - MAX_AGE;
+            for (File f : files)
+            {
+                if (f.getName().endsWith(".html") && f.lastModified() < cutoff)
+                {
+                    f.delete();
+                }
+            }
+        }
+        finally
+        {
+            _cacheLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Escapes the output of exportAlignmentsPretty for display, and highlights mismatches (uppercase bases) within alignment blocks.
+     */
+    public static void render(BufferedReader reader, Writer writer) throws IOException
+    {
+        String line;
+        boolean inAlignmentBlock = false;
+        while ((line = reader.readLine()) != null)
+        {
+            line = StringUtils.replaceEach(line, new String[]{"<", ">"}, new String[]{"&lt;", "&gt;"});
+
+            String trimmed = StringUtils.trimToEmpty(line);
+            if (StringUtils.isEmpty(trimmed))
+            {
+                inAlignmentBlock = false;
+            }
+
+            //Highlight mismatches
+            if (inAlignmentBlock)
+            {
+                String[] tokens = WHITESPACE.split(trimmed);
+                if (tokens.length > 2)
+                {
+                    line = StringUtils.replace(line, tokens[2], highlight(tokens[2]));
+                }
+            }
+
+            writer.write(line);
+            writer.write('\n');
+
+            if (trimmed.startsWith("Target"))
+            {
+                inAlignmentBlock = true;
+            }
+        }
+    }
+
+    private static String highlight(String alignmentRaw)
+    {
+        StringBuilder sb = new StringBuilder(alignmentRaw.length() + 64);
+        for (int i = 0; i < alignmentRaw.length(); i++)
+        {
+            char c = alignmentRaw.charAt(i);
+            if (Character.isUpperCase(c))
+            {
+                sb.append("<span style=\"background: yellow;\">");
+                sb.append(c);
+                sb.append("</span>");
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testRender() throws Exception
+        {
+            String input = "Read <1>\n" +
+                    "    Target0   0 acgtAcgt 7\n" +
+                    "    Target1   0 ttGGtt 5\n" +
+                    "\n" +
+                    "    Other     0 ACGT 3\n";
+
+            StringWriter writer = new StringWriter();
+            render(new BufferedReader(new StringReader(input)), writer);
+
+            String expected = "Read &lt;1&gt;\n" +
+                    "    Target0   0 acgtAcgt 7\n" +
+                    "    Target1   0 tt<span style=\"background: yellow;\">G</span><span style=\"background: yellow;\">G</span>tt 5\n" +
+                    "\n" +
+                    "    Other     0 ACGT 3\n";
+
+            assertEquals(expected, writer.toString());
+        }
+
+        @Test
+        public void testExpiry() throws Exception
+        {
+            File f = File.createTempFile("mixcrExport", ".vdjca");
+            File cached = null;
+            try
+            {
+                FileUtils.writeStringToFile(f, "alignments", StandardCharsets.UTF_8);
+                cached = getCachedFile(f, List.of("--cdr3-equals", "CASS"));
+                FileUtils.writeStringToFile(cached, "rendered", StandardCharsets.UTF_8);
+                assertTrue(cached.setLastModified(System.currentTimeMillis() - MAX_AGE - 60000));
+
+                //a request for an expired entry renews it, so it is not removed before it is served:
+                assertEquals(Status.READY, getOrSubmit(f, List.of("--cdr3-equals", "CASS")));
+                deleteExpired(cached.getParentFile());
+                assertTrue(cached.exists());
+
+                StringWriter writer = new StringWriter();
+                assertTrue(copyCached(f, List.of("--cdr3-equals", "CASS"), writer));
+                assertEquals("rendered", writer.toString());
+
+                //otherwise it is removed once expired:
+                assertTrue(cached.setLastModified(System.currentTimeMillis() - MAX_AGE - 60000));
+                deleteExpired(cached.getParentFile());
+                assertFalse(cached.exists());
+                assertFalse(copyCached(f, List.of("--cdr3-equals", "CASS"), new StringWriter()));
+            }
+            finally
+            {
+                f.delete();
+                if (cached != null)
+                {
+                    cached.delete();
+                }
+            }
+        }
+
+        @Test
+        public void testCacheKey() throws Exception
+        {
+            File f = File.createTempFile("mixcrExport", ".vdjca");
+            try
+            {
+                FileUtils.writeStringToFile(f, "alignments", StandardCharsets.UTF_8);
+                File cached = getCachedFile(f, List.of("--cdr3-equals", "CASS"));
+                assertEquals(cached, getCachedFile(f, List.of("--cdr3-equals", "CASS")));
+                assertNotEquals(cached, getCachedFile(f, List.of("--cdr3-equals", "CASR")));
+
+                //a modified input must not reuse the prior entry
+                FileUtils.writeStringToFile(f, "updated alignments", StandardCharsets.UTF_8);
+                assertNotEquals(cached, getCachedFile(f, List.of("--cdr3-equals", "CASS")));
+            }
+            finally
+            {
+                f.delete();
+            }
+        }
+    }
+}
@@ -2,11 +2,9 @@
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
-import htsjdk.samtools.fastq.FastqReader;
-import htsjdk.samtools.fastq.FastqWriter;
-import htsjdk.samtools.fastq.FastqWriterFactory;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.labkey.api.assay.AssayProvider;
@@ -54,6 +52,7 @@
 import org.labkey.api.view.ViewBackgroundInfo;
 import org.labkey.api.view.ViewContext;
 import org.labkey.api.writer.PrintWriters;
+import org.labkey.tcrdb.TCRdbManager;
 import org.labkey.tcrdb.TCRdbModule;
 import org.labkey.tcrdb.TCRdbSchema;
 
@@ -67,15 +66,18 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
 
@@ -99,6 +101,10 @@ public MiXCRAnalysis(PipelineStepProvider provider, PipelineContext ctx)
     private static final String TARGET_ASSAY = "targetAssay";
     private static final String LOCI = "loci";
 
+    // MiXCR runs for separate libraries are only run concurrently if each can receive at least this many threads and GB of RAM
+    private static final int MIN_THREADS_PER_MIXCR = 4;
+    private static final int MIN_RAM_PER_MIXCR = 8;
+
     public static class Provider extends AbstractAnalysisStepProvider<MiXCRAnalysis>
     {
         public Provider()
@@ -174,33 +180,21 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
                 reverseFq = new File(outputDir, FileUtil.getBaseName(inputBam) + "-R2.fastq.gz");
                 output.addIntermediateFile(reverseFq, "FASTQ Data");
 
-                FastqWriterFactory fact = new FastqWriterFactory();
-                fact.setUseAsyncIo(true);
-                try (FastqWriter w1 = fact.newWriter(forwardFq);FastqWriter w2 = fact.newWriter(reverseFq))
+                List<File> forwardInputs = new ArrayList<>();
+                List<File> reverseInputs = new ArrayList<>();
+                for (ReadData rd : rs.getReadData())
                 {
-                    for (ReadData rd : rs.getReadData())
+                    forwardInputs.add(rd.getFile1());
+                    if (rd.getFile2() != null)
                     {
-                        try (FastqReader reader = new FastqReader(rd.getFile1()))
-                        {
-                            while (reader.hasNext())
-                            {
-                                w1.write(reader.next());
-                            }
-                        }
-
-                        if (rd.getFile2() != null)
-                        {
-                            try (FastqReader reader = new FastqReader(rd.getFile2()))
-                            {
-                                while (reader.hasNext())
-                                {
-                                    w2.write(reader.next());
-                                }
-                            }
-                        }
+                        reverseInputs.add(rd.getFile2());
                     }
                 }
 
+                FastqConcatenator concatenator = new FastqConcatenator(getPipelineCtx().getLogger(), SequencePipelineService.get().getMaxThreads(getPipelineCtx().getLogger()));
+                concatenator.concatenate(forwardInputs, forwardFq);
+                concatenator.concatenate(reverseInputs, reverseFq);
+
                 if (!hasLines(reverseFq))
                 {
                     getPipelineCtx().getLogger().debug("deleting empty file: " + reverseFq.getPath());
@@ -289,149 +283,158 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
         String version = new MiXCRWrapper(getPipelineCtx().getLogger()).getVersionString();
 
         //iterate selected species/loci:
-        Map<Integer, Map<String, Map<String, List<File>>>> tables = new HashMap<>();
+        Map<Integer, Map<String, Map<String, List<File>>>> tables = new LinkedHashMap<>();
         JSONArray libraries = getTcrDbs();
 
         Map<Integer, Map<String, Map<String, Integer>>> totalReadsInExportedAlignments = new HashMap<>();
         Map<Integer, Map<String, Map<String, Integer>>> totalReadsInExportedClones = new HashMap<>();
 
-        for (JSONObject library : libraries.toJSONObjectArray())
+        boolean allowDiffLoci = getProvider().getParameterByName(DIFF_LOCI).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Boolean.class);
+        Double minCloneFraction = getProvider().getParameterByName(MIN_CLONE_FRACTION).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Double.class, null);
+        Integer minCloneReads = getProvider().getParameterByName(MIN_CLONE_READS).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Integer.class, null);
+
+        //the libraries are independent, so these are run concurrently when the job's allocation allows, and the outputs are then collected in library order:
+        JSONObject[] libraryArray = libraries.toJSONObjectArray();
+        Integer maxRam = SequencePipelineService.get().getMaxRam();
+        MiXCRScheduler scheduler = new MiXCRScheduler(libraryArray.length, SequencePipelineService.get().getMaxThreads(getPipelineCtx().getJob().getLogger()), maxRam, MIN_THREADS_PER_MIXCR, MIN_RAM_PER_MIXCR, getPipelineCtx().getLogger());
+        final Integer ramPerTask = scheduler.getMaxConcurrent() > 1 && maxRam != null ? maxRam / scheduler.getMaxConcurrent() : null;
+
+        final File forwardFqFinal = forwardFq;
+        final File reverseFqFinal = reverseFq;
+        List<MiXCRScheduler.Task<LibraryResult>> tasks = new ArrayList<>();
+        for (JSONObject library : libraryArray)
         {
             String species = library.getString("species");
             Integer rowid = library.optInt("rowid");
 
-            totalReadsInExportedAlignments.put(rowid, new HashMap<>());
-            totalReadsInExportedAlignments.get(rowid).put(species, new HashMap<>());
+            totalReadsInExportedAlignments.computeIfAbsent(rowid, x -> new HashMap<>()).put(species, new HashMap<>());
             totalReadsInExportedAlignments.get(rowid).get(species).put("All", 0);
 
-            totalReadsInExportedClones.put(rowid, new HashMap<>());
-            totalReadsInExportedClones.get(rowid).put(species, new HashMap<>());
+            totalReadsInExportedClones.computeIfAbsent(rowid, x -> new HashMap<>()).put(species, new HashMap<>());
             totalReadsInExportedClones.get(rowid).get(species).put("All", 0);
 
-            MiXCRWrapper mixcr = new MiXCRWrapper(getPipelineCtx().getLogger());
-            mixcr.setOutputDir(outputDir);
-            String javaDir = StringUtils.trimToNull(System.getenv("JAVA_HOME"));
-            if (javaDir != null)
-            {
-                getPipelineCtx().getLogger().debug("setting JAVA_HOME: " + javaDir);
-                mixcr.addToEnvironment("JAVA_HOME", javaDir);
-            }
-            else
-            {
-                getPipelineCtx().getLogger().debug("JAVA_HOME not set");
-            }
+            final Map<String, Integer> alignmentTotals = totalReadsInExportedAlignments.get(rowid).get(species);
+            tasks.add(threads -> {
+                LibraryResult result = new LibraryResult(rowid, species);
 
-            List<String> alignParams = new ArrayList<>();
-            List<String> assembleParams = new ArrayList<>();
+                MiXCRWrapper mixcr = new MiXCRWrapper(getPipelineCtx().getLogger());
+                mixcr.setOutputDir(outputDir);
+                mixcr.setMaxRamGb(ramPerTask);
+                String javaDir = StringUtils.trimToNull(System.getenv("JAVA_HOME"));
+                if (javaDir != null)
+                {
+                    getPipelineCtx().getLogger().debug("setting JAVA_HOME: " + javaDir);
+                    mixcr.addToEnvironment("JAVA_HOME", javaDir);
+                }
+                else
+                {
+                    getPipelineCtx().getLogger().debug("JAVA_HOME not set");
+                }
 
-            String libraryName = StringUtils.trimToNull(library.optString("libraryName"));
-            if (libraryName != null)
-            {
-                alignParams.add("--library " + libraryName);
-            }
+                List<String> alignParams = new ArrayList<>();
+                List<String> assembleParams = new ArrayList<>();
 
-            if (library.optString("additionalParams") != null)
-            {
-                // -OvParameters.geneFeatureToAlign=VRegion
-                String additional = StringUtils.trimToNull(library.getString("additionalParams"));
-                if (additional != null)
+                String libraryName = StringUtils.trimToNull(library.optString("libraryName"));
+                if (libraryName != null)
+                {
+                    alignParams.add("--library " + libraryName);
+                }
+
+                if (library.optString("additionalParams") != null)
                 {
-                    for (String s : library.getString("additionalParams").split(";"))
+                    // -OvParameters.geneFeatureToAlign=VRegion
+                    String additional = StringUtils.trimToNull(library.getString("additionalParams"));
+                    if (additional != null)
                     {
-                        alignParams.add(s);
+                        for (String s : library.getString("additionalParams").split(";"))
+                        {
+                            alignParams.add(s);
+                        }
                     }
                 }
-            }
-
-            if (getProvider().getParameterByName(DIFF_LOCI).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Boolean.class))
-            {
-                alignParams.add("-OallowChimeras=true");
-            }
 
-            Integer threads = SequencePipelineService.get().getMaxThreads(getPipelineCtx().getJob().getLogger());
-            if (threads != null)
-            {
-                alignParams.add("-t " + threads.toString());
-                assembleParams.add("-t " + threads.toString());
-            }
-
-            List<String> generalParams = new ArrayList<>();
+                if (allowDiffLoci)
+                {
+                    alignParams.add("-OallowChimeras=true");
+                }
 
-            String prefix = getOutputPrefix(FileUtil.getBaseName(inputBam), String.valueOf(rowid), species);
-            File assembledClones = mixcr.doAnalyze(forwardFq, reverseFq, prefix, species, generalParams, alignParams, assembleParams, Collections.emptyList());
-            if (!assembledClones.exists())
-            {
-                throw new PipelineJobException("Unable to find file: " + assembledClones.getPath());
-            }
+                if (threads != null)
+                {
+                    alignParams.add("-t " + threads.toString());
+                    assembleParams.add("-t " + threads.toString());
+                }
 
-            output.addSequenceOutput(assembledClones, assembledClones.getName(), "MiXCR Clones", rs.getReadsetId(), null, referenceGenome.getGenomeId(), null);
+                List<String> generalParams = new ArrayList<>();
 
-            File alignOutput = mixcr.getAlignFile(prefix, outputDir);
-            output.addIntermediateFile(alignOutput, "MiXCR VDJ Alignment");
+                String prefix = getOutputPrefix(FileUtil.getBaseName(inputBam), String.valueOf(rowid), species);
+                File assembledClones = mixcr.doAnalyze(forwardFqFinal, reverseFqFinal, prefix, species, generalParams, alignParams, assembleParams, Collections.emptyList());
+                if (!assembledClones.exists())
+                {
+                    throw new PipelineJobException("Unable to find file: " + assembledClones.getPath());
+                }
 
-            File alignPartialOutput1 = mixcr.getAssemblePartialFile(prefix, outputDir, "0");
-            output.addIntermediateFile(alignPartialOutput1, "MiXCR VDJ Alignment, Recovery Step 1");
+                result.add(o -> o.addSequenceOutput(assembledClones, assembledClones.getName(), "MiXCR Clones", rs.getReadsetId(), null, referenceGenome.getGenomeId(), null));
 
-            File alignPartialOutput2 = mixcr.getAssemblePartialFile(prefix, outputDir, "1");
-            output.addIntermediateFile(alignPartialOutput2, "MiXCR VDJ Alignment, Recovery Step 2");
+                File alignOutput = mixcr.getAlignFile(prefix, outputDir);
+                result.add(o -> o.addIntermediateFile(alignOutput, "MiXCR VDJ Alignment"));
 
-            File extendAlignmentsOut = mixcr.getExtendedFile(prefix, outputDir);
-            //output.addIntermediateFile(extendAlignmentsOut, "MiXCR VDJ Alignment, Extended");
+                File alignPartialOutput1 = mixcr.getAssemblePartialFile(prefix, outputDir, "0");
+                result.add(o -> o.addIntermediateFile(alignPartialOutput1, "MiXCR VDJ Alignment, Recovery Step 1"));
 
-            File assembleOut = mixcr.getAssembleOut(prefix, outputDir);
-            output.addOutput(assembleOut, CLONES_FILE);
-            //output.addIntermediateFile(assembleOut, "MiXCR VDJ Assembled Data");
+                File alignPartialOutput2 = mixcr.getAssemblePartialFile(prefix, outputDir, "1");
+                result.add(o -> o.addIntermediateFile(alignPartialOutput2, "MiXCR VDJ Alignment, Recovery Step 2"));
 
-            //File assembleContigsOut = mixcr.getAssembleContigsOut(prefix, outputDir);
-            //output.addIntermediateFile(assembleContigsOut, "MiXCR VDJ Assembled");
+                File extendAlignmentsOut = mixcr.getExtendedFile(prefix, outputDir);
+                //output.addIntermediateFile(extendAlignmentsOut, "MiXCR VDJ Alignment, Extended");
 
-            //this is our final output in the chain:
-            output.addOutput(extendAlignmentsOut, FINAL_VDJ_FILE);
+                File assembleOut = mixcr.getAssembleOut(prefix, outputDir);
+                result.add(o -> o.addOutput(assembleOut, CLONES_FILE));
+                //output.addIntermediateFile(assembleOut, "MiXCR VDJ Assembled Data");
 
-            //write summary
-            writeSummary(outputDir, prefix, mixcr, output, rs, totalReadsInExportedAlignments.get(rowid).get(species));
+                //File assembleContigsOut = mixcr.getAssembleContigsOut(prefix, outputDir);
+                //output.addIntermediateFile(assembleContigsOut, "MiXCR VDJ Assembled");
 
-            for (String locus : loci)
-            {
-                File table = new File(outputDir, prefix + "." + StringUtils.replace(locus , ",", "_") + ".mixcr.txt");
+                //this is our final output in the chain:
+                result.add(o -> o.addOutput(extendAlignmentsOut, FINAL_VDJ_FILE));
 
-                List<String> exportParams = new ArrayList<>();
-                Double minCloneFraction = getProvider().getParameterByName(MIN_CLONE_FRACTION).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Double.class, null);
-                Integer minCloneReads = getProvider().getParameterByName(MIN_CLONE_READS).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Integer.class, null);
+                //write summary
+                writeSummary(outputDir, prefix, mixcr, result, rs, alignmentTotals);
 
-                if (minCloneReads != null)
+                for (String locus : loci)
                 {
-                    exportParams.add("--minimal-clone-count");
-                    exportParams.add(minCloneReads.toString());
-                }
+                    File table = new File(outputDir, prefix + "." + StringUtils.replace(locus , ",", "_") + ".mixcr.txt");
 
-                if (minCloneFraction != null)
-                {
-                    exportParams.add("--minimal-clone-fraction");
-                    exportParams.add(minCloneFraction.toString());
-                }
+                    List<String> exportParams = new ArrayList<>();
+                    if (minCloneReads != null)
+                    {
+                        exportParams.add("--minimal-clone-count");
+                        exportParams.add(minCloneReads.toString());
+                    }
 
-                mixcr.doExportClones(assembledClones, table, locus, exportParams);
-                if (!tables.containsKey(rowid))
-                {
-                    tables.put(rowid, new HashMap<>());
-                }
+                    if (minCloneFraction != null)
+                    {
+                        exportParams.add("--minimal-clone-fraction");
+                        exportParams.add(minCloneFraction.toString());
+                    }
 
-                if (!tables.get(rowid).containsKey(species))
-                {
-                    tables.get(rowid).put(species, new HashMap<>());
+                    mixcr.doExportClones(assembledClones, table, locus, exportParams);
+                    result._tablesByLocus.computeIfAbsent(locus, x -> new ArrayList<>()).add(table);
                 }
 
-                if (!tables.get(rowid).get(species).containsKey(locus))
-                {
-                    tables.get(rowid).get(species).put(locus, new ArrayList<>());
-                }
+                return result;
+            });
+        }
 
-                tables.get(rowid).get(species).get(locus).add(table);
-            }
+        for (LibraryResult result : scheduler.runAll(tasks))
+        {
+            result._outputActions.forEach(x -> x.accept(output));
+
+            Map<String, List<File>> tablesForLocus = tables.computeIfAbsent(result._libraryId, x -> new LinkedHashMap<>()).computeIfAbsent(result._species, x -> new LinkedHashMap<>());
+            result._tablesByLocus.forEach((locus, files) -> tablesForLocus.computeIfAbsent(locus, x -> new ArrayList<>()).addAll(files));
         }
 
         File combinedTable = getCombinedTable(outputDir);
+        MiXCRCloneTableMerger merger = new MiXCRCloneTableMerger(FIELDS.subList(TOTAL_ADDED_FIELDS, FIELDS.size()), getPipelineCtx().getLogger());
         try (PrintWriter writer = PrintWriters.getPrintWriter(combinedTable))
         {
             boolean hasHeader = false;
@@ -440,6 +443,7 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
                 Map<String, Map<String, List<File>>> tablesForSpecies = tables.get(libraryId);
                 for (String species : tablesForSpecies.keySet())
                 {
+                    MiXCRCloneTableMerger.LocusTotals totals = new MiXCRCloneTableMerger.LocusTotals();
                     Map<String, List<File>> tablesForLocus = tablesForSpecies.get(species);
                     for (String locus : tablesForLocus.keySet())
                     {
@@ -447,86 +451,17 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
                         {
                             try (BufferedReader reader = Readers.getReader(f))
                             {
-                                String line;
-                                int idx = 0;
-                                while ((line = reader.readLine()) != null)
+                                if (merger.append(reader, writer, "LibraryId\tSpecies\tLocus\tMiXCR_Version\t", !hasHeader, String.valueOf(libraryId), species, locus, version, totals))
                                 {
-                                    idx++;
-                                    if (idx == 1)
-                                    {
-                                        if (!hasHeader)
-                                        {
-                                            writer.write("LibraryId\tSpecies\tLocus\tMiXCR_Version\t" + line);
-                                            writer.write('\n');
-                                            hasHeader = true;
-                                        }
-                                    }
-                                    else
-                                    {
-                                        //attempt to infer locus based on the gene hits
-                                        //this is primarily used to differentiate TRA,TRD hits
-                                        String[] fields = line.split("\t");
-                                        Set<String> chainsWithoutV = new HashSet<>();
-                                        Set<String> allChains = new HashSet<>();
-
-                                        for (String fn : Arrays.asList("vHit", "dHit", "jHit", "cHit"))
-                                        {
-                                            String val = StringUtils.trimToNull(fields[FIELDS.indexOf(fn) - TOTAL_ADDED_FIELDS]);
-                                            if (val == null)
-                                            {
-                                                continue;
-                                            }
-
-                                            for (String chain : Arrays.asList("TRA", "TRB", "TRD", "TRG"))
-                                            {
-                                                if (val.startsWith(chain))
-                                                {
-                                                    allChains.add(chain);
-                                                    if (!fn.equals("vHit"))
-                                                    {
-                                                        chainsWithoutV.add(chain);
-                                                    }
-                                                }
-                                            }
-                                        }
-
-                                        String inferredLocusWithoutV = StringUtils.join(chainsWithoutV, ",");
-                                        String inferredLocusWithV = StringUtils.join(allChains, ",");
-                                        if (inferredLocusWithoutV.isEmpty())
-                                        {
-                                            getPipelineCtx().getLogger().warn("unable to infer locus for row: " + line);
-                                        }
-
-                                        String rowLocus = inferredLocusWithoutV.isEmpty() ? inferredLocusWithV : inferredLocusWithoutV;
-                                        if (rowLocus.contains(","))
-                                        {
-                                            getPipelineCtx().getLogger().warn("chimeric locus found: " + line);
-                                        }
-
-                                        List<String> chains = Arrays.asList(locus.split(","));
-                                        if (!chains.contains(inferredLocusWithoutV) && !"ALL".equals(locus))
-                                        {
-                                            getPipelineCtx().getLogger().warn("Initial locus does not match the locus inferred by the gene hits.  chains: " + locus + ", inferred without V: " + inferredLocusWithoutV + ", with V: " + inferredLocusWithV);
-                                        }
-
-                                        int readCount = ((Double)Double.parseDouble(fields[FIELDS.indexOf("count") - TOTAL_ADDED_FIELDS])).intValue();
-                                        if (!totalReadsInExportedClones.get(libraryId).get(species).containsKey(rowLocus))
-                                        {
-                                            totalReadsInExportedClones.get(libraryId).get(species).put(rowLocus, 0);
-                                        }
-
-                                        totalReadsInExportedClones.get(libraryId).get(species).put(rowLocus, totalReadsInExportedClones.get(libraryId).get(species).get(rowLocus) + readCount);
-                                        totalReadsInExportedClones.get(libraryId).get(species).put("All", totalReadsInExportedClones.get(libraryId).get(species).get("All") + readCount);
-
-                                        writer.write(String.valueOf(libraryId) + '\t' + species + '\t' + rowLocus + '\t' + version + '\t' + line);
-                                        writer.write('\n');
-                                    }
+                                    hasHeader = true;
                                 }
                             }
 
                             f.delete();
                         }
                     }
+
+                    totals.addTo(totalReadsInExportedClones.get(libraryId).get(species));
                 }
             }
             output.addOutput(combinedTable, "MiXCR CDR3 Data");
@@ -582,12 +517,12 @@ private File getSummaryFile(String prefix, File outputDir)
         return new File(outputDir, prefix + ".summary.txt");
     }
 
-    private void writeSummary(File outputDir, String prefix, MiXCRWrapper mixcr, MiXCROutput output, Readset rs, Map<String, Integer> totalReadsInExportedAlignmentsByLocus) throws PipelineJobException
+    private void writeSummary(File outputDir, String prefix, MiXCRWrapper mixcr, LibraryResult output, Readset rs, Map<String, Integer> totalReadsInExportedAlignmentsByLocus) throws PipelineJobException
     {
         File alignExport = new File(outputDir, prefix + ".alignments.txt");
         File alignOutput = mixcr.getAlignOutputFile(outputDir, prefix);
         mixcr.doExportAlignments(alignOutput, alignExport, null);
-        output.addOutput(alignExport, "MiXCR Alignments");
+        output.add(o -> o.addOutput(alignExport, "MiXCR Alignments"));
 
         try (CSVReader reader = new CSVReader(Readers.getReader(alignExport), '\t'))
         {
@@ -700,7 +635,7 @@ private void writeSummary(File outputDir, String prefix, MiXCRWrapper mixcr, MiX
             throw new PipelineJobException(e);
         }
 
-        output.addIntermediateFile(alignExport);
+        output.add(o -> o.addIntermediateFile(alignExport));
     }
 
     private File getCombinedTable(File outputDir)
@@ -1015,6 +950,11 @@ private File getScript(String path) throws PipelineJobException
 
     private boolean hasLines(File f) throws PipelineJobException
     {
+        if (f.length() == 0)
+        {
+            return false;
+        }
+
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(f.getName().endsWith(".gz") ? new GZIPInputStream(new FileInputStream(f)) : new FileInputStream(f), StringUtilsLabKey.DEFAULT_CHARSET));)
         {
             while (reader.readLine() != null)
@@ -1065,6 +1005,28 @@ private static class MiXCROutput extends DefaultPipelineStepOutput implements An
 
     }
 
+    /**
+     * The outputs of one library/species MiXCR run.  Since these runs may be concurrent, outputs are recorded here and only applied to the step output once all runs complete.
+     */
+    private static class LibraryResult
+    {
+        private final int _libraryId;
+        private final String _species;
+        private final List<Consumer<MiXCROutput>> _outputActions = new ArrayList<>();
+        private final Map<String, List<File>> _tablesByLocus = new LinkedHashMap<>();
+
+        public LibraryResult(int libraryId, String species)
+        {
+            _libraryId = libraryId;
+            _species = species;
+        }
+
+        public void add(Consumer<MiXCROutput> action)
+        {
+            _outputActions.add(action);
+        }
+    }
+
     private String getOutputPrefix(String basename, String libraryId, String species)
     {
         return basename + "." + libraryId + "." + species;
@@ -1610,6 +1572,7 @@ private void importRun(RunData rd, File outDir, AnalysisModel model, ExpProtocol
 
         AssayProvider ap = AssayService.get().getProvider(protocol);
         boolean deleteExistingAssayData = getProvider().getParameterByName(CellRangerVDJCellHashingHandler.DELETE_EXISTING_ASSAY_DATA).extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Boolean.class, false);
+        Collection<Integer> existingRuns = Collections.emptyList();
         if (deleteExistingAssayData)
         {
             if (model.getReadset() == null)
@@ -1618,10 +1581,17 @@ private void importRun(RunData rd, File outDir, AnalysisModel model, ExpProtocol
             }
             else
             {
-                CellRangerVDJUtils.deleteExistingData(ap, protocol, getPipelineCtx().getJob().getContainer(), getPipelineCtx().getJob().getUser(), getPipelineCtx().getLogger(), model.getReadset());
+                existingRuns = CellRangerVDJUtils.findExistingRuns(ap, protocol, getPipelineCtx().getJob().getContainer(), getPipelineCtx().getJob().getUser(), getPipelineCtx().getLogger(), model.getReadset());
             }
         }
+
+        //NOTE: the prior runs are deleted after the new run is saved, so they remain in place if the import fails
+        long start = System.currentTimeMillis();
         LaboratoryService.get().saveAssayBatch(rd.rows, json, assayTmp, vc, ap, protocol);
+        getPipelineCtx().getLogger().info("time spent inserting: " + DurationFormatUtils.formatDurationHMS(System.currentTimeMillis() - start));
+
+        CellRangerVDJUtils.deleteRuns(ap, protocol, getPipelineCtx().getJob().getContainer(), getPipelineCtx().getJob().getUser(), getPipelineCtx().getLogger(), existingRuns);
+        TCRdbManager.get().refreshResultSummary(getPipelineCtx().getJob().getUser(), getPipelineCtx().getJob().getContainer(), Collections.singleton(model.getRowId()), Collections.emptySet());
     }
 
     private JSONArray getTcrDbs() throws PipelineJobException
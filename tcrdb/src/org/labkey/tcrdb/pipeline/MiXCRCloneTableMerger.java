@@ -0,0 +1,426 @@
+package org.labkey.tcrdb.pipeline;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams the per-locus MiXCR clone exports into the combined table.  Column positions are resolved and checked against the header once per file,
+ * each row is scanned for tab offsets rather than split, and the chains found in each row are tracked as a bitmask, so read totals by
+ * inferred locus are accumulated in a flat array indexed by that mask.
+ */
+public class MiXCRCloneTableMerger
+{
+    private static final String[] CHAINS = new String[]{"TRA", "TRB", "TRD", "TRG"};
+    private static final String[] LOCUS_BY_MASK = new String[1 << CHAINS.length];
+    static
+    {
+        //NOTE: these match the prior behavior of joining a HashSet of chain names, so the locus strings written are unchanged
+        for (int mask = 0; mask < LOCUS_BY_MASK.length; mask++)
+        {
+            Set<String> chains = new HashSet<>();
+            for (int i = 0; i < CHAINS.length; i++)
+            {
+                if ((mask & (1 << i)) != 0)
+                {
+                    chains.add(CHAINS[i]);
+                }
+            }
+
+            LOCUS_BY_MASK[mask] = StringUtils.join(chains, ",");
+        }
+    }
+
+    private final Logger _log;
+    private final List<String> _exportedFields;
+
+    /**
+     * @param exportedFields The names of the columns, in order, produced by MiXCRWrapper.doExportClones()
+     */
+    public MiXCRCloneTableMerger(List<String> exportedFields, Logger log)
+    {
+        _exportedFields = exportedFields;
+        _log = log;
+    }
+
+    /**
+     * Total reads by inferred locus, indexed by the bitmask of chains
+     */
+    public static class LocusTotals
+    {
+        private final long[] _reads = new long[LOCUS_BY_MASK.length];
+        private final boolean[] _observed = new boolean[LOCUS_BY_MASK.length];
+
+        private void add(int mask, int reads)
+        {
+            _reads[mask] += reads;
+            _observed[mask] = true;
+        }
+
+        public void addTo(Map<String, Integer> readsByLocus)
+        {
+            for (int mask = 0; mask < _reads.length; mask++)
+            {
+                if (_observed[mask])
+                {
+                    readsByLocus.merge(LOCUS_BY_MASK[mask], (int)_reads[mask], Integer::sum);
+                    readsByLocus.merge("All", (int)_reads[mask], Integer::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the header of one export, and writes it to the combined table with the supplied prefix columns if writeHeader is true.
+     * Returns the column positions for this file, or null if the file is empty.
+     */
+    private int[] readHeader(BufferedReader reader, Writer writer, String headerPrefix, boolean writeHeader) throws IOException, PipelineJobException
+    {
+        String header = reader.readLine();
+        if (header == null)
+        {
+            return null;
+        }
+
+        int totalColumns = StringUtils.countMatches(header, '\t') + 1;
+        int[] positions = new int[]{_exportedFields.indexOf("vHit"), _exportedFields.indexOf("dHit"), _exportedFields.indexOf("jHit"), _exportedFields.indexOf("cHit"), _exportedFields.indexOf("count")};
+        for (int position : positions)
+        {
+            if (position < 0 || position >= totalColumns)
+            {
+                throw new PipelineJobException("MiXCR export header does not have the expected columns: " + header);
+            }
+        }
+
+        if (writeHeader)
+        {
+            writer.write(headerPrefix);
+            writer.write(header);
+            writer.write('\n');
+        }
+
+        return positions;
+    }
+
+    /**
+     * Appends the rows of one export to the combined table, and adds the reads per inferred locus to totals.
+     * @return true if the file had a header
+     */
+    public boolean append(BufferedReader reader, Writer writer, String headerPrefix, boolean writeHeader, String libraryId, String species, String locus, String version, LocusTotals totals) throws IOException, PipelineJobException
+    {
+        int[] positions = readHeader(reader, writer, headerPrefix, writeHeader);
+        if (positions == null)
+        {
+            return false;
+        }
+
+        final int countPosition = positions[4];
+        final int maxPosition = Arrays.stream(positions).max().getAsInt();
+        final int[] starts = new int[maxPosition + 2];
+
+        List<String> expectedChains = Arrays.asList(locus.split(","));
+        boolean isAll = "ALL".equals(locus);
+        String rowPrefix = libraryId + '\t' + species + '\t';
+        String rowSuffix = '\t' + version + '\t';
+
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            //record the start of each field through the last one we need.  starts[i + 1] - 1 is the end of field i
+            starts[0] = 0;
+            int found = 1;
+            for (int idx = line.indexOf('\t'); idx != -1 && found < starts.length; idx = line.indexOf('\t', idx + 1))
+            {
+                starts[found++] = idx + 1;
+            }
+
+            if (found <= maxPosition)
+            {
+                throw new PipelineJobException("MiXCR export row has fewer columns than expected: " + line);
+            }
+
+            //attempt to infer locus based on the gene hits
+            //this is primarily used to differentiate TRA,TRD hits
+            int chainsWithoutV = 0;
+            int allChains = 0;
+            for (int i = 0; i < 4; i++)
+            {
+                int mask = getChainMask(line, starts[positions[i]], fieldEnd(line, starts, found, positions[i]));
+                allChains |= mask;
+                if (i != 0)
+                {
+                    chainsWithoutV |= mask;
+                }
+            }
+
+            String inferredLocusWithoutV = LOCUS_BY_MASK[chainsWithoutV];
+            String inferredLocusWithV = LOCUS_BY_MASK[allChains];
+            if (chainsWithoutV == 0)
+            {
+                _log.warn("unable to infer locus for row: " + line);
+            }
+
+            int rowMask = chainsWithoutV == 0 ? allChains : chainsWithoutV;
+            String rowLocus = LOCUS_BY_MASK[rowMask];
+            if (Integer.bitCount(rowMask) > 1)
+            {
+                _log.warn("chimeric locus found: " + line);
+            }
+
+            if (!isAll && !expectedChains.contains(inferredLocusWithoutV))
+            {
+                _log.warn("Initial locus does not match the locus inferred by the gene hits.  chains: " + locus + ", inferred without V: " + inferredLocusWithoutV + ", with V: " + inferredLocusWithV);
+            }
+
+            totals.add(rowMask, (int)Double.parseDouble(line.substring(starts[countPosition], fieldEnd(line, starts, found, countPosition))));
+
+            writer.write(rowPrefix);
+            writer.write(rowLocus);
+            writer.write(rowSuffix);
+            writer.write(line);
+            writer.write('\n');
+        }
+
+        return true;
+    }
+
+    private static int fieldEnd(String line, int[] starts, int totalFound, int position)
+    {
+        //if the next field was not found, this is the last field in the line
+        return position + 1 < totalFound ? starts[position + 1] - 1 : line.length();
+    }
+
+    private static int getChainMask(String line, int start, int end)
+    {
+        //equivalent to StringUtils.trimToNull(val).startsWith(chain)
+        while (start < end && line.charAt(start) <= ' ')
+        {
+            start++;
+        }
+
+        if (end - start < 3)
+        {
+            return 0;
+        }
+
+        for (int i = 0; i < CHAINS.length; i++)
+        {
+            if (line.startsWith(CHAINS[i], start))
+            {
+                return 1 << i;
+            }
+        }
+
+        return 0;
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _testLog = LogManager.getLogger(MiXCRCloneTableMerger.TestCase.class);
+        private static final List<String> TEST_FIELDS = Arrays.asList("cloneId", "count", "vHit", "dHit", "jHit", "cHit", "aaSeqCDR3");
+        private static final String HEADER = StringUtils.join(TEST_FIELDS, '\t');
+        private static final String HEADER_PREFIX = "LibraryId\tSpecies\tLocus\tMiXCR_Version\t";
+
+        private String merge(String[][] filesByLocus, Map<String, Integer> readsByLocus) throws IOException, PipelineJobException
+        {
+            MiXCRCloneTableMerger merger = new MiXCRCloneTableMerger(TEST_FIELDS, _testLog);
+            LocusTotals totals = new LocusTotals();
+            StringWriter writer = new StringWriter();
+            boolean hasHeader = false;
+            for (String[] file : filesByLocus)
+            {
+                try (BufferedReader reader = new BufferedReader(new StringReader(file[1])))
+                {
+                    if (merger.append(reader, writer, HEADER_PREFIX, !hasHeader, "1", "human", file[0], "3.0", totals))
+                    {
+                        hasHeader = true;
+                    }
+                }
+            }
+
+            totals.addTo(readsByLocus);
+
+            return writer.toString();
+        }
+
+        /**
+         * The merge used prior to this class, which split each row and resolved columns by name for each row
+         */
+        private String legacyMerge(String[][] filesByLocus, Map<String, Integer> readsByLocus) throws IOException
+        {
+            StringWriter writer = new StringWriter();
+            boolean hasHeader = false;
+            for (String[] file : filesByLocus)
+            {
+                String locus = file[0];
+                try (BufferedReader reader = new BufferedReader(new StringReader(file[1])))
+                {
+                    String line;
+                    int idx = 0;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        idx++;
+                        if (idx == 1)
+                        {
+                            if (!hasHeader)
+                            {
+                                writer.write(HEADER_PREFIX + line);
+                                writer.write('\n');
+                                hasHeader = true;
+                            }
+                        }
+                        else
+                        {
+                            String[] fields = line.split("\t");
+                            Set<String> chainsWithoutV = new HashSet<>();
+                            Set<String> allChains = new HashSet<>();
+
+                            for (String fn : Arrays.asList("vHit", "dHit", "jHit", "cHit"))
+                            {
+                                String val = StringUtils.trimToNull(fields[TEST_FIELDS.indexOf(fn)]);
+                                if (val == null)
+                                {
+                                    continue;
+                                }
+
+                                for (String chain : Arrays.asList("TRA", "TRB", "TRD", "TRG"))
+                                {
+                                    if (val.startsWith(chain))
+                                    {
+                                        allChains.add(chain);
+                                        if (!fn.equals("vHit"))
+                                        {
+                                            chainsWithoutV.add(chain);
+                                        }
+                                    }
+                                }
+                            }
+
+                            String inferredLocusWithoutV = StringUtils.join(chainsWithoutV, ",");
+                            String inferredLocusWithV = StringUtils.join(allChains, ",");
+                            String rowLocus = inferredLocusWithoutV.isEmpty() ? inferredLocusWithV : inferredLocusWithoutV;
+
+                            int readCount = ((Double)Double.parseDouble(fields[TEST_FIELDS.indexOf("count")])).intValue();
+                            readsByLocus.merge(rowLocus, readCount, Integer::sum);
+                            readsByLocus.merge("All", readCount, Integer::sum);
+
+                            writer.write("1" + '\t' + "human" + '\t' + rowLocus + '\t' + "3.0" + '\t' + line);
+                            writer.write('\n');
+                        }
+                    }
+                }
+            }
+
+            return writer.toString();
+        }
+
+        private void assertMatchesLegacy(String[][] filesByLocus) throws IOException, PipelineJobException
+        {
+            Map<String, Integer> expectedTotals = new HashMap<>();
+            expectedTotals.put("All", 0);
+            String expected = legacyMerge(filesByLocus, expectedTotals);
+
+            Map<String, Integer> totals = new HashMap<>();
+            totals.put("All", 0);
+            assertEquals(expected, merge(filesByLocus, totals));
+            assertEquals(expectedTotals, totals);
+        }
+
+        private static String table(String... rows)
+        {
+            StringBuilder sb = new StringBuilder(HEADER).append('\n');
+            for (String row : rows)
+            {
+                sb.append(row).append('\n');
+            }
+
+            return sb.toString();
+        }
+
+        @Test
+        public void testDuplicates() throws Exception
+        {
+            String tra = table(
+                    "0\t10.0\tTRAV1*00(100)\t\tTRAJ1*00(50)\tTRAC*00(20)\tCAVF",
+                    "0\t10.0\tTRAV1*00(100)\t\tTRAJ1*00(50)\tTRAC*00(20)\tCAVF",
+                    "1\t3\tTRAV2*00(100)\t\tTRAJ2*00(50)\t\tCAVG"
+            );
+
+            //the same clones exported twice, with an empty export in between, should only write one header and count each row
+            assertMatchesLegacy(new String[][]{{"TRA", tra}, {"TRB", ""}, {"TRA", tra}});
+
+            Map<String, Integer> totals = new HashMap<>();
+            merge(new String[][]{{"TRA", tra}, {"TRB", ""}, {"TRA", tra}}, totals);
+            assertEquals(Integer.valueOf(46), totals.get("All"));
+        }
+
+        @Test
+        public void testMultiLocus() throws Exception
+        {
+            String trad = table(
+                    "0\t5\tTRAV1*00(100)\t\tTRDJ1*00(50)\tTRDC*00(20)\tCAVF",
+                    "1\t7\tTRDV1*00(100)\t\t\t\tCALG",
+                    "2\t11\tTRAV1*00(100)\tTRDD1*00(30)\tTRAJ1*00(50)\t\tCAVW",
+                    "3\t13\t TRGV1*00(100) \t\t TRGJ1*00(50) \t\tCATW",
+                    "4\t17\tIGHV1*00(100)\t\tIGHJ1*00(50)\t\tCARW",
+                    "5\t19.7\tTRBV1*00(100)\tTRBD1*00(10)\tTRBJ1*00(50)\tTRBC1*00(20)\tCASS"
+            );
+
+            String all = table(
+                    "0\t23\tTRAV1*00(100)\tTRBD1*00(10)\tTRGJ1*00(50)\tTRDC*00(20)\tCAVF",
+                    "1\t29\t\t\t\t\tCAVG"
+            );
+
+            assertMatchesLegacy(new String[][]{{"TRA,TRD", trad}, {"ALL", all}, {"TRB", trad}});
+        }
+
+        @Test
+        public void testMissingColumns() throws Exception
+        {
+            //trailing columns that are not used may be empty or absent:
+            assertMatchesLegacy(new String[][]{{"TRA", table(
+                    "0\t10\tTRAV1*00(100)\t\tTRAJ1*00(50)\tTRAC*00(20)\t",
+                    "1\t10\tTRAV1*00(100)\t\tTRAJ1*00(50)\tTRAC*00(20)"
+            )}});
+
+            //a header without the expected columns is rejected before any rows are written:
+            StringWriter writer = new StringWriter();
+            try (BufferedReader reader = new BufferedReader(new StringReader("cloneId\tcount\tvHit\n0\t10\tTRAV1*00(100)\n")))
+            {
+                new MiXCRCloneTableMerger(TEST_FIELDS, _testLog).append(reader, writer, HEADER_PREFIX, true, "1", "human", "TRA", "3.0", new LocusTotals());
+                fail("Expected an exception");
+            }
+            catch (PipelineJobException e)
+            {
+                assertTrue(e.getMessage().startsWith("MiXCR export header does not have the expected columns"));
+            }
+            assertEquals("", writer.toString());
+
+            //as is a row that is missing a column that is used.  The previous merge failed here with an ArrayIndexOutOfBoundsException:
+            try
+            {
+                merge(new String[][]{{"TRA", table("0\t10\tTRAV1*00(100)\t\tTRAJ1*00(50)")}}, new HashMap<>());
+                fail("Expected an exception");
+            }
+            catch (PipelineJobException e)
+            {
+                assertTrue(e.getMessage().startsWith("MiXCR export row has fewer columns than expected"));
+            }
+        }
+    }
+}
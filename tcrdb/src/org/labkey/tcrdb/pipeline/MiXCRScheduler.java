@@ -0,0 +1,263 @@
+package org.labkey.tcrdb.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent MiXCR invocations (one per library/species) concurrently, dividing the job's CPU budget among them.
+ * Results are returned in the order the tasks were supplied, regardless of the order in which they finish.
+ */
+public class MiXCRScheduler
+{
+    public interface Task<T>
+    {
+        T run(@Nullable Integer threads) throws PipelineJobException;
+    }
+
+    private final int _maxConcurrent;
+    private final Integer _threadsPerTask;
+    private final Logger _log;
+
+    public MiXCRScheduler(int totalTasks, @Nullable Integer totalThreads, @Nullable Integer totalRamGb, int minThreadsPerTask, int minRamPerTask, Logger log)
+    {
+        int maxConcurrent = Math.max(1, totalTasks);
+        if (totalThreads == null)
+        {
+            maxConcurrent = 1;
+        }
+        else
+        {
+            maxConcurrent = Math.min(maxConcurrent, Math.max(1, totalThreads / minThreadsPerTask));
+        }
+
+        if (totalRamGb != null)
+        {
+            maxConcurrent = Math.min(maxConcurrent, Math.max(1, totalRamGb / minRamPerTask));
+        }
+
+        _maxConcurrent = maxConcurrent;
+        _threadsPerTask = totalThreads == null ? null : Math.max(1, totalThreads / _maxConcurrent);
+        _log = log;
+    }
+
+    public int getMaxConcurrent()
+    {
+        return _maxConcurrent;
+    }
+
+    @Nullable
+    public Integer getThreadsPerTask()
+    {
+        return _threadsPerTask;
+    }
+
+    public <T> List<T> runAll(List<Task<T>> tasks) throws PipelineJobException
+    {
+        List<T> ret = new ArrayList<>();
+        if (_maxConcurrent == 1 || tasks.size() == 1)
+        {
+            for (Task<T> task : tasks)
+            {
+                ret.add(task.run(_threadsPerTask));
+            }
+
+            return ret;
+        }
+
+        _log.info("running " + tasks.size() + " MiXCR tasks with up to " + _maxConcurrent + " concurrently, using " + _threadsPerTask + " threads each");
+        ExecutorService executor = Executors.newFixedThreadPool(_maxConcurrent);
+        try
+        {
+            List<Future<T>> futures = new ArrayList<>();
+            for (Task<T> task : tasks)
+            {
+                futures.add(executor.submit(() -> task.run(_threadsPerTask)));
+            }
+
+            for (Future<T> future : futures)
+            {
+                ret.add(future.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof PipelineJobException)
+            {
+                throw (PipelineJobException)e.getCause();
+            }
+
+            throw new PipelineJobException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        return ret;
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _testLog = LogManager.getLogger(MiXCRScheduler.TestCase.class);
+
+        /**
+         * Runs a fake MiXCR in place of java, so the real command line built by MiXCRWrapper is executed.
+         */
+        private static class FakeMiXCRWrapper extends MiXCRWrapper
+        {
+            private final File _script;
+
+            public FakeMiXCRWrapper(Logger log, File script)
+            {
+                super(log);
+                _script = script;
+            }
+
+            @Override
+            protected String getJavaFilepath()
+            {
+                return _script.getPath();
+            }
+
+            @Override
+            protected File getJAR()
+            {
+                return new File(_script.getParentFile(), "mixcr.jar");
+            }
+        }
+
+        @Test
+        public void testConcurrency() throws Exception
+        {
+            File dir = Files.createTempDirectory("mixcrSchedulerTest").toFile();
+            try
+            {
+                //fake MiXCR, which records the start and end time, creates the outputs MiXCRWrapper expects, and writes the thread count and -Xmx it was given to the contigs output:
+                File events = new File(dir, "events.txt");
+                File script = new File(dir, "mixcr.sh");
+                FileUtils.writeStringToFile(script, "#!/bin/bash\n" +
+                        "set -e\n" +
+                        "PREV=\n" +
+                        "for a in \"$@\"; do\n" +
+                        "  case \"$a\" in -Xmx*) RAM=\"${a#-Xmx}\";; '\"-t '*) THREADS=\"${a//[^0-9]/}\";; esac\n" +
+                        "  if [ \"$PREV\" == '--report' ]; then REPORT=\"$a\"; fi\n" +
+                        "  PREV=\"$a\"\n" +
+                        "done\n" +
+                        "OUT=\"${@: -1}\"\n" +
+                        "NAME=$(basename \"$OUT\")\n" +
+                        "echo \"start $NAME $(date +%s%N)\" >> " + events.getPath() + "\n" +
+                        "sleep 1\n" +
+                        "echo \"end $NAME $(date +%s%N)\" >> " + events.getPath() + "\n" +
+                        "echo \"threads: $THREADS\" > \"$REPORT\"\n" +
+                        "for t in ALL IGH IGK IGL TRA TRB TRD TRG; do touch \"$OUT.clonotypes.$t.txt\"; done\n" +
+                        "echo \"$NAME $THREADS $RAM\" > \"$OUT.contigs.clns\"\n", StandardCharsets.UTF_8);
+                assertTrue(script.setExecutable(true));
+
+                File fq = new File(dir, "reads.fastq");
+                FileUtils.writeStringToFile(fq, "", StandardCharsets.UTF_8);
+
+                // 12 threads with a minimum of 4 per task allows 3 concurrent tasks
+                MiXCRScheduler scheduler = new MiXCRScheduler(6, 12, null, 4, 8, _testLog);
+                assertEquals(3, scheduler.getMaxConcurrent());
+                assertEquals(Integer.valueOf(4), scheduler.getThreadsPerTask());
+
+                List<Task<String>> tasks = new ArrayList<>();
+                for (int i = 0; i < 6; i++)
+                {
+                    final String name = "library" + i;
+                    tasks.add(threads -> {
+                        MiXCRWrapper mixcr = new FakeMiXCRWrapper(_testLog, script);
+                        mixcr.setOutputDir(dir);
+                        mixcr.setMaxRamGb(8);
+
+                        List<String> alignParams = new ArrayList<>();
+                        alignParams.add("-t " + threads);
+                        File contigs = mixcr.doAnalyze(fq, null, name, "hsa", new ArrayList<>(), alignParams, new ArrayList<>(), Collections.emptyList());
+                        try
+                        {
+                            return FileUtils.readFileToString(contigs, StandardCharsets.UTF_8).trim();
+                        }
+                        catch (IOException e)
+                        {
+                            throw new PipelineJobException(e);
+                        }
+                    });
+                }
+
+                List<String> results = scheduler.runAll(tasks);
+                List<String> expected = new ArrayList<>();
+                for (int i = 0; i < 6; i++)
+                {
+                    expected.add("library" + i + " 4 8g");
+                }
+                assertEquals("Results should be in task order", expected, results);
+
+                //replay the events to find the peak number of concurrent invocations:
+                List<long[]> eventList = new ArrayList<>();
+                for (String line : FileUtils.readLines(events, StandardCharsets.UTF_8))
+                {
+                    String[] tokens = line.split(" ");
+                    eventList.add(new long[]{Long.parseLong(tokens[2]), "start".equals(tokens[0]) ? 1 : -1});
+                }
+                Collections.sort(eventList, (a, b) -> a[0] == b[0] ? Long.compare(a[1], b[1]) : Long.compare(a[0], b[0]));
+
+                int current = 0;
+                int peak = 0;
+                for (long[] event : eventList)
+                {
+                    current += event[1];
+                    peak = Math.max(peak, current);
+                }
+
+                assertEquals(12, eventList.size());
+                assertTrue("Expected concurrent execution, peak was: " + peak, peak > 1);
+                assertTrue("Exceeded the concurrency limit, peak was: " + peak, peak <= 3);
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testBudget()
+        {
+            //no thread information: run serially
+            MiXCRScheduler scheduler = new MiXCRScheduler(4, null, null, 4, 8, _testLog);
+            assertEquals(1, scheduler.getMaxConcurrent());
+            assertNull(scheduler.getThreadsPerTask());
+
+            //RAM is the limiting factor
+            scheduler = new MiXCRScheduler(4, 32, 16, 4, 8, _testLog);
+            assertEquals(2, scheduler.getMaxConcurrent());
+            assertEquals(Integer.valueOf(16), scheduler.getThreadsPerTask());
+
+            //never more tasks than libraries
+            scheduler = new MiXCRScheduler(2, 32, null, 4, 8, _testLog);
+            assertEquals(2, scheduler.getMaxConcurrent());
+            assertEquals(Integer.valueOf(16), scheduler.getThreadsPerTask());
+        }
+    }
+}
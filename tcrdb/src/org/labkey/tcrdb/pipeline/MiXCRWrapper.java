@@ -21,6 +21,7 @@
 public class MiXCRWrapper extends AbstractCommandWrapper
 {
     private File _libraryPath = null;
+    private Integer _maxRamGb = null;
 
     public MiXCRWrapper(Logger log)
     {
@@ -334,8 +335,13 @@ public void doExportAlignments(File align, File output, List<String> extraArgs)
     private List<String> getBaseArgs()
     {
         List<String> args = new ArrayList<>();
-        args.add(SequencePipelineService.get().getJavaFilepath());
+        args.add(getJavaFilepath());
         //args.addAll(SequencePipelineService.get().getJavaOpts());
+        if (_maxRamGb != null)
+        {
+            args.add("-Xmx" + _maxRamGb + "g");
+        }
+
         File jar = new File(getJAR().getPath());
         args.add("-Dmixcr.path=" + jar.getParentFile().getPath());
         args.add("-Dmixcr.command=mixcr");
@@ -351,7 +357,12 @@ private List<String> getBaseArgs()
         return args;
     }
 
-    private File getJAR()
+    protected String getJavaFilepath()
+    {
+        return SequencePipelineService.get().getJavaFilepath();
+    }
+
+    protected File getJAR()
     {
         File jar = new File(ModuleLoader.getInstance().getWebappDir(), "WEB-INF/lib");
         jar = new File(jar, "mixcr.jar");
@@ -385,6 +396,11 @@ public void setLibraryPath(File libraryPath)
         _libraryPath = libraryPath;
     }
 
+    public void setMaxRamGb(@Nullable Integer maxRamGb)
+    {
+        _maxRamGb = maxRamGb;
+    }
+
     public File getAlignOutputFile(File outDir, String outputPrefix)
     {
         return new File(outDir, outputPrefix + ".vdjca");
@@ -0,0 +1,108 @@
+package org.labkey.tcrdb.query;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.triggers.Trigger;
+import org.labkey.api.data.triggers.TriggerFactory;
+import org.labkey.api.query.BatchValidationException;
+import org.labkey.api.query.ValidationException;
+import org.labkey.api.security.User;
+import org.labkey.tcrdb.TCRdbManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Refreshes tcrdb.result_summary when TCR assay results are updated or deleted through the query update service, such as when results
+ * are disabled from the results grid.  Imports refresh the summary directly.
+ */
+public class ResultSummaryTriggerFactory implements TriggerFactory
+{
+    @Override
+    public @NotNull Collection<Trigger> createTrigger(@Nullable Container c, TableInfo table, Map<String, Object> extraContext)
+    {
+        return Collections.singleton(new ResultSummaryTrigger());
+    }
+
+    private static class ResultSummaryTrigger implements Trigger
+    {
+        // The affected keys are accumulated in extraContext, which is shared by every row of one operation, and refreshed once on completion
+        private static final String ANALYSIS_IDS = "tcrdb.resultSummary.analysisIds";
+        private static final String CDNAS = "tcrdb.resultSummary.cDNAs";
+
+        @Override
+        public void afterUpdate(TableInfo table, Container c, User user, @Nullable Map<String, Object> newRow, @Nullable Map<String, Object> oldRow, ValidationException errors, Map<String, Object> extraContext)
+        {
+            collect(c, user, extraContext, newRow, oldRow);
+        }
+
+        @Override
+        public void afterDelete(TableInfo table, Container c, User user, @Nullable Map<String, Object> oldRow, ValidationException errors, Map<String, Object> extraContext)
+        {
+            collect(c, user, extraContext, oldRow);
+        }
+
+        @Override
+        public void complete(TableInfo table, Container c, User user, TableInfo.TriggerType event, BatchValidationException errors, Map<String, Object> extraContext)
+        {
+            if (extraContext == null || errors.hasErrors() || (event != TableInfo.TriggerType.UPDATE && event != TableInfo.TriggerType.DELETE))
+            {
+                return;
+            }
+
+            Set<Integer> analysisIds = getKeys(extraContext, ANALYSIS_IDS);
+            Set<Integer> cDNAs = getKeys(extraContext, CDNAS);
+            if (!analysisIds.isEmpty())
+            {
+                TCRdbManager.get().refreshResultSummary(user, c, analysisIds, cDNAs);
+            }
+
+            analysisIds.clear();
+            cDNAs.clear();
+        }
+
+        @SafeVarargs
+        private final void collect(Container c, User user, @Nullable Map<String, Object> extraContext, Map<String, Object>... rows)
+        {
+            //NOTE: without a shared context the keys cannot be held until the operation completes, so these are refreshed per row
+            Set<Integer> analysisIds = extraContext == null ? new HashSet<>() : getKeys(extraContext, ANALYSIS_IDS);
+            Set<Integer> cDNAs = extraContext == null ? new HashSet<>() : getKeys(extraContext, CDNAS);
+            for (Map<String, Object> row : rows)
+            {
+                if (row != null)
+                {
+                    addKey(analysisIds, row.get("analysisId"));
+                    addKey(cDNAs, row.get("cDNA"));
+                }
+            }
+
+            if (extraContext == null && !analysisIds.isEmpty())
+            {
+                TCRdbManager.get().refreshResultSummary(user, c, analysisIds, cDNAs);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Set<Integer> getKeys(Map<String, Object> extraContext, String name)
+        {
+            return (Set<Integer>)extraContext.computeIfAbsent(name, x -> new HashSet<Integer>());
+        }
+
+        private void addKey(Set<Integer> keys, Object val)
+        {
+            if (val instanceof Number)
+            {
+                keys.add(((Number)val).intValue());
+            }
+            else if (val != null && !val.toString().trim().isEmpty())
+            {
+                keys.add(Integer.parseInt(val.toString().trim()));
+            }
+        }
+    }
+}